@@ -0,0 +1,180 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Works out how long a build will take, by running its gcode through an EstimationDriver.
+ *
+ * Big parsed sources are estimated a chunk at a time, with the chunks spread over all of
+ * the processors. Each chunk starts from the modal state that ParsedGCodeSource found
+ * for it, and first replays enough of the lines before it to settle the position and
+ * the feedrate. Once every chunk is done we check, in order, that each one really
+ * started where the one before it ended. One that didn't (after relative moves, say, or
+ * an offset change) is estimated again carrying on from the one before, so the total is
+ * always what estimating the whole file in one go would give.
+ *
+ * Running gcode selects tools and sets motors on the estimator's machine model, so each
+ * chunk gets a copy of the machine of its own, and the machine being estimated for is
+ * left as it was.
+ */
+public class BuildEstimate {
+
+	// The master offset and the six fixture offsets, G53 to G59
+	private static final int OFFSETS = 7;
+
+	/**
+	 * Estimate a build.
+	 * @param machine the machine the build is for, which is only read
+	 * @return the build time, as EstimationDriver.getBuildTime() gives it
+	 */
+	public static double estimate(GCodeSource source, MachineModel machine) {
+		if (source instanceof ParsedGCodeSource && GCodeChunks.worthSplitting(source.getLineCount()))
+			return estimateInChunks((ParsedGCodeSource)source, machine);
+
+		Chunk all = new Chunk(machine, null, null, 0, 0);
+		all.run(ParsedGCodeSource.commandIterator(source));
+		return all.estimator.getBuildTime();
+	}
+
+	private static double estimateInChunks(ParsedGCodeSource source, MachineModel machine) {
+		final List<String> lines = source.asList();
+		final int lineCount = source.getLineCount();
+
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int start = 0; start < lineCount; start += GCodeChunks.CHUNK_LINES) {
+			int end = Math.min(start + GCodeChunks.CHUNK_LINES, lineCount);
+			chunks.add(new Chunk(machine, source, lines, start, end));
+		}
+		chunks = GCodeChunks.invokeAll(chunks);
+
+		double time = 0;
+		// the chunk whose parser and estimator are where the last line left them
+		Chunk last = null;
+		for (Chunk chunk : chunks) {
+			if (last != null && !Arrays.equals(chunk.started, stateOf(last.parser, last.estimator))) {
+				// This chunk guessed wrong, so carry on from where the last one really ended
+				double before = last.estimator.getBuildTime();
+				last.run(source.commandIterator(lines, chunk.start, chunk.end));
+				time += last.estimator.getBuildTime() - before;
+			} else {
+				time += chunk.time;
+				last = chunk;
+			}
+		}
+		return time;
+	}
+
+	/**
+	 * Everything that carries over from one line to the next and can change the
+	 * estimate: the parser's modes, feedrate and offset, and the estimator's position,
+	 * feedrate and offsets.
+	 */
+	static double[] stateOf(GCodeParser parser, EstimationDriver estimator) {
+		double[] state = new double[8 + 5 + 1 + 3 * OFFSETS];
+		int n = 0;
+		state[n++] = parser.absoluteMode ? 1 : 0;
+		state[n++] = parser.feedrate;
+		state[n++] = parser.tool;
+		state[n++] = parser.units;
+		state[n++] = parser.curveSection;
+		n = put(state, n, parser.currentOffset);
+		Point5d position = estimator.getPosition();
+		for (int axis = 0; axis < 5; axis++)
+			state[n++] = position.get(axis);
+		state[n++] = estimator.getCurrentFeedrate();
+		for (int i = 0; i < OFFSETS; i++)
+			n = put(state, n, estimator.getOffset(i));
+		return state;
+	}
+
+	private static int put(double[] state, int n, Point3d p) {
+		state[n++] = p.x;
+		state[n++] = p.y;
+		state[n++] = p.z;
+		return n;
+	}
+
+	/**
+	 * Some lines, run through a parser and an estimator of their own.
+	 */
+	private static class Chunk implements Callable<Chunk> {
+		final EstimationDriver estimator = new EstimationDriver();
+		final GCodeParser parser = new GCodeParser();
+		private final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+
+		private final ParsedGCodeSource source;
+		private final List<String> lines;
+		final int start;
+		final int end;
+
+		/// the state the lines started from, once call() has settled it
+		double[] started;
+
+		/// how long the lines take
+		double time = 0;
+
+		Chunk(MachineModel machine, ParsedGCodeSource source, List<String> lines, int start, int end) {
+			estimator.setMachine(machine.copy());
+			parser.init(estimator);
+			this.source = source;
+			this.lines = lines;
+			this.start = start;
+			this.end = end;
+		}
+
+		void run(Iterator<GCodeCommand> commands) {
+			while (commands.hasNext()) {
+				// TODO: Hooks for plugins to add estimated time?
+				parser.parse(commands.next(), queue);
+
+				for (DriverCommand command : queue) {
+					try {
+						command.run(estimator);
+					} catch (RetryException r) {
+						// Ignore.
+					} catch (StopException e) {
+						// TODO: Should we stop the estimator when we get a stop???
+					}
+				}
+				queue.clear();
+			}
+		}
+
+		public Chunk call() {
+			final int settling = source.getSettlingLine(start);
+			parser.setModalState(source.getModalState(settling));
+			if (settling < start) {
+				// An estimator with no feedrate complains about every move. It goes as fast as
+				// it can then, so start it off at that, and let the lines set the real one.
+				Point5d maximum = estimator.getMachine().getMaximumFeedrates();
+				double fastest = 1;
+				for (int axis = 0; axis < 5; axis++)
+					fastest = Math.max(fastest, maximum.get(axis));
+				estimator.setFeedrateMM(fastest);
+				run(source.commandIterator(lines, settling, start));
+			}
+			started = stateOf(parser, estimator);
+
+			double before = estimator.getBuildTime();
+			run(source.commandIterator(lines, start, end));
+			time = estimator.getBuildTime() - before;
+			return this;
+		}
+	}
+}
@@ -1,12 +1,13 @@
 package replicatorg.app.gcode;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
@@ -79,42 +80,99 @@ public class DualStrusionConstruction
 	}
 
 	/**
-	 * This method handles shuffling together two gcodes, it first executes
-	 * preprocessing and then hands the gcodes off to Layer_Helper
-	 * 
+	 * This method handles shuffling together two gcodes, keeping the result in memory
+	 * where getCombinedFile() can get at it. Use combine(File) for big files.
 	 */
 	public void combine()
 	{
-		MutableGCodeSource left, right;
-
-		// load our layers into something we can use 
-		left = new MutableGCodeSource(leftFile);
-		right = new MutableGCodeSource(rightFile);
-
-		// remove  some tags we don't want/get 
-		SkeinforgePostProcessor.stripNonLayerTagComments(left);
-		SkeinforgePostProcessor.stripNonLayerTagComments(right);
-
-		// load our layers into something we can *really* use
-		LinkedList<Layer> leftLayers = parseLayers(left);
-		LinkedList<Layer> rightLayers = parseLayers(right);
+		result = new MutableGCodeSource();
+		try {
+			merge(new GCodeTransform.Output() {
+				public void add(String line) {
+					result.add(line);
+				}
+			});
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not combine " + leftFile.getName() + " and " + rightFile.getName(), e);
+		}
+		result.transform(finishing());
+	}
 
-		// merge our layers into one list
-		final LinkedList<Layer> layers = doMerge(leftLayers, rightLayers);
+	/**
+	 * This method handles shuffling together two gcodes, writing the result to a file.
+	 * The left and right gcodes are read on threads of their own while the merge goes on,
+	 * and each layer is written out as soon as it is merged, so only a few layers of each
+	 * are ever in memory.
+	 * @param dest where to write the combined gcode
+	 */
+	public void combine(File dest) throws IOException
+	{
+		// The progress updates can't be added until we know how long the result is,
+		// so the merged layers go to a scratch file first
+		File merged = File.createTempFile("merged", ".gcode", dest.getAbsoluteFile().getParentFile());
+		try {
+			final BufferedWriter writer = new BufferedWriter(new FileWriter(merged));
+			try {
+				merge(new GCodeTransform.Output() {
+					public void add(String line) {
+						try {
+							writer.write(line);
+							writer.write('\n');
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw e;
+			} finally {
+				writer.close();
+			}
 
-		// refresh and repopulate our result
-		result = new MutableGCodeSource();
-		for(Layer l : layers) {
-			result.add(l.getCommands());
+			finishing().run(merged, dest);
+		} finally {
+			merged.delete();
 		}
+	}
 
+	/**
+	 * The steps that turn the merged layers into a complete build
+	 */
+	private GCodeTransformChain finishing()
+	{
+		// these all happen in one pass over the merged layers
+		GCodeTransformChain finishing = new GCodeTransformChain();
 		// add start gcode, updated based on settings
-		SkeinforgePostProcessor.prependAndModifyStartCode(result, startGCode);
+		finishing.add(SkeinforgePostProcessor.prependModifiedStartCode(startGCode));
 		// add end code
 		Layer endLayer = new Layer(Double.MAX_VALUE, endGCode.asList());
-		result.add(endLayer.toString());
+		MutableGCodeSource end = new MutableGCodeSource();
+		end.add(endLayer.toString());
+		finishing.add(GCodeTransform.append(end));
 		// interlace progress updates
-		result.addProgressUpdates();
+		finishing.add(GCodeTransform.progressUpdates());
+		return finishing;
+	}
+
+	/**
+	 * Read the layers out of both gcodes at once, and merge them.
+	 */
+	private void merge(GCodeTransform.Output out) throws IOException
+	{
+		// load our layers into something we can *really* use
+		LayerStream leftLayers = new LayerStream(leftFile);
+		LayerStream rightLayers = new LayerStream(rightFile);
+		leftLayers.start();
+		rightLayers.start();
+
+		try {
+			doMerge(leftLayers, rightLayers, out);
+		} finally {
+			leftLayers.close();
+			rightLayers.close();
+		}
 	}
 	
 //	/**
@@ -166,51 +224,18 @@ public class DualStrusionConstruction
 		 */
 
 		final LinkedList<Layer> layers = new LinkedList<Layer>();	
-		final Queue<String> read = new LinkedList<String>();
+		final LayerIndex index = LayerIndex.of(source);
+		final List<String> lines = source.asList();
 
 		//debug code///////////////////////////
 		layers.add(new Layer(0d, new ArrayList<String>(){{add("(*************start layer*************)");}}));
 		//////////////////////////////////////
-		String lastM103 = null;
-		double lastZHeight = Double.MIN_VALUE;
-		for(String line : source)
+		// The index does the walk described above, unless the source has layer tags,
+		// in which case we get the tagged layers instead
+		for(int i = 0; i < index.getLayerCount(); i++)
 		{
-			GCodeCommand gcode = new GCodeCommand(line);
-			
-			if(gcode.getCodeValue('M') == 103)
-				lastM103 = line;
-			
-			if(gcode.hasCode('Z'))
-			{
-				double newZ = gcode.getCodeValue('Z');
-				
-				// keeps us from creating an initial, empty layer
-				if(lastZHeight == Double.MIN_VALUE)
-				{
-					lastZHeight = newZ;
-				}
-				else if(newZ > lastZHeight)
-				{
-					ArrayList<String> tmpLayer = new ArrayList<String>();
-					
-					// fill the tmpLayer with the accumulated lines, up to the 
-					// most recent "stop extruding" or until the queue is empty (5D)
-					while(read.peek() != null && read.peek() != lastM103)
-						tmpLayer.add(read.poll());
-					
-					// Also grab the M103, if present
-					if(read.peek() == lastM103)
-						tmpLayer.add(read.poll());
-					
-					// put it in a new layer
-					layers.add(new Layer(lastZHeight, tmpLayer));
-
-					// record our next layer height
-					lastZHeight = newZ;
-				}
-			}
-			
-			read.add(line);
+			List<String> tmpLayer = new ArrayList<String>(lines.subList(index.getStartLine(i), index.getEndLine(i)));
+			layers.add(new Layer(index.getHeight(i), tmpLayer));
 		}
 
 		//debug code///////////////////////////
@@ -219,52 +244,6 @@ public class DualStrusionConstruction
 		return layers;
 	}
 	
-	/**
-	 * parseLayers is an improvement on the old parseLayers from Noah, etc. 's dualstrusion,
-	 * but uses the same basic method because skeinforge is what it is.
-	 * look for layer tags, break up the file using those tags.
-	 * @param source
-	 * @return
-	 */
-	private LinkedList<Layer> parseLayers(GCodeSource source)
-	{
-		final LinkedList<Layer> result = new LinkedList<Layer>();
-		String line;
-		
-		for(Iterator<String> it = source.iterator(); it.hasNext();)
-		{
-			line = it.next();
-			if(line.startsWith("(<layer>"))
-			{
-				// Get the layer height (or whatever SF claims it is)
-				float layerHeight = 0;
-				try
-				{
-					layerHeight = Float.parseFloat(line.split(" ")[1]);
-				}
-				catch(NumberFormatException e)
-				{
-					Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
-							"please check and make sure all of them are in the format (<layer> 0.00)");
-				}
-				
-				//collect every command up to the end of the layer 
-				final List<String> accumulate = new ArrayList<String>();
-//				String next = it.next(); actually, let's keep the initial layer tag
-				String next = line;
-				while(!next.startsWith("(</layer>)"))
-				{
-					accumulate.add(next);
-					next = it.next();
-				}
-				//skip empty layers
-				if(accumulate.size() > 1)
-					result.add(new Layer(layerHeight, accumulate));
-			}
-		}
-
-		return result;
-	}
 	/**
 	 * A toolchange is the code that goes in between commands for one head and commands for the other
 	 * this function creates a toolchange from a tool doing one layer to a tool doing another layer
@@ -417,7 +396,7 @@ public class DualStrusionConstruction
 		for(int i = search.size()-1; i >= 0; i--)
 		{
 			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('F') != -1)
+			if(gcode.hasCode('F'))
 				return "F"+Base.getGcodeFormat().format(gcode.getCodeValue('F'));
 		}
 		return "";
@@ -434,7 +413,7 @@ public class DualStrusionConstruction
 		for(int i = 0; i < search.size(); i++)
 		{
 			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('F') != -1)
+			if(gcode.hasCode('F'))
 				return "F"+Base.getGcodeFormat().format(gcode.getCodeValue('F'));
 		}
 		return "";
@@ -495,12 +474,14 @@ public class DualStrusionConstruction
 	}
 	
 	/**
-	 * This will consume two LinkedLists of Layers and return a combined List of Layers
+	 * This will consume two streams of Layers and write out the combined Layers
 	 * representing a dualstrusion print, with all the appropriate toolchanges inserted. 
+	 * Each layer is written as soon as it is merged.
 	 * @param left
 	 * @param right
+	 * @param out where the merged layers go
 	 */
-	private LinkedList<Layer> doMerge(final LinkedList<Layer> left, final LinkedList<Layer> right)
+	private void doMerge(final LayerStream left, final LayerStream right, final GCodeTransform.Output out) throws IOException
 	{
 		/*
 		 *   Merging layers should look something like this:
@@ -540,8 +521,8 @@ public class DualStrusionConstruction
 		 *     
 		 *           
 		 */
-		// using a LinkedList means we can getLast()
-		final LinkedList<Layer> result = new LinkedList<Layer>();
+		// the last layer we wrote, which the next toolchange starts from
+		Layer last;
 
 		// this is just a handy way to keep track of where our last layer came from
 		Object lastLayer = null;
@@ -550,16 +531,17 @@ public class DualStrusionConstruction
 		final ToolheadAlias initialTool;
 		// Start by selecting the correct toolhead
 		// This mimics how the selection happens in the loop below
-		if(right.peek().getHeight() < left.peek().getHeight())
+		// (if one side has no layers at all, it never gets selected)
+		if(left.isEmpty() || (!right.isEmpty() && right.peek().getHeight() < left.peek().getHeight()))
 			initialTool = ToolheadAlias.RIGHT;
 		else
 			initialTool = ToolheadAlias.LEFT;
 
 		// Prepend the switch to correct tool to the whole thing
-		result.add(new Layer(0, new ArrayList<String>(){{
+		last = write(new Layer(0, new ArrayList<String>(){{
 			add(initialTool.getRecallOffsetGcodeCommand());
 			add("M108 "+initialTool.getTcode() + "(Set tool)");
-		}}));
+		}}), out);
 		
 		// loop while we still have layers to merge
 		while((!left.isEmpty()) || (!right.isEmpty()))
@@ -569,32 +551,32 @@ public class DualStrusionConstruction
 			{
 				// if last layer tool != next layer tool, add a toolchange
 				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
+					last = write(toolchange(ToolheadAlias.RIGHT, last, ToolheadAlias.LEFT, left.peek()), out);
+				last = write(left.pop(), out);
 				lastLayer = left;
 			}
 			else if(left.isEmpty()) // used all left layers, keep grabbing from right
 			{
 				// if last layer tool != next layer tool, add a toolchange
 				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
+					last = write(toolchange(ToolheadAlias.LEFT, last, ToolheadAlias.RIGHT, right.peek()), out);
+				last = write(right.pop(), out);
 				lastLayer = right;
 			}
 			else if(left.peek().getHeight() < right.peek().getHeight()) // left has a lower layer, grab it
 			{
 				// if last layer tool != next layer tool, add a toolchange
 				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
+					last = write(toolchange(ToolheadAlias.RIGHT, last, ToolheadAlias.LEFT, left.peek()), out);
+				last = write(left.pop(), out);
 				lastLayer = left;
 			}
 			else if(right.peek().getHeight() < left.peek().getHeight()) // right has lower layer
 			{
 				// if last layer tool != next layer tool, add a toolchange
 				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
+					last = write(toolchange(ToolheadAlias.LEFT, last, ToolheadAlias.RIGHT, right.peek()), out);
+				last = write(right.pop(), out);
 				lastLayer = right;
 			}
 			else //equal height
@@ -602,20 +584,26 @@ public class DualStrusionConstruction
 				if(lastLayer == null)
 				{
 					//arbitrary
-					result.add(left.pop());
+					last = write(left.pop(), out);
 					lastLayer = left;
 				}
 				else
 				{
 					if(lastLayer == left)
-						result.add(left.pop());
+						last = write(left.pop(), out);
 					else// if(lastLayer == right)
-						result.add(right.pop());
+						last = write(right.pop(), out);
 				}
 			}
 		}
+	}
 		
-		return result;
+	// Write out the commands in a layer
+	private static Layer write(Layer layer, GCodeTransform.Output out)
+	{
+		for(String line : layer.getCommands())
+			out.add(line);
+		return layer;
 	}
 	
 //	// This is a hack, really we should be getting the dual-head start code
@@ -0,0 +1,107 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits big gcode files into fixed-size chunks of lines and works on the chunks in
+ * parallel, for the passes over a file: parsing, the safety check, the estimate and
+ * the layer index. Anything a chunk needs to know about the lines before it is found
+ * by a quick scan of each chunk and reconciled in order afterwards; see ModalState.
+ *
+ * Small files aren't worth splitting, and are handled on the calling thread.
+ */
+public class GCodeChunks {
+
+	/// lines in each chunk
+	public static final int CHUNK_LINES = 16384;
+
+	private static final int threads = Runtime.getRuntime().availableProcessors();
+
+	private static ExecutorService pool = null;
+
+	/**
+	 * @return true if a file this long should be worked on in chunks. Even with a single
+	 * processor, that lets reading the file overlap with working on it.
+	 */
+	public static boolean worthSplitting(int lineCount) {
+		return lineCount >= 2 * CHUNK_LINES;
+	}
+
+	/**
+	 * @return how many chunks can usefully be worked on at once
+	 */
+	public static int getParallelism() {
+		return threads;
+	}
+
+	// The threads are daemons, so an idle pool never keeps us from exiting
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				int count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "GCode chunk worker " + (++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Start working on a chunk.
+	 */
+	public static <T> Future<T> submit(Callable<T> task) {
+		return getPool().submit(task);
+	}
+
+	/**
+	 * Wait for a chunk to be done.
+	 * @return its result. Anything the chunk threw is thrown again here.
+	 */
+	public static <T> T get(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while working on gcode", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Work on every chunk in parallel.
+	 * @return the results, in the same order as the tasks
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for (Callable<T> task : tasks)
+			futures.add(submit(task));
+
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> future : futures)
+				results.add(get(future));
+		} finally {
+			// If one chunk failed, nobody wants the rest
+			for (Future<T> future : futures)
+				future.cancel(true);
+		}
+		return results;
+	}
+}
@@ -1,8 +1,6 @@
 package replicatorg.app.gcode;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,48 +11,185 @@ public class GCodeCommand {
 		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
 		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
 	
-	// pattern matchers.
+	// Index into codes for each letter 'A'-'Z', or -1 if we don't understand that letter
+	static private final int[] codeIndex = new int[26];
+	static {
+		Arrays.fill(codeIndex, -1);
+		for (int i = 0; i < codes.length; i++)
+			codeIndex[codes[i] - 'A'] = i;
+	}
+
+	// Every power of ten that a double holds exactly. Dividing an exact mantissa by one of
+	// these is correctly rounded, so it gives the same answer as Double.parseDouble().
+	static private final double[] exactPowersOfTen = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Largest mantissa that a double holds exactly (2^53)
+	static private final long maxExactMantissa = 1L << 53;
+
+	// pattern matchers, only used for the rare line with an embedded line break
 	static Pattern parenPattern  = Pattern.compile("\\((.*)\\)");
 	static Pattern semiPattern = Pattern.compile(";(.*)");
 	static Pattern deleteBlockPattern = Pattern.compile("^(\\.*)");
 	
 	
-	// The actual GCode command string
+	// The line we were built from
+	private final String line;
+
+	// The actual GCode command string, created the first time someone asks for it
 	private String command;
 
-	// Parsed out comment
-	private String comment = new String();
+	// Parsed out comment, created the first time someone asks for it
+	private String comment;
+
+	// Where the comment sits in line, or -1 if there isn't one
+	private int commentStart = -1;
+	private int commentEnd = -1;
+
+	// The parenthesized span of line that is cut out of the command, or -1 if there isn't one
+	private int parenStart = -1;
+	private int parenEnd = -1;
+
+	// Where the command ends in line (the first semicolon outside parens, or the end of the line)
+	private int commandEnd;
 
-	private class gCodeParameter {
-		final public char code;
-		final public Double value;
-		gCodeParameter(char code, Double value) {
-			this.code = code;
-			this.value = value;
+	// True once the fields above have been filled in. Commands are handed from the parse-ahead
+	// thread to the machine thread, so this is set last, and read before any of them.
+	private volatile boolean commentsLocated = false;
+
+	// True if the comments were stripped by parseComments(), which sets command and comment itself
+	private boolean strippedWithPatterns = false;
+
+	// Value of each code we understand, in the same order as codes
+	private final double[] values = new double[codes.length];
+
+	// Bit n is set if codes[n] appears in this GCode
+	private int present = 0;
+
+	public GCodeCommand(String command) {
+		this.line = command;
+
+		// Find the comments, so that we know which part of the line is actually the command
+		if (locateComments()) {
+			// Parse any codes out into the code tables
+			parseCodes(line, parenStart, parenEnd + 1, commandEnd);
+		} else {
+			parseCodes(this.command, -1, -1, this.command.length());
 		}
 	}
 	
-	// The set of parameters in this GCode
-	private List<gCodeParameter> parameters;
+	/**
+	 * Rebuild a command from codes that were parsed out of the same line earlier,
+	 * without parsing the line again. The comments are located the first time
+	 * someone asks for them.
+	 * @param line the line that was parsed
+	 * @param present the codes that were present, as returned by getPresentCodes()
+	 * @param packedValues the values that were written by packValues()
+	 * @param offset where the values for this line start in packedValues
+	 */
+	GCodeCommand(String line, int present, double[] packedValues, int offset) {
+		this.line = line;
+		this.present = present;
+		for (int code = 0; code < codes.length; code++) {
+			if ((present & (1 << code)) != 0)
+				values[code] = packedValues[offset++];
+		}
+	}
 
-	public GCodeCommand(String command) {
-		// Copy over the command
-		this.command = new String(command);
+	// Bit n is set if codes[n] appears in this GCode
+	int getPresentCodes() {
+		return present;
+	}
 		
-		// Initialize the present and value tables
-		this.parameters = new ArrayList<gCodeParameter>();
+	/**
+	 * Write the values of the codes that are present into dest, in the order they appear in codes.
+	 * @return the number of values written
+	 */
+	int packValues(double[] dest, int offset) {
+		int count = 0;
+		for (int code = 0; code < codes.length; code++) {
+			if ((present & (1 << code)) != 0)
+				dest[offset + count++] = values[code];
+		}
+		return count;
+	}
 		
-		// Parse (and strip) any comments out into a comment string
-		parseComments();
+	/**
+	 * Work out where the comments are, if we haven't already.
+	 * @return false if the comments had to be stripped with regular expressions,
+	 * in which case command holds what is left of the line.
+	 */
+	private boolean locateComments() {
+		if (!commentsLocated) {
+			synchronized (this) {
+				if (!commentsLocated) {
+					if (!findComments()) {
+						// Regular expressions treat line breaks specially; let them handle these oddballs.
+						parseComments();
+						strippedWithPatterns = true;
+					}
+					commentsLocated = true;
+				}
+			}
+		}
+		return !strippedWithPatterns;
+	}
+
+	/**
+	 * Locate the comments in this line without copying anything out of it. We support
+	 * one comment per row: a ';' comment wins over a '(...)' comment if both are present,
+	 * and a '(...)' comment runs from the first '(' to the last ')' on the line.
+	 * @return false if the line contains a line break, and must be handled by parseComments() instead.
+	 */
+	private boolean findComments() {
+		final int length = line.length();
+		int firstSemi = -1;
+
+		for (int i = 0; i < length; i++) {
+			char c = line.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+				return false;
+			if (c == '(' && parenStart == -1)
+				parenStart = i;
+			else if (c == ';' && firstSemi == -1)
+				firstSemi = i;
+		}
+
+		if (parenStart != -1) {
+			parenEnd = line.lastIndexOf(')');
+			if (parenEnd < parenStart) {
+				parenStart = -1;
+				parenEnd = -1;
+			}
+		}
+
+		if (firstSemi != -1) {
+			commentStart = firstSemi + 1;
+			commentEnd = length;
+		} else if (parenStart != -1) {
+			commentStart = parenStart + 1;
+			commentEnd = parenEnd;
+		}
+
+		// The command stops at the first semicolon that isn't cut out with the parens
+		commandEnd = length;
+		for (int i = firstSemi; i != -1; i = line.indexOf(';', i + 1)) {
+			if (i < parenStart || i > parenEnd) {
+				commandEnd = i;
+				break;
+			}
+		}
 
-		// Parse any codes out into the code tables
-		parseCodes();
+		return true;
 	}
 	
 	// Find any comments, store them, then remove them from the command 
 	private void parseComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		Matcher semiMatcher = semiPattern.matcher(command);
+		Matcher parenMatcher = parenPattern.matcher(line);
+		Matcher semiMatcher = semiPattern.matcher(line);
+
+		comment = new String();
 
 		// Note that we only support one style of comments, and only one comment per row. 
 		if (parenMatcher.find())
@@ -74,78 +209,153 @@ public class GCodeCommand {
 		command = semiMatcher.replaceAll("");
 	}
 
-	// Find any codes, and store them
-	private void parseCodes() {
-		for (char code : codes) {
-			Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-			Matcher myMatcher = myPattern.matcher(command);
+	/**
+	 * Find any codes, and store them. This walks the command once, skipping the span
+	 * [gapStart, gapEnd) that holds the parenthesized comment. A letter we understand is
+	 * present wherever it appears; its value is read from the first place where it is
+	 * followed by a run of [0-9.+-] characters, or is zero if there is no such place.
+	 */
+	private void parseCodes(String s, int gapStart, int gapEnd, int end) {
+		int valued = 0;
 
-			if (command.indexOf(code) >= 0) {
-				double value = 0;
+		// The lowest code whose value we couldn't read, and where that value is.
+		int failedCode = -1;
+		int failedStart = 0;
+		int failedEnd = 0;
 				
-				if (myMatcher.find()) {
-					String match = myMatcher.group(1);
-					value = Double.parseDouble(match);
+		int i = (gapStart == 0) ? gapEnd : 0;
+		while (i < end) {
+			char c = s.charAt(i);
+			i = (i + 1 == gapStart) ? gapEnd : i + 1;
+
+			if (c < 'A' || c > 'Z')
+				continue;
+			int code = codeIndex[c - 'A'];
+			if (code == -1)
+				continue;
+
+			present |= 1 << code;
+			if ((valued & (1 << code)) != 0 || i >= end || !isNumberChar(s.charAt(i)))
+				continue;
+			valued |= 1 << code;
+
+			// Read the number that follows the letter
+			final int start = i;
+			boolean negative = false;
+			boolean valid = true;
+			boolean exact = true;
+			boolean seenPoint = false;
+			boolean seenDigit = false;
+			long mantissa = 0;
+			int fractionDigits = 0;
+
+			c = s.charAt(i);
+			if (c == '+' || c == '-') {
+				negative = (c == '-');
+				i = (i + 1 == gapStart) ? gapEnd : i + 1;
+			}
+
+			while (i < end && isNumberChar(c = s.charAt(i))) {
+				if (c == '.') {
+					valid &= !seenPoint;
+					seenPoint = true;
+				} else if (c == '+' || c == '-') {
+					valid = false;
+				} else {
+					seenDigit = true;
+					if (mantissa < maxExactMantissa / 10) {
+						mantissa = mantissa * 10 + (c - '0');
+						if (seenPoint)
+							fractionDigits++;
+					} else {
+						exact = false;
+					}
 				}
+				i = (i + 1 == gapStart) ? gapEnd : i + 1;
+			}
 				
-				parameters.add(new gCodeParameter(code, value));
+			if (!valid || !seenDigit) {
+				if (failedCode == -1 || code < failedCode) {
+					failedCode = code;
+					failedStart = start;
+					failedEnd = i;
+				}
+			} else if (exact && fractionDigits < exactPowersOfTen.length) {
+				double value = mantissa / exactPowersOfTen[fractionDigits];
+				values[code] = negative ? -value : value;
+			} else {
+				values[code] = Double.parseDouble(join(s, start, i, gapStart, gapEnd));
 			}
 		}
+
+		// Complain about the same value that Double.parseDouble() would have choked on first
+		if (failedCode != -1)
+			Double.parseDouble(join(s, failedStart, failedEnd, gapStart, gapEnd));
+	}
+
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
+	}
+
+	// Copy s[start, end) into a new string, leaving out the span [gapStart, gapEnd)
+	private static String join(String s, int start, int end, int gapStart, int gapEnd) {
+		if (gapStart == -1 || end <= gapStart || start >= gapEnd)
+			return s.substring(start, end);
+
+		StringBuilder result = new StringBuilder(end - start);
+		result.append(s, start, gapStart);
+		result.append(s, gapEnd, end);
+		return result.toString();
 	}
 
 	public String getCommand() {
 		// TODO: Note that this is the command minus any comments.
-		return new String(command);
+		if (locateComments() && command == null)
+			command = join(line, 0, commandEnd, parenStart, parenEnd + 1);
+		return command;
 	}
 	
 	public String getComment() {
-		return new String(comment);
+		if (locateComments() && comment == null) {
+			if (commentStart == -1)
+				comment = "";
+			else
+				comment = line.substring(commentStart, commentEnd).trim().replace('|', '\n');
+		}
+		return comment;
+	}
+
+	// Index into codes for the given letter, or -1 if we don't understand it
+	private static int indexOf(char searchCode) {
+		if (searchCode < 'A' || searchCode > 'Z')
+			return -1;
+		return codeIndex[searchCode - 'A'];
 	}
 	
 	public boolean hasCode(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return true;
-			}
-		}
-		
-		return false;
+		int code = indexOf(searchCode);
+		return code != -1 && (present & (1 << code)) != 0;
 	}
 
-	public double getCodeValue(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return parameter.value;
-			}
-		}
-		
-		return -1;	// TODO: What do we return if there is no code?
+	/**
+	 * Get the value of a code in this GCode.
+	 * @param searchCode letter of the code to look up
+	 * @param absentValue what to return if this GCode doesn't contain the code
+	 * @return the value of the code, or absentValue if it isn't present.
+	 */
+	public double getCodeValue(char searchCode, double absentValue) {
+		int code = indexOf(searchCode);
+		if (code == -1 || (present & (1 << code)) == 0)
+			return absentValue;
+		return values[code];
 	}
 	
-//	public Double removeCode(Character searchCode) {
-//		for (Iterator<gCodeParameter> i = parameters.iterator(); i.hasNext();)
-//		{
-//			gCodeParameter gcp = i.next();
-//			if(gcp.code == searchCode)
-//			{
-//				i.remove();
-//				return gcp.value;
-//			}
-//		}
-//		return null;
-//	}
-//	
-//	public void addCode(Character code, Double value)
-//	{
-//		parameters.add(new gCodeParameter(code, value));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-//	
-//	public void addCode(Character code, Integer value)
-//	{
-//		parameters.add(new gCodeParameter(code, ((Number)value).doubleValue()));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
+	/**
+	 * Get the value of a code in this GCode, or -1 if it isn't present. Since -1 is
+	 * also a perfectly good value, use hasCode() or getCodeValue(char, double) when
+	 * the difference matters.
+	 */
+	public double getCodeValue(char searchCode) {
+		return getCodeValue(searchCode, -1);
+	}
 }
\ No newline at end of file
@@ -137,9 +137,27 @@ public enum GCodeEnumeration {
 				
 			});
 	
+	// Every code, by letter ('A' is 0) and then by number, so that finding one is a couple of
+	// array reads. The numbers are small and dense enough that the holes don't matter.
+	private static final GCodeEnumeration[][] table = new GCodeEnumeration[26][];
+
 	static {
 		for(GCodeEnumeration e : EnumSet.allOf(GCodeEnumeration.class))
 			lookup.put(e.letter + e.number, e);
+
+		for(GCodeEnumeration e : EnumSet.allOf(GCodeEnumeration.class))
+		{
+			int letter = e.letter.charAt(0) - 'A';
+			GCodeEnumeration[] codes = table[letter];
+			if(codes == null || codes.length <= e.number)
+			{
+				GCodeEnumeration[] bigger = new GCodeEnumeration[e.number + 1];
+				if(codes != null)
+					System.arraycopy(codes, 0, bigger, 0, codes.length);
+				table[letter] = codes = bigger;
+			}
+			codes[e.number] = e;
+		}
 	}
 	
 	public final String documentation;
@@ -168,17 +186,62 @@ public enum GCodeEnumeration {
 
 	public static GCodeEnumeration getGCode(String name)
 	{
-		try {
-			return lookup.get(name);
-		}
-		catch (java.lang.NumberFormatException exce) {
-			return null;
-		}
-
+		return getGCode(name, 0, name.length());
 	}
 	
 	public static GCodeEnumeration getGCode(String letter, Integer number)
 	{
+		if(letter.length() == 1 && number != null)
+			return getGCode(letter.charAt(0), number);
 		return lookup.get(letter + number);
 	}
+
+	/**
+	 * Look up a code by the letter and number the tokenizer has already read,
+	 * without building a name for it.
+	 * @return the code, or null if we don't know it
+	 */
+	public static GCodeEnumeration getGCode(char letter, int number)
+	{
+		if(letter < 'A' || letter > 'Z' || number < 0)
+			return null;
+		GCodeEnumeration[] codes = table[letter - 'A'];
+		if(codes == null || number >= codes.length)
+			return null;
+		return codes[number];
+	}
+
+	/**
+	 * Look up the code named by part of a string, like the "M104" at the start of
+	 * "M104 S220 T0", without copying it out. The name is read the same way
+	 * getGCode(String) always has: a letter, then an integer as Integer.parseInt() reads it.
+	 * @return the code, or null if the name isn't one we know
+	 */
+	public static GCodeEnumeration getGCode(CharSequence s, int start, int end)
+	{
+		if(end - start < 2)
+			return null;
+
+		final char letter = s.charAt(start);
+		int i = start + 1;
+		final char sign = s.charAt(i);
+		if(sign == '-' || sign == '+')
+		{
+			if(++i == end)
+				return null;
+		}
+
+		int number = 0;
+		for(; i < end; i++)
+		{
+			int digit = Character.digit(s.charAt(i), 10);
+			if(digit < 0)
+				return null;
+			number = number * 10 + digit;
+			// No code is anywhere near this big; stopping here also keeps number from overflowing
+			if(number > 0xFFFF)
+				return null;
+		}
+		return getGCode(letter, (sign == '-') ? -number : number);
+	}
 }
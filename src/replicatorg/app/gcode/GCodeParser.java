@@ -197,6 +197,52 @@ public class GCodeParser {
 		currentOffset = new Point3d();
 	}
 
+	/**
+	 * Make a parser in the same state as this one (the same modes, tool, offset and
+	 * feedrate), which talks to a different driver. This lets parsing pick up again
+	 * from the middle of a file.
+	 */
+	public GCodeParser copy(DriverQueryInterface drv) {
+		GCodeParser result = new GCodeParser();
+		result.driver = drv;
+		result.curveSection = curveSection;
+		// Offsets are shared with the driver, so that changes to them show up here
+		result.currentOffset = currentOffset;
+		result.absoluteMode = absoluteMode;
+		result.feedrate = feedrate;
+		result.tool = tool;
+		result.units = units;
+		return result;
+	}
+
+	/**
+	 * @return true if copy() would give a parser in the same state as other: the same
+	 * modes, tool, feedrate, and the very same offset.
+	 */
+	public boolean sameState(GCodeParser other) {
+		return curveSection == other.curveSection &&
+				currentOffset == other.currentOffset &&
+				absoluteMode == other.absoluteMode &&
+				feedrate == other.feedrate &&
+				tool == other.tool &&
+				units == other.units;
+	}
+
+	/**
+	 * Put the parser in a modal state, as if it had parsed the lines that led up to it.
+	 * This lets parsing start in the middle of a file. The offset is the one the state's
+	 * tool selects; call init() first, so that there is a driver to get it from.
+	 */
+	public void setModalState(ModalState state) {
+		if (state.getTool() != -1) {
+			tool = state.getTool();
+			currentOffset = driver.getOffset(tool+1);
+		}
+		absoluteMode = state.isAbsolute();
+		units = state.getUnits();
+		curveSection = (units == UNITS_INCHES) ? curveSectionInches : curveSectionMM;
+	}
+
 	/**
 	 * Get the maximum feed rate from the driver's model.
 	 */
@@ -228,7 +274,16 @@ public class GCodeParser {
 	public boolean parse(String cmd, Queue< DriverCommand > commandQueue) {
 		
 		// First, parse the GCode string into an object we can query.
-		GCodeCommand gcode = new GCodeCommand(cmd);
+		return parse(new GCodeCommand(cmd), commandQueue);
+	}
+
+	/**
+	 * Function packages an already parsed line of GCode into an executable event
+	 * for the s3g driver code to execute, and queues the event for execution
+	 * 
+	 * @param gcode a single parsed line of GCode to package and send to the driver.
+	 */
+	public boolean parse(GCodeCommand gcode, Queue< DriverCommand > commandQueue) {
 
 		// Now, convert the GCode instruction into a series of driver commands,
 		// that will be executed by execute()
@@ -299,15 +354,17 @@ public class GCodeParser {
 			tool = (int) gcode.getCodeValue('T');
 		}
 		
+		GCodeEnumeration codeEnum = GCodeEnumeration.getGCode('M', (int)gcode.getCodeValue('M'));
+
 		// handle unrecognised GCode
-		if(GCodeEnumeration.getGCode("M", (int)gcode.getCodeValue('M')) == null)
+		if(codeEnum == null)
 		{
 			String message = "Unrecognized MCode! M" + (int)gcode.getCodeValue('M');
 			Base.logger.log(Level.SEVERE, message);
 			throw new GCodeException(message);
 		}
 		
-		switch (GCodeEnumeration.getGCode("M", (int)gcode.getCodeValue('M'))) {
+		switch (codeEnum) {
 		case M0:
 			// M0 == unconditional halt
 			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
@@ -696,7 +753,7 @@ public class GCodeParser {
 		}
 		
 
-		GCodeEnumeration codeEnum = GCodeEnumeration.getGCode("G", (int)gcode.getCodeValue('G'));
+		GCodeEnumeration codeEnum = GCodeEnumeration.getGCode('G', (int)gcode.getCodeValue('G'));
 
 		// handle unrecognised GCode
 		if(codeEnum == null)
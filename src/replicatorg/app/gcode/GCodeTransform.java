@@ -0,0 +1,286 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import replicatorg.machine.model.ToolheadAlias;
+import replicatorg.model.GCodeSource;
+
+/**
+ * One step of gcode post-processing, written as something that is handed the
+ * gcode a line at a time. Transforms are strung together in a GCodeTransformChain,
+ * which runs all of them in a single pass over the gcode, so that post-processing
+ * a file means reading it once and writing it once, rather than copying the whole
+ * thing for every step.
+ *
+ * A transform sends its results on to an Output, which is either the next
+ * transform in the chain or wherever the finished gcode is going.
+ */
+public abstract class GCodeTransform {
+
+	/// Somewhere to send lines of gcode
+	public interface Output {
+		void add(String line);
+	}
+
+	/**
+	 * Called once, before any lines. Anything sent to out here comes before
+	 * everything else this transform outputs.
+	 * @param inputLineCount the number of lines this transform will be handed, or -1 if that isn't known
+	 */
+	public void start(int inputLineCount, Output out) { }
+
+	/**
+	 * Handle one line of gcode, sending whatever should replace it to out.
+	 */
+	public abstract void line(String line, Output out);
+
+	/**
+	 * Called once, after the last line. Anything sent to out here comes after
+	 * everything else this transform outputs.
+	 */
+	public void finish(Output out) { }
+
+	/**
+	 * @return how many lines this transform will output for a given number of input lines,
+	 * or -1 if it can't know that in advance.
+	 */
+	public int getOutputLineCount(int inputLineCount) {
+		return inputLineCount;
+	}
+
+	/**
+	 * @return true if this transform needs to be told how many lines it will be handed
+	 */
+	public boolean needsLineCount() {
+		return false;
+	}
+
+	// Copy the lines of a source, which may be null, into a list we can hang on to
+	private static List<String> linesOf(GCodeSource source) {
+		List<String> result = new ArrayList<String>();
+		if (source != null)
+			result.addAll(source.asList());
+		return result;
+	}
+
+	/**
+	 * Puts some code before the gcode.
+	 * @param code what to prepend. May be null, in which case nothing is added.
+	 */
+	public static GCodeTransform prepend(GCodeSource code) {
+		final List<String> lines = linesOf(code);
+		return new GCodeTransform() {
+			@Override
+			public void start(int inputLineCount, Output out) {
+				for (String line : lines)
+					out.add(line);
+			}
+
+			@Override
+			public void line(String line, Output out) {
+				out.add(line);
+			}
+
+			@Override
+			public int getOutputLineCount(int inputLineCount) {
+				return (inputLineCount < 0) ? -1 : inputLineCount + lines.size();
+			}
+		};
+	}
+
+	/**
+	 * Puts some code after the gcode.
+	 * @param code what to append. May be null, in which case nothing is added.
+	 */
+	public static GCodeTransform append(GCodeSource code) {
+		final List<String> lines = linesOf(code);
+		return new GCodeTransform() {
+			@Override
+			public void line(String line, Output out) {
+				out.add(line);
+			}
+
+			@Override
+			public void finish(Output out) {
+				for (String line : lines)
+					out.add(line);
+			}
+
+			@Override
+			public int getOutputLineCount(int inputLineCount) {
+				return (inputLineCount < 0) ? -1 : inputLineCount + lines.size();
+			}
+		};
+	}
+
+	/**
+	 * Swaps all references to the current toolhead to instead reference the
+	 * specified toolhead. Alters select G, M and T Codes.
+	 */
+	public static GCodeTransform changeToolhead(final ToolheadAlias tool) {
+		final String recallOffset = tool.getRecallOffsetGcodeCommand();
+		return new GCodeTransform() {
+			@Override
+			public void line(String line, Output out) {
+				// Only lines with a T or G code can need changing
+				if (line.indexOf('T') == -1 && line.indexOf('G') == -1) {
+					out.add(line);
+					return;
+				}
+
+				GCodeCommand gcode = new GCodeCommand(line);
+
+				if (gcode.hasCode('T')) {
+					int value = (int)gcode.getCodeValue('T');
+					if (value != tool.number) {
+						if (value == 0)
+							line = line.replace("T0", "T1");
+						else if (value == 1)
+							line = line.replace("T1", "T0");
+					}
+				}
+				if (gcode.getCodeValue('G') == 54 && !recallOffset.equals("G54"))
+					line = line.replace("G54", recallOffset);
+				if (gcode.getCodeValue('G') == 55 && !recallOffset.equals("G55"))
+					line = line.replace("G55", recallOffset);
+				out.add(line);
+			}
+		};
+	}
+
+	/**
+	 * If only one toolhead is used, adds a cool command for the unused head just after
+	 * the first M104 (or at the end, if there isn't one).
+	 *
+	 * We can't know whether the other toolhead is used until we've seen it, so the lines
+	 * after the first M104 are held back until it turns up. For gcode that only uses one
+	 * toolhead that means holding on to most of the file.
+	 */
+	public static GCodeTransform coolUnusedToolhead() {
+		return new GCodeTransform() {
+			boolean seenT0 = false;
+			boolean seenT1 = false;
+			boolean addPointFound = false;
+
+			// lines after the addition point, waiting for us to decide
+			final List<String> held = new ArrayList<String>();
+
+			@Override
+			public void line(String line, Output out) {
+				if (seenT0 && seenT1) {
+					out.add(line);
+					return;
+				}
+
+				if (addPointFound)
+					held.add(line);
+				else
+					out.add(line);
+
+				if (line.indexOf('T') == -1 && line.indexOf('M') == -1)
+					return;
+				GCodeCommand gcode = new GCodeCommand(line);
+
+				double tval = gcode.getCodeValue('T');
+				if (tval == 0)	seenT0 = true;
+				if (tval == 1)	seenT1 = true;
+
+				if (gcode.getCodeValue('M') == 104)
+					addPointFound = true;
+
+				if (seenT0 && seenT1)
+					release(out);
+			}
+
+			@Override
+			public void finish(Output out) {
+				if (seenT0 && !seenT1)
+					out.add("M104 T1 S0");
+				if (seenT1 && !seenT0)
+					out.add("M104 T0 S0");
+				release(out);
+			}
+
+			private void release(Output out) {
+				for (String line : held)
+					out.add(line);
+				held.clear();
+			}
+
+			@Override
+			public int getOutputLineCount(int inputLineCount) {
+				return -1;
+			}
+		};
+	}
+
+	/// The progress update that goes before the layer on the given line
+	static String progressUpdate(int index, int lineCount) {
+		int percentDone = (int)((index*100L)/lineCount);
+		/// TRICKY: M73 P0 is required by The Replicator to enable % display
+		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
+		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
+		// to the firmware.  A possible less tricky fix is to make a separate command for these
+		if(percentDone == 0)	percentDone = 1;
+		if(percentDone == 100)	percentDone = 99;
+		// Footnote 1: The only 'M37 100' that should happen is part of the end.gcode, since
+		// 'M73 100' sends an s3g 'BUILD_DONE', and more than 1 'BUILD_DONE' message
+		// causes problems for the firmware.
+		// the only M73 0 that happens should be part of the start gcode to specify the filename
+		return "M73 P"+percentDone+" (display progress)";
+	}
+
+	/**
+	 * Adds gcode for approx % done before each layer tag, using the line count.
+	 * If the chain can't say how many lines there will be, the gcode is held until
+	 * the end so that they can be counted.
+	 */
+	public static GCodeTransform progressUpdates() {
+		return new GCodeTransform() {
+			int lineCount;
+			int index = 0;
+			List<String> held = null;
+
+			@Override
+			public void start(int inputLineCount, Output out) {
+				lineCount = inputLineCount;
+				if (lineCount < 0)
+					held = new ArrayList<String>();
+			}
+
+			@Override
+			public void line(String line, Output out) {
+				if (held != null) {
+					held.add(line);
+					return;
+				}
+				if (line.startsWith("(<layer>"))
+					out.add(progressUpdate(index, lineCount));
+				out.add(line);
+				index++;
+			}
+
+			@Override
+			public void finish(Output out) {
+				if (held == null)
+					return;
+				lineCount = held.size();
+				List<String> lines = held;
+				held = null;
+				for (String line : lines)
+					line(line, out);
+			}
+
+			@Override
+			public int getOutputLineCount(int inputLineCount) {
+				return -1;
+			}
+
+			@Override
+			public boolean needsLineCount() {
+				return true;
+			}
+		};
+	}
+}
@@ -0,0 +1,219 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import replicatorg.model.GCodeSource;
+
+/**
+ * A list of GCodeTransforms, run one after another in a single pass over the gcode.
+ *
+ * Each line is handed to the first transform, whatever it outputs is handed to the
+ * second, and so on, so no transform ever needs a copy of the whole file. Code that
+ * transforms put before the gcode still goes through the transforms after them, just
+ * as it would if each transform were run over the whole file in turn.
+ */
+public class GCodeTransformChain {
+
+	private final List<GCodeTransform> transforms = new ArrayList<GCodeTransform>();
+
+	/// adds a transform to the end of the chain
+	public void add(GCodeTransform transform) {
+		transforms.add(transform);
+	}
+
+	public boolean isEmpty() {
+		return transforms.isEmpty();
+	}
+
+	/// @return true if any transform needs to know the line count before it starts
+	private boolean needsLineCount() {
+		for (GCodeTransform transform : transforms) {
+			if (transform.needsLineCount())
+				return true;
+		}
+		return false;
+	}
+
+	// Hands lines to one transform, sending what it outputs on to the next link
+	private static class Link implements GCodeTransform.Output {
+		final GCodeTransform transform;
+		final GCodeTransform.Output next;
+
+		Link(GCodeTransform transform, GCodeTransform.Output next) {
+			this.transform = transform;
+			this.next = next;
+		}
+
+		public void add(String line) {
+			transform.line(line, next);
+		}
+	}
+
+	/**
+	 * The gcode being transformed, a line at a time.
+	 */
+	public interface Input {
+		/// @return the next line, or null at the end
+		String readLine() throws IOException;
+	}
+
+	/**
+	 * Run every transform over the input, sending the results to out.
+	 * @param lineCount how many lines the input has, or -1 if that isn't known
+	 */
+	public void run(Input in, int lineCount, GCodeTransform.Output out) throws IOException {
+		final int size = transforms.size();
+
+		// Wire the transforms together, back to front
+		final GCodeTransform.Output[] inputs = new GCodeTransform.Output[size + 1];
+		inputs[size] = out;
+		for (int i = size - 1; i >= 0; i--)
+			inputs[i] = new Link(transforms.get(i), inputs[i + 1]);
+
+		// Work out how many lines each transform will see
+		final int[] lineCounts = new int[size];
+		for (int i = 0; i < size; i++) {
+			lineCounts[i] = lineCount;
+			if (lineCount >= 0)
+				lineCount = transforms.get(i).getOutputLineCount(lineCount);
+		}
+
+		// Later transforms go first, so that what earlier ones prepend
+		// still passes through the later ones
+		for (int i = size - 1; i >= 0; i--)
+			transforms.get(i).start(lineCounts[i], inputs[i + 1]);
+
+		for (String line = in.readLine(); line != null; line = in.readLine())
+			inputs[0].add(line);
+
+		// Earlier transforms go first, so that what they append
+		// still passes through the later ones
+		for (int i = 0; i < size; i++)
+			transforms.get(i).finish(inputs[i + 1]);
+	}
+
+	/**
+	 * Run every transform over a source, sending the results to out.
+	 */
+	public void run(GCodeSource source, GCodeTransform.Output out) {
+		final Iterator<String> lines = source.iterator();
+		try {
+			run(new Input() {
+				public String readLine() {
+					return lines.hasNext() ? lines.next() : null;
+				}
+			}, source.getLineCount(), out);
+		} catch (IOException e) {
+			// Sources don't do any IO of their own
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Run every transform over a file, replacing it with the result.
+	 */
+	public void run(File file) throws IOException {
+		run(file, file);
+	}
+
+	/**
+	 * Run every transform over one file, writing the result to another, which may be
+	 * the same file. The input is streamed through the transforms into a temporary file
+	 * next to the output, which then takes its place.
+	 */
+	public void run(File in, File out) throws IOException {
+		final int lineCount = needsLineCount() ? countLines(in) : -1;
+
+		File temp = File.createTempFile(out.getName(), ".tmp", out.getAbsoluteFile().getParentFile());
+		final BufferedReader reader = new BufferedReader(new FileReader(in));
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(temp));
+		boolean written = false;
+		try {
+			run(new Input() {
+				public String readLine() throws IOException {
+					return reader.readLine();
+				}
+			}, lineCount, new GCodeTransform.Output() {
+				public void add(String line) {
+					try {
+						writer.write(line);
+						writer.write('\n');
+					} catch (IOException e) {
+						throw new WriteException(e);
+					}
+				}
+			});
+			writer.close();
+			written = true;
+		} catch (WriteException e) {
+			throw e.ioe;
+		} finally {
+			reader.close();
+			writer.close();
+			if (!written)
+				temp.delete();
+		}
+
+		// Some platforms won't rename over an existing file
+		if (!temp.renameTo(out)) {
+			out.delete();
+			if (!temp.renameTo(out))
+				throw new IOException("Could not replace " + out.getAbsolutePath() +
+						", the result is in " + temp.getAbsolutePath());
+		}
+	}
+
+	// Carries an IOException out through the transforms, which don't expect one
+	private static class WriteException extends RuntimeException {
+		private static final long serialVersionUID = -6081326532105076302L;
+
+		final IOException ioe;
+
+		WriteException(IOException ioe) {
+			super(ioe);
+			this.ioe = ioe;
+		}
+	}
+
+	/**
+	 * Count the lines in a file, breaking them the same way BufferedReader.readLine() does.
+	 */
+	static int countLines(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			byte[] buffer = new byte[65536];
+			int count = 0;
+			boolean afterCR = false;
+			boolean inLine = false;
+			for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+				for (int i = 0; i < n; i++) {
+					byte b = buffer[i];
+					if (b == '\n' && afterCR) {
+						afterCR = false;
+					} else if (b == '\r' || b == '\n') {
+						count++;
+						inLine = false;
+						afterCR = (b == '\r');
+					} else {
+						inLine = true;
+						afterCR = false;
+					}
+				}
+			}
+			return inLine ? count + 1 : count;
+		} finally {
+			in.close();
+		}
+	}
+}
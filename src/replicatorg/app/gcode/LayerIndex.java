@@ -0,0 +1,376 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import replicatorg.model.GCodeSource;
+
+/**
+ * Where each layer of a gcode file is, found in a single pass over the file. Big
+ * parsed files are scanned a chunk at a time on all of the processors, and what
+ * the chunks found is put together in order.
+ *
+ * For every layer we keep the range of lines it covers, its height, and the
+ * tool that was selected when it started. With that, finding a layer (to merge
+ * it, preview it, or resume a build from it) is a lookup rather than a scan.
+ *
+ * Layers are found the same ways DualStrusionConstruction has always found them:
+ *   If the file has skeinforge layer tags, each layer runs from a "(<layer> height)"
+ *   line up to the following "(</layer>)" line, or up to the next layer tag if it is
+ *   never closed.
+ *   Otherwise, a new layer starts each time Z goes up. The previous layer ends just
+ *   after the last M103 (extruder off) before the move, or at the move itself in 5D
+ *   code that has no M103s. Lines after the last Z change aren't part of any layer.
+ *
+ * The index refers to lines by number, so it has to be rebuilt if the source changes.
+ * Use LayerIndex.of() to get one, which reuses the index a source already carries.
+ */
+public class LayerIndex {
+
+	/// number of layers found
+	private int layerCount = 0;
+
+	/// first line of each layer
+	private int[] startLines = new int[64];
+
+	/// line just after the end of each layer
+	private int[] endLines = new int[64];
+
+	/// height of each layer, or NaN if the layer tag didn't have a readable height
+	private double[] heights = new double[64];
+
+	/// tool selected (the last T code seen) when each layer starts, or -1 if none had been
+	private int[] tools = new int[64];
+
+	/// true if the layers came from layer tags, rather than Z changes
+	private boolean tagged = false;
+
+	/// number of lines in the source we indexed
+	private final int lineCount;
+
+	/**
+	 * Get the layer index for a source, building one only if the source doesn't
+	 * already carry an up-to-date index.
+	 */
+	public static LayerIndex of(GCodeSource source) {
+		if (source instanceof ParsedGCodeSource)
+			return ((ParsedGCodeSource)source).getLayerIndex();
+		if (source instanceof MutableGCodeSource)
+			return ((MutableGCodeSource)source).getLayerIndex();
+		return new LayerIndex(source);
+	}
+
+	/**
+	 * Index the layers in a source, in one pass. Big parsed sources are scanned a chunk
+	 * at a time, with the chunks spread over all of the processors.
+	 */
+	public LayerIndex(GCodeSource source) {
+		List<Scan> scans = new ArrayList<Scan>();
+		if (source instanceof ParsedGCodeSource && GCodeChunks.worthSplitting(source.getLineCount())) {
+			final List<String> lines = source.asList();
+			for (int start = 0; start < lines.size(); start += GCodeChunks.CHUNK_LINES) {
+				int end = Math.min(start + GCodeChunks.CHUNK_LINES, lines.size());
+				scans.add(new Scan(lines.subList(start, end).iterator(), start));
+			}
+			scans = GCodeChunks.invokeAll(scans);
+		} else {
+			scans.add(new Scan(source.iterator(), 0).call());
+		}
+
+		int index = 0;
+		for (Scan scan : scans) {
+			for (int i = 0; i < scan.count; i++)
+				found(scan.kinds[i], scan.lines[i], scan.values[i]);
+			index = scan.end;
+		}
+
+		if (openLayer != -1)
+			endLines[openLayer] = index;
+		lineCount = index;
+	}
+
+	// What a scan finds: the lines that matter to the index, in order
+	private static final byte LAYER_TAG = 0;	// value is the height
+	private static final byte END_TAG = 1;
+	private static final byte M103 = 2;
+	private static final byte Z = 3;			// value is the new Z
+	private static final byte TOOL = 4;			// value is the tool
+
+	/**
+	 * Finds the lines in a run of lines that matter to the index. These runs can be
+	 * scanned in any order, since what a line means depends on the lines before it
+	 * only once found() puts it in order.
+	 */
+	private static class Scan implements Callable<Scan> {
+		private final Iterator<String> it;
+		/// number of the line after the last one scanned
+		int end;
+
+		int count = 0;
+		byte[] kinds = new byte[64];
+		int[] lines = new int[64];
+		double[] values = new double[64];
+
+		Scan(Iterator<String> it, int start) {
+			this.it = it;
+			this.end = start;
+		}
+
+		public Scan call() {
+			for (; it.hasNext(); end++) {
+				final String line = it.next();
+
+				if (line.startsWith("(<layer>"))
+					add(LAYER_TAG, end, parseHeight(line));
+				else if (line.startsWith("(</layer>)"))
+					add(END_TAG, end, 0);
+
+				// Only lines that have the letters we care about are worth parsing
+				final boolean hasT = line.indexOf('T') != -1;
+				final boolean wantZ = line.indexOf('Z') != -1 || line.indexOf('M') != -1;
+				if (!hasT && !wantZ)
+					continue;
+
+				final GCodeCommand gcode;
+				try {
+					gcode = new GCodeCommand(line);
+				} catch (NumberFormatException e) {
+					// The builders will complain about this line, we don't need to
+					continue;
+				}
+
+				if (wantZ) {
+					if (gcode.getCodeValue('M') == 103)
+						add(M103, end, 0);
+					if (gcode.hasCode('Z'))
+						add(Z, end, gcode.getCodeValue('Z'));
+				}
+				if (hasT && gcode.hasCode('T'))
+					add(TOOL, end, gcode.getCodeValue('T'));
+			}
+			return this;
+		}
+
+		private void add(byte kind, int line, double value) {
+			if (count == kinds.length) {
+				byte[] newKinds = new byte[count * 2];
+				System.arraycopy(kinds, 0, newKinds, 0, count);
+				kinds = newKinds;
+				lines = grow(lines);
+				double[] newValues = new double[count * 2];
+				System.arraycopy(values, 0, newValues, 0, count);
+				values = newValues;
+			}
+			kinds[count] = kind;
+			lines[count] = line;
+			values[count] = value;
+			count++;
+		}
+	}
+
+	// What we know so far, as found() goes through the lines in order
+
+	// tagged layer that hasn't been closed yet, or -1
+	private int openLayer = -1;
+
+	// state for finding layers by Z, which we keep up only until we see a layer tag
+	private boolean seenZ = false;
+	private double lastZHeight = 0;
+	private int lastM103 = -1;
+	private int toolAfterM103 = -1;
+	private int zLayerStart = 0;
+	private int zLayerTool = -1;
+
+	private int tool = -1;
+
+	// Take in something a scan found, in line order
+	private void found(byte kind, int index, double value) {
+		switch (kind) {
+		case LAYER_TAG:
+			if (!tagged) {
+				// Forget any layers we found by Z, tags are much more reliable
+				tagged = true;
+				layerCount = 0;
+			}
+			if (openLayer != -1)
+				endLines[openLayer] = index;
+			openLayer = addLayer(index, value, tool);
+			break;
+		case END_TAG:
+			if (openLayer != -1) {
+				endLines[openLayer] = index;
+				openLayer = -1;
+			}
+			break;
+		case M103:
+			if (!tagged) {
+				lastM103 = index;
+				toolAfterM103 = tool;
+			}
+			break;
+		case Z:
+			if (tagged)
+				break;
+			if (!seenZ) {
+				// keeps us from creating an initial, empty layer
+				seenZ = true;
+				lastZHeight = value;
+			} else if (value > lastZHeight) {
+				// the layer runs up to and including the most recent "stop extruding",
+				// or up to this line if there wasn't one (5D)
+				int end = (lastM103 >= zLayerStart && lastM103 < index) ? lastM103 + 1 : index;
+				int layer = addLayer(zLayerStart, lastZHeight, zLayerTool);
+				endLines[layer] = end;
+
+				zLayerStart = end;
+				zLayerTool = (end == index) ? tool : toolAfterM103;
+				lastZHeight = value;
+			}
+			break;
+		case TOOL:
+			tool = (int)value;
+			if (index == lastM103)
+				toolAfterM103 = tool;
+			break;
+		}
+	}
+
+	/**
+	 * Read the height out of a "(<layer> 0.35 )" tag, the same way DualStrusionConstruction always has.
+	 * @return the height, or NaN if the tag doesn't have a readable one
+	 */
+	static double parseHeight(String line) {
+		String[] parts = line.split(" ");
+		if (parts.length < 2)
+			return Double.NaN;
+		try {
+			return Float.parseFloat(parts[1]);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	// Add a layer, returning its number
+	private int addLayer(int start, double height, int tool) {
+		if (layerCount == startLines.length) {
+			startLines = grow(startLines);
+			endLines = grow(endLines);
+			tools = grow(tools);
+			double[] newHeights = new double[heights.length * 2];
+			System.arraycopy(heights, 0, newHeights, 0, heights.length);
+			heights = newHeights;
+		}
+		startLines[layerCount] = start;
+		endLines[layerCount] = start;
+		heights[layerCount] = height;
+		tools[layerCount] = tool;
+		return layerCount++;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] result = new int[array.length * 2];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * @return the number of layers found
+	 */
+	public int getLayerCount() {
+		return layerCount;
+	}
+
+	/**
+	 * @return the number of lines in the source that was indexed
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * @return true if the layers were found using skeinforge layer tags, false if they
+	 * were found by watching Z
+	 */
+	public boolean isTagged() {
+		return tagged;
+	}
+
+	/**
+	 * @return the first line of a layer, 0 indexed. For tagged layers this is the layer tag.
+	 */
+	public int getStartLine(int layer) {
+		checkLayer(layer);
+		return startLines[layer];
+	}
+
+	/**
+	 * @return the line just after the end of a layer, 0 indexed. For tagged layers this is
+	 * the closing layer tag, if there is one.
+	 */
+	public int getEndLine(int layer) {
+		checkLayer(layer);
+		return endLines[layer];
+	}
+
+	/**
+	 * @return the height of a layer, or NaN if its layer tag didn't give a readable one
+	 */
+	public double getHeight(int layer) {
+		checkLayer(layer);
+		return heights[layer];
+	}
+
+	/**
+	 * @return the tool number (the last T code) selected when a layer starts, or -1 if
+	 * no tool had been selected yet.
+	 */
+	public int getTool(int layer) {
+		checkLayer(layer);
+		return tools[layer];
+	}
+
+	/**
+	 * Find the layer that a line belongs to.
+	 * @return the layer number, or -1 if the line isn't part of any layer
+	 */
+	public int getLayerForLine(int line) {
+		int low = 0;
+		int high = layerCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (startLines[mid] > line)
+				high = mid - 1;
+			else if (endLines[mid] <= line)
+				low = mid + 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the first layer at or above a height. Layers are assumed to be in order of
+	 * increasing height, which is how slicers write them.
+	 * @return the layer number, or -1 if every layer is lower than height
+	 */
+	public int getLayerAtHeight(double height) {
+		int low = 0;
+		int high = layerCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			// NaN heights compare as low, so a bad tag can't stop the search
+			if (heights[mid] < height || Double.isNaN(heights[mid]))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return (low < layerCount) ? low : -1;
+	}
+
+	private void checkLayer(int layer) {
+		if (layer < 0 || layer >= layerCount)
+			throw new IndexOutOfBoundsException("Layer " + layer + " of " + layerCount);
+	}
+}
@@ -0,0 +1,163 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.plugin.toolpath.skeinforge.SkeinforgePostProcessor;
+
+/**
+ * Reads the layers out of a skeinforge gcode file on a thread of its own, handing
+ * them over a few at a time, so that a file can be merged while it is still being
+ * read and without ever holding all of it.
+ *
+ * Skeinforge tag comments other than layer tags are dropped as the file is read.
+ * Each layer runs from a "(<layer> height)" tag up to the following "(</layer>)",
+ * keeping the opening tag; a layer that is never closed ends at the next layer tag.
+ * Layers with nothing but their tag in them are skipped, as is anything outside a layer.
+ */
+class LayerStream extends Thread {
+
+	// How many layers we read ahead of whoever is taking them
+	private static final int READ_AHEAD = 4;
+
+	// Marks the end of the layers in the queue
+	private static final Layer END = new Layer(Double.NaN, new ArrayList<String>());
+
+	private final File file;
+	private final BlockingQueue<Layer> queue = new ArrayBlockingQueue<Layer>(READ_AHEAD);
+
+	// What went wrong reading the file, if anything
+	private volatile Throwable failure = null;
+
+	// The next layer, if someone has peeked at it
+	private Layer next = null;
+	private boolean ended = false;
+
+	LayerStream(File file) {
+		super("Layer reader for " + file.getName());
+		this.file = file;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		try {
+			read();
+		} catch (InterruptedException e) {
+			// Nobody wants the rest of the layers
+			return;
+		} catch (Throwable e) {
+			// Whatever went wrong, whoever is taking the layers gets to hear about it
+			failure = e;
+		}
+
+		try {
+			queue.put(END);
+		} catch (InterruptedException e) {
+			// Nobody is waiting for the end
+		}
+	}
+
+	private void read() throws IOException, InterruptedException {
+		// remove some tags we don't want/get
+		final GCodeTransform stripper = SkeinforgePostProcessor.nonLayerTagCommentStripper();
+		final List<String> kept = new ArrayList<String>(1);
+		final GCodeTransform.Output keep = new GCodeTransform.Output() {
+			public void add(String line) {
+				kept.add(line);
+			}
+		};
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			List<String> layer = null;
+			double layerHeight = 0;
+
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				stripper.line(line, keep);
+				for (String keptLine : kept) {
+					if (keptLine.startsWith("(<layer>")) {
+						if (layer != null)
+							hand(layerHeight, layer);
+						layer = new ArrayList<String>();
+						layerHeight = LayerIndex.parseHeight(keptLine);
+						if (Double.isNaN(layerHeight)) {
+							Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
+									"please check and make sure all of them are in the format (<layer> 0.00)");
+							layerHeight = 0;
+						}
+					} else if (layer != null && keptLine.startsWith("(</layer>)")) {
+						hand(layerHeight, layer);
+						layer = null;
+						continue;
+					}
+
+					if (layer != null)
+						layer.add(keptLine);
+				}
+				kept.clear();
+			}
+			if (layer != null)
+				hand(layerHeight, layer);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void hand(double height, List<String> layer) throws InterruptedException {
+		//skip empty layers
+		if (layer.size() > 1)
+			queue.put(new Layer(height, layer));
+	}
+
+	/**
+	 * @return the next layer without taking it, or null if there are no more. Waits for the
+	 * layer to be read if it hasn't been yet.
+	 */
+	Layer peek() throws IOException {
+		if (next == null && !ended) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while reading " + file.getName());
+			}
+			if (next == END) {
+				next = null;
+				ended = true;
+				if (failure instanceof IOException)
+					throw (IOException)failure;
+				if (failure != null)
+					throw new IOException("Could not read the layers of " + file.getName(), failure);
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * @return the next layer, or null if there are no more
+	 */
+	Layer pop() throws IOException {
+		Layer result = peek();
+		next = null;
+		return result;
+	}
+
+	boolean isEmpty() throws IOException {
+		return peek() == null;
+	}
+
+	/**
+	 * Stop reading, if we haven't finished already.
+	 */
+	void close() {
+		interrupt();
+	}
+}
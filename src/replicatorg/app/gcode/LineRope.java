@@ -0,0 +1,357 @@
+package replicatorg.app.gcode;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * The lines of a MutableGCodeSource, kept as a piece table: a list of pieces, each of
+ * which is a run of lines in an array that never changes once written. Inserting or
+ * removing lines just splits pieces and adds or drops a few, so it costs O(log n) no
+ * matter where in the file it happens, and lines are never copied to make room.
+ *
+ * The pieces are kept in a balanced tree (a treap, ordered by position and balanced by
+ * random priorities) which is never modified in place; changes build new nodes along one
+ * path and share the rest. That makes copying a whole rope free, since the copy just
+ * shares the tree.
+ */
+final class LineRope extends AbstractList<String> {
+
+	/// An array of lines that pieces point into. Only ever added to, at the end.
+	private static final class Chunk {
+		final String[] lines;
+
+		/// how much of lines has been written
+		int used;
+
+		Chunk(String[] lines, int used) {
+			this.lines = lines;
+			this.used = used;
+		}
+	}
+
+	/// A piece of a chunk, with the pieces before and after it in the file
+	private static final class Node {
+		final Chunk chunk;
+		final int start;
+		final int length;
+		final int priority;
+		final Node left;
+		final Node right;
+
+		/// number of lines in this node and all of its children
+		final int size;
+
+		Node(Chunk chunk, int start, int length, int priority, Node left, Node right) {
+			this.chunk = chunk;
+			this.start = start;
+			this.length = length;
+			this.priority = priority;
+			this.left = left;
+			this.right = right;
+			this.size = length + size(left) + size(right);
+		}
+
+		Node with(Node left, Node right) {
+			return new Node(chunk, start, length, priority, left, right);
+		}
+	}
+
+	// New chunks for appended lines get room for this many
+	private static final int APPEND_CHUNK_SIZE = 256;
+
+	private static final Random priorities = new Random();
+
+	private Node root = null;
+
+	LineRope() { }
+
+	LineRope(Collection<? extends String> lines) {
+		root = leaf(lines);
+	}
+
+	/// A copy of another rope, which shares all of its lines
+	LineRope(LineRope other) {
+		root = other.root;
+	}
+
+	private static int size(Node n) {
+		return (n == null) ? 0 : n.size;
+	}
+
+	private static Node leaf(Collection<? extends String> lines) {
+		if (lines.isEmpty())
+			return null;
+		String[] array = lines.toArray(new String[lines.size()]);
+		return new Node(new Chunk(array, array.length), 0, array.length, priorities.nextInt(), null, null);
+	}
+
+	// Join two trees, with all of a before all of b
+	private static Node merge(Node a, Node b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		if (a.priority > b.priority)
+			return a.with(a.left, merge(a.right, b));
+		return b.with(merge(a, b.left), b.right);
+	}
+
+	// Split a tree into its first index lines, and the rest
+	private static Node[] split(Node n, int index) {
+		if (n == null)
+			return new Node[] { null, null };
+
+		final int leftSize = size(n.left);
+		if (index <= leftSize) {
+			Node[] parts = split(n.left, index);
+			return new Node[] { parts[0], n.with(parts[1], n.right) };
+		}
+		if (index >= leftSize + n.length) {
+			Node[] parts = split(n.right, index - leftSize - n.length);
+			return new Node[] { n.with(n.left, parts[0]), parts[1] };
+		}
+
+		// The split falls inside this piece, so it becomes two
+		final int offset = index - leftSize;
+		return new Node[] {
+			new Node(n.chunk, n.start, offset, n.priority, n.left, null),
+			new Node(n.chunk, n.start + offset, n.length - offset, n.priority, null, n.right)
+		};
+	}
+
+	// Add a line to the end of a tree, writing it into the last piece's chunk if there's room
+	private static Node append(Node n, String line) {
+		if (n == null) {
+			String[] lines = new String[APPEND_CHUNK_SIZE];
+			lines[0] = line;
+			return new Node(new Chunk(lines, 1), 0, 1, priorities.nextInt(), null, null);
+		}
+		if (n.right != null)
+			return n.with(n.left, append(n.right, line));
+
+		final Chunk chunk = n.chunk;
+		synchronized (chunk) {
+			// Another rope may share this chunk, and have already written past the end of our piece
+			if (n.start + n.length == chunk.used && chunk.used < chunk.lines.length) {
+				chunk.lines[chunk.used++] = line;
+				return new Node(chunk, n.start, n.length + 1, n.priority, n.left, null);
+			}
+		}
+		return merge(n, append(null, line));
+	}
+
+	private void checkIndex(int index, int size) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+
+	private void checkPosition(int index) {
+		if (index < 0 || index > size())
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+	}
+
+	/// @return the count of changes made to this rope, for noticing when it has changed
+	int getModCount() {
+		return modCount;
+	}
+
+	@Override
+	public int size() {
+		return size(root);
+	}
+
+	@Override
+	public String get(int index) {
+		checkIndex(index, size());
+		Node n = root;
+		while (true) {
+			final int leftSize = size(n.left);
+			if (index < leftSize) {
+				n = n.left;
+			} else if (index < leftSize + n.length) {
+				return n.chunk.lines[n.start + index - leftSize];
+			} else {
+				index -= leftSize + n.length;
+				n = n.right;
+			}
+		}
+	}
+
+	@Override
+	public String set(int index, String line) {
+		String old = get(index);
+		Node[] before = split(root, index);
+		Node[] after = split(before[1], 1);
+		String[] lines = { line };
+		Node replacement = new Node(new Chunk(lines, 1), 0, 1, priorities.nextInt(), null, null);
+		root = merge(merge(before[0], replacement), after[1]);
+		return old;
+	}
+
+	@Override
+	public boolean add(String line) {
+		root = append(root, line);
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public void add(int index, String line) {
+		checkPosition(index);
+		if (index == size()) {
+			add(line);
+			return;
+		}
+		String[] lines = { line };
+		insert(index, new Node(new Chunk(lines, 1), 0, 1, priorities.nextInt(), null, null));
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends String> lines) {
+		return addAll(size(), lines);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends String> lines) {
+		checkPosition(index);
+		if (lines.isEmpty())
+			return false;
+		if (lines instanceof LineRope) {
+			// Share the other rope's pieces rather than copying its lines
+			insert(index, ((LineRope)lines).root);
+		} else {
+			insert(index, leaf(lines));
+		}
+		return true;
+	}
+
+	private void insert(int index, Node lines) {
+		Node[] parts = split(root, index);
+		root = merge(merge(parts[0], lines), parts[1]);
+		modCount++;
+	}
+
+	@Override
+	public String remove(int index) {
+		String old = get(index);
+		removeRange(index, index + 1);
+		return old;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if (fromIndex >= toIndex)
+			return;
+		Node[] before = split(root, fromIndex);
+		Node[] after = split(before[1], toIndex - fromIndex);
+		root = merge(before[0], after[1]);
+		modCount++;
+	}
+
+	@Override
+	public void clear() {
+		root = null;
+		modCount++;
+	}
+
+	/**
+	 * Walks the lines in order, a piece at a time.
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			// the nodes whose pieces (and right subtrees) are still to come, innermost last
+			Node[] stack = new Node[16];
+			int depth = 0;
+
+			// the piece we're in, and where we are in it
+			Node current = null;
+			int offset = 0;
+
+			// index of the next line, and of the one last returned (or -1)
+			int index = 0;
+			int lastReturned = -1;
+			int expectedModCount = modCount;
+
+			{
+				seek(0);
+			}
+
+			// Set up to return the line at the given index next
+			private void seek(int target) {
+				depth = 0;
+				current = null;
+				index = target;
+				Node n = root;
+				while (n != null) {
+					final int leftSize = size(n.left);
+					if (target < leftSize) {
+						push(n);
+						n = n.left;
+					} else if (target < leftSize + n.length) {
+						current = n;
+						offset = target - leftSize;
+						return;
+					} else {
+						target -= leftSize + n.length;
+						n = n.right;
+					}
+				}
+			}
+
+			private void push(Node n) {
+				if (depth == stack.length) {
+					Node[] newStack = new Node[stack.length * 2];
+					System.arraycopy(stack, 0, newStack, 0, depth);
+					stack = newStack;
+				}
+				stack[depth++] = n;
+			}
+
+			public boolean hasNext() {
+				return current != null;
+			}
+
+			public String next() {
+				if (modCount != expectedModCount)
+					throw new ConcurrentModificationException();
+				if (current == null)
+					throw new NoSuchElementException();
+
+				final String line = current.chunk.lines[current.start + offset];
+				lastReturned = index++;
+
+				if (++offset == current.length) {
+					// On to the first piece after this one
+					Node n = current.right;
+					current = null;
+					while (n != null) {
+						push(n);
+						n = n.left;
+					}
+					if (depth > 0) {
+						current = stack[--depth];
+						stack[depth] = null;
+					}
+					offset = 0;
+				}
+				return line;
+			}
+
+			public void remove() {
+				if (lastReturned == -1)
+					throw new IllegalStateException();
+				if (modCount != expectedModCount)
+					throw new ConcurrentModificationException();
+				LineRope.this.remove(lastReturned);
+				expectedModCount = modCount;
+				seek(lastReturned);
+				lastReturned = -1;
+			}
+		};
+	}
+}
@@ -0,0 +1,115 @@
+package replicatorg.app.gcode;
+
+/**
+ * The modal settings that carry over from one line of gcode to the next: the selected
+ * tool, absolute or relative positioning, and the units. These are what a piece of a
+ * file needs to know about everything before it to be understood on its own.
+ *
+ * A ModalState is also used to describe the changes a run of lines makes, with any
+ * setting the lines leave alone marked UNCHANGED; then() applies those changes.
+ */
+public final class ModalState {
+
+	/// marks a setting that a run of lines doesn't change
+	public static final int UNCHANGED = -2;
+
+	/// the state before any gcode has run, the same as GCodeParser starts with
+	public static final ModalState INITIAL = new ModalState(-1, 0, GCodeParser.UNITS_MM);
+
+	/// the changes made by lines that don't change anything
+	static final ModalState NONE = new ModalState(UNCHANGED, UNCHANGED, UNCHANGED);
+
+	private final int tool;
+	private final int absolute;
+	private final int units;
+
+	private ModalState(int tool, int absolute, int units) {
+		this.tool = tool;
+		this.absolute = absolute;
+		this.units = units;
+	}
+
+	/**
+	 * @return the tool the last tool change (a line with a T code and no G or M code)
+	 * selected, or -1 if there hasn't been one. This is the tool GCodeParser takes
+	 * its offsets from; a T code on an M code only says which tool the M code is for.
+	 */
+	public int getTool() {
+		return tool;
+	}
+
+	/**
+	 * @return true after a G90, false before one or after a G91
+	 */
+	public boolean isAbsolute() {
+		return absolute == 1;
+	}
+
+	/**
+	 * @return GCodeParser.UNITS_MM or GCodeParser.UNITS_INCHES
+	 */
+	public int getUnits() {
+		return units;
+	}
+
+	/**
+	 * @return this state, with a command applied to it
+	 */
+	public ModalState then(GCodeCommand gcode) {
+		return then(gcode.hasCode('T'), gcode.getCodeValue('T'), gcode.hasCode('G'), gcode.getCodeValue('G'),
+				gcode.hasCode('M'));
+	}
+
+	/// this state, with a command that has the given T, G and M codes applied to it
+	ModalState then(boolean hasT, double t, boolean hasG, double g, boolean hasM) {
+		int newTool = tool;
+		int newAbsolute = absolute;
+		int newUnits = units;
+
+		if (hasT && !hasG && !hasM)
+			newTool = (int)t;
+		if (hasG) {
+			switch ((int)g) {
+			case 90: newAbsolute = 1; break;
+			case 91: newAbsolute = 0; break;
+			case 20:
+			case 70: newUnits = GCodeParser.UNITS_INCHES; break;
+			case 21:
+			case 71: newUnits = GCodeParser.UNITS_MM; break;
+			}
+		}
+
+		if (newTool == tool && newAbsolute == absolute && newUnits == units)
+			return this;
+		return new ModalState(newTool, newAbsolute, newUnits);
+	}
+
+	/**
+	 * @return this state, followed by the changes made by a run of lines
+	 */
+	public ModalState then(ModalState changes) {
+		return new ModalState(
+				(changes.tool == UNCHANGED) ? tool : changes.tool,
+				(changes.absolute == UNCHANGED) ? absolute : changes.absolute,
+				(changes.units == UNCHANGED) ? units : changes.units);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ModalState))
+			return false;
+		ModalState other = (ModalState)o;
+		return tool == other.tool && absolute == other.absolute && units == other.units;
+	}
+
+	@Override
+	public int hashCode() {
+		return (tool * 31 + absolute) * 31 + units;
+	}
+
+	@Override
+	public String toString() {
+		return "T" + tool + (isAbsolute() ? " absolute" : " relative") +
+				((units == GCodeParser.UNITS_INCHES) ? " inches" : " mm");
+	}
+}
@@ -25,8 +25,14 @@ import replicatorg.model.GCodeSource;
  */
 public class MutableGCodeSource implements GCodeSource {
 
-	/// all gcode source, one command per line
-	ArrayList<String> source = new ArrayList<String>();
+	/// all gcode source, one command per line. Lines can be added or removed anywhere
+	/// in O(log n), and are shared with any copies rather than copied.
+	LineRope source = new LineRope();
+
+	/// the layers in source, and the source (and change count) they were found in
+	private LayerIndex layerIndex = null;
+	private LineRope layerIndexSource = null;
+	private int layerIndexModCount;
 	
 	public MutableGCodeSource() { }
 	
@@ -50,13 +56,15 @@ public class MutableGCodeSource implements GCodeSource {
 		}
 		
 		try {
+			ArrayList<String> lines = new ArrayList<String>();
 			BufferedReader bir = new BufferedReader(new FileReader(sourceFile));
 			curline = bir.readLine();
 			while (curline != null) {
-				source.add(curline);
+				lines.add(curline);
 				curline = bir.readLine();
 			}
 			bir.close();
+			source = new LineRope(lines);
 		} catch (IOException e) {
 			System.err.println("couldnt read file " + sourceFile.getAbsolutePath());
 			return;
@@ -138,42 +146,28 @@ public class MutableGCodeSource implements GCodeSource {
 //	}
 	
 
+	/// Runs the transforms over this gcode in a single pass, replacing it with the result.
+	public void transform(GCodeTransformChain transforms) {
+		final ArrayList<String> newSource = new ArrayList<String>(source.size());
+		transforms.run(this, new GCodeTransform.Output() {
+			public void add(String line) {
+				newSource.add(line);
+			}
+		});
+		source = new LineRope(newSource);
+	}
+
+	/// Runs a single transform over this gcode, replacing it with the result.
+	public void transform(GCodeTransform transform) {
+		GCodeTransformChain transforms = new GCodeTransformChain();
+		transforms.add(transform);
+		transform(transforms);
+	}
+
 	/// Runs through this gcode file, swapping all references to the the current toolhead 
 	/// to instread reference the specified toolhead.  Alters select G, M and T Codes.
 	public void changeToolhead(ToolheadAlias tool) {
-		GCodeCommand gcode;
-		int value;
-		String line;
-		///FUTURE: create a synchronize block here someday
-		ArrayList<String> newSource = new ArrayList<String>(source.size());
-		for(Iterator<String> it = source.iterator(); it.hasNext(); )
-		{
-			line = it.next();
-			gcode = new GCodeCommand(line);
-
-			if(gcode.hasCode('T'))
-			{
-				value = (int)gcode.getCodeValue('T');
-				if(value != tool.number)
-				{
-					if(value == 0)
-						line = line.replace("T0", "T1");
-					else if(value == 1)
-						line = line.replace("T1", "T0");
-				}
-			}
-			if(gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
-			{
-				line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
-			}
-			if(gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
-			{
-				line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
-			}
-			newSource.add(line);
-		}
-		
-		source = newSource;
+		transform(GCodeTransform.changeToolhead(tool));
 	}
 	
 	/**
@@ -183,108 +177,54 @@ public class MutableGCodeSource implements GCodeSource {
 	 */
 	public void coolUnusedToolhead()
 	{		
-		GCodeCommand gcode;
-		String line;
-
-		double tval;
-		int additionPoint = 0;
-		boolean addPointFound = false;
-		
-		boolean seenT0 = false;
-		boolean seenT1 = false;
-		
-		for(Iterator<String> it = source.iterator(); it.hasNext(); )
-		{
-			line = it.next();
-			gcode = new GCodeCommand(line);
-			
-			tval = gcode.getCodeValue('T');
-			
-			if(tval == 0)	seenT0 = true;
-			if(tval == 1)	seenT1 = true;
-			
-			if(!addPointFound)
-				additionPoint++;
-			
-			if(gcode.getCodeValue('M') == 104)
-				addPointFound = true;
-			
-			if(seenT0 && seenT1)
-				return;
+		transform(GCodeTransform.coolUnusedToolhead());
+	}
+	/**
+	 * Get the layers in this source. The index is kept until the lines are added to
+	 * or removed, so asking again is cheap. Replacing a line in place through asList()
+	 * is not noticed, so don't do that to a layer tag.
+	 */
+	public LayerIndex getLayerIndex() {
+		if (layerIndex == null || layerIndexSource != source || layerIndexModCount != source.getModCount()) {
+			layerIndex = new LayerIndex(this);
+			layerIndexSource = source;
+			layerIndexModCount = source.getModCount();
 		}
-		
-		if(seenT0 && !seenT1)
-			add(additionPoint, "M104 T1 S0");
-		if(seenT1 && !seenT0)
-			add(additionPoint, "M104 T0 S0");
-		
+		return layerIndex;
 	}
-	/// Scans gcode for layer start/ends. Adds gcode for approx % done 
+
+	/// Uses the layer index to find layer starts. Adds gcode for approx % done 
 	/// by that layer via using line count
 	public void addSlic3rProgressUpdates()
 	{
-		int index = 0;
-		int sourceSize = source.size();
-		ArrayList<String> newSource = new ArrayList<String>();
-		/// TRICKY: M73 P0 is required by The Replicator to enable % display
-		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
-		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
-		// to the firmware.  A possible less tricky fix is to make a separate command for these
-		for(String line : source)
-		{
-			if( line.startsWith("(<layer>") )
-			{
-				int percentDone = (int)(index*100)/sourceSize;
-				if(percentDone == 0) percentDone = 1; 
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
-			}
-			newSource.add(line);
-			index++;
-		}
-		source = newSource;
+		addProgressUpdates();
 	}
-	// Footnote 1: The only 'M37 100' that should happen is part of the end.gcode, since 
-	// 'M73 100' sends an s3g 'BUILD_DONE', and more than 1 'BUILD_DONE' message 
-	// causes problems for the firmware.
-    // the only M73 0 that happens should be part of the start gcode to specify the filename
-
 	
-	/// Scans gcode for layer start/ends. Adds gcode for approx % done 
+	/// Uses the layer index to find layer starts. Adds gcode for approx % done 
 	/// by that layer via using line count
 	public void addProgressUpdates()
 	{
-		int index = 0;
+		final LayerIndex layers = getLayerIndex();
+		// Layers found by Z don't start on a tag, and never got progress updates
+		if(!layers.isTagged())
+			return;
+
 		int sourceSize = source.size();
-		ArrayList<String> newSource = new ArrayList<String>();
-		/// TRICKY: M73 P0 is required by The Replicator to enable % display
-		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
-		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
-		// to the firmware.  A possible less tricky fix is to make a separate command for these
-		for(String line : source)
+		// Work back from the end, so that the layers we haven't reached yet stay where the index says
+		for(int layer = layers.getLayerCount() - 1; layer >= 0; layer--)
 		{
-			if( line.startsWith("(<layer>") )
-			{
-				int percentDone = (int)(index*100)/sourceSize;
-				if(percentDone == 0)	percentDone = 1; 
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
-			}
-			newSource.add(line);
-			index++;
+			int index = layers.getStartLine(layer);
+			source.add(index, GCodeTransform.progressUpdate(index, sourceSize));
 		}
-		source = newSource;
 	}
 
 
 	
-	/// Make a deep copy of this MutableGCodeSource and returns it to the caller.
+	/// Make a copy of this MutableGCodeSource and returns it to the caller. The copy
+	/// shares its lines with this one, but changes to either don't affect the other.
 	public MutableGCodeSource copy() {
 		MutableGCodeSource newSource = new MutableGCodeSource();
-		for(String line : source)
-			newSource.add(new String(line));
+		newSource.source = new LineRope(source);
 		return newSource;
 	}
 }
@@ -0,0 +1,479 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+
+/**
+ * A GCodeSource that has been run through the GCodeCommand parser once, so that
+ * the safety check, the estimator, the simulator and the builders can all replay
+ * the parsed commands instead of parsing every line again.
+ *
+ * The parse results are kept in a few flat arrays rather than as one GCodeCommand
+ * per line: a bitmask of the codes present on each line, and the values of those
+ * codes packed one after another. The lines themselves stay in the original source.
+ */
+public class ParsedGCodeSource implements GCodeSource {
+
+	/// the source we parsed, which still provides the lines
+	private final GCodeSource source;
+
+	/// what we parsed, in flat arrays
+	private final Lines parsed;
+
+	/// the modal state at the start of each chunk of GCodeChunks.CHUNK_LINES lines
+	private final ModalState[] chunkStates;
+
+	/// where the layers are, found the first time someone asks
+	private LayerIndex layerIndex = null;
+
+	/// the codes used anywhere before each chunk of GCodeChunks.CHUNK_LINES lines
+	private final int[] chunkCodes;
+
+	// Bits for the codes that change the modal state
+	private static final int T_BIT = bit('T');
+	private static final int G_BIT = bit('G');
+	private static final int M_BIT = bit('M');
+
+	// Bits for the codes that move an axis or set the feedrate
+	private static final int MOTION_BITS = bit('X') | bit('Y') | bit('Z') | bit('A') | bit('B') | bit('E') | bit('F');
+
+	private static int bit(char code) {
+		return 1 << Arrays.binarySearch(GCodeCommand.codes, code);
+	}
+
+	/**
+	 * Parse every line of a source. Big sources are parsed a chunk at a time, with
+	 * the chunks spread over all of the processors.
+	 * @param source the gcode to parse. It should not change while this object is in use.
+	 */
+	public ParsedGCodeSource(GCodeSource source) {
+		this.source = source;
+
+		final int expectedLines = source.getLineCount();
+		final Lines all;
+		final List<ModalState> states = new ArrayList<ModalState>();
+		states.add(ModalState.INITIAL);
+		final List<Integer> codes = new ArrayList<Integer>();
+		codes.add(0);
+
+		if (GCodeChunks.worthSplitting(expectedLines)) {
+			all = parseInChunks(source, expectedLines, states, codes);
+		} else {
+			all = new Lines(expectedLines);
+			for (String line : source)
+				all.add(line);
+			for (int start = 0; start < all.lineCount; start += GCodeChunks.CHUNK_LINES) {
+				int end = Math.min(start + GCodeChunks.CHUNK_LINES, all.lineCount);
+				states.add(all.applyLines(states.get(states.size() - 1), start, end));
+				codes.add(codes.get(codes.size() - 1) | all.codesUsed(start, end));
+			}
+		}
+
+		parsed = all;
+		chunkStates = states.toArray(new ModalState[states.size()]);
+		chunkCodes = new int[codes.size()];
+		for (int i = 0; i < chunkCodes.length; i++)
+			chunkCodes[i] = codes.get(i);
+	}
+
+	/**
+	 * Read the source a chunk at a time, handing each chunk to a worker to be parsed
+	 * and stitching the results together in order. Only a few chunks are read ahead
+	 * of the stitching, so a source that reads its lines lazily never has to hold
+	 * all of them at once.
+	 * @param states gets the modal state at the end of each chunk
+	 * @param codes gets the codes used up to the end of each chunk
+	 */
+	private static Lines parseInChunks(GCodeSource source, int expectedLines, List<ModalState> states,
+			List<Integer> codes) {
+		final Lines all = new Lines(expectedLines);
+		final int readAhead = 2 * GCodeChunks.getParallelism();
+		final LinkedList<Future<Lines>> pending = new LinkedList<Future<Lines>>();
+
+		try {
+			final Iterator<String> it = source.iterator();
+			while (it.hasNext()) {
+				String[] lines = new String[GCodeChunks.CHUNK_LINES];
+				int count = 0;
+				while (count < lines.length && it.hasNext())
+					lines[count++] = it.next();
+				pending.add(GCodeChunks.submit(new Lines(lines, count)));
+
+				if (pending.size() > readAhead)
+					stitch(all, GCodeChunks.get(pending.removeFirst()), states, codes);
+			}
+			while (!pending.isEmpty())
+				stitch(all, GCodeChunks.get(pending.removeFirst()), states, codes);
+		} finally {
+			for (Future<Lines> f : pending)
+				f.cancel(true);
+		}
+		return all;
+	}
+
+	// Add a parsed chunk to the end of everything parsed so far, reconciling its modal state
+	private static void stitch(Lines all, Lines chunk, List<ModalState> states, List<Integer> codes) {
+		all.append(chunk);
+		states.add(states.get(states.size() - 1).then(chunk.changes));
+		codes.add(codes.get(codes.size() - 1) | chunk.codesUsed(0, chunk.lineCount));
+	}
+
+	/**
+	 * Some lines, parsed. The parse results are kept in a few flat arrays rather than
+	 * as one GCodeCommand per line.
+	 */
+	private static class Lines implements Callable<Lines> {
+		/// lines still to be parsed by call(), or null
+		private String[] pendingLines;
+		private int pendingCount;
+
+		/// number of lines parsed
+		int lineCount = 0;
+
+		/// codes present on each line, as returned by GCodeCommand.getPresentCodes()
+		int[] presentCodes;
+
+		/// where the values for each line start in values
+		int[] valueOffsets;
+
+		/// values of all of the codes on all of the lines, in line order
+		double[] values;
+		int valueCount = 0;
+
+		/// lines that GCodeCommand couldn't parse. These get parsed again on replay,
+		/// so that the consumer sees the same exception it always did.
+		final BitSet unparseable = new BitSet();
+
+		/// the changes these lines make to the modal state, once call() has parsed them
+		ModalState changes = ModalState.NONE;
+
+		/// room for about this many lines, which are to be add()ed
+		Lines(int capacity) {
+			capacity = Math.max(capacity, 16);
+			presentCodes = new int[capacity];
+			valueOffsets = new int[capacity];
+			values = new double[capacity * 4];
+		}
+
+		/// some lines to be parsed by call()
+		Lines(String[] lines, int count) {
+			this(count);
+			pendingLines = lines;
+			pendingCount = count;
+		}
+
+		public Lines call() {
+			for (int i = 0; i < pendingCount; i++)
+				add(pendingLines[i]);
+			pendingLines = null;
+			changes = applyLines(ModalState.NONE, 0, lineCount);
+			return this;
+		}
+
+		void add(String line) {
+			ensureCapacity(lineCount + 1, valueCount + GCodeCommand.codes.length);
+
+			valueOffsets[lineCount] = valueCount;
+			try {
+				GCodeCommand gcode = new GCodeCommand(line);
+				presentCodes[lineCount] = gcode.getPresentCodes();
+				valueCount += gcode.packValues(values, valueCount);
+			} catch (RuntimeException e) {
+				unparseable.set(lineCount);
+			}
+			lineCount++;
+		}
+
+		/// add some more parsed lines to the end of these
+		void append(Lines more) {
+			ensureCapacity(lineCount + more.lineCount, valueCount + more.valueCount);
+
+			System.arraycopy(more.presentCodes, 0, presentCodes, lineCount, more.lineCount);
+			for (int i = 0; i < more.lineCount; i++)
+				valueOffsets[lineCount + i] = valueCount + more.valueOffsets[i];
+			System.arraycopy(more.values, 0, values, valueCount, more.valueCount);
+			for (int i = more.unparseable.nextSetBit(0); i >= 0; i = more.unparseable.nextSetBit(i + 1))
+				unparseable.set(lineCount + i);
+
+			lineCount += more.lineCount;
+			valueCount += more.valueCount;
+		}
+
+		private void ensureCapacity(int lines, int valueSlots) {
+			if (lines > presentCodes.length) {
+				int size = Math.max(presentCodes.length * 2, lines);
+				presentCodes = grow(presentCodes, size);
+				valueOffsets = grow(valueOffsets, size);
+			}
+			if (valueSlots > values.length) {
+				double[] newValues = new double[Math.max(values.length * 2, valueSlots)];
+				System.arraycopy(values, 0, newValues, 0, valueCount);
+				values = newValues;
+			}
+		}
+
+		/// @return a modal state, followed by the lines from..to-1
+		ModalState applyLines(ModalState state, int from, int to) {
+			for (int i = from; i < to; i++) {
+				final int present = presentCodes[i];
+				if ((present & (T_BIT | G_BIT)) == 0 || unparseable.get(i))
+					continue;
+				state = state.then(
+						(present & T_BIT) != 0, valueOf(i, T_BIT),
+						(present & G_BIT) != 0, valueOf(i, G_BIT),
+						(present & M_BIT) != 0);
+			}
+			return state;
+		}
+
+		/// @return every code used on the lines from..to-1
+		int codesUsed(int from, int to) {
+			int used = 0;
+			for (int i = from; i < to; i++) {
+				if (!unparseable.get(i))
+					used |= presentCodes[i];
+			}
+			return used;
+		}
+
+		// The value of a code on a line, given its bit in the present codes
+		private double valueOf(int line, int bit) {
+			final int present = presentCodes[line];
+			if ((present & bit) == 0)
+				return 0;
+			return values[valueOffsets[line] + Integer.bitCount(present & (bit - 1))];
+		}
+	}
+
+	private static int[] grow(int[] array, int size) {
+		int[] result = new int[size];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * Parse a source, unless it has already been parsed.
+	 */
+	public static ParsedGCodeSource parse(GCodeSource source) {
+		if (source instanceof ParsedGCodeSource)
+			return (ParsedGCodeSource)source;
+		return new ParsedGCodeSource(source);
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return source.iterator();
+	}
+
+	@Override
+	public List<String> asList() {
+		return source.asList();
+	}
+
+	@Override
+	public int getLineCount() {
+		return parsed.lineCount;
+	}
+
+	/**
+	 * @return the modal state just before a line runs, or after the last line
+	 * if line is the line count
+	 */
+	public ModalState getModalState(int line) {
+		if (line < 0 || line > parsed.lineCount)
+			throw new IndexOutOfBoundsException("Line " + line + " of " + parsed.lineCount);
+		final int chunk = line / GCodeChunks.CHUNK_LINES;
+		return parsed.applyLines(chunkStates[chunk], chunk * GCodeChunks.CHUNK_LINES, line);
+	}
+
+	/**
+	 * Find a line to start replaying from, so that by the time a later line is reached
+	 * the position and the feedrate are the same as if everything before it had been
+	 * replayed: from the line returned on, every axis and the feedrate used before
+	 * the later line is given again. That holds in absolute mode; a position built up
+	 * from relative moves depends on every move before it, so callers still have to
+	 * check. We look back at most one chunk.
+	 * @return the line to start from, at or before line
+	 */
+	public int getSettlingLine(int line) {
+		if (line < 0 || line > parsed.lineCount)
+			throw new IndexOutOfBoundsException("Line " + line + " of " + parsed.lineCount);
+		final int chunk = line / GCodeChunks.CHUNK_LINES;
+		final int chunkStart = chunk * GCodeChunks.CHUNK_LINES;
+		final int needed = (chunkCodes[chunk] | parsed.codesUsed(chunkStart, line)) & MOTION_BITS;
+
+		final int limit = Math.max(0, line - GCodeChunks.CHUNK_LINES);
+		int seen = 0;
+		int start = line;
+		while (start > limit && (seen & needed) != needed) {
+			start--;
+			if (!parsed.unparseable.get(start))
+				seen |= parsed.presentCodes[start];
+		}
+		return start;
+	}
+
+	/**
+	 * @return the layers in this source. The index is built the first time it is asked for.
+	 */
+	public synchronized LayerIndex getLayerIndex() {
+		if (layerIndex == null)
+			layerIndex = new LayerIndex(this);
+		return layerIndex;
+	}
+
+	/**
+	 * Iterates over the commands in a source. If the next line can't be parsed,
+	 * next() throws whatever GCodeCommand threw, and moves on to the following line.
+	 */
+	public static abstract class CommandIterator implements Iterator<GCodeCommand> {
+		/**
+		 * @return the line that the last call to next() returned the command for
+		 */
+		public abstract String getLine();
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Replay the commands we parsed.
+	 */
+	public CommandIterator commandIterator() {
+		return new ReplayIterator(source.iterator(), 0, parsed.lineCount);
+	}
+
+	/**
+	 * Replay the commands for some of the lines, so that pieces of the source can be
+	 * worked on separately. Safe to use from several threads at once.
+	 * @param lines the lines of this source, as returned by asList(). Some sources
+	 * build that list when asked, so get it once and share it between the pieces.
+	 * @param from the first line to replay
+	 * @param to the line after the last one to replay
+	 */
+	public CommandIterator commandIterator(List<String> lines, int from, int to) {
+		if (from < 0 || to > parsed.lineCount || from > to)
+			throw new IndexOutOfBoundsException("Lines " + from + " to " + to + " of " + parsed.lineCount);
+		return new ReplayIterator(lines.subList(from, to).iterator(), from, to);
+	}
+
+	/**
+	 * Get the commands in any source. Sources that have already been parsed are
+	 * replayed; anything else is parsed a line at a time as the iterator goes.
+	 */
+	public static CommandIterator commandIterator(GCodeSource source) {
+		if (source instanceof ParsedGCodeSource)
+			return ((ParsedGCodeSource)source).commandIterator();
+		if (source instanceof GCodeSourceCollection)
+			return new CollectionIterator((GCodeSourceCollection)source);
+		return new ParsingIterator(source);
+	}
+
+	private class ReplayIterator extends CommandIterator {
+		final Iterator<String> lines;
+		final int end;
+		int index;
+		String line;
+
+		ReplayIterator(Iterator<String> lines, int start, int end) {
+			this.lines = lines;
+			this.index = start;
+			this.end = end;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < end && lines.hasNext();
+		}
+
+		@Override
+		public GCodeCommand next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			line = lines.next();
+			int i = index++;
+			if (parsed.unparseable.get(i))
+				return new GCodeCommand(line);
+			return new GCodeCommand(line, parsed.presentCodes[i], parsed.values, parsed.valueOffsets[i]);
+		}
+
+		@Override
+		public String getLine() {
+			return line;
+		}
+	}
+
+	private static class ParsingIterator extends CommandIterator {
+		final Iterator<String> lines;
+		String line;
+
+		ParsingIterator(GCodeSource source) {
+			lines = source.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return lines.hasNext();
+		}
+
+		@Override
+		public GCodeCommand next() {
+			line = lines.next();
+			return new GCodeCommand(line);
+		}
+
+		@Override
+		public String getLine() {
+			return line;
+		}
+	}
+
+	// Walks the sources in a collection in turn, so that parsed ones still get replayed.
+	private static class CollectionIterator extends CommandIterator {
+		final Iterator<GCodeSource> sources;
+		CommandIterator current = null;
+		String line;
+
+		CollectionIterator(GCodeSourceCollection collection) {
+			sources = collection.getSources().iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (current == null || !current.hasNext()) {
+				if (!sources.hasNext())
+					return false;
+				current = commandIterator(sources.next());
+			}
+			return true;
+		}
+
+		@Override
+		public GCodeCommand next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			try {
+				return current.next();
+			} finally {
+				line = current.getLine();
+			}
+		}
+
+		@Override
+		public String getLine() {
+			return line;
+		}
+	}
+}
@@ -6,6 +6,23 @@ package replicatorg.app.tools;
  */
 public class IButtonCrc {
 
+	// The CRC after each possible byte, starting from zero; crc ^ data picks the entry
+	private static final byte[] TABLE = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				if ((crc & 0x01) != 0) {
+					crc = (crc >>> 1) ^ 0x8c;
+				} else {
+					crc = crc >>> 1;
+				}
+			}
+			TABLE[i] = (byte) crc;
+		}
+	}
+
 	private int crc = 0;
 
 	/**
@@ -18,20 +35,31 @@ public class IButtonCrc {
 	/**
 	 * Update the CRC with a new byte of sequential data. See
 	 * include/util/crc16.h in the avr-libc project for a full explanation of
-	 * the algorithm.
+	 * the algorithm; the eight shifts for each byte are looked up in a table.
 	 * 
 	 * @param data
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
+		crc = update(crc, data);
+	}
+
+	/**
+	 * @return the crc, updated with a new byte of data
+	 */
+	public static int update(int crc, byte data) {
+		return TABLE[(crc ^ data) & 0xff] & 0xff;
+	}
+
+	/**
+	 * @return the crc of length bytes of a buffer, starting at offset
+	 */
+	public static byte compute(byte[] buffer, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc = TABLE[(crc ^ buffer[i]) & 0xff] & 0xff;
 		}
+		return (byte) crc;
 	}
 
 	/**
@@ -145,7 +145,9 @@ import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
+import replicatorg.model.GCodeSource;
 import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.MappedFileSource;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
 import replicatorg.plugin.toolpath.ToolpathGeneratorFactory;
@@ -254,6 +256,9 @@ ToolpathGenerator.GeneratorListener
 	public boolean debugging;
 	
 	public boolean buildOnComplete = false;
+
+	/** the gcode the running build was started with, released once the machine says the build is over */
+	private GCodeSource buildSource = null;
 	
 	private boolean preheatMachine = false;
 	
@@ -2139,6 +2144,86 @@ ToolpathGenerator.GeneratorListener
 		}
 	}
 	
+	/**
+	 * Get the gcode to send to the machine. If the code in the editor is exactly what is
+	 * saved in its file, the file is mapped instead, so that big jobs don't have to be
+	 * copied out of the editor a line at a time. The editor is locked while a build runs,
+	 * so the file isn't saved over while it is mapped. Mapping reads the whole file once,
+	 * so don't call this on the event thread, and call releaseGCodeSource() once nothing
+	 * reads the source.
+	 */
+	private GCodeSource getGCodeSource() {
+		BuildCode code = (build == null) ? null : build.getCode();
+		if (code != null && code.file != null && code.file.exists() && !code.isModified()) {
+			try {
+				return new MappedFileSource(code.file);
+			} catch (IOException e) {
+				Base.logger.log(Level.WARNING, "Could not map " + code.file + ", using the editor contents", e);
+			}
+		}
+		return new JEditTextAreaSource(textarea);
+	}
+
+	/**
+	 * Unmap the file that getGCodeSource() mapped, if it mapped one, so that it can be
+	 * saved over again.
+	 */
+	private static void releaseGCodeSource(GCodeSource source) {
+		if (source instanceof MappedFileSource) {
+			((MappedFileSource)source).close();
+		}
+	}
+
+	/**
+	 * Release gcode that was handed to the machine, once the machine has let go of it.
+	 * Without a machine to ask, the mapping is left for the garbage collector.
+	 */
+	private void releaseMachineSource(final GCodeSource source) {
+		if (source instanceof MappedFileSource && machineLoader.isLoaded()) {
+			machineLoader.getMachineInterface().whenSourcesReleased(new Runnable() {
+				public void run() {
+					releaseGCodeSource(source);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Release the gcode the running build was started with, if there is any.
+	 */
+	private synchronized void releaseBuildSource() {
+		releaseMachineSource(buildSource);
+		buildSource = null;
+	}
+
+	/**
+	 * Starts a build, upload or build to file on a thread of its own, since getting the
+	 * gcode may mean mapping a big file. The machine reads the gcode for as long as the
+	 * build runs, so it is kept until buildingOver().
+	 */
+	abstract class BuildThread extends Thread {
+		public BuildThread(String name) {
+			super(name);
+		}
+
+		public void run() {
+			GCodeSource source = getGCodeSource();
+			synchronized (MainWindow.this) {
+				// Stopped before we got this far
+				if (!building) {
+					releaseGCodeSource(source);
+					return;
+				}
+				// A build that was stopped never gets to buildingOver()
+				releaseMachineSource(buildSource);
+				buildSource = source;
+				startBuild(source);
+			}
+		}
+
+		abstract void startBuild(GCodeSource source);
+	}
+
 	public void doBuild()
 	{
 		if (!machineLoader.isLoaded()) {
@@ -2161,15 +2246,19 @@ ToolpathGenerator.GeneratorListener
 			message("Building...");
 			buildStart = new Date();
 			
-			machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea));
-			//doing this check allows us to recover from pre-build stuff
-//			if(machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea)) == false)
-//			{
-//				buildStart = null;
-//				setEditorBusy(false);
-//				building = false;
-//			}
-			maybeRunScript("scripts/start.sh", handleOpenPath, String.valueOf(buildStart.getTime()));
+			new BuildThread("Build Thread") {
+				void startBuild(GCodeSource source) {
+					machineLoader.getMachineInterface().buildDirect(source);
+					//doing this check allows us to recover from pre-build stuff
+//					if(machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea)) == false)
+//					{
+//						buildStart = null;
+//						setEditorBusy(false);
+//						building = false;
+//					}
+					maybeRunScript("scripts/start.sh", handleOpenPath, String.valueOf(buildStart.getTime()));
+				}
+			}.start();
 		}
 	}
 
@@ -2199,7 +2288,12 @@ ToolpathGenerator.GeneratorListener
 
 			message("Uploading...");
 			buildStart = new Date();
-			machineLoader.getMachineInterface().upload(new JEditTextAreaSource(textarea), path);
+			final String remoteName = path;
+			new BuildThread("Upload Thread") {
+				void startBuild(GCodeSource source) {
+					machineLoader.getMachineInterface().upload(source, remoteName);
+				}
+			}.start();
 		}
 	}
 
@@ -2289,7 +2383,12 @@ ToolpathGenerator.GeneratorListener
 
 			// start our building thread.
 			buildStart = new Date();
-			machineLoader.getMachineInterface().buildToFile(new JEditTextAreaSource(textarea), path);
+			final String filePath = path;
+			new BuildThread("Build To File Thread") {
+				void startBuild(GCodeSource source) {
+					machineLoader.getMachineInterface().buildToFile(source, filePath);
+				}
+			}.start();
 		}
 	}
 
@@ -2528,6 +2627,7 @@ ToolpathGenerator.GeneratorListener
 		doPreheat(false);
 
 		building = false;
+		releaseBuildSource();
 		if (machineLoader.isLoaded()) {
 			if (machineLoader.getMachineInterface().getSimulatorDriver() != null)
 				machineLoader.getMachineInterface().getSimulatorDriver().destroyWindow();
@@ -2547,7 +2647,13 @@ ToolpathGenerator.GeneratorListener
 
 		public void run() {
 			message("Simulating...");
-			machineLoader.getMachineInterface().simulate(new JEditTextAreaSource(textarea));
+			// simulate() is done with the source when it returns
+			GCodeSource source = getGCodeSource();
+			try {
+				machineLoader.getMachineInterface().simulate(source);
+			} finally {
+				releaseGCodeSource(source);
+			}
 			EventQueue.invokeLater(new Runnable() {
 				public void run() {
 					simulationOver();
@@ -2583,7 +2689,12 @@ ToolpathGenerator.GeneratorListener
 
 		public void run() {
 			message("Estimating...");
-			machineLoader.getMachineInterface().estimate(new JEditTextAreaSource(textarea));
+			GCodeSource source = getGCodeSource();
+			try {
+				machineLoader.getMachineInterface().estimate(source);
+			} finally {
+				releaseGCodeSource(source);
+			}
 			editor.estimationOver();
 		}
 	}
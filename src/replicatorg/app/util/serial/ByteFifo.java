@@ -1,63 +1,255 @@
 package replicatorg.app.util.serial;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 /**
- * Non-growable FIFO.  In theory we only need enough space for a single
- * packet.  Currently set at 1K.
+ * Non-growable FIFO for one thread putting bytes in and one thread taking them
+ * out, without locks.  The capacity is a power of two, so positions wrap with a
+ * mask; head and tail only ever count up, so the size is just their difference.
+ *
+ * Only the producer moves the tail and only the consumer moves the head, and
+ * each publishes its moves through a volatile write, so neither ever waits for
+ * the other except when the fifo is full or empty.  What happens when the fifo
+ * is full is up to the OverflowPolicy; bytes that don't fit are counted.
  * @author phooky
  *
  */
 public class ByteFifo {
-	final static int INITIAL_FIFO_SIZE = 1 * 1024; // 1 K
-	private byte[] buffer = new byte[INITIAL_FIFO_SIZE];
-	private int head = 0; 
-	private int tail = 0;
-	/** the point our last new line search ended or the head if it has moved past that point. */
-	private int newLineSearchHead = head;
-
-	final private int moduloLength(int value) {
-		if (value < 0) value += buffer.length;
-		value = value % buffer.length;
-		return value;
-	}
-	public void enqueue(byte b) {
-		buffer[tail++] = b;
-		tail = moduloLength(tail);
-	}
-	public void clear() { head = tail = 0; }
-	public int size() { return moduloLength(tail-head); }
+	final static int DEFAULT_CAPACITY = 4 * 1024; // 4 K
+
+	/**
+	 * What to do with bytes that arrive when the fifo is full.
+	 */
+	public enum OverflowPolicy {
+		/** Wait for the consumer to make room, for up to the block timeout; then drop them */
+		BLOCK,
+		/** Drop them straight away */
+		DROP,
+	}
+
+	private final byte[] buffer;
+	private final int mask;
+
+	// Written only by the consumer
+	private volatile long head = 0;
+	// Written only by the producer
+	private volatile long tail = 0;
+	/** the point our last new line search ended, or the head if it has moved past that point. */
+	private long newLineSearchHead = 0;
+
+	private volatile OverflowPolicy policy = OverflowPolicy.BLOCK;
+	private volatile long blockTimeoutMillis = 1000;
+	// Written only by the producer
+	private volatile long overflows = 0;
+
+	// Threads parked waiting for bytes, and for room
+	private volatile Thread waitingConsumer = null;
+	private volatile Thread waitingProducer = null;
+
+	public ByteFifo() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the most bytes the fifo holds; rounded up to a power of two
+	 */
+	public ByteFifo(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		buffer = new byte[size];
+		mask = size - 1;
+	}
+
+	public int capacity() { return buffer.length; }
+	public int size() { return (int)(tail - head); }
+
+	public void setOverflowPolicy(OverflowPolicy policy) { this.policy = policy; }
+	public OverflowPolicy getOverflowPolicy() { return policy; }
+	public void setBlockTimeout(long millis) { blockTimeoutMillis = millis; }
+
+	/**
+	 * @return how many bytes have been dropped because the fifo was full
+	 */
+	public long getOverflowCount() { return overflows; }
+
+	/**
+	 * Add a byte; producer only.
+	 * @return false if the fifo was full and the byte was dropped
+	 */
+	public boolean enqueue(byte b) {
+		if (buffer.length - size() < 1 && !waitForRoom(1)) {
+			overflows++;
+			return false;
+		}
+		buffer[(int)tail & mask] = b;
+		tail = tail + 1;
+		wakeConsumer();
+		return true;
+	}
+
+	/**
+	 * Add length bytes from the given buffer, starting at offset; producer only.
+	 * @return the number of bytes added.  Any others were dropped, by the overflow policy.
+	 */
+	public int enqueue(byte[] bytes, int offset, int length) {
+		int added = 0;
+		while (added < length) {
+			int room = buffer.length - size();
+			if (room == 0) {
+				if (!waitForRoom(1)) {
+					break;
+				}
+				room = buffer.length - size();
+			}
+			int count = Math.min(room, length - added);
+			long t = tail;
+			int start = (int)t & mask;
+			// The bytes may wrap around the end of the buffer
+			int first = Math.min(count, buffer.length - start);
+			System.arraycopy(bytes, offset + added, buffer, start, first);
+			System.arraycopy(bytes, offset + added + first, buffer, 0, count - first);
+			tail = t + count;
+			added += count;
+			wakeConsumer();
+		}
+		overflows += length - added;
+		return added;
+	}
+
+	/**
+	 * Drop everything in the fifo; consumer only.
+	 */
+	public void clear() {
+		head = tail;
+		newLineSearchHead = head;
+		wakeProducer();
+	}
+
+	/**
+	 * Take the next byte; consumer only.  The fifo must not be empty.
+	 */
 	public byte dequeue() {
-		int nextHead = moduloLength(head+1);
-		if (newLineSearchHead == head) newLineSearchHead = nextHead;
-		
-		byte b = buffer[head];
-		head = nextHead;
+		long h = head;
+		byte b = buffer[(int)h & mask];
+		if (newLineSearchHead == h) newLineSearchHead = h + 1;
+		head = h + 1;
+		wakeProducer();
 		return b;
 	}
-	
+
+	/**
+	 * Dequeue up to length bytes into the given buffer, starting at offset; consumer only.
+	 * @return the number of bytes dequeued
+	 */
+	public int dequeue(byte[] bytes, int offset, int length) {
+		long h = head;
+		int count = Math.min(length, (int)(tail - h));
+		int start = (int)h & mask;
+		// The bytes may wrap around the end of the buffer
+		int first = Math.min(count, buffer.length - start);
+		System.arraycopy(buffer, start, bytes, offset, first);
+		System.arraycopy(buffer, 0, bytes, offset + first, count - first);
+
+		if (newLineSearchHead - h < count) newLineSearchHead = h + count;
+		head = h + count;
+		wakeProducer();
+		return count;
+	}
+
+	/**
+	 * Find the first newline (\n) in the fifo; consumer only.  Bytes that have
+	 * already been searched aren't searched again.
+	 * @return the length of the first line, including the newline, or 0 if
+	 * there isn't a whole line in the fifo yet.
+	 */
+	public int lineLength() {
+		long h = head;
+		long t = tail;
+		long i = Math.max(newLineSearchHead, h);
+		while (i != t) {
+			// Scan up to the end of the buffer, or the tail, whichever comes first
+			int start = (int)i & mask;
+			int end = start + (int)Math.min(t - i, buffer.length - start);
+			for (int j = start; j < end; j++) {
+				if (buffer[j] == (byte)'\n') {
+					newLineSearchHead = i + (j - start);
+					return (int)(newLineSearchHead - h) + 1;
+				}
+			}
+			i += end - start;
+		}
+		newLineSearchHead = i;
+		return 0;
+	}
+
 	/**
-	 * deques the byte array up to and including the first instance of a newline (\n) 
+	 * deques the byte array up to and including the first instance of a newline (\n)
 	 * byte. If the \n character is not in the fifo a empty byte array is returned.
-	 * @param pattern
+	 * Consumer only.
 	 * @return
 	 */
-	public synchronized byte[] dequeueLine() {
-		int i = newLineSearchHead;
-		while(i !=tail)
-		{
-			if (buffer[i] == (byte)'\n')
-			{
-				byte[] match = new byte[moduloLength( moduloLength(i+1) - head )];
-				int k = 0;
-				for ( int j = head; j != moduloLength(i+1); j = moduloLength(j+1) )
-				{
-					match[k++] = dequeue();
-				}
-				return match;
+	public byte[] dequeueLine() {
+		int length = lineLength();
+		byte[] match = new byte[length];
+		if (length > 0) {
+			dequeue(match, 0, length);
+		}
+		return match;
+	}
+
+	/**
+	 * Wait until there are at least count bytes in the fifo, or the timeout is up;
+	 * consumer only.
+	 * @return true if there are count bytes
+	 * @throws InterruptedException if we were interrupted while waiting
+	 */
+	public boolean waitForBytes(int count, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (size() < count) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			waitingConsumer = Thread.currentThread();
+			// Look again, in case the bytes came before the producer could see us waiting
+			if (size() < count) {
+				LockSupport.parkNanos(this, remaining);
 			}
+			waitingConsumer = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return true;
+	}
 
-			i = moduloLength(i+1);
+	// Wait for room for count bytes, if the policy lets us; producer only
+	private boolean waitForRoom(int count) {
+		if (policy != OverflowPolicy.BLOCK) {
+			return false;
 		}
-		newLineSearchHead = i;
-		return new byte[0];
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+		while (buffer.length - size() < count) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			waitingProducer = Thread.currentThread();
+			if (buffer.length - size() < count) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			waitingProducer = null;
+		}
+		return true;
+	}
+
+	private void wakeConsumer() {
+		Thread t = waitingConsumer;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	private void wakeProducer() {
+		Thread t = waitingProducer;
+		if (t != null) LockSupport.unpark(t);
 	}
-}
\ No newline at end of file
+}
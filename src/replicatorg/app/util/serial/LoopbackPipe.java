@@ -0,0 +1,124 @@
+package replicatorg.app.util.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A pipe between threads: bytes written to its output stream are read from its
+ * input stream. Unlike java.io's piped streams, any thread may write to it and a
+ * reader is woken as soon as bytes arrive, which makes it a fair stand-in for a
+ * serial cable when talking to an emulated machine.
+ *
+ * Writes block while the pipe is full. Once either end is closed, reads return
+ * what is left and then -1, and writes fail.
+ */
+public class LoopbackPipe {
+	private final byte[] buffer;
+	private int head = 0;
+	private int count = 0;
+	private boolean closed = false;
+
+	private final InputStream input = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			synchronized (LoopbackPipe.this) {
+				try {
+					while (count == 0 && !closed) {
+						LoopbackPipe.this.wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				if (count == 0) {
+					return -1;
+				}
+				int n = Math.min(len, count);
+				int first = Math.min(n, buffer.length - head);
+				System.arraycopy(buffer, head, b, off, first);
+				System.arraycopy(buffer, 0, b, off + first, n - first);
+				head = (head + n) % buffer.length;
+				count -= n;
+				LoopbackPipe.this.notifyAll();
+				return n;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized (LoopbackPipe.this) {
+				return count;
+			}
+		}
+
+		@Override
+		public void close() {
+			LoopbackPipe.this.close();
+		}
+	};
+
+	private final OutputStream output = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (LoopbackPipe.this) {
+				while (len > 0) {
+					try {
+						while (count == buffer.length && !closed) {
+							LoopbackPipe.this.wait();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+					if (closed) {
+						throw new IOException("Pipe closed");
+					}
+					int tail = (head + count) % buffer.length;
+					int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+					System.arraycopy(b, off, buffer, tail, n);
+					count += n;
+					off += n;
+					len -= n;
+					LoopbackPipe.this.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			LoopbackPipe.this.close();
+		}
+	};
+
+	public LoopbackPipe() {
+		this(4096);
+	}
+
+	public LoopbackPipe(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	public InputStream getInputStream() { return input; }
+	public OutputStream getOutputStream() { return output; }
+
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
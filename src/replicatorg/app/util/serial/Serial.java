@@ -39,6 +39,7 @@ import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
@@ -76,7 +77,10 @@ public class Serial implements SerialPortEventListener {
     private static int TIMEOUT_DEFAULT = 500; 
 	private int timeoutMillis = TIMEOUT_DEFAULT;            
 	
+	// Filled by the serial event thread, emptied by whoever reads
 	private ByteFifo readFifo = new ByteFifo();
+	// Where the serial event thread reads into before queueing
+	private byte[] inputChunk = new byte[256];
 	
 	public final AtomicReference<SerialFifoEventListener> listener =
 		new AtomicReference<SerialFifoEventListener>();
@@ -178,6 +182,40 @@ public class Serial implements SerialPortEventListener {
 	public Serial(String name) throws SerialException {
 		init(name,38400,'N',8,1);
 	}
+
+	/**
+	 * Make a serial connection over a pair of streams rather than a port, e.g. to an
+	 * emulated machine. A thread of our own reads the input, in place of the port's
+	 * events.
+	 */
+	public Serial(String name, InputStream input, OutputStream output) {
+		this.name = name;
+		this.input = input;
+		this.output = output;
+		connected.set(true);
+
+		final InputStream in = input;
+		Thread reader = new Thread("Serial reader: " + name) {
+			public void run() {
+				try {
+					while (true) {
+						int count = in.read(inputChunk, 0, inputChunk.length);
+						if (count == -1) {
+							break;
+						}
+						received(count);
+					}
+				} catch (IOException e) {
+					if (connected.get()) {
+						Base.logger.severe("Serial IO exception on " + getName() + ": " + e.getMessage());
+					}
+				}
+				connected.set(false);
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
 	
 	public String getName() { return name; }
 	
@@ -278,6 +316,8 @@ public class Serial implements SerialPortEventListener {
 	 * device.
 	 */
 	public void pulseRTSLow() {
+		// Nothing to reset without a port
+		if (port == null) return;
 		port.setDTR(false);
 		port.setRTS(false);
 		try {
@@ -298,17 +338,7 @@ public class Serial implements SerialPortEventListener {
 	private int waitForBytes(int numberOfBytes)
 	{
 		try {
-			long to = System.currentTimeMillis() + timeoutMillis;
-			while (System.currentTimeMillis() < to && readFifo.size() < numberOfBytes)
-			{
-				/*
-				 * Wait until we timeout or a byte is received (which will notify this 
-				 * method). readFifo notifies for each byte received.
-				 */
-				synchronized (readFifo) {
-					readFifo.wait(timeoutMillis);
-				}
-			}
+			readFifo.waitForBytes(numberOfBytes, timeoutMillis, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			// We are most likely amidst a shutdown.  Propagate the interrupt
 			// status.
@@ -326,22 +356,20 @@ public class Serial implements SerialPortEventListener {
  		//wait for the fifo to fill
 		if (waitForBytes(1) == -1) return -1;
 		//read the fifo
-		synchronized(readFifo) {
-			if (readFifo.size() > 0) {
-				byte b = readFifo.dequeue();
-				return b & 0xff; 
-			} else {
-				// dial down timeout error reporting if timeoutMillis is set
-				// below the default.  In this case, the packets will time out
-				// frequently and messaging will flood the console
-				if(timeoutMillis < TIMEOUT_DEFAULT){
-					Base.logger.finest("Read timed out.");
-				}
-				else{
-					Base.logger.warning("Read timed out.");
-				}
-				return -1;
+		if (readFifo.size() > 0) {
+			byte b = readFifo.dequeue();
+			return b & 0xff; 
+		} else {
+			// dial down timeout error reporting if timeoutMillis is set
+			// below the default.  In this case, the packets will time out
+			// frequently and messaging will flood the console
+			if(timeoutMillis < TIMEOUT_DEFAULT){
+				Base.logger.finest("Read timed out.");
 			}
+			else{
+				Base.logger.warning("Read timed out.");
+			}
+			return -1;
 		}
 	}
 
@@ -357,23 +385,46 @@ public class Serial implements SerialPortEventListener {
  		//wait for the fifo to fill
 		if (waitForBytes(bytes.length) == -1) return -1;
 		//read the fifo
-		synchronized(readFifo) {
-			int idx = 0;
-			while (readFifo.size() > 0 && idx < bytes.length) {
-				bytes[idx++] = readFifo.dequeue();
+		return readFifo.dequeue(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Read whatever has arrived, up to length bytes, into the given buffer
+	 * starting at offset. Waits for at least one byte, up to the timeout.
+	 * @return the number of bytes read, or -1 to indicate a timeout.
+	 */
+	public int read(byte bytes[], int offset, int length) {
+		//wait for the fifo to fill
+		if (waitForBytes(1) == -1) return -1;
+		//read the fifo
+		int count = readFifo.dequeue(bytes, offset, length);
+		if (count == 0) {
+			if(timeoutMillis < TIMEOUT_DEFAULT){
+				Base.logger.finest("Read timed out.");
+			}
+			else{
+				Base.logger.warning("Read timed out.");
 			}
-			return idx;
+			return -1;
 		}
+		return count;
 	}
 
 	public void write(byte bytes[]) {
+		write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write length bytes from the given buffer, starting at offset.
+	 */
+	public void write(byte bytes[], int offset, int length) {
 		if (!connected.get()) {
 			Base.logger.severe("serial disconnected");
 			return;
 		}
 		
 		try {
-			output.write(bytes);
+			output.write(bytes, offset, length);
 			output.flush(); // Reconsider?
 
 		} catch (Exception e) { // null pointer or serial port dead
@@ -406,36 +457,44 @@ public class Serial implements SerialPortEventListener {
 
 
 	public void clear() {
-		synchronized (readFifo) {
-			// If we're eating more than 255 characters, then there's a serious error:
-			// Either the machine is jabbering, or there's a problem with our serial
-			// connection.
-			int maxEats = 255;
-			
-			try {
-				while (input.available() > 0 && maxEats > 0) {
+		// If we're eating more than 255 characters, then there's a serious error:
+		// Either the machine is jabbering, or there's a problem with our serial
+		// connection.
+		int maxEats = 255;
+		
+		try {
+			while (maxEats > 0) {
+				// The serial event thread may be reading too
+				synchronized(input) {
+					if (input.available() == 0) break;
 					input.read();
-					Thread.sleep(1);
-					maxEats--;
 				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				connected.set(false);
-			} catch (InterruptedException e) {
-			}
-			readFifo.clear();
-			readFifo.notifyAll();
-			if (maxEats == 0) {
-				throw new RuntimeException("Much more data than expected; check your serial line and reset your machine!");
+				Thread.sleep(1);
+				maxEats--;
 			}
+		} catch (IOException e) {
+			// Error condition
+			// e.printStackTrace();
+			// An unplugged connection will just flood the console with
+			// stack traces, and give us zero useful information.  Until
+			// we have a plan for how to respond to the user when the
+			// connection drops, we'll just let this silently fail, and set
+			// a fail bit.
+			connected.set(false);
+		} catch (InterruptedException e) {
+		}
+		readFifo.clear();
+		if (maxEats == 0) {
+			throw new RuntimeException("Much more data than expected; check your serial line and reset your machine!");
 		}
 	}
+
+	/**
+	 * @return how many received bytes have been dropped because nobody read them in time
+	 */
+	public long getOverflowCount() {
+		return readFifo.getOverflowCount();
+	}
 	
 	/**
 	 * Indicates if we've received 
@@ -444,42 +503,65 @@ public class Serial implements SerialPortEventListener {
 
 	public void serialEvent(SerialPortEvent event) {
 		if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
-		synchronized (readFifo) {
-			try {
-				while (true) {
-					synchronized(input)
+		// This is the only thread that adds to the fifo, so it needs no lock
+		try {
+			while (true) {
+				int count;
+				synchronized(input)
+				{
+					int available = input.available();
+					if (available == 0)
 					{
-						if (input.available() == 0)
-						{
-							return;
-						}
-					}
-
-					int b = input.read();
-					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						//notify each byte received
-						readFifo.notifyAll();
-						SerialFifoEventListener l = listener.get();
-						if (l != null)
-							l.serialByteReceivedEvent(readFifo);
+						return;
 					}
+					count = input.read(inputChunk, 0, Math.min(available, inputChunk.length));
 				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				if (connected.get()) {
-					Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
+
+				received(count);
+			}
+		} catch (IOException e) {
+			// Error condition
+			// e.printStackTrace();
+			// An unplugged connection will just flood the console with
+			// stack traces, and give us zero useful information.  Until
+			// we have a plan for how to respond to the user when the
+			// connection drops, we'll just let this silently fail, and set
+			// a fail bit.
+			if (connected.get()) {
+				Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
 //					connected.set(false);
-					// TODO: How do we tell rxtx that we're done using this port?
-					dispose();
-				}
+				// TODO: How do we tell rxtx that we're done using this port?
+				dispose();
 			}
 		}
 	}
+
+	// Queue bytes just read into inputChunk, and tell the listener.  Only ever
+	// called from one thread: the port's event thread, or our own reader.
+	private void received(int count) {
+		if (count <= 0) return;
+		SerialFifoEventListener l = listener.get();
+		if (l != null && readFifo.capacity() - readFifo.size() < count) {
+			// Let the listener make room first
+			deliver(l);
+		}
+		// A listener empties the fifo on this thread, so there is no
+		// one to wait for; otherwise wait for the reader to catch up
+		readFifo.setOverflowPolicy((l != null) ? ByteFifo.OverflowPolicy.DROP : ByteFifo.OverflowPolicy.BLOCK);
+		int queued = readFifo.enqueue(inputChunk, 0, count);
+		if (queued < count) {
+			Base.logger.warning("Serial input overflow: dropped " + (count - queued) + " bytes");
+		}
+		if (l != null)
+			deliver(l);
+	}
+
+	// Tell the listener about new bytes, for as long as it takes anything out
+	private void deliver(SerialFifoEventListener l) {
+		int size;
+		do {
+			size = readFifo.size();
+			l.serialByteReceivedEvent(readFifo);
+		} while (readFifo.size() > 0 && readFifo.size() < size);
+	}
 }
@@ -2,9 +2,10 @@ package replicatorg.app.util.serial;
 
 public interface SerialFifoEventListener {
 	/**
-	 * Called by serial when a byte is received and queued in the fifo.
-	 * The fifo is synchronzied for the period of this call so it will not be 
-	 * modified by any external threads.
+	 * Called by serial when bytes are received and queued in the fifo, and
+	 * again for as long as the listener keeps taking bytes out of it.
+	 * It is called on the serial thread, which is the only thread that adds
+	 * to the fifo, so nothing else will add to it during the call.
 	 * @param fifo
 	 */
 	public void serialByteReceivedEvent(ByteFifo fifo);
@@ -0,0 +1,25 @@
+package replicatorg.drivers;
+
+import java.io.OutputStream;
+
+/**
+ * Implemented by drivers that can compile a build into the packets they would send,
+ * ahead of time, and then send those packets as they are.
+ */
+public interface PacketCapture {
+	/**
+	 * Write the packets for every command to out, framed and ready to send, instead of
+	 * sending them. Queries aren't captured; they get an empty answer, as they do when
+	 * capturing to a file. Nothing else should use the driver until the capture ends.
+	 */
+	public void beginPacketCapture(OutputStream out);
+	public void endPacketCapture();
+
+	/**
+	 * Send one captured packet to the machine.
+	 * @param buffer holds the packet, starting at offset
+	 * @return the length of the packet, so that the caller can move on to the next one
+	 * @throws RetryException if the machine has no room for it yet
+	 */
+	public int sendCapturedPacket(byte[] buffer, int offset) throws RetryException;
+}
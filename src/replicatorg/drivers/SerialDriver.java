@@ -10,6 +10,7 @@ import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
 import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.exceptions.UnknownSerialPortException;
 import replicatorg.app.tools.XML;
 import replicatorg.app.util.serial.Serial;
 import replicatorg.app.util.serial.SerialFifoEventListener;
@@ -20,6 +21,9 @@ import replicatorg.app.util.serial.SerialFifoEventListener;
  */
 public class SerialDriver extends DriverBaseImplementation implements UsesSerial {
 
+	/// Port names starting with this connect to an emulated machine instead of a port
+	public static final String EMULATED_PORT = "emulated";
+
 	protected Serial serial;
 	
     private String portName;
@@ -74,8 +78,13 @@ public class SerialDriver extends DriverBaseImplementation implements UsesSerial
 		Serial newConnection = null;
 		try {
 
-			Base.logger.info("Connecting to machine using serial port: " + portName);
-			newConnection = new Serial(portName, rate, parity, databits, stopbits);
+			if (portName.startsWith(EMULATED_PORT)) {
+				Base.logger.info("Connecting to emulated machine: " + portName);
+				newConnection = openEmulator(portName);
+			} else {
+				Base.logger.info("Connecting to machine using serial port: " + portName);
+				newConnection = new Serial(portName, rate, parity, databits, stopbits);
+			}
 		} catch (SerialException e) {
 			String msg = e.getMessage();
 			Base.logger.severe("Connection error: " + msg);
@@ -104,6 +113,14 @@ public class SerialDriver extends DriverBaseImplementation implements UsesSerial
 		serialLock.writeLock().unlock();
 	}
 	
+	/**
+	 * Connect to an emulation of the machine this driver talks to, for port names
+	 * starting with EMULATED_PORT. Drivers that have an emulator override this.
+	 */
+	protected Serial openEmulator(String portName) throws SerialException {
+		throw new UnknownSerialPortException(portName);
+	}
+
 	// TODO: Move all of this to a new object that causes this when it is destroyed.
 	public void closeSerial() {
 		serialLock.writeLock().lock();
@@ -15,4 +15,8 @@ public class QueuePoint implements DriverCommand {
 	public void run(Driver driver) throws RetryException {
 		driver.queuePoint(destination);
 	}
+
+	public Point5d getDestination() {
+		return destination;
+	}
 }
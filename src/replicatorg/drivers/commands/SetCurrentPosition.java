@@ -16,4 +16,8 @@ public class SetCurrentPosition implements DriverCommand {
 	public void run(Driver driver) throws RetryException {
 		driver.setCurrentPosition(point);
 	}
+
+	public Point5d getPoint() {
+		return point;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package replicatorg.drivers.gen3;
+
+/**
+ * Keeps an estimate of how much room is left in the firmware's command buffer, so that
+ * commands can be held back while the buffer is full instead of being sent just to be
+ * turned away with a BUFFER_OVERFLOW.
+ *
+ * The estimate starts from what the firmware says is free (GET_BUFFER_SIZE), and goes
+ * down by the size of each command sent. The firmware empties the buffer as it goes,
+ * so the real free space is never less than the estimate; once the estimate says a
+ * command won't fit, it is time to ask the firmware again.
+ *
+ * A firmware that is printing keeps its buffer nearly full, so asking as soon as one
+ * command doesn't fit would mean asking before almost every command. Instead, an
+ * answer of less than half the buffer is counted as no room at all: once the buffer
+ * fills, commands are held until it is half empty, and then go out together on the
+ * strength of one answer. The size of the buffer is taken to be the most the firmware
+ * has ever said was free.
+ *
+ * While the buffer really is full, the driver backs off between attempts. The backoff
+ * doubles each time the buffer is still full, up to MAX_BACKOFF_MILLIS, and starts
+ * again from MIN_BACKOFF_MILLIS once a command gets through.
+ *
+ * If the firmware doesn't answer GET_BUFFER_SIZE, we don't ask again for the next
+ * QUERY_RETRY_COMMANDS commands, and send them as if they fit; a firmware that is too
+ * busy to answer would otherwise be asked again before every command.
+ */
+class CommandBufferTracker {
+
+	/// shortest and longest time to wait for the buffer to drain between attempts
+	static final int MIN_BACKOFF_MILLIS = 2;
+	static final int MAX_BACKOFF_MILLIS = 64;
+
+	/// how many commands to send without asking, after the firmware failed to answer
+	static final int QUERY_RETRY_COMMANDS = 64;
+
+	/// marks free space that we don't know anything about
+	static final long UNKNOWN = -1;
+
+	// Bytes we are sure are free in the buffer, or UNKNOWN
+	private long free = UNKNOWN;
+
+	// The most the firmware has said was free since the last overflow
+	private long capacity = 0;
+
+	// False if the firmware can't tell us how much space is free
+	private boolean canQuery = true;
+
+	// Commands still to send before asking again, after a query that wasn't answered
+	private int skipQueries = 0;
+
+	private int backoff = MIN_BACKOFF_MILLIS;
+
+	/**
+	 * @return true if a command this long is sure to fit, without asking the firmware
+	 */
+	synchronized boolean hasRoomFor(int length) {
+		return !canQuery || skipQueries > 0 || (free != UNKNOWN && free >= length);
+	}
+
+	/**
+	 * Record what the firmware says is free.
+	 * @param bytes the free space, or UNKNOWN if the firmware couldn't say
+	 */
+	synchronized void setFree(long bytes) {
+		if (bytes == UNKNOWN) {
+			free = UNKNOWN;
+			return;
+		}
+		capacity = Math.max(capacity, bytes);
+		free = (bytes < capacity / 2) ? 0 : bytes;
+	}
+
+	/**
+	 * The firmware doesn't support GET_BUFFER_SIZE; from now on, only overflows tell us
+	 * the buffer is full.
+	 */
+	synchronized void cannotQuery() {
+		canQuery = false;
+		free = UNKNOWN;
+	}
+
+	/**
+	 * The firmware didn't answer GET_BUFFER_SIZE; send the next QUERY_RETRY_COMMANDS
+	 * commands without asking, then try again.
+	 */
+	synchronized void queryFailed() {
+		skipQueries = QUERY_RETRY_COMMANDS;
+		free = UNKNOWN;
+	}
+
+	/**
+	 * Record a command that was accepted.
+	 */
+	synchronized void sent(int length) {
+		if (free != UNKNOWN) {
+			free = Math.max(0, free - length);
+		}
+		if (skipQueries > 0) {
+			skipQueries--;
+		}
+		backoff = MIN_BACKOFF_MILLIS;
+	}
+
+	/**
+	 * Record a command that was turned away because the buffer was full.
+	 */
+	synchronized void overflowed() {
+		// The buffer is smaller than we thought; learn its size again
+		free = 0;
+		capacity = 0;
+	}
+
+	/**
+	 * Wait a while for the buffer to drain, waiting longer each time it is still full.
+	 */
+	void backOff() {
+		int millis;
+		synchronized(this) {
+			millis = backoff;
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			// Let whoever interrupted us see it
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Forget what we know about the buffer, which the firmware has just emptied or reset.
+	 */
+	synchronized void reset() {
+		free = UNKNOWN;
+		skipQueries = 0;
+		backoff = MIN_BACKOFF_MILLIS;
+	}
+
+	/// @return how long the next backOff() will wait, in milliseconds
+	synchronized int getBackoffMillis() {
+		return backoff;
+	}
+}
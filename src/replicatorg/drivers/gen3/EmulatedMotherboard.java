@@ -0,0 +1,414 @@
+package replicatorg.drivers.gen3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import replicatorg.app.util.serial.LoopbackPipe;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.Version;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+
+/**
+ * An emulated s3g motherboard, for trying out and timing drivers without a machine.
+ * It answers packets over a pipe the way a Gen4 or MightyBoard motherboard does: queries
+ * are answered straight away, and commands go into a command buffer of a fixed size,
+ * which is answered with BUFFER_OVERFLOW while it is full.
+ *
+ * The buffer drains as fast as a real machine would carry the commands out: each move
+ * takes as long as its step count and step interval (or its duration) say, moves run
+ * back to back, and a command leaves the buffer when it has been carried out. Nothing
+ * actually moves, and tools reach their set temperatures at once.
+ *
+ * To make the link less perfect, the emulator can wait before each answer, and can spoil
+ * the CRC of some answers.
+ */
+public class EmulatedMotherboard implements Runnable {
+
+	/// The size of the command buffer on a Gen4 motherboard, in bytes
+	public static final int DEFAULT_BUFFER_SIZE = 512;
+
+	// Response codes
+	private static final int OK = 0x81;
+	private static final int BUFFER_OVERFLOW = 0x82;
+	private static final int CRC_MISMATCH = 0x83;
+
+	// A command waiting in the buffer
+	private static class Queued {
+		final int length;
+		// when it will have been carried out, in System.nanoTime()
+		long doneAt;
+		// where the axes are once it has, or null if it doesn't move them
+		final int[] position;
+
+		Queued(int length, long doneAt, int[] position) {
+			this.length = length;
+			this.doneAt = doneAt;
+			this.position = position;
+		}
+	}
+
+	private final LoopbackPipe toMachine = new LoopbackPipe();
+	private final LoopbackPipe fromMachine = new LoopbackPipe();
+	private final InputStream in = toMachine.getInputStream();
+	private final OutputStream out = fromMachine.getOutputStream();
+
+	private final int versionNumber;
+	private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+	private volatile long latencyMicros = 0;
+	private volatile double crcErrorRate = 0;
+	private final Random random = new Random(0);
+
+	// Everything below belongs to the emulator's thread
+	private final LinkedList<Queued> queue = new LinkedList<Queued>();
+	private int queuedBytes = 0;
+	// when the last queued command will be done
+	private long lastDoneAt = 0;
+	// where the axes are, and where they will be once the buffer is empty
+	private int[] position = new int[5];
+	private int[] queuedPosition = new int[5];
+	private long pausedAt = -1;
+	private final int[] toolTemperatures = new int[8];
+	private final int[] platformTemperatures = new int[8];
+	private final byte[] eeprom = new byte[4096];
+
+	private final PacketBuilder response = new PacketBuilder(new byte[PacketBuilder.MAX_PACKET_LENGTH]);
+
+	private volatile long packets = 0;
+	private volatile long overflows = 0;
+	private volatile long crcErrors = 0;
+
+	private Thread thread = null;
+
+	/**
+	 * @param version the firmware version to report, e.g. 5.2
+	 */
+	public EmulatedMotherboard(Version version) {
+		versionNumber = version.getMajor() * 100 + version.getMinor();
+	}
+
+	/**
+	 * Start the emulator, and connect to it.
+	 */
+	public synchronized Serial connect(String name) {
+		if (thread == null) {
+			thread = new Thread(this, "Emulated motherboard");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return new Serial(name, fromMachine.getInputStream(), toMachine.getOutputStream());
+	}
+
+	/**
+	 * Stop the emulator; the connection to it closes.
+	 */
+	public synchronized void stop() {
+		toMachine.close();
+		fromMachine.close();
+		thread = null;
+	}
+
+	/// Set the size of the command buffer, in bytes
+	public void setBufferSize(int bytes) { bufferSize = bytes; }
+	/// Wait this long before each answer
+	public void setLatency(long micros) { latencyMicros = micros; }
+	/// Spoil the CRC of this fraction of answers, between 0 and 1
+	public void setCrcErrorRate(double rate) { crcErrorRate = rate; }
+
+	/// @return how many packets have been answered
+	public long getPacketCount() { return packets; }
+	/// @return how many commands were turned away because the buffer was full
+	public long getOverflowCount() { return overflows; }
+	/// @return how many answers had their CRC spoiled, or answered a packet with a bad CRC
+	public long getCrcErrorCount() { return crcErrors; }
+
+	public void run() {
+		PacketProcessor pp = new PacketProcessor();
+		PacketResponse packet = new PacketResponse();
+		byte[] buffer = new byte[PacketBuilder.MAX_PACKET_LENGTH];
+		try {
+			while (true) {
+				int count = in.read(buffer, 0, pp.bytesNeeded());
+				if (count == -1) {
+					break;
+				}
+				try {
+					if (pp.processBytes(buffer, 0, count) != -1) {
+						pp.getResponse(packet);
+						handle(packet);
+						pp.reset();
+					}
+				} catch (CRCException e) {
+					crcErrors++;
+					pp.reset();
+					response.start(CRC_MISMATCH);
+					send();
+				}
+			}
+		} catch (IOException e) {
+			// The connection has been closed
+		}
+	}
+
+	// Answer a packet from the host
+	private void handle(PacketResponse packet) throws IOException {
+		long now = System.nanoTime();
+		drain(now);
+		int code = packet.payload[0] & 0xff;
+		MotherboardCommandCode command = MotherboardCommandCode.fromCode(code);
+
+		if ((code & 0x80) != 0) {
+			// A command: into the buffer, if it fits
+			if (queuedBytes + packet.length > bufferSize) {
+				overflows++;
+				response.start(BUFFER_OVERFLOW);
+			} else {
+				queue(command, packet, now);
+				response.start(OK);
+			}
+			send();
+			return;
+		}
+
+		response.start(OK);
+		if (command == null) {
+			// Anything unknown is agreed to, with nothing to say
+			send();
+			return;
+		}
+		switch (command) {
+		case VERSION:
+			response.add16(versionNumber);
+			break;
+		case INIT:
+		case CLEAR_BUFFER:
+		case ABORT:
+		case RESET:
+			clear();
+			break;
+		case GET_BUFFER_SIZE:
+			response.add32(bufferSize - queuedBytes);
+			break;
+		case GET_POSITION:
+			for (int i = 0; i < 3; i++) {
+				response.add32(position[i]);
+			}
+			response.add8(0);
+			break;
+		case PAUSE:
+			if (pausedAt < 0) {
+				pausedAt = now;
+			} else {
+				// Everything waiting is put off by as long as we were paused
+				long paused = now - pausedAt;
+				for (Queued q : queue) {
+					q.doneAt += paused;
+				}
+				lastDoneAt += paused;
+				pausedAt = -1;
+			}
+			break;
+		case TOOL_QUERY:
+			toolQuery(packet.get8(), packet.get8());
+			break;
+		case IS_FINISHED:
+			response.add8(queue.isEmpty() ? 1 : 0);
+			break;
+		case READ_EEPROM:
+		{
+			int offset = packet.get16();
+			int length = packet.get8();
+			for (int i = 0; i < length; i++) {
+				response.add8(eeprom[(offset + i) % eeprom.length]);
+			}
+			break;
+		}
+		case WRITE_EEPROM:
+		{
+			int offset = packet.get16();
+			int length = packet.get8();
+			for (int i = 0; i < length; i++) {
+				eeprom[(offset + i) % eeprom.length] = (byte)packet.get8();
+			}
+			response.add8(length);
+			break;
+		}
+		case GET_BUILD_NAME:
+			for (byte b : "Emulated".getBytes()) {
+				response.add8(b);
+			}
+			response.add8(0);
+			break;
+		case GET_POSITION_EXT:
+			for (int i = 0; i < 5; i++) {
+				response.add32(position[i]);
+			}
+			response.add16(0);
+			break;
+		case EXTENDED_STOP:
+			clear();
+			response.add8(0);
+			break;
+		case GET_COMMUNICATION_STATS:
+			response.add32(packets);
+			response.add32(packets);
+			response.add32(crcErrors);
+			response.add32(0);
+			response.add32(0);
+			break;
+		default:
+			// Anything else is agreed to, with nothing to say
+			break;
+		}
+		send();
+	}
+
+	// Answer a query to a tool
+	private void toolQuery(int tool, int code) {
+		tool &= 7;
+		ToolCommandCode command = ToolCommandCode.fromCode(code);
+		if (command == null) {
+			return;
+		}
+		switch (command) {
+		case VERSION:
+			response.add16(versionNumber);
+			break;
+		case GET_TEMP:
+		case GET_SP:
+			response.add16(toolTemperatures[tool]);
+			break;
+		case GET_PLATFORM_TEMP:
+		case GET_PLATFORM_SP:
+			response.add16(platformTemperatures[tool]);
+			break;
+		case IS_TOOL_READY:
+		case IS_PLATFORM_READY:
+			response.add8(1);
+			break;
+		case GET_BUILD_NAME:
+			for (byte b : "Emulated".getBytes()) {
+				response.add8(b);
+			}
+			response.add8(0);
+			break;
+		default:
+			break;
+		}
+	}
+
+	// Put a command in the buffer, to be done once everything before it is
+	private void queue(MotherboardCommandCode command, PacketResponse packet, long now) {
+		long micros = 0;
+		int[] moved = null;
+		if (command != null) {
+			switch (command) {
+			case QUEUE_POINT_ABS:
+			case QUEUE_POINT_EXT:
+			{
+				int axes = (command == MotherboardCommandCode.QUEUE_POINT_ABS) ? 3 : 5;
+				moved = queuedPosition.clone();
+				long steps = 0;
+				for (int i = 0; i < axes; i++) {
+					moved[i] = packet.get32();
+					steps = Math.max(steps, Math.abs((long)moved[i] - queuedPosition[i]));
+				}
+				// the interval between steps of the axis that moves the most
+				micros = steps * (packet.get32() & 0xffffffffL);
+				break;
+			}
+			case QUEUE_POINT_NEW:
+			{
+				moved = queuedPosition.clone();
+				int[] target = new int[5];
+				for (int i = 0; i < 5; i++) {
+					target[i] = packet.get32();
+				}
+				micros = packet.get32() & 0xffffffffL;
+				int relative = packet.get8();
+				for (int i = 0; i < 5; i++) {
+					moved[i] = ((relative & (1 << i)) != 0) ? moved[i] + target[i] : target[i];
+				}
+				break;
+			}
+			case SET_POSITION:
+			case SET_POSITION_EXT:
+			{
+				int axes = (command == MotherboardCommandCode.SET_POSITION) ? 3 : 5;
+				moved = queuedPosition.clone();
+				for (int i = 0; i < axes; i++) {
+					moved[i] = packet.get32();
+				}
+				break;
+			}
+			case DELAY:
+				micros = (packet.get32() & 0xffffffffL) * 1000;
+				break;
+			case TOOL_COMMAND:
+			{
+				int tool = packet.get8() & 7;
+				ToolCommandCode toolCommand = ToolCommandCode.fromCode(packet.get8());
+				packet.get8(); // length
+				if (toolCommand == ToolCommandCode.SET_TEMP) {
+					toolTemperatures[tool] = packet.get16();
+				} else if (toolCommand == ToolCommandCode.SET_PLATFORM_TEMP) {
+					platformTemperatures[tool] = packet.get16();
+				}
+				break;
+			}
+			default:
+				break;
+			}
+		}
+
+		lastDoneAt = Math.max(now, lastDoneAt) + micros * 1000;
+		if (moved != null) {
+			queuedPosition = moved;
+		}
+		queue.add(new Queued(packet.length, lastDoneAt, moved));
+		queuedBytes += packet.length;
+	}
+
+	// Take everything that has been carried out by now off the buffer
+	private void drain(long now) {
+		if (pausedAt >= 0) {
+			return;
+		}
+		while (!queue.isEmpty() && queue.getFirst().doneAt - now <= 0) {
+			Queued q = queue.removeFirst();
+			queuedBytes -= q.length;
+			if (q.position != null) {
+				position = q.position;
+			}
+		}
+	}
+
+	// Drop everything in the buffer
+	private void clear() {
+		queue.clear();
+		queuedBytes = 0;
+		lastDoneAt = 0;
+		pausedAt = -1;
+		queuedPosition = position.clone();
+	}
+
+	// Send the response that has been built, after the latency, maybe spoiling it
+	private void send() throws IOException {
+		packets++;
+		long latency = latencyMicros;
+		if (latency > 0) {
+			LockSupport.parkNanos(latency * 1000);
+		}
+		int length = response.finish();
+		byte[] bytes = response.getBuffer();
+		if (crcErrorRate > 0 && random.nextDouble() < crcErrorRate) {
+			crcErrors++;
+			bytes[length - 1] ^= 0x55;
+		}
+		out.write(bytes, 0, length);
+		out.flush();
+	}
+}
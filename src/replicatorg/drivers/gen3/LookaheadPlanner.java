@@ -0,0 +1,298 @@
+package replicatorg.drivers.gen3;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import replicatorg.util.Point5d;
+
+/**
+ * Plans acceleration on the host, for firmware that moves every segment at a constant
+ * speed. Moves are held in a window of a few moves; looking ahead through the window,
+ * each move is given the fastest speed it can enter and leave at while still being
+ * able to stop by the end of the window, and is then broken into pieces that ramp
+ * up to its feedrate and back down again.
+ *
+ * How fast a move may turn a corner is limited by a jerk: no axis may change speed by
+ * more than that all at once. The same limit sets how fast a move may start from or
+ * come to a stop. Accelerations are per axis, from the machine's axis limits; an axis
+ * without one is taken to be able to change speed instantly.
+ *
+ * Lengths are in mm and speeds in mm/sec, except that feedrates going in and out are in
+ * mm/min, as everywhere else.
+ */
+class LookaheadPlanner {
+
+	/// ramps are broken into pieces no shorter than this, in mm...
+	static final double MIN_PIECE_LENGTH = 0.5;
+	/// ...and into no more pieces than this, to keep down the number of packets
+	static final int MAX_RAMP_PIECES = 8;
+
+	/**
+	 * A piece of a move, to be sent to the machine as a single segment.
+	 */
+	static class Piece {
+		final Point5d from;
+		final Point5d to;
+		/// in mm/min
+		final double feedrate;
+
+		Piece(Point5d from, Point5d to, double feedrate) {
+			this.from = from;
+			this.to = to;
+			this.feedrate = feedrate;
+		}
+	}
+
+	// A move waiting in the window
+	private static class Move {
+		final Point5d from;
+		final Point5d to;
+		final double length;
+		// the direction of the move, as a unit vector
+		final double[] unit = new double[5];
+		final double nominal;
+		final double acceleration;
+		// the fastest we can enter this move, given the corner from the last one
+		double maxEntry;
+		// the planned entry speed
+		double entry;
+
+		Move(Point5d from, Point5d to, double length, double nominal, double acceleration) {
+			this.from = from;
+			this.to = to;
+			this.length = length;
+			this.nominal = nominal;
+			this.acceleration = acceleration;
+		}
+	}
+
+	private final int window;
+	private final double jerk;
+	private final double[] accelerations = new double[5];
+
+	private final LinkedList<Move> moves = new LinkedList<Move>();
+	private final LinkedList<Piece> pieces = new LinkedList<Piece>();
+
+	// How fast the last move we let go of ends, which is where the window starts. From a
+	// standstill the jerk is the only limit, and the first move's maxEntry has that already.
+	private double released = Double.POSITIVE_INFINITY;
+
+	/**
+	 * @param window how many moves to look ahead through
+	 * @param jerk in mm/sec
+	 * @param accelerations in mm/sec/sec for each axis, 0 for none
+	 */
+	LookaheadPlanner(int window, double jerk, Point5d accelerations) {
+		this.window = Math.max(1, window);
+		this.jerk = jerk;
+		for (int i = 0; i < 5; i++) {
+			this.accelerations[i] = accelerations.get(i);
+		}
+	}
+
+	/**
+	 * Add a move to the end of the window. If the window is full, the move at the front
+	 * is planned for good and its pieces become ready to send.
+	 * @param feedrate in mm/min
+	 */
+	void add(Point5d from, Point5d to, double feedrate) {
+		Point5d delta = new Point5d();
+		delta.sub(to, from);
+		double length = delta.magnitude();
+		if (length == 0) {
+			return;
+		}
+
+		// The fastest we can speed up along this direction without going over any axis's limit
+		double acceleration = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < 5; i++) {
+			double component = Math.abs(delta.get(i)) / length;
+			if (accelerations[i] > 0 && component != 0) {
+				acceleration = Math.min(acceleration, accelerations[i] / component);
+			}
+		}
+		Move move = new Move(new Point5d(from), new Point5d(to), length, feedrate / 60.0, acceleration);
+		for (int i = 0; i < 5; i++) {
+			move.unit[i] = delta.get(i) / length;
+		}
+
+		Move last = moves.isEmpty() ? null : moves.getLast();
+		if (last != null && samePoint(last.to, move.from)) {
+			move.maxEntry = Math.min(Math.min(last.nominal, move.nominal), cornerSpeed(last.unit, move.unit));
+		} else {
+			move.maxEntry = Math.min(move.nominal, cornerSpeed(null, move.unit));
+			if (last != null) {
+				// Something moved us in between, so the moves can't run together
+				flush();
+			}
+		}
+		moves.add(move);
+
+		if (moves.size() > window) {
+			plan();
+			release();
+		}
+	}
+
+	/**
+	 * Plan everything in the window to come to a stop at the end, and make it all ready
+	 * to send.
+	 */
+	void flush() {
+		plan();
+		while (!moves.isEmpty()) {
+			release();
+		}
+		released = Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Forget everything that hasn't been sent yet.
+	 */
+	void clear() {
+		moves.clear();
+		pieces.clear();
+		released = Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return true if there are moves still waiting in the window
+	 */
+	boolean isPlanning() {
+		return !moves.isEmpty();
+	}
+
+	/**
+	 * @return the pieces that are ready to send, in order. Take them off the front as
+	 * they are sent.
+	 */
+	LinkedList<Piece> getPieces() {
+		return pieces;
+	}
+
+	// The fastest we can go from moving one way to moving another without any axis
+	// changing speed by more than the jerk. From or to a standstill if a direction is null.
+	private double cornerSpeed(double[] before, double[] after) {
+		double speed = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < 5; i++) {
+			double change = Math.abs(((after == null) ? 0 : after[i]) - ((before == null) ? 0 : before[i]));
+			if (change > 0) {
+				speed = Math.min(speed, jerk / change);
+			}
+		}
+		return speed;
+	}
+
+	private static boolean samePoint(Point5d a, Point5d b) {
+		for (int i = 0; i < 5; i++) {
+			if (a.get(i) != b.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	// Work out entry speeds for the window, so that we can stop by the end of it
+	private void plan() {
+		if (moves.isEmpty()) {
+			return;
+		}
+		Move[] m = moves.toArray(new Move[moves.size()]);
+
+		// Backwards: how fast can we enter each move and still slow down in time?
+		double exit = Math.min(m[m.length - 1].nominal, cornerSpeed(m[m.length - 1].unit, null));
+		for (int i = m.length - 1; i >= 0; i--) {
+			m[i].entry = Math.min(m[i].maxEntry, reachable(exit, m[i]));
+			exit = m[i].entry;
+		}
+
+		// Forwards: how fast can we actually get going?
+		double entry = Math.min(released, m[0].entry);
+		for (int i = 0; i < m.length; i++) {
+			m[i].entry = Math.min(m[i].entry, entry);
+			entry = reachable(m[i].entry, m[i]);
+		}
+	}
+
+	// The fastest we can be going after changing speed from v over a move
+	private static double reachable(double v, Move move) {
+		return Math.sqrt(v * v + 2 * move.acceleration * move.length);
+	}
+
+	// Let go of the move at the front of the window
+	private void release() {
+		Move move = moves.removeFirst();
+		double exit;
+		if (moves.isEmpty()) {
+			exit = Math.min(move.nominal, cornerSpeed(move.unit, null));
+		} else {
+			exit = moves.getFirst().entry;
+		}
+		exit = Math.min(exit, reachable(move.entry, move));
+		split(move, move.entry, exit);
+		released = exit;
+	}
+
+	// Break a move into pieces that speed up from entry to its feedrate, cruise, and
+	// slow down to exit
+	private void split(Move move, double entry, double exit) {
+		double a = move.acceleration;
+		double top = move.nominal;
+		double up, down;
+		if (Double.isInfinite(a)) {
+			up = down = 0;
+		} else {
+			up = Math.max(0, (top * top - entry * entry) / (2 * a));
+			down = Math.max(0, (top * top - exit * exit) / (2 * a));
+			if (up + down > move.length) {
+				// We never get up to speed
+				top = Math.sqrt((2 * a * move.length + entry * entry + exit * exit) / 2);
+				top = Math.max(top, Math.max(entry, exit));
+				up = Math.max(0, Math.min(move.length, (top * top - entry * entry) / (2 * a)));
+				down = move.length - up;
+			}
+		}
+
+		List<double[]> spans = new ArrayList<double[]>();
+		ramp(spans, 0, up, entry, top, a);
+		if (move.length - up - down > 0) {
+			spans.add(new double[] { up, move.length - down, top });
+		}
+		ramp(spans, move.length - down, move.length, top, exit, a);
+
+		Point5d from = move.from;
+		for (int i = 0; i < spans.size(); i++) {
+			double[] span = spans.get(i);
+			Point5d to;
+			if (i == spans.size() - 1) {
+				to = move.to;
+			} else {
+				to = new Point5d(move.from);
+				for (int axis = 0; axis < 5; axis++) {
+					to.set(axis, move.from.get(axis) + move.unit[axis] * span[1]);
+				}
+			}
+			pieces.add(new Piece(from, to, Math.min(span[2], move.nominal) * 60.0));
+			from = to;
+		}
+	}
+
+	// Add pieces from start to end along a move, changing speed from v0 to v1, each
+	// going at its average speed
+	private static void ramp(List<double[]> spans, double start, double end, double v0, double v1, double a) {
+		double length = end - start;
+		if (length <= 0) {
+			return;
+		}
+		int count = (int)Math.min(MAX_RAMP_PIECES, Math.max(1, Math.ceil(length / MIN_PIECE_LENGTH)));
+		double v0sq = v0 * v0;
+		double sign = (v1 >= v0) ? 1 : -1;
+		double speed = v0;
+		for (int i = 1; i <= count; i++) {
+			double d = length * i / count;
+			double next = (i == count) ? v1 : Math.sqrt(Math.max(0, v0sq + sign * 2 * a * d));
+			spans.add(new double[] { start + length * (i - 1) / count, start + d, (speed + next) / 2 });
+			speed = next;
+		}
+	}
+}
@@ -24,6 +24,13 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		return "Makerbot4GAlternate";
 	}
 	
+	/**
+	 * queuePoint() here sends relative moves of its own, so it can't go through the planner
+	 */
+	protected boolean canPlanOnHost() {
+		return false;
+	}
+
 	public void reset() {
 		// We should poll the machine for it's state here, but it is more important to have the
 		// fan on than off.
@@ -253,22 +260,26 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 				enableStepperExtruderFan(true);
 			}
 		}
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
-
-		Base.logger.finer("Queued new-style point " + steps + " over "
-					+ Long.toString(us) + " usec., relative " + Integer.toString(relative));
+		if (Base.logger.isLoggable(Level.FINER)) {
+			Base.logger.finer("Queued new-style point " + steps + " over "
+						+ Long.toString(us) + " usec., relative " + Integer.toString(relative));
+		}
 
+		synchronized (motionPacket) {
+			PacketBuilder pb = motionPacket;
+			pb.start(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
 
-		// just add them in now.
-		pb.add32((int) steps.x());
-		pb.add32((int) steps.y());
-		pb.add32((int) steps.z());
-		pb.add32((int) steps.a());
-		pb.add32((int) steps.b());
-		pb.add32((int) us);
-		pb.add8((int) relative);
+			// just add them in now.
+			pb.add32((int) steps.x());
+			pb.add32((int) steps.y());
+			pb.add32((int) steps.z());
+			pb.add32((int) steps.a());
+			pb.add32((int) steps.b());
+			pb.add32((int) us);
+			pb.add8((int) relative);
 
-		runCommand(pb.getPacket());
+			runCommand(pb);
+		}
 	}
 	
 	/**
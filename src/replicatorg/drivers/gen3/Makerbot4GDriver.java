@@ -87,22 +87,25 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 			}
 		}
 
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
-
 		if (Base.logger.isLoggable(Level.FINE)) {
 			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
 					+ Long.toString(micros) + " usec.");
 		}
 
-		// just add them in now.
-		pb.add32((int) steps.x());
-		pb.add32((int) steps.y());
-		pb.add32((int) steps.z());
-		pb.add32((int) steps.a());
-		pb.add32((int) steps.b());
-		pb.add32((int) micros);
+		synchronized (motionPacket) {
+			PacketBuilder pb = motionPacket;
+			pb.start(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
 
-		runCommand(pb.getPacket());
+			// just add them in now.
+			pb.add32((int) steps.x());
+			pb.add32((int) steps.y());
+			pb.add32((int) steps.z());
+			pb.add32((int) steps.a());
+			pb.add32((int) steps.b());
+			pb.add32((int) micros);
+
+			runCommand(pb);
+		}
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -81,4 +81,14 @@ public enum MotherboardCommandCode {
 	int getCode() { return code; }
 	
 	String getInfo() { return info; }
+
+	/// The command with the given id code, or null if there isn't one
+	static MotherboardCommandCode fromCode(int code) {
+		for (MotherboardCommandCode c : values()) {
+			if (c.code == code) {
+				return c;
+			}
+		}
+		return null;
+	}
 }
\ No newline at end of file
@@ -7,16 +7,16 @@ public class PacketBuilder implements PacketConstants {
 
 	/**
 	 * A class for building a new packet to send down the wire to the
-	 * Sanguino3G.
+	 * Sanguino3G. A builder can be used for one packet after another, and
+	 * can build them in a buffer of the caller's, so that sending a packet
+	 * needn't allocate anything.
 	 */
-	byte[] data = new byte[MAX_PACKET_LENGTH];
+	final byte[] data;
 
 	// current end of packet. Bytes 0 and 1 are reserved for start byte
 	// and packet payload length.
 	int idx = 2;
 
-	IButtonCrc crc = new IButtonCrc();
-
 	/**
 	 * Start building a new command packet.
 	 * 
@@ -26,6 +26,25 @@ public class PacketBuilder implements PacketConstants {
 	 *            the command identifier for this packet.
 	 */
 	PacketBuilder(int command) {
+		data = new byte[MAX_PACKET_LENGTH];
+		start(command);
+	}
+
+	/**
+	 * Make a builder that builds its packets in the given buffer, which must
+	 * have room for MAX_PACKET_LENGTH bytes. Call start() before adding to it.
+	 */
+	PacketBuilder(byte[] buffer) {
+		data = buffer;
+	}
+
+	/**
+	 * Start building a new command packet, throwing away the last one.
+	 * 
+	 * @param command
+	 *            the command identifier for this packet.
+	 */
+	void start(int command) {
 		idx = 2;
 		data[0] = START_BYTE;
 		// data[1] = length; // just to avoid confusion
@@ -40,7 +59,6 @@ public class PacketBuilder implements PacketConstants {
 	 */
 	void add8(int v) {
 		data[idx++] = (byte) v;
-		crc.update((byte) v);
 	}
 
 	/**
@@ -83,16 +101,34 @@ public class PacketBuilder implements PacketConstants {
 		return cursor;
 	}
 
+	/**
+	 * Complete the packet in place.
+	 * 
+	 * @return the length of the completed packet, which starts at the
+	 *         beginning of getBuffer().
+	 */
+	int finish() {
+		data[idx] = IButtonCrc.compute(data, 2, idx - 2);
+		data[1] = (byte) (idx - 2); // len does not count packet header
+		return idx + 1;
+	}
+
+	/**
+	 * @return the buffer the packet is built in
+	 */
+	byte[] getBuffer() {
+		return data;
+	}
+
 	/**
 	 * Complete the packet.
 	 * 
 	 * @return a byte array representing the completed packet.
 	 */
 	byte[] getPacket() {
-		data[idx] = crc.getCrc();
-		data[1] = (byte) (idx - 2); // len does not count packet header
-		byte[] rv = new byte[idx + 1];
-		System.arraycopy(data, 0, rv, 0, idx + 1);
+		int length = finish();
+		byte[] rv = new byte[length];
+		System.arraycopy(data, 0, rv, 0, length);
 		return rv;
 	}
 
@@ -30,22 +30,25 @@ public class PacketProcessor implements PacketConstants {
 
 	PacketState packetState = PacketState.START;
 
-	int payloadLength = -1;
+	int payloadLength = 0;
 
 	int payloadIdx = 0;
 
-	byte[] payload;
+	// Every packet's payload is read into the same buffer
+	final byte[] payload = new byte[256];
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	int crc;
 
 	/**
-	 * Reset the packet's state. (The crc is (re-)generated on the length byte
-	 * and thus doesn't need to be reset.(
+	 * Reset the packet's state, to start reading a new packet. (The crc is
+	 * (re-)generated on the length byte and thus doesn't need to be reset.)
 	 */
 	public void reset() {
 		packetState = PacketState.START;
+		payloadLength = 0;
+		payloadIdx = 0;
 	}
 
 	/**
@@ -54,10 +57,39 @@ public class PacketProcessor implements PacketConstants {
 	 * @return A valid PacketResponse object
 	 */
 	public PacketResponse getResponse() {
-		PacketResponse pr = new PacketResponse(payload);
+		byte[] p = new byte[payloadLength];
+		System.arraycopy(payload, 0, p, 0, payloadLength);
+		return new PacketResponse(p);
+	}
+
+	/**
+	 * Copy this packet's payload into an existing PacketResponse, so that
+	 * reading a response needn't allocate anything.
+	 * 
+	 * @return the PacketResponse given
+	 */
+	public PacketResponse getResponse(PacketResponse pr) {
+		pr.set(payload, payloadLength);
 		return pr;
 	}
 
+	/**
+	 * @return the fewest bytes it could take to finish the packet, so that
+	 *         reading this many never reads past its end.
+	 */
+	int bytesNeeded() {
+		switch (packetState) {
+		case START:
+			return 3;
+		case LEN:
+			return 2;
+		case PAYLOAD:
+			return payloadLength - payloadIdx + 1;
+		default:
+			return 1;
+		}
+	}
+
 	/**
 	 * Process the next byte in an incoming packet.
 	 * 
@@ -67,15 +99,43 @@ public class PacketProcessor implements PacketConstants {
 	public boolean processByte(byte b) throws CRCException {
 
 		if (Base.logger.isLoggable(Level.FINER)) {
-			if (b >= 32 && b <= 127)
-				Base.logger.log(Level.FINER,"IN: Processing byte "
-						+ Integer.toHexString((int) b & 0xff) + " (" + (char) b
-						+ ")");
-			else
-				Base.logger.log(Level.FINER,"IN: Processing byte "
-						+ Integer.toHexString((int) b & 0xff));
+			logByte(b);
+		}
+		return step(b);
+	}
+
+	/**
+	 * Process a chunk of an incoming packet.
+	 * 
+	 * @return the number of bytes used, if they completed the packet and it is
+	 *         valid; -1 if the packet needs more bytes.
+	 * @throws CRCException
+	 */
+	public int processBytes(byte[] bytes, int offset, int length) throws CRCException {
+		boolean logging = Base.logger.isLoggable(Level.FINER);
+		for (int i = 0; i < length; i++) {
+			byte b = bytes[offset + i];
+			if (logging) {
+				logByte(b);
+			}
+			if (step(b)) {
+				return i + 1;
+			}
 		}
+		return -1;
+	}
+
+	private void logByte(byte b) {
+		if (b >= 32 && b <= 127)
+			Base.logger.log(Level.FINER,"IN: Processing byte "
+					+ Integer.toHexString((int) b & 0xff) + " (" + (char) b
+					+ ")");
+		else
+			Base.logger.log(Level.FINER,"IN: Processing byte "
+					+ Integer.toHexString((int) b & 0xff));
+	}
 
+	private boolean step(byte b) throws CRCException {
 		switch (packetState) {
 		case START:
 			if (b == START_BYTE) {
@@ -91,8 +151,8 @@ public class PacketProcessor implements PacketConstants {
 			}
 
 			payloadLength = ((int) b) & 0xFF;
-			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
+			payloadIdx = 0;
+			crc = 0;
 			packetState = (payloadLength > 0) ? PacketState.PAYLOAD : PacketState.CRC;
 			break;
 
@@ -100,7 +160,7 @@ public class PacketProcessor implements PacketConstants {
 			// sanity check
 			if (payloadIdx < payloadLength) {
 				payload[payloadIdx++] = b;
-				crc.update(b);
+				crc = IButtonCrc.update(crc, b);
 			}
 			if (payloadIdx >= payloadLength) {
 				packetState = PacketState.CRC;
@@ -114,10 +174,11 @@ public class PacketProcessor implements PacketConstants {
 				Base.logger.log(Level.FINER,"Target CRC: "
 						+ Integer.toHexString((int) targetCrc & 0xff)
 						+ " - expected CRC: "
-						+ Integer.toHexString((int) crc.getCrc() & 0xff));
+						+ Integer.toHexString(crc));
 			}
-			if (crc.getCrc() != targetCrc) {
-				throw new CRCException(crc.getCrc(), targetCrc);
+			packetState = PacketState.START;
+			if ((byte) crc != targetCrc) {
+				throw new CRCException((byte) crc, targetCrc);
 			}
 			return true;
 		}
@@ -68,14 +68,33 @@ public class PacketResponse {
 
 	byte[] payload;
 
+	// How much of payload holds the response
+	int length;
+
 	int readPoint = 1;
 
 	public PacketResponse() {
 		payload = null;
+		length = 0;
 	}
 
 	public PacketResponse(byte[] p) {
 		payload = p;
+		length = p.length;
+	}
+
+	/**
+	 * Replace the response with a copy of length bytes of p. The buffer is
+	 * kept for the next response, so reusing a PacketResponse doesn't
+	 * allocate anything.
+	 */
+	void set(byte[] p, int length) {
+		if (payload == null || payload.length < length) {
+			payload = new byte[Math.max(length, 256)];
+		}
+		System.arraycopy(p, 0, payload, 0, length);
+		this.length = length;
+		readPoint = 1;
 	}
 
 	public boolean isEmpty() {
@@ -96,9 +115,9 @@ public class PacketResponse {
 		if (Base.logger.isLoggable(level)) {
 			Base.logger.log(level,"Packet response code: " + msg);
 			StringBuffer buf = new StringBuffer("Packet payload: ");
-			if (payload.length <= 1) {
+			if (length <= 1) {
 				buf.append("empty");
-			} else for (int i = 1; i < payload.length; i++) {
+			} else for (int i = 1; i < length; i++) {
 				buf.append(Integer.toHexString(payload[i] & 0xff));
 				buf.append(" ");
 			}
@@ -112,6 +131,11 @@ public class PacketResponse {
 	 * @return an array of bytes representing the payload.
 	 */
 	public byte[] getPayload() {
+		if (payload != null && payload.length != length) {
+			byte[] p = new byte[length];
+			System.arraycopy(payload, 0, p, 0, length);
+			return p;
+		}
 		return payload;
 	}
 
@@ -119,7 +143,7 @@ public class PacketResponse {
 	 * Get the next 8-bit value from the packet payload.
 	 */
 	int get8() {
-		if (payload.length > readPoint)
+		if (length > readPoint)
 			return ((int) payload[readPoint++]) & 0xff;
 		else {
 			Base.logger.fine("Error: payload not big enough.");
@@ -149,7 +173,7 @@ public class PacketResponse {
 	}
 
 	public ResponseCode getResponseCode() {
-		if (payload != null && payload.length > 0)
+		if (payload != null && length > 0)
 			return ResponseCode.fromInt(payload[0] & 0xff);
 		else return ResponseCode.GENERIC_ERROR;
 	}
@@ -0,0 +1,142 @@
+package replicatorg.drivers.gen3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what happens to the packets a driver sends, by command code: how many
+ * were sent, how often they had to be retried and why, how often they were held
+ * back because the machine's buffer was full, and how long the machine took to
+ * answer them.
+ *
+ * Round trip times go into a histogram of power-of-two buckets of microseconds,
+ * so recording one is a couple of increments and reading them never stops the
+ * driver. Percentiles are only as good as the buckets: a time is reported as the
+ * top of its bucket, which is never more than twice the real time.
+ */
+public class PacketStatistics {
+
+	/// Bucket i counts round trips of under 2^i microseconds; the last takes everything longer
+	public static final int BUCKETS = 24;
+
+	private static final int CODES = 256;
+
+	// Per command code
+	private final AtomicLongArray sent = new AtomicLongArray(CODES);
+	private final AtomicLongArray retries = new AtomicLongArray(CODES);
+	private final AtomicLongArray timeouts = new AtomicLongArray(CODES);
+	private final AtomicLongArray crcErrors = new AtomicLongArray(CODES);
+	private final AtomicLongArray overflows = new AtomicLongArray(CODES);
+	private final AtomicLongArray holds = new AtomicLongArray(CODES);
+	// CODES rows of BUCKETS
+	private final AtomicLongArray latencies = new AtomicLongArray(CODES * BUCKETS);
+
+	void sent(int code) { sent.incrementAndGet(code & 0xff); }
+	void retried(int code) { retries.incrementAndGet(code & 0xff); }
+	void timedOut(int code) { timeouts.incrementAndGet(code & 0xff); }
+	void badCrc(int code) { crcErrors.incrementAndGet(code & 0xff); }
+	void overflowed(int code) { overflows.incrementAndGet(code & 0xff); }
+	void held(int code) { holds.incrementAndGet(code & 0xff); }
+
+	/**
+	 * Record how long a packet took to be answered.
+	 */
+	void answered(int code, long nanos) {
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		latencies.incrementAndGet((code & 0xff) * BUCKETS + Math.min(bucket, BUCKETS - 1));
+	}
+
+	public long getSent(int code) { return sent.get(code & 0xff); }
+	public long getRetries(int code) { return retries.get(code & 0xff); }
+	public long getTimeouts(int code) { return timeouts.get(code & 0xff); }
+	public long getCrcErrors(int code) { return crcErrors.get(code & 0xff); }
+	public long getOverflows(int code) { return overflows.get(code & 0xff); }
+	public long getHolds(int code) { return holds.get(code & 0xff); }
+
+	/**
+	 * @return the round trip histogram for a command code; bucket i counts round
+	 * trips of under 2^i microseconds.
+	 */
+	public long[] getLatencyHistogram(int code) {
+		long[] histogram = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			histogram[i] = latencies.get((code & 0xff) * BUCKETS + i);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return the round trip time that that fraction of answers to the command came
+	 * within, in microseconds, or 0 if it has never been answered.
+	 */
+	public long getLatencyPercentile(int code, double fraction) {
+		long[] histogram = getLatencyHistogram(code);
+		long total = 0;
+		for (long n : histogram) {
+			total += n;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long wanted = (long)Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram[i];
+			if (seen >= wanted && histogram[i] > 0) {
+				return 1L << i;
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	public void reset() {
+		for (int i = 0; i < CODES; i++) {
+			sent.set(i, 0);
+			retries.set(i, 0);
+			timeouts.set(i, 0);
+			crcErrors.set(i, 0);
+			overflows.set(i, 0);
+			holds.set(i, 0);
+		}
+		for (int i = 0; i < CODES * BUCKETS; i++) {
+			latencies.set(i, 0);
+		}
+	}
+
+	/**
+	 * @return a line for each command code that has been sent, for the log
+	 */
+	public String report() {
+		StringBuffer buf = new StringBuffer();
+		for (int code = 0; code < CODES; code++) {
+			long n = getSent(code);
+			if (n == 0) {
+				continue;
+			}
+			buf.append(nameOf(code));
+			buf.append(": sent ").append(n);
+			buf.append(", retries ").append(getRetries(code));
+			buf.append(", timeouts ").append(getTimeouts(code));
+			buf.append(", bad CRCs ").append(getCrcErrors(code));
+			buf.append(", overflows ").append(getOverflows(code));
+			buf.append(", held ").append(getHolds(code));
+			buf.append(", round trip p50 < ").append(getLatencyPercentile(code, 0.5));
+			buf.append("us, p99 < ").append(getLatencyPercentile(code, 0.99));
+			buf.append("us\n");
+		}
+		return buf.toString();
+	}
+
+	private static String nameOf(int code) {
+		for (MotherboardCommandCode c : MotherboardCommandCode.values()) {
+			if (c.getCode() == code) {
+				return c.name();
+			}
+		}
+		return Integer.toString(code);
+	}
+}
@@ -27,10 +27,12 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
 import java.util.logging.Level;
@@ -38,9 +40,12 @@ import java.util.logging.Level;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
+import replicatorg.app.util.serial.Serial;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
+import replicatorg.drivers.PacketCapture;
 import replicatorg.drivers.PenPlotter;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SDCardCapture;
@@ -102,15 +107,50 @@ class Sanguino3GEEPRPOM implements EEPROMClass {
 }
 
 public class Sanguino3GDriver extends SerialDriver implements
-		OnboardParameters, SDCardCapture, PenPlotter, MultiTool {
+		OnboardParameters, SDCardCapture, PacketCapture, PenPlotter, MultiTool {
 	protected final static int DEFAULT_RETRIES = 5;
 
+	// How many times packets are tried; <retries count="N"/> in the machine's driver settings
+	private int retryCount = DEFAULT_RETRIES;
+
 	Version toolVersion = new Version(0, 0);
 
 	private boolean eepromChecked = false;
         
         protected boolean acceleratedFirmware = false;
 
+	// What we know about the room left in the firmware's command buffer
+	private final CommandBufferTracker bufferTracker = new CommandBufferTracker();
+
+	// Reads every response; only used while holding the serial lock
+	private final PacketProcessor packetProcessor = new PacketProcessor();
+	private final byte[] readBuffer = new byte[PacketBuilder.MAX_PACKET_LENGTH];
+
+	// What has happened to the packets we have sent
+	private final PacketStatistics statistics = new PacketStatistics();
+
+	// The emulated motherboard we are talking to, if we are
+	private EmulatedMotherboard emulator = null;
+
+	// The response to the last command sent on each thread
+	private final ThreadLocal<PacketResponse> commandResponse = new ThreadLocal<PacketResponse>() {
+		@Override
+		protected PacketResponse initialValue() {
+			return new PacketResponse();
+		}
+	};
+
+	// Moves are built here, so that queueing one doesn't allocate a packet.
+	// Lock it while building and sending.
+	protected final PacketBuilder motionPacket = new PacketBuilder(new byte[PacketBuilder.MAX_PACKET_LENGTH]);
+
+	// Host-side acceleration planning; null unless the machine asks for it
+	private LookaheadPlanner planner = null;
+	private int lookaheadWindow = 0;
+	private double lookaheadJerk = 10;
+	// The thread sending pieces from the planner, if any
+	private Thread sendingPlanned = null;
+
 	public Sanguino3GDriver() {
 		super();
 		hasEmergencyStop = true;
@@ -126,6 +166,66 @@ public class Sanguino3GDriver extends SerialDriver implements
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
 
+		// <lookahead window="16" jerk="10"/> turns on acceleration planning on the host,
+		// for firmware that doesn't accelerate by itself
+		Node lookahead = XML.getChildNodeByName(xml, "lookahead");
+		if (lookahead != null) {
+			try {
+				String window = XML.getAttributeValue(lookahead, "window");
+				if (window != null) {
+					lookaheadWindow = Integer.parseInt(window);
+				}
+				String jerk = XML.getAttributeValue(lookahead, "jerk");
+				if (jerk != null) {
+					lookaheadJerk = Double.parseDouble(jerk);
+				}
+			} catch (NumberFormatException e) {
+				Base.logger.warning("Couldn't read the lookahead settings, not planning acceleration: " + e.getMessage());
+				lookaheadWindow = 0;
+			}
+		}
+
+		Node retries = XML.getChildNodeByName(xml, "retries");
+		if (retries != null) {
+			try {
+				String count = XML.getAttributeValue(retries, "count");
+				if (count != null) {
+					retryCount = Math.max(1, Integer.parseInt(count));
+				}
+			} catch (NumberFormatException e) {
+				Base.logger.warning("Couldn't read the retry count, using " + DEFAULT_RETRIES + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Start planning acceleration on the host, if the machine asks for it, the firmware
+	 * doesn't accelerate by itself, and we know how fast the axes can accelerate.
+	 */
+	private void setUpPlanner() {
+		planner = null;
+		if (lookaheadWindow <= 0 || acceleratedFirmware) {
+			return;
+		}
+		if (!canPlanOnHost()) {
+			Base.logger.warning("Lookahead is on, but " + getDriverName() + " sends its own moves; not planning acceleration.");
+			return;
+		}
+		Point5d accelerations = machine.getMaximumAccelerations();
+		if (accelerations.length() == 0) {
+			Base.logger.warning("Lookahead is on, but no axis has an acceleration set; not planning acceleration.");
+			return;
+		}
+		Base.logger.fine("Planning acceleration over " + lookaheadWindow + " moves");
+		planner = new LookaheadPlanner(lookaheadWindow, lookaheadJerk, accelerations);
+	}
+
+	/**
+	 * @return true if moves go through queuePoint() here, where the planner can take them;
+	 * drivers that build their own move packets return false
+	 */
+	protected boolean canPlanOnHost() {
+		return true;
 	}
 
 	public void initialize() {
@@ -166,6 +266,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 				serial.setTimeout(200);
 			}
 			invalidatePosition();
+			setUpPlanner();
 
 			return;
 		} else {
@@ -278,7 +379,15 @@ public class Sanguino3GDriver extends SerialDriver implements
 	 * Sends the command over the serial connection and retrieves a result.
 	 */
 	protected PacketResponse runCommand(byte[] packet) throws RetryException {
-		return runCommand(packet, DEFAULT_RETRIES);
+		return runCommand(packet, retryCount);
+	}
+
+	/**
+	 * Send a command built in place, without copying it out of the builder.
+	 */
+	protected PacketResponse runCommand(PacketBuilder pb) throws RetryException {
+		int length = pb.finish();
+		return runCommand(pb.getBuffer(), 0, length, retryCount);
 	}
 
 	protected PacketResponse runQuery(byte[] packet, int retries) {
@@ -307,8 +416,15 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 	
 	void printDebugData(String title, byte[] data) {
+		printDebugData(title, data, 0, data.length);
+	}
+
+	void printDebugData(String title, byte[] data, int offset, int length) {
+		if (!Base.logger.isLoggable(Level.FINER)) {
+			return;
+		}
 		StringBuffer buf = new StringBuffer(title + ": ");
-		for (int i = 0; i < data.length; i++) {
+		for (int i = offset; i < offset + length; i++) {
 			buf.append(Integer.toHexString((int) data[i] & 0xff));
 			buf.append(" ");
 		}
@@ -334,23 +450,60 @@ public class Sanguino3GDriver extends SerialDriver implements
 	 */
 	protected PacketResponse runCommand(byte[] packet, int retries)
 			throws RetryException {
+		if (packet == null) {
+			Base.logger.severe("Attempt to send empty or too-small packet");
+			return null; // skip empty commands or broken commands
+		}
+		return runCommand(packet, 0, packet.length, retries);
+	}
+
+	/**
+	 * Send the packet that takes up length bytes of the buffer from offset, as
+	 * runCommand(byte[], int) does.
+	 */
+	protected PacketResponse runCommand(byte[] buffer, int offset, int length, int retries)
+			throws RetryException {
 
 		if (retries == 0) {
 			Base.logger.severe("Packet timed out!");
 			return PacketResponse.timeoutResponse();
 		}
-		if (packet == null || packet.length < 4) {
+		if (buffer == null || length < 4) {
 			Base.logger.severe("Attempt to send empty or too-small packet");
 			return null; // skip empty commands or broken commands
 		}
 
-		boolean isCommand = (packet[2] & 0x80) != 0;
+		final int code = buffer[offset + 2] & 0xff;
+		boolean isCommand = (code & 0x80) != 0;
+		
+		// Anything other than a move has to wait for the moves before it
+		if (planner != null && sendingPlanned != Thread.currentThread() && waitsForMoves(buffer[offset + 2])) {
+			if (isCommand) {
+				flushPlanner();
+			} else {
+				// Queries can't be retried, so wait for the moves to go out
+				while (true) {
+					try {
+						flushPlanner();
+						break;
+					} catch (RetryException e) {
+						if (Thread.currentThread().isInterrupted()) {
+							break;
+						}
+					}
+				}
+			}
+		}
 		
 		if (fileCaptureOstream != null) {
 			// capture to file.
 			try {
 				if (isCommand) { // ignore query commands
-					fileCaptureOstream.write(packet, 2, packet.length - 3);
+					if (capturingPackets) {
+						fileCaptureOstream.write(buffer, offset, length);
+					} else {
+						fileCaptureOstream.write(buffer, offset + 2, length - 3);
+					}
 				}
 			} catch (IOException ioe) {
 				// IOE should be very rare and shouldn't have to contaminate
@@ -365,8 +518,22 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if (serial == null)
 			return PacketResponse.timeoutResponse();
 
-		PacketProcessor pp;
-		PacketResponse pr = new PacketResponse();
+		// Hold commands back while the firmware's buffer is full, rather than
+		// sending them just to have them turned away; the tracker counts down what
+		// the last answer said was free, so we only ask once that runs out
+		final int payloadLength = length - 3;
+		if (isCommand && !bufferTracker.hasRoomFor(payloadLength)) {
+			if (queryBufferSpace() && !bufferTracker.hasRoomFor(payloadLength)) {
+				statistics.held(code);
+				bufferTracker.backOff();
+				throw new RetryException();
+			}
+		}
+
+		// Commands are answered in a response that is reused; callers only
+		// ever look at those straight away. Queries get one of their own.
+		PacketResponse pr = isCommand ? commandResponse.get() : new PacketResponse();
+		boolean overflowed = false;
 
 		assert (serial != null);
 
@@ -385,84 +552,208 @@ public class Sanguino3GDriver extends SerialDriver implements
 				}
 				// Reestablish interrupt
 				Thread.currentThread().interrupt();
-				return pr;
+				return new PacketResponse();
 			}
 
-			pp = new PacketProcessor();
-			
-			if(packet == null) {
-				Base.logger.severe("null packet in runCommand");
-				return PacketResponse.timeoutResponse();
-			}
-			
 			// This can actually happen during shutdown.
 			if (serial == null){
 				Base.logger.severe("null serial in runCommand");
 				return PacketResponse.timeoutResponse();
 			}
-			// Do not allow a stop or reset command to interrupt mid-packet!
-			serial.write(packet);
-			
-			printDebugData("OUT", packet);
 
-			// Read entire response packet
-			boolean completed = false;
-			while (!completed) {
-				// Dump out if interrupted
-				int b = serial.read();
-				if (b == -1) {
-					if (Thread.currentThread().isInterrupted()) {
+			PacketProcessor pp = packetProcessor;
+
+			// Try until we get an answer, or run out of retries. A failed attempt
+			// moves retries one closer to zero, whichever side of it it started.
+			while (true) {
+				pp.reset();
+
+				// Do not allow a stop or reset command to interrupt mid-packet!
+				serial.write(buffer, offset, length);
+				long sentAt = System.nanoTime();
+				statistics.sent(code);
+
+				printDebugData("OUT", buffer, offset, length);
+
+				Failure failure = readResponse(pp);
+				if (failure == null) {
+					statistics.answered(code, System.nanoTime() - sentAt);
+					pp.getResponse(pr);
+					if (pr.isOK() || retries <= 1 || pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW
+							|| pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL) {
 						break;
 					}
+					// Other random error
+					printDebugData("Unknown error sending, retry", buffer, offset, length);
+					retries--;
+					statistics.retried(code);
+					continue;
+				}
+
+				if (failure == Failure.INTERRUPTED) {
+					// Make what we can of whatever arrived
+					pp.getResponse(pr);
+					break;
+				}
+
+				if (failure == Failure.TIMEOUT) {
+					statistics.timedOut(code);
 					if (retries > 1) {
-                                            
-                                            // accelerated Firmware has a low timeout period and times out frequently
-                                            // dial down timeout logging because there will be a LOT of it
-                                            if(acceleratedFirmware){
-						Base.logger.finest("Read timed out; retries remaining: "
-										+ Integer.toString(retries));
-                                            }
-                                            else{
-                                                Base.logger.severe("Read timed out; retries remaining: "
-										+ Integer.toString(retries));
-                                            }
+						// accelerated Firmware has a low timeout period and times out frequently
+						// dial down timeout logging because there will be a LOT of it
+						Level level = acceleratedFirmware ? Level.FINEST : Level.SEVERE;
+						if (Base.logger.isLoggable(level)) {
+							Base.logger.log(level, "Read timed out; retries remaining: " + retries);
+						}
 					}
-					if (retries == -1) {
-						// silently return a timeout response
-						return PacketResponse.timeoutResponse();
-					} else if (retries < 0) {
-						return runCommand(packet, retries + 1);
-					}
-					return runCommand(packet, retries - 1);
+				} else {
+					statistics.badCrc(code);
+					Base.logger.severe("Bad CRC received; retries remaining: " + retries);
 				}
-				try {
-					completed = pp.processByte((byte) b);
-				} catch (CRCException e) {
-					Base.logger.severe("Bad CRC received; retries remaining: "
-							+ Integer.toString(retries));
-					return runCommand(packet, retries - 1);
+
+				if (retries == -1) {
+					// silently return a timeout response
+					return PacketResponse.timeoutResponse();
 				}
+				retries += (retries < 0) ? 1 : -1;
+				if (retries == 0) {
+					Base.logger.severe("Packet timed out!");
+					return PacketResponse.timeoutResponse();
+				}
+				statistics.retried(code);
 			}
-			pr = pp.getResponse();
 
 			if (pr.isOK()) {
 				// okay!
+				if (isCommand) {
+					bufferTracker.sent(payloadLength);
+				}
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
-				throw new RetryException();
+				bufferTracker.overflowed();
+				statistics.overflowed(code);
+				overflowed = true;
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL){
 				Base.getEditor().handleStop(); ///  horrible horrible 
 				Base.logger.severe("Build Canceled by Printer");
-			} else {
-				// Other random error
-				printDebugData("Unknown error sending, retry", packet);
-				if (retries > 1) {
-					return runCommand(packet, retries - 1);
-				}
 			}
 		}
+		if (overflowed) {
+			// Give the buffer a chance to drain before the command is sent again
+			Base.logger.finer("Buffer full, " + statistics.getOverflows(code) + " overflows of this command so far");
+			bufferTracker.backOff();
+			throw new RetryException();
+		}
 		return pr;
 	}
 
+	// Why an attempt to read a response came to nothing
+	private enum Failure {
+		TIMEOUT,
+		BAD_CRC,
+		INTERRUPTED
+	}
+
+	/**
+	 * Read a whole response packet into the given processor. Call with the
+	 * serial lock held.
+	 * @return null if we got one, or why we didn't
+	 */
+	private Failure readResponse(PacketProcessor pp) {
+		while (true) {
+			// Take as much as has arrived, but nothing past the end of the packet
+			int count = serial.read(readBuffer, 0, pp.bytesNeeded());
+			if (count == -1) {
+				// Dump out if interrupted
+				if (Thread.currentThread().isInterrupted()) {
+					return Failure.INTERRUPTED;
+				}
+				return Failure.TIMEOUT;
+			}
+			try {
+				if (pp.processBytes(readBuffer, 0, count) != -1) {
+					return null;
+				}
+			} catch (CRCException e) {
+				return Failure.BAD_CRC;
+			}
+		}
+	}
+
+	// Commands, and queries that depend on where the moves have got to
+	private static boolean waitsForMoves(byte commandCode) {
+		int code = commandCode & 0xff;
+		return (code & 0x80) != 0 ||
+			code == MotherboardCommandCode.IS_FINISHED.getCode() ||
+			code == MotherboardCommandCode.GET_POSITION.getCode() ||
+			code == MotherboardCommandCode.GET_POSITION_EXT.getCode();
+	}
+
+	/**
+	 * Send the pieces of moves that the planner has finished with.
+	 * @throws RetryException if the machine couldn't take them all yet; the rest are
+	 * sent next time.
+	 */
+	private void sendPlanned() throws RetryException {
+		synchronized (planner) {
+			sendingPlanned = Thread.currentThread();
+			try {
+				LinkedList<LookaheadPlanner.Piece> pieces = planner.getPieces();
+				while (!pieces.isEmpty()) {
+					LookaheadPlanner.Piece piece = pieces.getFirst();
+					if (getLongestLength(getAbsDeltaSteps(piece.from, piece.to)) > 0.0) {
+						long micros = convertFeedrateToMicros(piece.from, piece.to, piece.feedrate);
+						queueAbsolutePoint(machine.mmToSteps(piece.to), micros);
+					}
+					pieces.removeFirst();
+				}
+			} finally {
+				sendingPlanned = null;
+			}
+		}
+	}
+
+	/**
+	 * Bring the planned moves to a stop and send all of them.
+	 */
+	private void flushPlanner() throws RetryException {
+		synchronized (planner) {
+			planner.flush();
+			sendPlanned();
+		}
+	}
+
+	/**
+	 * Ask the firmware how much room is left in its command buffer.
+	 * @return false if it didn't answer, in which case we'll have to send commands
+	 * without knowing whether they fit, and won't ask again for a while.
+	 */
+	private boolean queryBufferSpace() {
+		PacketBuilder pb = new PacketBuilder(
+				MotherboardCommandCode.GET_BUFFER_SIZE.getCode());
+		PacketResponse pr = runQuery(pb.getPacket(), 1);
+		if (pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED) {
+			Base.logger.fine("Firmware can't report free buffer space");
+			bufferTracker.cannotQuery();
+			return false;
+		}
+		if (!pr.isOK()) {
+			Base.logger.fine("No answer about free buffer space (" + pr.getResponseCode()
+					+ "), not asking again for " + CommandBufferTracker.QUERY_RETRY_COMMANDS + " commands");
+			bufferTracker.queryFailed();
+			return false;
+		}
+		bufferTracker.setFree(pr.get32() & 0xffffffffL);
+		return true;
+	}
+
+	/**
+	 * @return counts of retries, timeouts, bad CRCs and overflows, and round
+	 * trip times, for each command code sent since the driver was created
+	 */
+	public PacketStatistics getPacketStatistics() {
+		return statistics;
+	}
+
 	static boolean isNotifiedFinishedFeature = false;
 
 	public boolean isFinished() {
@@ -513,8 +804,34 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return finished;
 	}
 
+	/**
+	 * Talk to an emulated motherboard of the version we prefer.
+	 */
+	@Override
+	protected Serial openEmulator(String portName) {
+		if (emulator != null) {
+			emulator.stop();
+		}
+		emulator = new EmulatedMotherboard(getPreferredVersion());
+		return emulator.connect(portName);
+	}
+
+	/**
+	 * @return the emulated motherboard we are connected to, or null if we aren't
+	 */
+	public EmulatedMotherboard getEmulator() {
+		return emulator;
+	}
+
 	public void dispose() {
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.fine("Packet statistics:\n" + statistics.report());
+		}
 		super.dispose();
+		if (emulator != null) {
+			emulator.stop();
+			emulator = null;
+		}
 	}
 
 	/***************************************************************************
@@ -665,6 +982,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 		PacketBuilder pb = new PacketBuilder(
 				MotherboardCommandCode.INIT.getCode());
 		runQuery(pb.getPacket());
+		bufferTracker.reset();
 	}
 
 	/***************************************************************************
@@ -684,12 +1002,28 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		// okay, we need at least one step.
 		if (masterSteps > 0.0) {
-			// where we going?
-			Point5d steps = machine.mmToSteps(p);
-
 			Point5d delta = getDelta(p);
 			double feedrate = getSafeFeedrate(delta);
 
+			if (planner != null) {
+				// Finish sending the last move before taking this one, so that
+				// a retry doesn't add it twice
+				sendPlanned();
+				synchronized (planner) {
+					planner.add(getCurrentPosition(false), p, feedrate);
+				}
+				super.queuePoint(p);
+				try {
+					sendPlanned();
+				} catch (RetryException e) {
+					// The rest go out with the next command
+				}
+				return;
+			}
+
+			// where we going?
+			Point5d steps = machine.mmToSteps(p);
+
 			// how fast are we doing it?
 			long micros = convertFeedrateToMicros(getCurrentPosition(false), p,	feedrate);
 
@@ -735,19 +1069,23 @@ public class Sanguino3GDriver extends SerialDriver implements
 	protected void queueAbsolutePoint(Point5d steps, long micros)
 			throws RetryException {
 		
-		PacketBuilder pb = new PacketBuilder(
-				MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.fine("Queued absolute point " + steps + " at "
+					+ Long.toString(micros) + " usec.");
+		}
 
-		Base.logger.fine("Queued absolute point " + steps + " at "
-				+ Long.toString(micros) + " usec.");
+		synchronized (motionPacket) {
+			PacketBuilder pb = motionPacket;
+			pb.start(MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
 
-		// just add them in now.
-		pb.add32((int) steps.x());
-		pb.add32((int) steps.y());
-		pb.add32((int) steps.z());
-		pb.add32((int) micros);
+			// just add them in now.
+			pb.add32((int) steps.x());
+			pb.add32((int) steps.y());
+			pb.add32((int) steps.z());
+			pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+			runCommand(pb);
+		}
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -1875,6 +2213,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 			pb = new PacketBuilder(MotherboardCommandCode.ABORT.getCode());
 		}
 		Thread.interrupted(); // Clear interrupted status
+		if (planner != null) {
+			synchronized (planner) {
+				planner.clear();
+			}
+		}
 		runQuery(pb.getPacket());
 		// invalidate position, force reconciliation.
 		invalidatePosition();
@@ -2494,17 +2837,50 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return ResponseCode.FAIL_GENERIC;
 	}
 
-	FileOutputStream fileCaptureOstream = null;
+	OutputStream fileCaptureOstream = null;
+	// True if whole packets are being captured, rather than just their payloads
+	private boolean capturingPackets = false;
 
 	public void beginFileCapture(String path) throws FileNotFoundException {
 		fileCaptureOstream = new FileOutputStream(new File(path));
+		capturingPackets = false;
 	}
 
 	public void endFileCapture() throws IOException {
+		flushCapturedMoves();
 		fileCaptureOstream.close();
 		fileCaptureOstream = null;
 	}
 
+	public void beginPacketCapture(OutputStream out) {
+		fileCaptureOstream = out;
+		capturingPackets = true;
+	}
+
+	public void endPacketCapture() {
+		flushCapturedMoves();
+		fileCaptureOstream = null;
+		capturingPackets = false;
+	}
+
+	// Moves the planner is still holding on to belong in the capture too
+	private void flushCapturedMoves() {
+		if (planner != null) {
+			try {
+				flushPlanner();
+			} catch (RetryException e) {
+				// Captures always have room
+			}
+		}
+	}
+
+	public int sendCapturedPacket(byte[] buffer, int offset) throws RetryException {
+		// start byte, length, payload, crc
+		int length = (buffer[offset + 1] & 0xff) + 3;
+		runCommand(buffer, offset, length, retryCount);
+		return length;
+	}
+
 	public ResponseCode beginCapture(String filename) {
 		PacketBuilder pb = new PacketBuilder(
 				MotherboardCommandCode.CAPTURE_TO_FILE.getCode());
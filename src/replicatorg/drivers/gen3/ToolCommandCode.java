@@ -44,4 +44,14 @@ public enum ToolCommandCode {
 		this.code = code;
 	}
 	int getCode() { return code; }
+
+	/// The command with the given id code, or null if there isn't one
+	static ToolCommandCode fromCode(int code) {
+		for (ToolCommandCode c : values()) {
+			if (c.code == code) {
+				return c;
+			}
+		}
+		return null;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,571 @@
+package replicatorg.drivers.reprap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import replicatorg.app.util.serial.LoopbackPipe;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.Version;
+
+/**
+ * An emulated Marlin/Sprinter style firmware, for trying out and timing the text
+ * protocol drivers without a machine. It talks over a pipe the way Marlin does:
+ * lines carry a line number and a checksum, a line that is out of order or fails its
+ * checksum is answered with "Resend:" and everything after it is dropped, and each
+ * command is answered with "ok" once it has been taken on.
+ *
+ * Like the real thing, bytes from the host wait in a small receive buffer, and any
+ * that arrive while it is full are lost. Lines move from there into a command buffer
+ * a few lines long, and moves from there into a planner; while the planner is full the
+ * firmware reads nothing, so a host that doesn't count what it has sent will overrun
+ * the receive buffer. Moves take as long as their length and feedrate say, and heaters
+ * reach their set temperatures at once.
+ *
+ * To make the link less perfect, the emulator can wait before each answer, and can
+ * garble some of the lines it receives.
+ */
+public class EmulatedMarlin implements Runnable {
+
+	/// The size of the receive buffer on an ATmega, in bytes
+	public static final int DEFAULT_RX_BUFFER_SIZE = 128;
+	/// How many lines Marlin holds between reading and carrying them out (BUFSIZE)
+	public static final int DEFAULT_COMMAND_BUFFER_SIZE = 4;
+	/// How many moves Marlin plans ahead (BLOCK_BUFFER_SIZE)
+	public static final int DEFAULT_PLANNER_SIZE = 16;
+
+	private static final double AMBIENT = 20;
+
+	private final LoopbackPipe toMachine = new LoopbackPipe();
+	private final LoopbackPipe fromMachine = new LoopbackPipe();
+	private final InputStream in = toMachine.getInputStream();
+	private final OutputStream out = fromMachine.getOutputStream();
+
+	private final Version version;
+	private volatile long latencyMicros = 0;
+	private volatile double checksumErrorRate = 0;
+	private final Random random = new Random(0);
+
+	// The receive buffer; guarded by this
+	private byte[] rx = new byte[DEFAULT_RX_BUFFER_SIZE];
+	private int rxHead = 0;
+	private int rxCount = 0;
+	private volatile boolean closed = false;
+	private boolean resetting = false;
+	// how many answers are to go missing on the way to the host; guarded by this
+	private int answersToLose = 0;
+
+	// Everything below belongs to the firmware's thread
+	private int commandBufferSize = DEFAULT_COMMAND_BUFFER_SIZE;
+	private int plannerSize = DEFAULT_PLANNER_SIZE;
+	private final LinkedList<String> commands = new LinkedList<String>();
+	// when each planned move will be done, in System.nanoTime()
+	private final LinkedList<Long> planner = new LinkedList<Long>();
+	private long lastDoneAt = 0;
+	private long lastLineNumber = 0;
+	// X, Y, Z, E, and the feedrate in mm/min
+	private final double[] position = new double[4];
+	private double feedrate = 1500;
+	private boolean relative = false;
+	private boolean relativeE = false;
+	private double hotendTarget = 0;
+	private double bedTarget = 0;
+
+	private final DecimalFormat twoPlaces = new DecimalFormat("0.00", new DecimalFormatSymbols(Locale.US));
+	private final DecimalFormat onePlace = new DecimalFormat("0.0", new DecimalFormatSymbols(Locale.US));
+
+	private volatile long lines = 0;
+	private volatile long resends = 0;
+	private volatile long checksumErrors = 0;
+	private volatile long rxOverflows = 0;
+
+	private Thread thread = null;
+
+	/**
+	 * @param version the protocol version to report to M115, e.g. 0.9
+	 */
+	public EmulatedMarlin(Version version) {
+		this.version = version;
+	}
+
+	/**
+	 * Start the emulator, and connect to it.
+	 */
+	public synchronized Serial connect(String name) {
+		if (thread == null) {
+			thread = new Thread(this, "Emulated firmware");
+			thread.setDaemon(true);
+			thread.start();
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					receive();
+				}
+			}, "Emulated firmware receiver");
+			reader.setDaemon(true);
+			reader.start();
+		}
+		return new Serial(name, fromMachine.getInputStream(), toMachine.getOutputStream());
+	}
+
+	/**
+	 * Stop the emulator; the connection to it closes.
+	 */
+	public synchronized void stop() {
+		toMachine.close();
+		fromMachine.close();
+		closed = true;
+		notifyAll();
+		thread = null;
+	}
+
+	/**
+	 * Restart the firmware, as a reset button or a brown-out would: everything it
+	 * holds is dropped, and it says "start".
+	 */
+	public synchronized void reset() {
+		resetting = true;
+		rxHead = rxCount = 0;
+		notifyAll();
+	}
+
+	/// Set the size of the receive buffer, in bytes; whatever is in it is dropped
+	public synchronized void setRxBufferSize(int bytes) {
+		rx = new byte[bytes];
+		rxHead = rxCount = 0;
+	}
+	/// Set how many lines are held between reading and carrying them out; before connecting
+	public void setCommandBufferSize(int lines) { commandBufferSize = lines; }
+	/// Set how many moves are planned ahead; before connecting
+	public void setPlannerSize(int moves) { plannerSize = moves; }
+	/// Wait this long before each answer
+	public void setLatency(long micros) { latencyMicros = micros; }
+	/// Garble this fraction of the lines received, between 0 and 1
+	public void setChecksumErrorRate(double rate) { checksumErrorRate = rate; }
+	/// Lose the answers to the next so many commands, as noise on the way back would
+	public synchronized void loseAnswers(int count) { answersToLose += count; }
+
+	/// @return how many lines have been accepted
+	public long getLineCount() { return lines; }
+	/// @return how many times a line has been asked for again
+	public long getResendCount() { return resends; }
+	/// @return how many lines have been garbled on purpose
+	public long getChecksumErrorCount() { return checksumErrors; }
+	/// @return how many bytes have been lost because the receive buffer was full
+	public long getRxOverflowCount() { return rxOverflows; }
+
+	// Move bytes from the host into the receive buffer, dropping what doesn't fit
+	private void receive() {
+		byte[] chunk = new byte[256];
+		try {
+			while (true) {
+				int count = in.read(chunk, 0, chunk.length);
+				if (count == -1) {
+					break;
+				}
+				synchronized (this) {
+					for (int i = 0; i < count; i++) {
+						if (rxCount == rx.length) {
+							rxOverflows += count - i;
+							break;
+						}
+						rx[(rxHead + rxCount) % rx.length] = chunk[i];
+						rxCount++;
+					}
+					notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			// The connection has been closed
+		}
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				if (!readCommands()) {
+					break;
+				}
+				String answer = execute(commands.removeFirst());
+				if (!loseAnswer()) {
+					send(answer);
+				}
+			}
+		} catch (IOException e) {
+			// The connection has been closed
+		}
+	}
+
+	/**
+	 * Read lines into the command buffer while there is room, as Marlin's get_command()
+	 * does, waiting until there is at least one.
+	 * @return false if the emulator has been stopped
+	 */
+	private boolean readCommands() throws IOException {
+		while (true) {
+			while (commands.size() < commandBufferSize) {
+				String line = takeLine();
+				if (line == null) {
+					break;
+				}
+				check(line);
+			}
+			if (!commands.isEmpty()) {
+				return true;
+			}
+			synchronized (this) {
+				while (!closed && !resetting && !hasLine()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+				if (closed) {
+					return false;
+				}
+			}
+			if (takeReset()) {
+				restart();
+			}
+		}
+	}
+
+	private synchronized boolean loseAnswer() {
+		if (answersToLose == 0) {
+			return false;
+		}
+		answersToLose--;
+		return true;
+	}
+
+	private synchronized boolean takeReset() {
+		boolean r = resetting;
+		resetting = false;
+		return r;
+	}
+
+	// Come up again after a reset
+	private void restart() throws IOException {
+		commands.clear();
+		planner.clear();
+		lastDoneAt = 0;
+		lastLineNumber = 0;
+		hotendTarget = bedTarget = 0;
+		relative = relativeE = false;
+		send("start");
+	}
+
+	private boolean hasLine() {
+		for (int i = 0; i < rxCount; i++) {
+			byte b = rx[(rxHead + i) % rx.length];
+			if (b == '\n' || b == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the next whole line in the receive buffer, maybe garbled, or null if
+	 * there isn't one
+	 */
+	private synchronized String takeLine() {
+		if (!hasLine()) {
+			return null;
+		}
+		StringBuffer line = new StringBuffer();
+		while (true) {
+			byte b = rx[rxHead];
+			rxHead = (rxHead + 1) % rx.length;
+			rxCount--;
+			if (b == '\n' || b == '\r') {
+				break;
+			}
+			line.append((char)b);
+		}
+		int star = line.indexOf("*");
+		if (star > 0 && checksumErrorRate > 0 && random.nextDouble() < checksumErrorRate) {
+			checksumErrors++;
+			int i = random.nextInt(star);
+			line.setCharAt(i, (char)(line.charAt(i) ^ 0x01));
+		}
+		return line.toString();
+	}
+
+	private synchronized void flushRx() {
+		rxHead = rxCount = 0;
+	}
+
+	/**
+	 * Check a line's number and checksum, and put what it says in the command buffer;
+	 * or if it fails, drop everything after it and ask for it again.
+	 */
+	private void check(String line) throws IOException {
+		int comment = line.indexOf(';');
+		if (comment >= 0) {
+			line = line.substring(0, comment);
+		}
+		line = line.trim();
+		if (line.length() == 0) {
+			return;
+		}
+		int star = line.indexOf('*');
+		if (line.charAt(0) == 'N') {
+			int space = 1;
+			while (space < line.length() && line.charAt(space) != ' ') {
+				space++;
+			}
+			long n;
+			try {
+				n = Long.parseLong(line.substring(1, space));
+			} catch (NumberFormatException e) {
+				requestResend("Line Number is not Last Line Number+1");
+				return;
+			}
+			if (n != lastLineNumber + 1 && line.indexOf("M110") < 0) {
+				requestResend("Line Number is not Last Line Number+1");
+				return;
+			}
+			if (star < 0) {
+				requestResend("No Checksum with line number");
+				return;
+			}
+			int checksum = 0;
+			for (int i = 0; i < star; i++) {
+				checksum ^= line.charAt(i);
+			}
+			int sent;
+			try {
+				sent = Integer.parseInt(line.substring(star + 1).trim());
+			} catch (NumberFormatException e) {
+				sent = -1;
+			}
+			if (sent != (checksum & 0xff)) {
+				requestResend("checksum mismatch");
+				return;
+			}
+			lastLineNumber = n;
+		} else if (star >= 0) {
+			requestResend("No Line Number with checksum");
+			return;
+		}
+		lines++;
+		commands.add(line.toUpperCase());
+	}
+
+	private void requestResend(String error) throws IOException {
+		flushRx();
+		resends++;
+		send("Error:" + error + ", Last Line: " + lastLineNumber);
+		send("Resend: " + (lastLineNumber + 1));
+		send("ok");
+	}
+
+	/**
+	 * Carry out a command, waiting for room in the planner if it moves.
+	 * @return the answer to it
+	 */
+	private String execute(String line) throws IOException {
+		// the command, without its line number and checksum
+		String command = line;
+		if (command.charAt(0) == 'N') {
+			int end = command.indexOf('*');
+			if (end < 0) {
+				end = command.length();
+			}
+			int begin = command.indexOf(' ');
+			if (begin < 0 || begin > end) {
+				begin = end;
+			}
+			command = command.substring(begin, end).trim();
+			if (command.length() == 0) {
+				return "ok";
+			}
+		}
+		char letter = command.charAt(0);
+		int code = (int)value(command, (char)0, -1);
+		if (letter == 'G') {
+			switch (code) {
+			case 0:
+			case 1:
+				move(command);
+				break;
+			case 4:
+				synchronize();
+				long millis = (long)(value(command, 'P', 0) + value(command, 'S', 0) * 1000);
+				sleepUntil(System.nanoTime() + millis * 1000000L);
+				break;
+			case 28:
+			{
+				synchronize();
+				// home the axes named, or all of them if none are
+				boolean all = true;
+				for (int i = 0; i < 3; i++) {
+					all &= command.indexOf("XYZ".charAt(i)) < 0;
+				}
+				for (int i = 0; i < 3; i++) {
+					if (all || command.indexOf("XYZ".charAt(i)) >= 0) {
+						position[i] = 0;
+					}
+				}
+				break;
+			}
+			case 90:
+				relative = relativeE = false;
+				break;
+			case 91:
+				relative = relativeE = true;
+				break;
+			case 92:
+				for (int i = 0; i < 4; i++) {
+					position[i] = value(command, "XYZE".charAt(i), position[i]);
+				}
+				break;
+			default:
+				break;
+			}
+		} else if (letter == 'M') {
+			switch (code) {
+			case 82:
+				relativeE = false;
+				break;
+			case 83:
+				relativeE = true;
+				break;
+			case 104:
+				hotendTarget = value(command, 'S', hotendTarget);
+				break;
+			case 105:
+				return "ok " + temperatures();
+			case 109:
+				hotendTarget = value(command, 'S', hotendTarget);
+				send("T:" + onePlace.format(temperature(hotendTarget)) + " E:0 W:?");
+				break;
+			case 140:
+				bedTarget = value(command, 'S', bedTarget);
+				break;
+			case 190:
+				bedTarget = value(command, 'S', bedTarget);
+				send(temperatures());
+				break;
+			case 110:
+				// the line number was taken when the line was checked
+				break;
+			case 114:
+				send("X:" + twoPlaces.format(position[0]) + " Y:" + twoPlaces.format(position[1]) +
+						" Z:" + twoPlaces.format(position[2]) + " E:" + twoPlaces.format(position[3]));
+				break;
+			case 115:
+				send("FIRMWARE_NAME:Marlin V1; Sprinter/grbl mashup for gen6" +
+						" FIRMWARE_URL:https://github.com/ErikZalm/Marlin/" +
+						" PROTOCOL_VERSION:" + version.getMajor() + "." + version.getMinor() +
+						" MACHINE_TYPE:Ultimaker EXTRUDER_COUNT:1");
+				break;
+			case 400:
+				synchronize();
+				break;
+			default:
+				break;
+			}
+		} else if (letter != 'T') {
+			send("echo:Unknown command: \"" + line + "\"");
+		}
+		return "ok";
+	}
+
+	// Plan a move, waiting for room in the planner
+	private void move(String command) {
+		feedrate = value(command, 'F', feedrate);
+		double squares = 0;
+		for (int i = 0; i < 4; i++) {
+			double target = value(command, "XYZE".charAt(i), Double.NaN);
+			if (Double.isNaN(target)) {
+				continue;
+			}
+			boolean rel = (i == 3) ? relativeE : relative;
+			double distance = rel ? target : target - position[i];
+			position[i] += distance;
+			if (i < 3) {
+				squares += distance * distance;
+			} else if (squares == 0) {
+				// an extrusion without moving
+				squares = distance * distance;
+			}
+		}
+		long micros = (feedrate > 0) ? (long)(Math.sqrt(squares) * 60000000 / feedrate) : 0;
+
+		long now = System.nanoTime();
+		while (!planner.isEmpty() && planner.getFirst() - now <= 0) {
+			planner.removeFirst();
+		}
+		if (planner.size() >= plannerSize) {
+			sleepUntil(planner.removeFirst());
+			now = System.nanoTime();
+		}
+		lastDoneAt = Math.max(now, lastDoneAt) + micros * 1000;
+		planner.add(lastDoneAt);
+	}
+
+	// Wait for every planned move to be done
+	private void synchronize() {
+		sleepUntil(lastDoneAt);
+		planner.clear();
+	}
+
+	private void sleepUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0 && !closed) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	private String temperatures() {
+		return "T:" + onePlace.format(temperature(hotendTarget)) + " /" + onePlace.format(hotendTarget) +
+				" B:" + onePlace.format(temperature(bedTarget)) + " /" + onePlace.format(bedTarget) + " @:0";
+	}
+
+	private static double temperature(double target) {
+		return (target > 0) ? target : AMBIENT;
+	}
+
+	/**
+	 * @return the number after the given letter in a command, or the number after the
+	 * command letter if letter is 0, or otherwise if it isn't there
+	 */
+	private static double value(String command, char letter, double otherwise) {
+		int i = (letter == 0) ? 0 : command.indexOf(letter, 1);
+		if (i < 0) {
+			return otherwise;
+		}
+		int end = i + 1;
+		while (end < command.length() && "+-.0123456789".indexOf(command.charAt(end)) >= 0) {
+			end++;
+		}
+		try {
+			return Double.parseDouble(command.substring(i + 1, end));
+		} catch (NumberFormatException e) {
+			return otherwise;
+		}
+	}
+
+	// Send a line to the host, after the latency
+	private void send(String line) throws IOException {
+		long latency = latencyMicros;
+		if (latency > 0) {
+			LockSupport.parkNanos(latency * 1000);
+		}
+		byte[] bytes = (line + "\n").getBytes("US-ASCII");
+		out.write(bytes, 0, bytes.length);
+		out.flush();
+	}
+}
@@ -0,0 +1,177 @@
+package replicatorg.drivers.reprap;
+
+/**
+ * Turns a line of G-code into the bytes a RepRap firmware is sent:
+ * "N<line number> <command> *<checksum>\n", or just "<command>\n" for firmwares that
+ * don't take checksums. Comments are left out, and the line number, the command and
+ * the checksum are written straight into a buffer that is kept from line to line, so
+ * encoding a line makes no Strings and, once the buffer is big enough, no garbage.
+ *
+ * A comment runs from a ';' to the end of the line, or from a '(' to the next ')'.
+ *
+ * An encoder belongs to one thread at a time; the bytes it holds are good until it
+ * encodes the next line.
+ */
+class LineEncoder {
+	// "N", a line number, " ", " *", a checksum and "\n" take no more than this
+	private static final int OVERHEAD = 20;
+
+	private byte[] buffer = new byte[128];
+	private int length = 0;
+
+	/**
+	 * Encode a line with a line number and a checksum.
+	 * @return the length of the encoded line, in bytes
+	 */
+	int encode(CharSequence line, int lineNumber) {
+		length = 0;
+		reserve(line.length() + OVERHEAD);
+		put('N');
+		putNumber(lineNumber);
+		put(' ');
+		putCommand(line);
+		// the checksum covers everything before the '*', the space before it included
+		put(' ');
+		int checksum = 0;
+		for (int i = 0; i < length; i++) {
+			checksum ^= buffer[i];
+		}
+		put('*');
+		putNumber(checksum & 0xff);
+		put('\n');
+		return length;
+	}
+
+	/**
+	 * Encode a line as it is, without a line number or a checksum.
+	 * @return the length of the encoded line, in bytes
+	 */
+	int encode(CharSequence line) {
+		length = 0;
+		reserve(line.length() + 1);
+		putCommand(line);
+		put('\n');
+		return length;
+	}
+
+	/// @return the encoded line; only the first getLength() bytes are part of it
+	byte[] getBuffer() { return buffer; }
+	/// @return the length of the encoded line, in bytes, the newline included
+	int getLength() { return length; }
+
+	/**
+	 * @return the encoded line without its newline; for logging
+	 */
+	public String toString() {
+		char[] chars = new char[Math.max(length - 1, 0)];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char)buffer[i];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return the line without its comments and without the whitespace around it; the
+	 * line itself if there is nothing to leave out
+	 */
+	static String stripComments(String line) {
+		int start = 0;
+		int end = line.length();
+		while (start < end && line.charAt(start) <= ' ') {
+			start++;
+		}
+		int i = start;
+		while (i < end && commentEnd(line, i) == -1) {
+			i++;
+		}
+		if (i == end) {
+			// no comments; at most whitespace to trim
+			while (end > start && line.charAt(end - 1) <= ' ') {
+				end--;
+			}
+			return (start == 0 && end == line.length()) ? line : line.substring(start, end);
+		}
+		StringBuilder stripped = new StringBuilder(end - start);
+		for (i = start; i < end; i++) {
+			int skip = commentEnd(line, i);
+			if (skip == -1) {
+				stripped.append(line.charAt(i));
+			} else {
+				i = skip - 1;
+			}
+		}
+		int trimmed = stripped.length();
+		while (trimmed > 0 && stripped.charAt(trimmed - 1) <= ' ') {
+			trimmed--;
+		}
+		stripped.setLength(trimmed);
+		return stripped.toString();
+	}
+
+	/**
+	 * @return the index just after the comment that starts at i, or -1 if none does
+	 */
+	private static int commentEnd(CharSequence line, int i) {
+		char c = line.charAt(i);
+		if (c == ';') {
+			return line.length();
+		}
+		if (c == '(') {
+			for (int j = i + 1; j < line.length(); j++) {
+				if (line.charAt(j) == ')') {
+					return j + 1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	// Copy the line without its comments and the whitespace around it
+	private void putCommand(CharSequence line) {
+		int start = length;
+		int end = line.length();
+		int i = 0;
+		while (i < end && line.charAt(i) <= ' ') {
+			i++;
+		}
+		while (i < end) {
+			int skip = commentEnd(line, i);
+			if (skip != -1) {
+				i = skip;
+				continue;
+			}
+			char c = line.charAt(i++);
+			// the firmware only reads ASCII
+			put(c < 0x80 ? c : '?');
+		}
+		while (length > start && buffer[length - 1] <= ' ') {
+			length--;
+		}
+	}
+
+	private void putNumber(int value) {
+		if (value < 0) {
+			put('-');
+			value = -value;
+		}
+		int digits = 1;
+		for (int v = value / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		for (int i = length + digits - 1; i >= length; i--) {
+			buffer[i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	private void put(char c) {
+		buffer[length++] = (byte)c;
+	}
+
+	private void reserve(int capacity) {
+		if (buffer.length < capacity) {
+			buffer = new byte[Integer.highestOneBit(capacity) << 1];
+		}
+	}
+}
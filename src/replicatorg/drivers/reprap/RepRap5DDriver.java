@@ -27,18 +27,16 @@
  */
 package replicatorg.drivers.reprap;
 
-import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.EnumSet;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Vector;
@@ -61,9 +59,13 @@ import replicatorg.util.Point5d;
 
 public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListener, RealtimeControl 
 {
-	private static Pattern gcodeCommentPattern = Pattern.compile("\\([^)]*\\)|;.*");
-	private static Pattern resendLinePattern = Pattern.compile("([0-9]+)");
-	private static Pattern gcodeLineNumberPattern = Pattern.compile("n\\s*([0-9]+)");
+	// every one of these is exactly a double
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static Pattern marlinVersionPattern = Pattern.compile("marlin u([0-9]).([0-9]).*");
+	private static Pattern firmwareInfoPattern = Pattern.compile("firmware_name:([0-9a-z.]{0,}).*firmware_url:([\\S.]{0,}.*).*protocol_version:([0-9]{0,}).([0-9]{0,}).*machine_type:([a-z]{0,}).*extruder_count:([0-9]{0,})");
+	private static Pattern startInfoPattern = Pattern.compile("start\\s.*BATCH=([0-9a-z.]{0,}).*PCB=([^,]{0,}).*ATMEGA=([^\\s]{0,}).*FW:V=([^,]{0,}).*BUILD=([^,]{0,}).*E0:([^,]{0,}).*SPEED=([^\\s]{0,}).*Z:PITCH=([^\\s]{0,})");
 	
 	public final AtomicReference<Double> feedrate = new AtomicReference<Double>(0.0);
 	public final AtomicReference<Double> ePosition = new AtomicReference<Double>(0.0);
@@ -149,23 +151,40 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	private final ExtrusionUpdater extrusionUpdater = new ExtrusionUpdater(this);
 
 	/**
-	 * the size of the buffer on the GCode host
+	 * the size of the receive buffer on the GCode host
 	 */
 	private int maxBufferSize = 128;
 
+	/**
+	 * how long the firmware may say nothing while lines wait for an "ok" before the
+	 * oldest is sent again, in ms; the wait doubles, up to 8 times this, each time
+	 * that happens in a row
+	 */
+	long answerTimeout = 10000;
+
 	/**
 	 * The commands sent but not yet acknowledged by the firmware. Stored so they can be resent 
-	 * if there is a checksum problem.
+	 * if there is a checksum problem, and counted so the firmware's buffer never overflows.
 	 */
-	private LinkedList<String> buffer = new LinkedList<String>();
+	private final SendWindow window = new SendWindow(256, maxBufferSize);
+	/** held while lines are recorded in the window and written, to keep them in order */
 	private ReentrantLock bufferLock = new ReentrantLock();
+	/** the bytes of the line being sent; guarded by sendCommandLock */
+	private final LineEncoder sendEncoder = new LineEncoder();
+	/** the bytes of a line sent out of turn, from the thread that reads responses */
+	private final LineEncoder resendEncoder = new LineEncoder();
 	
 	/** locks the readResponse method to prevent multiple concurrent reads */
 	private ReentrantLock readResponseLock = new ReentrantLock();
 
+	/** holds each line received while it is parsed; used under readResponseLock */
+	private final ResponseParser response = new ResponseParser();
+
 	protected DecimalFormat df;
 
 	private AtomicInteger lineNumber = new AtomicInteger(-1);
+
+	private EmulatedMarlin emulator = null;
 	
 	public String getMachineName(){
 		return "Ultimaker";
@@ -233,6 +252,13 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	if (XML.hasChildNode(xml, "okAfterStart")) {
 		okAfterStart = Boolean.parseBoolean(XML.getChildNodeValue(xml, "okAfterStart"));
 	}
+	if (XML.hasChildNode(xml, "rxBufferSize")) {
+		maxBufferSize = Integer.parseInt(XML.getChildNodeValue(xml, "rxBufferSize"));
+		window.setBufferSize(maxBufferSize);
+	}
+	if (XML.hasChildNode(xml, "answerTimeout")) {
+		answerTimeout = Long.parseLong(XML.getChildNodeValue(xml, "answerTimeout"));
+	}
 	if (XML.hasChildNode(xml, "alwaysRelativeE")) {
 		alwaysRelativeE = Boolean.parseBoolean(XML.getChildNodeValue(xml, "alwaysRelativeE"));
 	}
@@ -380,7 +406,12 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		
 		synchronized (startReceived) {
 			startReceived.set(false);
-			serial.pulseRTSLow();
+			if (emulator != null && serial.getName().startsWith(EMULATED_PORT)) {
+				// An emulator has no control lines, but it can be reset all the same
+				emulator.reset();
+			} else {
+				serial.pulseRTSLow();
+			}
 			
 			if (waitForStart == false) return;
 	
@@ -399,6 +430,25 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	public boolean isPassthroughDriver() {
 		return true;
 	}
+
+	/**
+	 * Talk to an emulated Marlin firmware of the version we prefer.
+	 */
+	@Override
+	protected Serial openEmulator(String portName) {
+		if (emulator != null) {
+			emulator.stop();
+		}
+		emulator = new EmulatedMarlin(getPreferredVersion());
+		return emulator.connect(portName);
+	}
+
+	/**
+	 * @return the emulated firmware we are connected to, or null if we aren't
+	 */
+	public EmulatedMarlin getEmulator() {
+		return emulator;
+	}
 	
 	/**
 	 * Actually execute the GCode we just parsed.
@@ -411,22 +461,102 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		// as that will call all sorts of misc functions.
 		// we'll simply pass it along.
 		// super.execute();
-		sendCommand(code);
+		sendCommand(code, needsAnswer(code));
+	}
+
+	/**
+	 * @return true if the firmware's answer to the command is read as it comes back, so
+	 * it has to be waited for; anything else is streamed without waiting
+	 */
+	static boolean needsAnswer(String code) {
+		// look for M105, M114 or M115 as a word of its own
+		for (int m = code.indexOf('M'); m != -1; m = code.indexOf('M', m + 1)) {
+			int end = m + 4;
+			if (end > code.length() || (m > 0 && isWordChar(code.charAt(m - 1)))
+					|| (end < code.length() && isWordChar(code.charAt(end))))
+				continue;
+			if (code.startsWith("105", m + 1) || code.startsWith("114", m + 1)
+					|| code.startsWith("115", m + 1))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
 	}
 	
 	/**
-	 * Returns null or the first instance of the matching group
+	 * Find the value of a word such as "E12.5", without a Matcher.
+	 * @param sign a character the value has to start with, such as '-', or 0 for any
+	 * @return the value after the first such letter that has one, or NaN if there isn't one
 	 */
-	private String getRegexMatch(String regex, String input, int group)
-	{
-		return getRegexMatch(Pattern.compile(regex), input, group);
+	static double valueAfter(String line, char letter, char sign) {
+		for (int i = line.indexOf(letter); i != -1; i = line.indexOf(letter, i + 1)) {
+			int from = i + 1;
+			int digits = from;
+			if (sign != 0) {
+				if (from >= line.length() || line.charAt(from) != sign)
+					continue;
+				digits++;
+			}
+			int end = skipNumber(line, digits, sign == 0);
+			if (end > digits)
+				return parseNumber(line, from, end);
+		}
+		return Double.NaN;
 	}
 
-	private String getRegexMatch(Pattern regex, String input, int group)
-	{
-		Matcher matcher = regex.matcher(input);
-		if (!matcher.find() || matcher.groupCount() < group) return null;
-		return matcher.group(group);
+	/**
+	 * @return the index just past the digits and points from the index on, and minus
+	 * signs too if signed
+	 */
+	private static int skipNumber(String line, int from, boolean signed) {
+		int i = from;
+		while (i < line.length()) {
+			char c = line.charAt(i);
+			if (!((c >= '0' && c <= '9') || c == '.' || (signed && c == '-')))
+				break;
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the decimal number from the index up to end, or NaN if that isn't one
+	 */
+	private static double parseNumber(String line, int from, int end) {
+		int i = from;
+		boolean negative = i < end && line.charAt(i) == '-';
+		if (negative)
+			i++;
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		for (; i < end; i++) {
+			char c = line.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (decimals >= 0)
+					decimals++;
+			} else if (c == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				return Double.NaN;
+			}
+		}
+		if (digits == 0)
+			return Double.NaN;
+		if (digits > 15 || decimals >= POWERS_OF_TEN.length) {
+			// too long to be sure of working out exactly; rare enough to leave to the library
+			return Double.parseDouble(line.substring(from, end));
+		}
+		// both are exact, so the quotient is the nearest double, as parseDouble gives
+		double value = mantissa;
+		if (decimals > 0)
+			value /= POWERS_OF_TEN[decimals];
+		return negative ? -value : value;
 	}
 
 	/**
@@ -437,31 +567,91 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * 
 	 * Only one command can be sent at a time. If another command is 
 	 * being sent this method will block until the previous command 
-	 * is finished sending.
+	 * is finished sending, or until there is room for it in the
+	 * firmware's buffer.
 	 */
 	protected void sendCommand(String next) {
-		_sendCommand(next, true, false);
+		_sendCommand(next, -1, false, false);
 	}
 
 	protected void sendCommand(String next, boolean synchronous) {
-		_sendCommand(next, synchronous, false);
+		_sendCommand(next, -1, synchronous, false);
 	}
 
 	
-	protected void resendCommand(String command) {
+	/**
+	 * Send a command out of turn, with the given line number.
+	 */
+	protected void resendCommand(String command, int lineNumber) {
 		synchronized (sendCommandLock)
 		{
 			numResends++;
 			if(debugLevel > 0)
-				Base.logger.warning("Resending: \"" + command + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
-			_sendCommand(command, false, true);
+				Base.logger.warning("Resending: \"N" + lineNumber + " " + command + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
+			_sendCommand(command, lineNumber, false, true);
+		}
+	}
+
+	/**
+	 * The firmware has said nothing for a while, with lines waiting for an "ok": send
+	 * the oldest again. A firmware that never got it carries it out now. One that did
+	 * refuses a line number it has had, and asks for the one after its last line
+	 * instead, so the lost "ok" shows up as a resend request; see answeredResend().
+	 * A firmware busy with a long move stays quiet too, so copies are only sent while
+	 * they fit in its receive buffer; see SendWindow.resendOldest().
+	 */
+	private void resendOldestLine() {
+		if (!hasChecksums) {
+			// Without a line number the firmware would just carry it out twice
+			Base.logger.warning("No answer from the firmware to " + window.size() + " lines");
+			return;
+		}
+		serialInUse.lock();
+		bufferLock.lock();
+		try {
+			long seq = window.resendOldest();
+			if (seq != -1) {
+				numResends++;
+				byte[] bytes = window.getBytes(seq);
+				int length = window.getLength(seq);
+				Base.logger.warning("No answer from the firmware, resending: \"" + new String(bytes, 0, length - 1) + "\"");
+				serial.write(bytes, 0, length);
+			} else if (!window.isEmpty()) {
+				Base.logger.fine("No answer from the firmware, and no room to send line " +
+						window.getOldestLineNumber() + " again; still waiting");
+			}
+		} finally {
+			bufferLock.unlock();
+			serialInUse.unlock();
+		}
+	}
+
+	/**
+	 * Send the line with the given sequence number again, and every line after it.
+	 */
+	private void resendLines(long seq) {
+		serialInUse.lock();
+		bufferLock.lock();
+		try {
+			for (long s = seq; s < window.getSent(); s++) {
+				numResends++;
+				byte[] bytes = window.getBytes(s);
+				int length = window.getLength(s);
+				if(debugLevel > 0)
+					Base.logger.warning("Resending: \"" + new String(bytes, 0, length - 1) + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
+				serial.write(bytes, 0, length);
+			}
+		} finally {
+			bufferLock.unlock();
+			serialInUse.unlock();
 		}
 	}
 
 	/**
 	 * inner method. not for use outside sendCommand and resendCommand
 	 */
-	protected void _sendCommand(String next, boolean synchronous, boolean resending) {
+	protected void _sendCommand(String next, int resendLineNumber, boolean synchronous, boolean resending) {
+		LineEncoder encoded;
 				
 		// If this line is uncommented, it simply sends the next line instead of doing a retransmit!
 		if (!resending) 
@@ -481,77 +671,86 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				return;
 			}
 	
-			//update the current feedrate
-			String feedrate = getRegexMatch("F(-[0-9\\.]+)", next, 1);
-			if (feedrate!=null) this.feedrate.set(Double.parseDouble(feedrate));
+			//update the current feedrate; only a negative one has ever been read here
+			double feedrate = valueAfter(next, 'F', '-');
+			if (!Double.isNaN(feedrate)) this.feedrate.set(feedrate);
 
 			if (!alwaysRelativeE) {
 				//update the current extruder position
-				String e = getRegexMatch("E([-0-9\\.]+)", next, 1);
-				if (e!=null) this.ePosition.set(Double.parseDouble(e));
+				double e = valueAfter(next, 'E', (char)0);
+				if (!Double.isNaN(e)) this.ePosition.set(e);
 			} else {
 				ePosition.set(0.0);
 			}
 
-			// applychecksum replaces the line that was to be retransmitted, into the next line.
-			if (hasChecksums) next = applyNandChecksum(next);
+			// number the line and work out its checksum, straight into the bytes to send
+			encoded = sendEncoder;
+			if (hasChecksums) {
+				// an M110 starts numbering again from 0
+				if (next.contains("M110"))
+					lineNumber.set(-1);
+				encoded.encode(next, lineNumber.incrementAndGet());
+			} else {
+				encoded.encode(next);
+			}
 			
-			Base.logger.finest("sending: "+next);
+			if (Base.logger.isLoggable(Level.FINEST))
+				Base.logger.finest("sending: "+encoded);
 		}
 		else
 		{
-			Base.logger.finest("resending: "+next);
+			encoded = resendEncoder;
+			if (hasChecksums)
+				encoded.encode(next, resendLineNumber);
+			else
+				encoded.encode(next);
+			if (Base.logger.isLoggable(Level.FINEST))
+				Base.logger.finest("resending: "+encoded);
 		}
-		// Block until we can fit the command on the Arduino
-/*		synchronized(bufferLock)
-		{
-			//wait for the number of commands queued in the buffer to shrink before 
-			//adding the next command to it.
-                        // NOTE: must compute bufferSize from buffer elements now
-			while(bufferSize + next.length() + 1 > maxBufferSize)
-			{
-				Base.logger.warning("reprap driver buffer full. gcode write slowed.");
-				try {
-					bufferLock.wait();
-				}
-				catch (InterruptedException e1) {
-					//Presumably we're shutting down
-					Thread.currentThread().interrupt();
-					return;
-				}
-			}
-		}*/
-		
+		byte[] bytes = encoded.getBuffer();
+		int length = encoded.getLength();
 
 		// debug... let us know whats up!
 		if(debugLevel > 1)
-			Base.logger.info("Sending: " + next);
+			Base.logger.info("Sending: " + encoded);
 
 
 		try {
-			synchronized(next)
-			{
-				// do the actual send.
-				serialInUse.lock();
-				bufferLock.lock();
+			// Block until we can fit the command on the Arduino.  Lines sent
+			// again were already counted.
+			if (!resending) {
+				for (long timeout = answerTimeout; !window.awaitRoom(length, timeout); timeout = Math.min(timeout * 2, answerTimeout * 8))
+					resendOldestLine();
+			}
 
-				// record it in our buffer tracker.
-				buffer.addFirst(next);
-				
-				if((introduceNoiseEveryN != -1) && (lineIterator++) >= introduceNoiseEveryN) {
-					Base.logger.info("Introducing noise (lineIterator=="
-							+ lineIterator + ",introduceNoiseEveryN=" + introduceNoiseEveryN + ")");
-					lineIterator = 0;
-					String noisyNext = next.replace('6','7').replace('7','1') + "\n";
-					serial.write(noisyNext);
-				} else {
-					serial.write(next + "\n");
-				}
-				bufferLock.unlock();
-				serialInUse.unlock();
+			// do the actual send.
+			serialInUse.lock();
+			bufferLock.lock();
+
+			// record it in our buffer tracker.  The answer to a line sent again
+			// (a line number reset) answers no line in the window.
+			long seq = -1;
+			if (resending)
+				window.expectExtraOk();
+			else
+				seq = window.add(bytes, length, hasChecksums ? lineNumber.get() : -1);
+			
+			if((introduceNoiseEveryN != -1) && (lineIterator++) >= introduceNoiseEveryN) {
+				Base.logger.info("Introducing noise (lineIterator=="
+						+ lineIterator + ",introduceNoiseEveryN=" + introduceNoiseEveryN + ")");
+				lineIterator = 0;
+				String noisyNext = encoded.toString().replace('6','7').replace('7','1') + "\n";
+				serial.write(noisyNext);
+			} else {
+				serial.write(bytes, 0, length);
+			}
+			bufferLock.unlock();
+			serialInUse.unlock();
 
-				// Synchronous gcode transfer. Waits for the 'ok' ack to be received.
-				if (synchronous) next.wait();
+			// Synchronous gcode transfer. Waits for the 'ok' ack to be received.
+			if (synchronous && seq != -1) {
+				for (long timeout = answerTimeout; !window.awaitAcknowledgement(seq, timeout); timeout = Math.min(timeout * 2, answerTimeout * 8))
+					resendOldestLine();
 			}
 		} catch (InterruptedException e1) {
 			//Presumably we're shutting down
@@ -569,54 +768,26 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 
 	public String clean(String str) {
-		String clean = str;
-
-		// trim whitespace
-		clean = clean.trim();
-
-		// remove spaces
-		//clean = clean.replaceAll(" ", "");
-		
-		// remove all comments
-        clean = RepRap5DDriver.gcodeCommentPattern.matcher(clean).replaceAll("");
-
-		return clean;
+		// remove all comments, and the whitespace around what is left
+		return LineEncoder.stripComments(str);
 	}
 	public String fix(String str) {
 		String fixed = str;
 		// The 5D firmware expects E codes for extrusion control instead of M101, M102, M103
-
-		Pattern r = Pattern.compile("M01[^0-9]");
-		Matcher m = r.matcher(fixed);
-		if (m.find())
+		if (isDropped(fixed))
 		{
 			return "";
 		}
-
-	    // Remove M10[123] codes
-	    // This piece of code causes problems?!? Restarts?
-		r = Pattern.compile("M10[123](.*)");
-		m = r.matcher(fixed);
-	    if (m.find( )) {
-//	    	System.out.println("Didn't find pattern in: " + str );
-//	    	fixed = m.group(1)+m.group(3)+";";
-	    	return "";
-	    }
 		
 		// Reorder E and F codes? F-codes need to go LAST!
-		//requires: import java.util.regex.Matcher; and import java.util.regex.Pattern;
-		r = Pattern.compile("^(.*)(F[0-9\\.]*)\\s?E([0-9\\.]*)$");
-	    m = r.matcher(fixed);
-	    if (m.find( )) {
-			fixed = m.group(1)+" E"+m.group(3)+" "+m.group(2);
-	    }
+		fixed = feedrateAfterExtrusion(fixed);
 
 	    if(realtimeControl) {
-		    // Rescale F value
-		    r = Pattern.compile("(.*)F([0-9\\.]*)(.*)");
-		    m = r.matcher(fixed);
-		    if (m.find( )) {
-		    	double newvalue = Double.valueOf(m.group(2).trim()).doubleValue();
+		    // Rescale the last F value
+		    int f = fixed.lastIndexOf('F');
+		    int end = (f == -1) ? -1 : skipNumber(fixed, f + 1, false);
+		    double newvalue = (f == -1) ? Double.NaN : parseNumber(fixed, f + 1, end);
+		    if (!Double.isNaN(newvalue)) {
 		    	// FIXME: kind of an ugly way to test for extrusionless "travel" versus extrusion.
 		    	if (!fixed.contains("E"))
 		    	{
@@ -630,7 +801,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
 				dfs.setDecimalSeparator('.');
 		    	NumberFormat formatter = new DecimalFormat("#0.0", dfs);
-		    	fixed = m.group(1)+" F"+formatter.format(newvalue)+" "+m.group(3);
+		    	fixed = fixed.substring(0, f)+" F"+formatter.format(newvalue)+" "+fixed.substring(end);
 		    }
 		    
 	/*	    // Rescale E value
@@ -651,99 +822,104 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 	
 	/**
-	 * takes a line of gcode and returns that gcode with a line number and checksum
+	 * @return true for the lines fix() leaves out: an M01 with something after it, and
+	 * the M101, M102 and M103 extruder codes
 	 */
-	public String applyNandChecksum(String gcode) {
-		// RepRap Syntax: N<linenumber> <cmd> *<chksum>\n
-
-		if (gcode.contains("M110"))
-			lineNumber.set(-1);
-		
-		Matcher lineNumberMatcher = gcodeLineNumberPattern.matcher(gcode);
-		if (lineNumberMatcher.matches())
-		{ // reset our line number to the specified one. this is usually a m110 line # reset
-			lineNumber.set( Integer.parseInt( lineNumberMatcher.group(1) ) );
+	static boolean isDropped(String line) {
+		for (int m = line.indexOf("M01"); m != -1; m = line.indexOf("M01", m + 1)) {
+			if (m + 3 < line.length() && !Character.isDigit(line.charAt(m + 3)))
+				return true;
 		}
-		else
-		{ // only add a line number if it is not already specified
-			gcode = "N"+lineNumber.incrementAndGet()+' '+gcode+' ';
+		for (int m = line.indexOf("M10"); m != -1; m = line.indexOf("M10", m + 1)) {
+			char c = (m + 3 < line.length()) ? line.charAt(m + 3) : 0;
+			if (c >= '1' && c <= '3')
+				return true;
 		}
-		return applyChecksum(gcode);
+		return false;
 	}
 
-	public String applyChecksum(String gcode) {
-		// chksum = 0 xor each byte of the gcode (including the line number and trailing space)
-		byte checksum = 0;
-		byte[] gcodeBytes = gcode.getBytes();
-		for (int i = 0; i<gcodeBytes.length; i++)
-		{
-			checksum = (byte) (checksum ^ gcodeBytes[i]);
-		}
-		return gcode+'*'+checksum;
+	/**
+	 * Move a feedrate that comes just before the E word at the end of a line after it,
+	 * so "G1 X5 F300 E2" goes out as "G1 X5  E2 F300".
+	 * @return the line rewritten, or the line itself if there is nothing to move
+	 */
+	static String feedrateAfterExtrusion(String line) {
+		// the E word has to run to the end of the line
+		int e = line.length();
+		while (e > 0 && isNumberChar(line.charAt(e - 1)))
+			e--;
+		e--;
+		if (e < 0 || line.charAt(e) != 'E')
+			return line;
+		// with the F word just before it, or one space before it
+		int fEnd = e;
+		if (fEnd > 0 && " \t\n\u000B\f\r".indexOf(line.charAt(fEnd - 1)) != -1)
+			fEnd--;
+		int f = feedrateEndingAt(line, fEnd);
+		if (f == -1)
+			return line;
+		return line.substring(0, f)+" E"+line.substring(e + 1)+" "+line.substring(f, fEnd);
+	}
+
+	// @return where the F word that ends just before the index starts, or -1
+	private static int feedrateEndingAt(String line, int end) {
+		int f = end;
+		while (f > 0 && isNumberChar(line.charAt(f - 1)))
+			f--;
+		f--;
+		return (f >= 0 && line.charAt(f) == 'F') ? f : -1;
+	}
+
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.';
 	}
 	
 	public void serialByteReceivedEvent(ByteFifo fifo) {
 		readResponseLock.lock();
 
+		// The line is picked apart where it lies; the common replies make no garbage
 		serialInUse.lock();
-		byte[] response = fifo.dequeueLine();
-		int responseLength = response.length;
+		boolean haveLine = response.read(fifo);
 		serialInUse.unlock();
 
-		// 0 is now an acceptable value; it merely means that we timed out
-		// waiting for input
-		if (responseLength < 0) {
-			// This signifies EOF. FIXME: How do we handle this?
-			Base.logger.severe("SerialPassthroughDriver.readResponse(): EOF occured");
-			readResponseLock.unlock();
-			return;
-		} else if(responseLength!=0) {
-			String line;
-			try
-			{
-				//convert to string and remove any trailing \r or \n's
-				line = new String(response, 0, responseLength, "US-ASCII")
-							.trim().toLowerCase();
-			} catch (UnsupportedEncodingException e) {
-				Base.logger.severe("US-ASCII required. Terminating.");
-				readResponseLock.unlock();
-				throw new RuntimeException(e);
-			}
+		if (haveLine) {
+			ResponseParser line = response;
+			window.heardFrom();
 
 			//System.out.println("received: " + line);
 			if(debugLevel > 1)
 				Base.logger.info("<< " + line);
 
-			if (line.length() == 0)
+			if (line.isEmpty())
 				Base.logger.fine("empty line received");
 			else if (line.startsWith("echo:")) {
 					//if echo is turned on relay it to the user for debugging
-					Base.logger.info(line.substring(5));
+					Base.logger.info(line.toString().substring(5));
+					// A scrap of a line cut off by a resend request is run as a command
+					// of its own; the ok that follows answers none of our lines.
+					int quoted = line.indexAfter("unknown command: \"");
+					if (hasChecksums && quoted != -1 && !(line.charAt(quoted) == 'n'
+							&& Character.isDigit(line.charAt(quoted + 1))))
+						window.expectExtraOk();
 			}
 			else if (line.startsWith("ok t:")||line.startsWith("t:")) {
-				Pattern r = Pattern.compile("t:([0-9\\.]+)");
-			    Matcher m = r.matcher(line);
-			    if (m.find( )) {
-			    	String temp = m.group(1);
-					
-					machine.currentTool().setCurrentTemperature(
-							Double.parseDouble(temp));
-			    }
-				r = Pattern.compile("^ok.*b:([0-9\\.]+)");
-			    m = r.matcher(line);
-			    if (m.find( )) {
-			    	String bedTemp = m.group(1);
-					machine.currentTool().setPlatformCurrentTemperature(
-							Double.parseDouble(bedTemp));
-			    }
+				double temp = line.valueAfter("t:");
+				if (!Double.isNaN(temp)) {
+					machine.currentTool().setCurrentTemperature(temp);
+				}
+				double bedTemp = line.startsWith("ok") ? line.valueAfter("b:") : Double.NaN;
+				if (!Double.isNaN(bedTemp)) {
+					machine.currentTool().setPlatformCurrentTemperature(bedTemp);
+				}
 			}
 			else if (line.startsWith("ok c:")||line.startsWith("c:")) {
-				Pattern r = Pattern.compile("c: *x:?([-0-9\\.]+) *y:?([-0-9\\.]+) *z:?([-0-9\\.]+)");
-				Matcher m = r.matcher(line);
-				if (m.find()) {
-					double x = Double.parseDouble(m.group(1));
-					double y = Double.parseDouble(m.group(2));
-					double z = Double.parseDouble(m.group(3));
+				int xAt = line.indexOfValue('x', line.indexAfter("c:"));
+				int yAt = (xAt == -1) ? -1 : line.indexOfValue('y', xAt);
+				int zAt = (yAt == -1) ? -1 : line.indexOfValue('z', yAt);
+				if (zAt != -1) {
+					double x = line.number(xAt);
+					double y = line.number(yAt);
+					double z = line.number(zAt);
 					// super to avoid parroting back a G92
 					try {
 						super.setCurrentPosition(new Point5d(x, y, z));
@@ -761,22 +937,12 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 					okReceived.notifyAll();
 				}
 
-				bufferLock.lock();
-				//Notify the thread waiting in this gcode's sendCommand method that the gcode has been received.
-				if (buffer.isEmpty()) {
+				if(debugLevel > 1)
+					Base.logger.info("FW Accepted: line " + window.getOldestLineNumber());
+				//Notify the thread waiting in this gcode's sendCommand method that the gcode has been received,
+				//and any waiting to send that the buffer is now smaller and may be able to fit their command.
+				if (!window.acknowledge()) {
 					Base.logger.severe("Received OK with nothing queued!");
-				} else {
-					String notifier = buffer.removeLast();
-					if(debugLevel > 1)
-						Base.logger.info("FW Accepted: " + notifier);
-					synchronized(notifier) { notifier.notifyAll(); }
-				}
-				bufferLock.unlock();
-				
-				synchronized(bufferLock)
-				{ /*let any sendCommand method waiting to send know that the buffer is 
-					now smaller and may be able to fit their command.*/
-					bufferLock.notifyAll();
 				}
 			}
 			else if(line.contains("sd"))
@@ -792,8 +958,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 			}
 			else if (line.startsWith("marlin"))
 			{
-				Pattern p = Pattern.compile("marlin u([0-9]).([0-9]).*");
-				Matcher m = p.matcher(line);
+				Matcher m = marlinVersionPattern.matcher(line.toString());
 				m.find();
 				version = new Version(Integer.parseInt(m.group(1)),Integer.parseInt(m.group(2)));
 				//Some marlin versions send out their code...
@@ -817,8 +982,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 			}
 			else if (line.contains("firmware_name"))
 			{
-				Pattern p = Pattern.compile("firmware_name:([0-9a-z.]{0,}).*firmware_url:([\\S.]{0,}.*).*protocol_version:([0-9]{0,}).([0-9]{0,}).*machine_type:([a-z]{0,}).*extruder_count:([0-9]{0,})");
-				Matcher m = p.matcher(line);
+				Matcher m = firmwareInfoPattern.matcher(line.toString());
 				m.find();
 				Base.logger.fine("Detecting firmware!");
 				//Assume we got an answer to M115, lets see what we got:
@@ -857,16 +1021,20 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 			}
 			else if (line.startsWith("x:"))
 			{
-				String[] curlocation = line.split("[a-z]:");
+				double x = line.valueAfter("x:");
+				double y = line.valueAfter("y:");
+				double z = line.valueAfter("z:");
 				
-				try {
-					super.setCurrentPosition(new Point5d(Double.parseDouble(curlocation[1]), Double.parseDouble(curlocation[2]), Double.parseDouble(curlocation[3])));
-				} catch (NumberFormatException e) {
-					// TODO Auto-generated catch block
+				if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z)) {
 					Base.logger.warning("Firmware sent unknown string: " + line);
-				} catch (RetryException e) {
+				} else {
+					try {
+						super.setCurrentPosition(new Point5d(x, y, z));
+					} catch (RetryException e) {
+					}
 				}
-				Base.logger.fine("E: " + curlocation[4]);
+				if (Base.logger.isLoggable(Level.FINE))
+					Base.logger.fine("E: " + line.valueAfter("e:"));
 			}
 			// Ultimakers send start
 			else if (line.contains("start")) {
@@ -878,13 +1046,14 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				// Reset line number first in case gcode is sent below
 				lineNumber.set(-1);
 				
-				String[] infosetup = line.split("start\\s.*BATCH=([0-9a-z.]{0,}).*PCB=([^,]{0,}).*ATMEGA=([^\\s]{0,}).*FW:V=([^,]{0,}).*BUILD=([^,]{0,}).*E0:([^,]{0,}).*SPEED=([^\\s]{0,}).*Z:PITCH=([^\\s]{0,})");
+				String text = line.toString();
+				String[] infosetup = startInfoPattern.split(text);
 				
-				if (line.contains("ULTIMAKER"))
+				if (text.contains("ULTIMAKER"))
 				{
 					//Assume its an old 5D Ultimaker
 					Base.logger.info("Ultimaker 5D firmware detected.");
-					Base.logger.info(line);
+					Base.logger.info(text);
 					Base.logger.finer("Batchnumber = "+infosetup[1]);
 					Base.logger.finer("PCB version = "+infosetup[2]);
 					Base.logger.finer("ATMega = " + infosetup[3]);
@@ -895,7 +1064,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 					Base.logger.finer("Z PITCH = " + infosetup[8]);
 				}
 				
-				boolean active = !buffer.isEmpty();
+				boolean active = !window.isEmpty();
 				flushBuffer();
 
 				if (isInitialized()) {
@@ -910,10 +1079,8 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 					}
 				}
 				if (okAfterStart) {
-					// firmware sends "ok" after start, put something here to consume it:
-					bufferLock.lock();
-					buffer.addLast(";start-ok");
-					bufferLock.unlock();
+					// firmware sends "ok" after start, expect it so it is consumed:
+					window.expectExtraOk();
 				}
 				
 				// todo: set version
@@ -933,62 +1100,47 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 
 			} else if (line.startsWith("resend")||line.startsWith("rs ")) {
 				// Bad checksum, resend requested
-				Matcher badLineMatch = resendLinePattern.matcher(line);
+				int badLineNumber = line.firstInteger();
 
 				// Is it a Dud M or G code?
-				String dudLetter = getRegexMatch("dud ([a-z]) code", line, 1);
+				char dudLetter = 0;
+				int letterAt = line.indexAfter("dud ");
+				if (letterAt != -1 && line.charAt(letterAt) >= 'a' && line.charAt(letterAt) <= 'z'
+						&& line.indexAfter(" code", letterAt) == letterAt + 1 + " code".length()) {
+					dudLetter = line.charAt(letterAt);
+				}
 
-				if (badLineMatch.find())
+				if (badLineNumber != -1)
 				{
-					int badLineNumber = Integer.parseInt(
-							badLineMatch.group(1) );
 					if(debugLevel > 1)
 						Base.logger.warning("Received resend request for line " + badLineNumber);
 
-					Queue<String> resend = new LinkedList<String>();
-					boolean found = false;
-					// Search backwards for the bad line in our buffer.
-					// Firmware flushed everything after this line, so
-					// build a queue of lines to resend.
-					bufferLock.lock();
-					lineSearch: while (!buffer.isEmpty())
-					{
-						String bufferedLine = buffer.removeLast();
-						if(debugLevel > 1)
-							Base.logger.info("Searching: " + bufferedLine);
-						int bufferedLineNumber = Integer.parseInt( getRegexMatch(
-								gcodeLineNumberPattern, bufferedLine.toLowerCase(), 1) );
-						if (dudLetter != null && bufferedLineNumber == badLineNumber) {
-							Base.logger.info("Dud "+dudLetter+" code: Dropping " + bufferedLine);
-							synchronized (bufferedLine) {
-								bufferedLine.notifyAll();
-							}
-							found = true;
-							break lineSearch;
-						}
-						resend.add(bufferedLine);
-						if (bufferedLineNumber == badLineNumber) {
-							found = true;
-							break lineSearch;
-						}
-					}
 					if (okAfterResend) {
-						// firmware sends "ok" after resend, put something here to consume it:
-						buffer.addLast(";resend-ok");
+						// firmware sends "ok" after resend, expect it so it is consumed:
+						window.expectExtraOk();
 					}
-					bufferLock.unlock();
 
-					if (!found) {
-						int restartLineNumber = Integer.parseInt( getRegexMatch(
-								gcodeLineNumberPattern, resend.element().toLowerCase(), 1) );
+					if (dudLetter != 0) {
+						if (window.drop(badLineNumber))
+							Base.logger.info("Dud "+dudLetter+" code: Dropping line " + badLineNumber);
+					} else if (window.contains(badLineNumber)) {
+						// Firmware flushed everything after this line, so resend
+						// it and everything after it.
+						long seq = window.resend(badLineNumber);
+						if (seq != -1)
+							resendLines(seq);
+					} else if (badLineNumber == window.getNewestLineNumber() + 1) {
+						// The firmware has every line we sent
+						if (window.answeredResend())
+							Base.logger.warning("Lost the answer to line " + (badLineNumber - 1) + " or before");
+					} else {
+						// Not a line we have, nor the next one: start numbering again
+						// from the oldest line we have, and resend them all.
+						long seq = window.getAcknowledged();
+						int restartLineNumber = window.isEmpty() ? window.getNewestLineNumber() + 1 : window.getOldestLineNumber();
 						Base.logger.severe("resend for line " + badLineNumber + " not in our buffer.  Resuming from " + restartLineNumber);
-						this.resendCommand(applyChecksum("N"+(restartLineNumber-1)+" M110"));
-					}
-					// resend the lines
-					while (!resend.isEmpty())
-					{
-						String bufferedLine = resend.remove();
-						this.resendCommand(bufferedLine);
+						this.resendCommand("M110", restartLineNumber-1);
+						resendLines(seq);
 					}
 				}
 				else
@@ -996,17 +1148,19 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 					// Malformed resend line request received. Resetting the line number
 					Base.logger.warning("malformed line resend request, "
 							+"resetting line number. Malformed Data: \n"+line);
-					this.resendCommand(applyChecksum("N"+(lineNumber.get()-1)+" M110"));
+					this.resendCommand("M110", lineNumber.get()-1);
 				}
 
+			} else if (line.startsWith("error:")) {
+				// Marlin explains a resend request before making it
+				Base.logger.warning("Firmware error: " + line.toString().substring(6));
+
 			} else if (line.startsWith("t:") || line.startsWith("c:")) {
 				// temperature, position handled above
 			}
 			else{
 				//Check for unknown lines, this means baudrate is off!
-				Pattern p = Pattern.compile("[^\\x20-\\x7E].*");
-				Matcher m = p.matcher(line);
-				if (version.equals(new Version(0,0)) && m.find())
+				if (version.equals(new Version(0,0)) && line.isGarbled())
 				{
 					Base.logger.severe("Wrong baud rate or faulty firmware detected.");
 					Base.logger.severe("Please select the right machine Driver and try again.");
@@ -1029,35 +1183,23 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * waiting for their completion.
 	 */
 	private void flushBuffer() {
-		bufferLock.lock();
-		while (!buffer.isEmpty())
-		{
-			String notifier = buffer.removeLast();
-			if(debugLevel > 1)
-				Base.logger.fine("Flushing dead command: " + notifier);
-			synchronized(notifier) { notifier.notifyAll(); }
-		}
-		bufferLock.unlock();
+		if(debugLevel > 1 && !window.isEmpty())
+			Base.logger.fine("Flushing " + window.size() + " dead commands");
+		window.clear();
 	}
 
 	/**
 	 * Is our buffer empty? If don't have a buffer, its always true.
 	 */
 	public boolean isBufferEmpty() {
-		bufferLock.lock();
-		boolean isEmpty = buffer.isEmpty();
-		bufferLock.unlock();
-		return isEmpty;
+		return window.isEmpty();
 	}
 
 	/**
 	 * What is our queue size?  Used by extrusion driver
 	 */
 	public int queueSize() {
-		bufferLock.lock();
-		int queueSize = buffer.size();
-		bufferLock.unlock();
-		return queueSize;
+		return window.size();
 	}
 
 	private synchronized void disconnect() {
@@ -1068,9 +1210,17 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 
 	public synchronized void dispose() {
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.fine("Lines resent " + window.getResendCount() + " times; round trip " +
+					window.getRoundTripTime() + "us; using " + window.getLimit() + " of " + maxBufferSize + " buffer bytes");
+		}
 		bufferLock.lock();
 		flushBuffer();
 		super.dispose();
+		if (emulator != null) {
+			emulator.stop();
+			emulator = null;
+		}
 		bufferLock.unlock();
 	}
 
@@ -1312,7 +1462,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 	public void readTemperature(int toolcode) {
 		machine.selectTool(toolcode);
-		sendCommand("T"+toolcode + " M105");
+		sendCommand("T"+toolcode + " M105", true);
 
 		super.readTemperature(toolcode);
 	}
@@ -1430,7 +1580,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 
 	protected Point5d reconcilePosition() {
-		sendCommand("M114");
+		sendCommand("M114", true);
 		// If the firmware returned a position then the reply parser
 		// already set the current position.  Return null to tell
 		// caller not to touch the position if it is now known.
@@ -0,0 +1,242 @@
+package replicatorg.drivers.reprap;
+
+import replicatorg.app.util.serial.ByteFifo;
+
+/**
+ * Reads the lines a RepRap firmware sends back straight out of the bytes they
+ * arrive in. A line is taken out of the fifo into a buffer that is kept from line
+ * to line, and the replies that come with every command ("ok", temperatures,
+ * positions, resend requests) are picked apart in place, without making Strings or
+ * Patterns. Letters are compared without regard to case.
+ *
+ * Only the thread that reads responses uses a parser.
+ */
+class ResponseParser {
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+		1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+	private byte[] line = new byte[256];
+	// the line, without the whitespace around it
+	private int start = 0;
+	private int end = 0;
+
+	/**
+	 * Take the next line out of the fifo.
+	 * @return false if there isn't a whole line in the fifo yet
+	 */
+	boolean read(ByteFifo fifo) {
+		int length = fifo.lineLength();
+		if (length == 0) {
+			return false;
+		}
+		if (length > line.length) {
+			line = new byte[Integer.highestOneBit(length) << 1];
+		}
+		fifo.dequeue(line, 0, length);
+		start = 0;
+		end = length;
+		while (end > start && line[end - 1] <= ' ') {
+			end--;
+		}
+		while (start < end && line[start] <= ' ') {
+			start++;
+		}
+		return true;
+	}
+
+	boolean isEmpty() {
+		return start == end;
+	}
+
+	/**
+	 * @param prefix in lower case
+	 */
+	boolean startsWith(String prefix) {
+		return matches(start, prefix);
+	}
+
+	/**
+	 * @param key in lower case
+	 */
+	boolean contains(String key) {
+		return indexAfter(key) != -1;
+	}
+
+	/**
+	 * @param key in lower case
+	 * @return the index just after the first key in the line, or -1 if there isn't one
+	 */
+	int indexAfter(String key) {
+		return indexAfter(key, start);
+	}
+
+	/**
+	 * @param key in lower case
+	 * @return the index just after the first key at or after from, or -1 if there isn't one
+	 */
+	int indexAfter(String key, int from) {
+		for (int i = from; i + key.length() <= end; i++) {
+			if (matches(i, key)) {
+				return i + key.length();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number after the first key in the line, or NaN if there isn't one
+	 */
+	double valueAfter(String key) {
+		int i = indexAfter(key);
+		return (i == -1) ? Double.NaN : number(i);
+	}
+
+	/**
+	 * Find a value such as "x:12.5", where the colon may be left out.
+	 * @param letter in lower case
+	 * @return the index of the number after the first such letter at or after from, or
+	 * -1 if there isn't one
+	 */
+	int indexOfValue(char letter, int from) {
+		for (int i = from; i < end; i++) {
+			if (lower(line[i]) != letter) {
+				continue;
+			}
+			int j = i + 1;
+			if (j < end && line[j] == ':') {
+				j++;
+			}
+			while (j < end && line[j] == ' ') {
+				j++;
+			}
+			if (j < end && isNumeric(line[j])) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the decimal number at the index, or NaN if there isn't one
+	 */
+	double number(int from) {
+		if (from < 0) {
+			return Double.NaN;
+		}
+		int i = from;
+		boolean negative = false;
+		if (i < end && (line[i] == '-' || line[i] == '+')) {
+			negative = line[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		boolean any = false;
+		// leading zeros don't count; they take up none of the mantissa
+		int digits = 0;
+		int decimals = -1;
+		int dropped = 0;
+		for (; i < end; i++) {
+			byte b = line[i];
+			if (b >= '0' && b <= '9') {
+				any = true;
+				// past 18 digits, the rest don't matter to a double
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					if (decimals >= 0) {
+						decimals++;
+					}
+				} else if (decimals < 0) {
+					dropped++;
+				}
+			} else if (b == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				break;
+			}
+		}
+		if (!any) {
+			return Double.NaN;
+		}
+		double value = mantissa;
+		if (decimals > 0) {
+			value /= (decimals < POWERS_OF_TEN.length) ? POWERS_OF_TEN[decimals] : Math.pow(10, decimals);
+		}
+		if (dropped > 0) {
+			value *= Math.pow(10, dropped);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return the first whole number in the line, or -1 if there isn't one
+	 */
+	int firstInteger() {
+		int i = start;
+		while (i < end && (line[i] < '0' || line[i] > '9')) {
+			i++;
+		}
+		if (i == end) {
+			return -1;
+		}
+		int value = 0;
+		for (; i < end && line[i] >= '0' && line[i] <= '9'; i++) {
+			value = value * 10 + (line[i] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return the character at the index, in lower case
+	 */
+	char charAt(int i) {
+		return (i >= start && i < end) ? (char)lower(line[i]) : 0;
+	}
+
+	/**
+	 * @return true if there are bytes in the line that aren't printable ASCII, which
+	 * usually means the baud rate is wrong
+	 */
+	boolean isGarbled() {
+		for (int i = start; i < end; i++) {
+			if (line[i] < 0x20 || line[i] > 0x7e) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the line in lower case; for the replies that aren't worth parsing by hand
+	 */
+	public String toString() {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = (char)lower(line[i]);
+		}
+		return new String(chars);
+	}
+
+	private boolean matches(int at, String key) {
+		if (at < start || at + key.length() > end) {
+			return false;
+		}
+		for (int i = 0; i < key.length(); i++) {
+			if (lower(line[at + i]) != key.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int lower(byte b) {
+		return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : (b & 0xff);
+	}
+
+	private static boolean isNumeric(byte b) {
+		return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.';
+	}
+}
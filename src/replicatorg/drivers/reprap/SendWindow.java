@@ -0,0 +1,344 @@
+package replicatorg.drivers.reprap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lines sent to a RepRap firmware that it hasn't said "ok" to yet, kept so they
+ * can be sent again when it asks for them.
+ *
+ * Each line gets a sequence number as it is sent, and is kept in a ring at that
+ * sequence number, so finding the line the firmware asks for again is a matter of
+ * arithmetic rather than a search. Firmwares answer lines in the order they get them,
+ * so an "ok" is for the oldest line waiting.
+ *
+ * The bytes of the lines waiting are counted against the firmware's receive buffer, so
+ * the buffer is kept as full as it can be without overflowing. How much of it is used
+ * is cut in half whenever the firmware asks for a line again, since everything after
+ * that line has to be sent again as well; it grows back by a line for each round trip
+ * that passes without one, timed by how long the firmware takes to answer.
+ *
+ * Waiting on the window gives up once the firmware has been quiet for a while, so that
+ * an "ok" lost on the way back can't hang the sender: it can send the oldest line
+ * waiting again, and the firmware's answer to that says whether it ever got it.
+ * A firmware that is quiet with lines waiting has taken the oldest out of its buffer to
+ * carry it out, or never got it, so there is room for one copy of it; further copies
+ * are counted against the buffer until the firmware has answered every line sent
+ * before them, and are held back while they wouldn't fit.
+ */
+class SendWindow {
+
+	// A line that has been sent
+	private static class Entry {
+		byte[] bytes = new byte[64];
+		int length;
+		int lineNumber;
+		// when it was sent, in System.nanoTime(); 0 if it has been sent more than once
+		long sentAt;
+		// true if the firmware said it won't carry it out, so no "ok" will come for it
+		boolean dropped;
+	}
+
+	private final Entry[] ring;
+	private final int mask;
+
+	private int bufferSize;
+	// how many bytes of the firmware's buffer we use at the moment
+	private int limit;
+	private int bytesWaiting = 0;
+
+	// sequence numbers of the oldest line waiting and of the next line to be sent
+	private long acknowledged = 0;
+	private long sent = 0;
+	// "ok"s the firmware sends that don't answer a line
+	private int extraOks = 0;
+	// the number of the last line sent
+	private int newestLineNumber = -1;
+
+	// smoothed round trip time, in nanoseconds
+	private long roundTrip = 0;
+	private long lastGrowth = 0;
+
+	private long resends = 0;
+
+	// when the firmware last said anything, or was last sent a line, in System.nanoTime()
+	private long lastExchange = System.nanoTime();
+	// the sequence number of the line sent again because the firmware went quiet, or -1
+	private long timedOut = -1;
+	// bytes sent again because the firmware went quiet, that may still be in its buffer,
+	// and the sequence number of the first line sent after them
+	private int resentBytes = 0;
+	private long resentBefore = 0;
+
+	/**
+	 * @param lines the most lines that can be waiting; rounded up to a power of two
+	 * @param bufferSize the size of the firmware's receive buffer, in bytes
+	 */
+	SendWindow(int lines, int bufferSize) {
+		int size = Integer.highestOneBit(Math.max(lines, 2) - 1) << 1;
+		ring = new Entry[size];
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Entry();
+		}
+		mask = size - 1;
+		setBufferSize(bufferSize);
+	}
+
+	synchronized void setBufferSize(int bytes) {
+		bufferSize = bytes;
+		limit = bytes;
+	}
+
+	/**
+	 * Wait until a line of the given length can be sent without overflowing the
+	 * firmware's buffer. A line is always let through when nothing is waiting, however
+	 * long it is.
+	 * @param timeout how long the firmware may be quiet before we give up, in milliseconds
+	 * @return false if the firmware was quiet for that long with no room made
+	 */
+	synchronized boolean awaitRoom(int length, long timeout) throws InterruptedException {
+		while (sent - acknowledged == ring.length ||
+				(bytesWaiting > 0 && bytesWaiting + resentBytes + length > limit)) {
+			if (!awaitExchange(timeout)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Wait for a change, unless the firmware has already been quiet for the timeout
+	private boolean awaitExchange(long timeout) throws InterruptedException {
+		long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastExchange);
+		if (quiet >= timeout) {
+			return false;
+		}
+		wait(timeout - quiet);
+		return true;
+	}
+
+	/**
+	 * The firmware said something, whether or not it answers a line.
+	 */
+	synchronized void heardFrom() {
+		lastExchange = System.nanoTime();
+	}
+
+	/**
+	 * Record a line as sent; the bytes are copied.
+	 * @param lineNumber the line's number, or -1 if it hasn't got one
+	 * @return the line's sequence number
+	 */
+	synchronized long add(byte[] bytes, int length, int lineNumber) {
+		Entry e = ring[(int)sent & mask];
+		if (e.bytes.length < length) {
+			e.bytes = new byte[Integer.highestOneBit(length) << 1];
+		}
+		System.arraycopy(bytes, 0, e.bytes, 0, length);
+		e.length = length;
+		e.lineNumber = lineNumber;
+		e.sentAt = System.nanoTime();
+		e.dropped = false;
+		lastExchange = e.sentAt;
+		if (lineNumber != -1) {
+			newestLineNumber = lineNumber;
+		}
+		bytesWaiting += length;
+		return sent++;
+	}
+
+	/**
+	 * The firmware said "ok".
+	 * @return false if nothing was waiting for it
+	 */
+	synchronized boolean acknowledge() {
+		if (extraOks > 0) {
+			extraOks--;
+			return true;
+		}
+		if (acknowledged == sent) {
+			return false;
+		}
+		Entry e = ring[(int)acknowledged & mask];
+		long now = System.nanoTime();
+		// Only lines sent once say how long a round trip takes
+		if (e.sentAt != 0) {
+			long sample = now - e.sentAt;
+			roundTrip = (roundTrip == 0) ? sample : roundTrip + (sample - roundTrip) / 8;
+		}
+		if (limit < bufferSize && now - lastGrowth >= roundTrip) {
+			limit = Math.min(bufferSize, limit + e.length);
+			lastGrowth = now;
+		}
+		release();
+		return true;
+	}
+
+	/**
+	 * Expect an "ok" that doesn't answer a line, e.g. one sent after a resend request.
+	 */
+	synchronized void expectExtraOk() {
+		extraOks++;
+	}
+
+	/**
+	 * The firmware asked for a line again, and dropped every line after it.
+	 * @return the sequence number of the line, to send it and those after it again; or
+	 * -1 if it isn't waiting
+	 */
+	synchronized long resend(int lineNumber) {
+		long seq = find(lineNumber);
+		if (seq == -1) {
+			return -1;
+		}
+		resends++;
+		limit = Math.max(limit / 2, 1);
+		for (long s = seq; s < sent; s++) {
+			ring[(int)s & mask].sentAt = 0;
+		}
+		return seq;
+	}
+
+	/**
+	 * The firmware has been quiet too long: the oldest line is to be sent again, if a
+	 * copy of it fits in the firmware's buffer. Either way the wait starts over.
+	 * @return its sequence number, or -1 if nothing is waiting or it doesn't fit
+	 */
+	synchronized long resendOldest() {
+		lastExchange = System.nanoTime();
+		if (acknowledged == sent) {
+			return -1;
+		}
+		Entry e = ring[(int)acknowledged & mask];
+		// The oldest line has left the buffer, and its copy takes the room it had
+		if (bytesWaiting + resentBytes > bufferSize) {
+			return -1;
+		}
+		resends++;
+		e.sentAt = 0;
+		timedOut = acknowledged;
+		resentBytes += e.length;
+		resentBefore = sent;
+		return acknowledged;
+	}
+
+	/**
+	 * The firmware says it has every line that was sent. If that answers the oldest
+	 * line being sent again because the firmware went quiet, it carried out the line
+	 * the first time and the "ok" for it was lost, so let it go.
+	 * @return true if a line was let go
+	 */
+	synchronized boolean answeredResend() {
+		boolean lost = (timedOut == acknowledged && acknowledged != sent);
+		timedOut = -1;
+		if (lost) {
+			release();
+		}
+		return lost;
+	}
+
+	/**
+	 * @return true if the line with the given number is waiting
+	 */
+	synchronized boolean contains(int lineNumber) {
+		return find(lineNumber) != -1;
+	}
+
+	/**
+	 * The firmware won't carry out a line, so no "ok" will come for it.
+	 * @return false if it isn't waiting
+	 */
+	synchronized boolean drop(int lineNumber) {
+		long seq = find(lineNumber);
+		if (seq == -1) {
+			return false;
+		}
+		ring[(int)seq & mask].dropped = true;
+		if (seq == acknowledged) {
+			release();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the sequence number of the line with the given number, or -1 if it isn't waiting
+	 */
+	private long find(int lineNumber) {
+		if (acknowledged == sent) {
+			return -1;
+		}
+		// Line numbers go up by one with each line, unless they were reset on the way
+		long last = sent - 1;
+		long seq = last - (ring[(int)last & mask].lineNumber - lineNumber);
+		if (seq >= acknowledged && seq <= last && ring[(int)seq & mask].lineNumber == lineNumber) {
+			return seq;
+		}
+		for (seq = last; seq >= acknowledged; seq--) {
+			if (ring[(int)seq & mask].lineNumber == lineNumber) {
+				return seq;
+			}
+		}
+		return -1;
+	}
+
+	// Let go of the oldest line, and any dropped lines after it
+	private void release() {
+		do {
+			bytesWaiting -= ring[(int)acknowledged & mask].length;
+			acknowledged++;
+		} while (acknowledged != sent && ring[(int)acknowledged & mask].dropped);
+		// The firmware reads copies after the lines sent before them
+		if (acknowledged >= resentBefore) {
+			resentBytes = 0;
+		}
+		lastExchange = System.nanoTime();
+		notifyAll();
+	}
+
+	/**
+	 * Wait until the line with the given sequence number has been answered, or forgotten.
+	 * @param timeout how long the firmware may be quiet before we give up, in milliseconds
+	 * @return false if the firmware was quiet for that long without answering it
+	 */
+	synchronized boolean awaitAcknowledgement(long seq, long timeout) throws InterruptedException {
+		while (acknowledged <= seq) {
+			if (!awaitExchange(timeout)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Forget every line waiting, e.g. because the firmware has been reset.
+	 */
+	synchronized void clear() {
+		acknowledged = sent;
+		bytesWaiting = 0;
+		resentBytes = 0;
+		extraOks = 0;
+		notifyAll();
+	}
+
+	synchronized boolean isEmpty() { return acknowledged == sent; }
+	/// @return how many lines are waiting
+	synchronized int size() { return (int)(sent - acknowledged); }
+	/// @return the number of the last line sent, whether or not it is waiting
+	synchronized int getNewestLineNumber() { return newestLineNumber; }
+	/// @return the sequence number of the oldest line waiting
+	synchronized long getAcknowledged() { return acknowledged; }
+	/// @return the sequence number the next line will get
+	synchronized long getSent() { return sent; }
+	/// @return the oldest line waiting, or -1 if there isn't one
+	synchronized int getOldestLineNumber() {
+		return (acknowledged == sent) ? -1 : ring[(int)acknowledged & mask].lineNumber;
+	}
+
+	synchronized byte[] getBytes(long seq) { return ring[(int)seq & mask].bytes; }
+	synchronized int getLength(long seq) { return ring[(int)seq & mask].length; }
+
+	/// @return how many bytes of the firmware's buffer are in use at the moment
+	synchronized int getLimit() { return limit; }
+	/// @return how long the firmware takes to answer a line, smoothed, in microseconds
+	synchronized long getRoundTripTime() { return roundTrip / 1000; }
+	/// @return how many times lines have been sent again
+	synchronized long getResendCount() { return resends; }
+}
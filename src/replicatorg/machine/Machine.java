@@ -26,13 +26,17 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -48,15 +52,15 @@ import net.miginfocom.swing.MigLayout;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.gcode.BuildEstimate;
+import replicatorg.app.gcode.GCodeChunks;
 import replicatorg.app.gcode.GCodeCommand;
 import replicatorg.app.gcode.GCodeEnumeration;
-import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.ParsedGCodeSource;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
-import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SimulationDriver;
-import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.MachineState.State;
 import replicatorg.machine.model.AxisId;
@@ -152,6 +156,16 @@ public class Machine implements MachineInterface {
 	MachineThread machineThread;
 	final MachineCallbackHandler callbackHandler;
 	
+	// Reads, checks and estimates builds before they are handed to the machine thread,
+	// one at a time
+	private final ExecutorService preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Build preparer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
 	// TODO: WTF is this here for.
 	// this is the xml config for this machine.
 	protected Node machineNode;
@@ -187,7 +201,7 @@ public class Machine implements MachineInterface {
 	 * Begin running a job.
 	 */
 	@Override
-	public void buildDirect(final GCodeSource source) {
+	public void buildDirect(final GCodeSource gcodeSource) {
 
 		Runnable prepareAndStart = new Runnable(){
 
@@ -204,6 +218,10 @@ public class Machine implements MachineInterface {
 				// simulator.createWindow();
 				
 				Base.logger.info("Estimating build time and scanning code for errors...");
+
+				// Parse the code once; the safety check, the estimate and the build all replay it.
+				emitStateChange(new MachineState(State.BUILDING), "Reading GCode...");
+				final ParsedGCodeSource source = ParsedGCodeSource.parse(gcodeSource);
 				
 				if(Base.preferences.getBoolean("build.safetyChecks", true))
 				{
@@ -322,22 +340,41 @@ public class Machine implements MachineInterface {
 				Base.getEditor().highlightLine(messages.get(atWhichLine));
 			}
 		};
-		Executors.newSingleThreadExecutor().execute(prepareAndStart);
+		preparer.execute(prepareAndStart);
 	}
 
-	public void simulate(GCodeSource source) {
+	/**
+	 * Run something once the machine has let go of every source it has been given to
+	 * build so far, e.g. to unmap a file: once the builds still being prepared have been
+	 * handed on, and the build that is reading a source has ended.
+	 */
+	public void whenSourcesReleased(final Runnable release) {
+		// Builds are prepared in turn, so this runs after those asked for before it
+		preparer.execute(new Runnable() {
+			public void run() {
+				machineThread.whenSourcesReleased(release);
+			}
+		});
+	}
+
+	public void simulate(GCodeSource gcodeSource) {
 		// start simulator
 		// if (simulator != null)
 		// simulator.createWindow();
 
+		// Parse the code once, for both the estimate and the simulation
+		ParsedGCodeSource source = ParsedGCodeSource.parse(gcodeSource);
+
 		// estimate build time.
 		Base.logger.info("Estimating build time...");
 		estimate(source);
 
 		// do that build!
+		// The machine thread doesn't simulate anything yet, so it isn't given the source;
+		// the caller is free to release it once we return.
 		Base.logger.info("Beginning simulation.");
 		machineThread.scheduleRequest(new MachineCommand(RequestType.SIMULATE,
-				source, null));
+				null, null));
 	}
 
 	public void safetyCheck(GCodeSource source, Map<String, Integer> messages)
@@ -349,94 +386,196 @@ public class Machine implements MachineInterface {
 //		buildVolume.setX(machineThread.getModel().getBuildVolume().getX()/2);
 //		buildVolume.setY(machineThread.getModel().getBuildVolume().getY()/2);
 //		buildVolume.setZ(machineThread.getModel().getBuildVolume().getZ()/2);
-		
-		GCodeCommand gcode;
-		String message, cmd, mainCode;
-		Integer lineNumber = 0;
-		
-		for(String line : source)
+
+		// Each line is checked on its own, so a big parsed file can be checked a chunk at a time,
+		// on all of the processors. Line numbers and the early return are sorted out afterwards.
+		List<SafetyCheck> checks = new ArrayList<SafetyCheck>();
+		AtomicInteger firstStopped = new AtomicInteger(Integer.MAX_VALUE);
+		if(source instanceof ParsedGCodeSource && GCodeChunks.worthSplitting(source.getLineCount()))
 		{
-			try
+			ParsedGCodeSource parsed = (ParsedGCodeSource)source;
+			List<String> lines = parsed.asList();
+			for(int start = 0; start < parsed.getLineCount(); start += GCodeChunks.CHUNK_LINES)
 			{
-				gcode = new GCodeCommand(line);
-			} //Catching every kind of exception is generally bad form,
-			//  It can hide where the problem is happening, and should be avoided
-			//  But I'm doing it anyway.
-			catch(Exception e)
-			{
-				message = "ReplicatorG can't parse '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				continue;
+				int end = Math.min(start + GCodeChunks.CHUNK_LINES, parsed.getLineCount());
+				checks.add(new SafetyCheck(parsed.commandIterator(lines, start, end),
+						checks.size(), firstStopped, nToolheads, maxRates));
 			}
+			checks = GCodeChunks.invokeAll(checks);
+		}
+		else
+		{
+			SafetyCheck check = new SafetyCheck(ParsedGCodeSource.commandIterator(source),
+					0, firstStopped, nToolheads, maxRates);
+			check.call();
+			checks.add(check);
+		}
 
-			cmd = gcode.getCommand();
-			if(cmd.split(" ").length < 1) continue; //to avoid null index problems
-			
-			mainCode = cmd.split(" ")[0];
+		int lineNumber = 0;
+		for(SafetyCheck check : checks)
+		{
+			check.report(messages, lineNumber);
+			if(check.stopped)
+				return; //TRICKY: see footnote [1]
+			lineNumber += check.lineNumber;
+		}
+	}
 
-			if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
-			{
-				message = "ReplicatorG doesn't recognize GCode '" + line +"'";
+	/**
+	 * Checks a run of lines, keeping what it finds until report() is called, so that
+	 * the runs can be checked in any order and still be reported in order.
+	 */
+	private class SafetyCheck implements Callable<SafetyCheck>
+	{
+		private final ParsedGCodeSource.CommandIterator it;
+		private final int index;
+		private final AtomicInteger firstStopped;
+		private final int nToolheads;
+		private final Point5d maxRates;
 
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-			
-			// Check for homing in the wrong direction
-			if(!homingDirectionIsSafe(gcode))
-			{
-				message = "Homing in the wrong direction for selected machine: '" + line +"'";
+		/// where the last of each message was found, counting only lines that parsed
+		private final Map<String, Integer> messages = new LinkedHashMap<String, Integer>();
 
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
+		/// what to log, in order
+		private final List<LogRecord> log = new ArrayList<LogRecord>();
 
-			// we're going to check for the correct number of toolheads in each command
-			// the list of exceptions keeps growing, do we really need to do this check?
-			// maybe we should just specify the things to check, rather than the reverse
-			if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
-													   && gcode.getCodeValue('M') != 106
-													   && gcode.getCodeValue('M') != 107)
-			{
-				message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
-				messages.put(message, lineNumber);
-				message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				return; //TRICKY: see footnote [1]
-			}
-			if(gcode.hasCode('F'))
+		/// how many lines parsed
+		int lineNumber = 0;
+
+		/// true if we hit the toolhead index error, and stopped
+		boolean stopped = false;
+
+		SafetyCheck(ParsedGCodeSource.CommandIterator it, int index, AtomicInteger firstStopped,
+				int nToolheads, Point5d maxRates)
+		{
+			this.it = it;
+			this.index = index;
+			this.firstStopped = firstStopped;
+			this.nToolheads = nToolheads;
+			this.maxRates = maxRates;
+		}
+
+		private void found(String message, Level level)
+		{
+			messages.put(message, lineNumber);
+			log.add(new LogRecord(level, message));
+		}
+
+		/// Add what we found to messages, for lines numbered from firstLine
+		void report(Map<String, Integer> allMessages, int firstLine)
+		{
+			for(Map.Entry<String, Integer> entry : messages.entrySet())
+				allMessages.put(entry.getKey(), entry.getValue() + firstLine);
+			for(LogRecord record : log)
+				Base.logger.log(record.getLevel(), record.getMessage());
+		}
+
+		public SafetyCheck call()
+		{
+			GCodeCommand gcode;
+			String message, cmd, line;
+			int mainCodeEnd;
+
+			while(it.hasNext())
 			{
-				double fVal = gcode.getCodeValue('F');
-				if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
-					(gcode.hasCode('Y') && fVal > maxRates.y()) ||
-// we're going to ignore this for now, since most of the time the z isn't actually moving 
-//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||  
-					(gcode.hasCode('A') && fVal > maxRates.a()) ||
-					(gcode.hasCode('B') && fVal > maxRates.b()))
+				// If an earlier run has stopped, nobody will look at what we find
+				if(firstStopped.get() < index)
+					return this;
+
+				try
+				{
+					gcode = it.next();
+				} //Catching every kind of exception is generally bad form,
+				//  It can hide where the problem is happening, and should be avoided
+				//  But I'm doing it anyway.
+				catch(Exception e)
 				{
-					message = "You're moving too fast! " + line +
-							 " turns at least one axis faster than it's max speed.";
+					message = "ReplicatorG can't parse '" + it.getLine() +"'";
+					found(message, Level.SEVERE);
+					continue;
+				}
 
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.WARNING, message);
+				line = it.getLine();
+				cmd = gcode.getCommand();
+
+				// The main code is the first word of the command. Nothing but spaces gives no words at all.
+				mainCodeEnd = cmd.indexOf(' ');
+				if(mainCodeEnd == -1)
+					mainCodeEnd = cmd.length();
+				else if(isAllSpaces(cmd))
+					continue; //to avoid null index problems
+
+				if(mainCodeEnd != 0 && GCodeEnumeration.getGCode(cmd, 0, mainCodeEnd) == null)
+				{
+					message = "ReplicatorG doesn't recognize GCode '" + line +"'";
+					found(message, Level.SEVERE);
 				}
-				//BUGFIX! Can cause problems when used on reprap machines!
-				if (fVal < 0)
+				
+				// Check for homing in the wrong direction
+				if(!homingDirectionIsSafe(gcode))
 				{
-					message = "Negative feedrate detected! '" + line +
-							 "' causes crashes in the reprap driver.";
+					message = "Homing in the wrong direction for selected machine: '" + line +"'";
+					found(message, Level.SEVERE);
+				}
 
+				// we're going to check for the correct number of toolheads in each command
+				// the list of exceptions keeps growing, do we really need to do this check?
+				// maybe we should just specify the things to check, rather than the reverse
+				if(gcode.hasCode('T') && gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
+														   && gcode.getCodeValue('M') != 106
+														   && gcode.getCodeValue('M') != 107)
+				{
+					message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
 					messages.put(message, lineNumber);
-					Base.logger.log(Level.SEVERE, message);
+					message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
+					found(message, Level.SEVERE);
+
+					stopped = true;
+					for(int first = firstStopped.get(); index < first; first = firstStopped.get())
+					{
+						if(firstStopped.compareAndSet(first, index))
+							break;
+					}
+					return this; //TRICKY: see footnote [1]
+				}
+				if(gcode.hasCode('F'))
+				{
+					double fVal = gcode.getCodeValue('F');
+					if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
+						(gcode.hasCode('Y') && fVal > maxRates.y()) ||
+// we're going to ignore this for now, since most of the time the z isn't actually moving 
+//						(gcLine.hasCode('Z') && fVal > maxRates.z()) ||  
+						(gcode.hasCode('A') && fVal > maxRates.a()) ||
+						(gcode.hasCode('B') && fVal > maxRates.b()))
+					{
+						message = "You're moving too fast! " + line +
+								 " turns at least one axis faster than it's max speed.";
+						found(message, Level.WARNING);
+					}
+					//BUGFIX! Can cause problems when used on reprap machines!
+					if (fVal < 0)
+					{
+						message = "Negative feedrate detected! '" + line +
+								 "' causes crashes in the reprap driver.";
+						found(message, Level.SEVERE);
+					}
 				}
+				
+				lineNumber++;
 			}
-			
-			lineNumber++;
+			return this;
 		}
 	}
+	private static boolean isAllSpaces(String s)
+	{
+		for(int i = 0; i < s.length(); i++)
+		{
+			if(s.charAt(i) != ' ')
+				return false;
+		}
+		return true;
+	}
+
 	//footnote [1]:
 	/// Because this error can be thrown thousands of times in a file, and is generally a 'all wrong, or all right' error,
 	// we shortcut return on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to 
@@ -482,31 +621,8 @@ public class Machine implements MachineInterface {
 			return;
 		}
 
-		EstimationDriver estimator = new EstimationDriver();
-		// TODO: Is this correct?
-		estimator.setMachine(machineThread.getModel());
-		
-		Queue<DriverCommand> estimatorQueue = new LinkedList<DriverCommand>();
-
-		GCodeParser estimatorParser = new GCodeParser();
-		estimatorParser.init(estimator);
-
-		// run each line through the estimator
-		for (String line : source) {
-			// TODO: Hooks for plugins to add estimated time?
-			estimatorParser.parse(line, estimatorQueue);
-			
-			for (DriverCommand command : estimatorQueue) {
-				try {
-					command.run(estimator);
-				} catch (RetryException r) {
-					// Ignore.
-				} catch (StopException e) {
-					// TODO: Should we stop the estimator when we get a stop???
-				}
-			}
-			estimatorQueue.clear();
-		}
+		// Big files are estimated a chunk at a time, on all of the processors.
+		double buildTime = BuildEstimate.estimate(source, machineThread.getModel());
 
 		// TODO: Set simulator up properly.
 		// if (simulator != null) {
@@ -517,9 +633,9 @@ public class Machine implements MachineInterface {
 		// ((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
 		// }
 
-		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
+		machineThread.setEstimatedBuildTime(buildTime);
 		Base.logger.info("Estimated build time is: " + 
-					EstimationDriver.getBuildTimeString(estimator.getBuildTime()));
+					EstimationDriver.getBuildTimeString(buildTime));
 	}
 
 	public DriverQueryInterface getDriverQueryInterface() {
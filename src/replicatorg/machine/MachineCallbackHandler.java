@@ -1,101 +1,225 @@
 package replicatorg.machine;
 
-import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import replicatorg.app.Base;
+import replicatorg.machine.model.ToolModel;
 
 
 /** Thread that handles callbacks for events from the machine controller.
- * TODO: There /has/ to be a better way of doing this.
+ *
+ * State changes are handed to each listener as soon as they happen, and in order.
+ * Progress and tool status events can come far faster than anyone wants to hear
+ * about them, so they are coalesced: each listener gets at most one batch of them per
+ * interval, holding just the latest progress and the latest status of each tool.
+ *
+ * Every listener has a thread of its own to receive events on, so a slow listener
+ * only ever holds up itself, and only ever falls behind by one batch. This thread
+ * just keeps time for the batches, and sleeps until there is something to send.
  * @author mattmets
  *
  */
 public class MachineCallbackHandler extends Thread {
-	
+
+	/// Shortest time between batches of progress and tool status events
+	public static final long INTERVAL_MILLIS = 100;
+
 	// Send messages to these listeners
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
-
-	// We have to send these kinds of messages.
-	// TODO: Make this abstract.
-	ConcurrentLinkedQueue<MachineStateChangeEvent> machineStateChangeEventQueue;
-	ConcurrentLinkedQueue<MachineProgressEvent> machineProgressEventQueue;
-	ConcurrentLinkedQueue<MachineToolStatusEvent> machineToolStatusEventQueue;
-	
-	public MachineCallbackHandler() {
-		super("Machine Callback Handler");
-		
-		machineStateChangeEventQueue = new ConcurrentLinkedQueue<MachineStateChangeEvent>();
-		machineProgressEventQueue = new ConcurrentLinkedQueue<MachineProgressEvent>();
-		machineToolStatusEventQueue = new ConcurrentLinkedQueue<MachineToolStatusEvent>();
-	}
-	
-	private synchronized void sendMessages() {
-		while (!machineStateChangeEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineStateChanged(machineStateChangeEventQueue.peek());
+	private final List<Delivery> deliveries = new CopyOnWriteArrayList<Delivery>();
+
+	// Guards pending, and wakes us when it is set
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition published = lock.newCondition();
+
+	// True if there are progress or tool status events that haven't been sent yet
+	private boolean pending = false;
+
+	// When the last batch went out, in System.nanoTime()
+	private long lastBatch = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS);
+
+	// How many listeners we have given threads to
+	private int listenerCount = 0;
+
+	/**
+	 * Gets the events on their way to one listener.
+	 */
+	private class Delivery implements Runnable {
+		final MachineListener listener;
+		final ExecutorService executor;
+
+		// The latest events that haven't been sent yet; guarded by this
+		private MachineProgressEvent progress = null;
+		private final Map<ToolModel, MachineToolStatusEvent> toolStatus =
+			new LinkedHashMap<ToolModel, MachineToolStatusEvent>();
+		// True if a batch is waiting for the executor
+		private boolean queued = false;
+
+		Delivery(MachineListener listener) {
+			this.listener = listener;
+			final String name = "Machine listener " + (++listenerCount);
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		synchronized void add(MachineProgressEvent event) {
+			progress = event;
+		}
+
+		synchronized void add(MachineToolStatusEvent event) {
+			toolStatus.put(event.getTool(), event);
+		}
+
+		/// Send the latest events, unless they are still waiting to go from last time
+		synchronized void sendBatch() {
+			if (!queued) {
+				queued = execute(this);
 			}
-			Base.logger.fine("Sending machine state change event: "
-					+ machineStateChangeEventQueue.peek().getState().getState().toString());
-			machineStateChangeEventQueue.remove();
 		}
-		
-		while (!machineProgressEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineProgress(machineProgressEventQueue.peek());
+
+		/// Send a state change, after anything that happened before it
+		void send(final MachineStateChangeEvent event) {
+			execute(new Runnable() {
+				public void run() {
+					Delivery.this.run();
+					listener.machineStateChanged(event);
+				}
+			});
+		}
+
+		private boolean execute(Runnable r) {
+			try {
+				executor.execute(r);
+				return true;
+			} catch (RejectedExecutionException e) {
+				// The listener has been removed
+				return false;
 			}
-			machineProgressEventQueue.remove();
 		}
-		
-		while (!machineToolStatusEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.toolStatusChanged(machineToolStatusEventQueue.peek());
+
+		// Send the latest progress and tool status
+		public void run() {
+			MachineProgressEvent p;
+			List<MachineToolStatusEvent> tools;
+			synchronized(this) {
+				queued = false;
+				p = progress;
+				progress = null;
+				tools = new ArrayList<MachineToolStatusEvent>(toolStatus.values());
+				toolStatus.clear();
+			}
+
+			if (p != null) {
+				listener.machineProgress(p);
+			}
+			for (MachineToolStatusEvent e : tools) {
+				listener.toolStatusChanged(e);
 			}
-			machineToolStatusEventQueue.remove();
 		}
 	}
-	
+
+	public MachineCallbackHandler() {
+		super("Machine Callback Handler");
+	}
+
 	@Override
 	public void run() {
-		while(true) {
-			// If we have any messages to send out, do so, otherwise wait.
-			try {
-				sendMessages();
-	
-				sleep(100);
-			} catch (InterruptedException e) {
-				// Terminate!
-				Base.logger.fine("taking callback handler down, state change queue: "
-						+ machineStateChangeEventQueue.size());
-				break;
+		try {
+			while(true) {
+				// Wait for something to send, then for the interval to be up
+				lock.lock();
+				try {
+					while (!pending) {
+						published.await();
+					}
+					long wait = lastBatch + TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS) - System.nanoTime();
+					while (wait > 0) {
+						wait = published.awaitNanos(wait);
+					}
+					pending = false;
+					lastBatch = System.nanoTime();
+				} finally {
+					lock.unlock();
+				}
+
+				for (Delivery d : deliveries) {
+					d.sendBatch();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Terminate!
+			Base.logger.fine("taking callback handler down");
+		}
+
+		for (Delivery d : deliveries) {
+			d.executor.shutdown();
+		}
+	}
+
+	// Wake up and send a batch, if we aren't already going to
+	private void publish() {
+		lock.lock();
+		try {
+			if (!pending) {
+				pending = true;
+				published.signal();
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
-	
+
 	synchronized public void addMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.add(listener);
+		deliveries.add(new Delivery(listener));
 		// TODO: Was this important?
 //		listener.machineStateChanged(new MachineStateChangeEvent(this,
 //				getMachineState()));
 	}
 
 	synchronized public void removeMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.remove(listener);
+		for (Delivery d : deliveries) {
+			if (d.listener == listener) {
+				deliveries.remove(d);
+				d.executor.shutdown();
+				break;
+			}
+		}
 	}
 
-	synchronized public void schedule(MachineStateChangeEvent status) {
-		machineStateChangeEventQueue.add(status);
-		Base.logger.fine("Scheduling machine state change event: "
+	public void schedule(MachineStateChangeEvent status) {
+		Base.logger.fine("Sending machine state change event: "
 				+ status.getState().getState().toString());
+		for (Delivery d : deliveries) {
+			d.send(status);
+		}
 	}
 
-	synchronized public void schedule(MachineProgressEvent progress) {
-		machineProgressEventQueue.add(progress);
+	public void schedule(MachineProgressEvent progress) {
+		for (Delivery d : deliveries) {
+			d.add(progress);
+		}
+		publish();
 	}
 
-	synchronized public void schedule(MachineToolStatusEvent e) {
-		machineToolStatusEventQueue.add(e);
+	public void schedule(MachineToolStatusEvent e) {
+		for (Delivery d : deliveries) {
+			d.add(e);
+		}
+		publish();
 	}
 }
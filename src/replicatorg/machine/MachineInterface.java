@@ -68,7 +68,7 @@ public interface MachineInterface {
 	
 	/** Simulate the job on screen
 	 * TODO: Pull this out of the driver and let the UI handle it.
-	 * @param source 
+	 * @param source the job, which is only read until this returns
 	 */
 	public void simulate(GCodeSource source);
 	
@@ -76,6 +76,12 @@ public interface MachineInterface {
 	public boolean buildRemote(String remoteName);
 	public void buildToFile(GCodeSource source, String path);
 	public void upload(GCodeSource source, String remoteName);
+	
+	/**
+	 * Run something once the machine has let go of every source it has been given to
+	 * build so far. Until then the sources may still be read.
+	 */
+	public void whenSourcesReleased(Runnable release);
 	public void pause();
 	public void unpause();
 	
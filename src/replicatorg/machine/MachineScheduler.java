@@ -0,0 +1,253 @@
+package replicatorg.machine;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import replicatorg.machine.Machine.RequestType;
+
+/**
+ * Decides what the machine thread does next. Everything the machine thread does is a
+ * task with a priority and a deadline: requests from the controller are due as soon as
+ * they arrive, periodic polls are due once a period, and the current build is always
+ * ready for another step. Of the tasks that are due, the most urgent kind runs first,
+ * and tasks of the same kind run in deadline order.
+ *
+ * The machine thread only wakes up when something is due or a new task arrives, so an
+ * idle machine costs nothing between polls. Build steps are never queued; whenever
+ * nothing else is due the machine thread is told to take one, so a pause waits for at
+ * most the build step that is already running and the requests queued before it.
+ *
+ * Stops come before any other request. A stop also drops the builds, commands, pauses
+ * and unpauses that were queued before it, which it would have cut short anyway; so
+ * nothing asked for before a stop runs after it, and the stop waits for at most the
+ * task that is already running, however many commands were queued up.
+ */
+class MachineScheduler {
+
+	/// The kinds of task, most urgent first
+	enum Priority {
+		STOP,		// requests to stop the machine
+		REQUEST,	// other requests from the controller: connecting, building, pausing, commands
+		POLL,		// periodic status and temperature checks
+		BUILD,		// the next step of the current build
+	}
+
+	/**
+	 * Something for the machine thread to do.
+	 */
+	static class Task {
+		final Priority priority;
+		final MachineCommand command;
+		final Runnable work;
+		// time between runs in nanoseconds, 0 if the task runs once
+		final long period;
+
+		// when the task is due, in System.nanoTime()
+		private long deadline;
+		// breaks ties, so tasks with the same deadline run in the order they were scheduled
+		private long sequence;
+		// how late the task was when the machine thread last took it
+		private long latency;
+
+		private Task(Priority priority, MachineCommand command, Runnable work, long period) {
+			this.priority = priority;
+			this.command = command;
+			this.work = work;
+			this.period = period;
+		}
+
+		/**
+		 * @return how long the task waited to be taken after it was due, in nanoseconds
+		 */
+		long getLatency() {
+			return latency;
+		}
+	}
+
+	/// Handed out when nothing is due and a build step should be taken
+	static final Task BUILD_STEP = new Task(Priority.BUILD, null, null, 0);
+
+	// Tasks that are due, most urgent first
+	private static final Comparator<Task> BY_PRIORITY = new Comparator<Task>() {
+		public int compare(Task a, Task b) {
+			int c = a.priority.compareTo(b.priority);
+			if (c == 0)
+				c = compareDeadlines(a, b);
+			return c;
+		}
+	};
+
+	// Tasks that aren't due yet, soonest first
+	private static final Comparator<Task> BY_DEADLINE = new Comparator<Task>() {
+		public int compare(Task a, Task b) {
+			return compareDeadlines(a, b);
+		}
+	};
+
+	private static int compareDeadlines(Task a, Task b) {
+		// nanoTime can wrap, so compare differences
+		long d = a.deadline - b.deadline;
+		if (d == 0)
+			d = a.sequence - b.sequence;
+		return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition scheduled = lock.newCondition();
+
+	private final PriorityQueue<Task> due = new PriorityQueue<Task>(16, BY_PRIORITY);
+	private final PriorityQueue<Task> later = new PriorityQueue<Task>(16, BY_DEADLINE);
+
+	private long nextSequence = 0;
+
+	/**
+	 * Schedule a request from the controller, to run as soon as possible.
+	 */
+	void schedule(MachineCommand command) {
+		if (!isStop(command.type)) {
+			add(new Task(Priority.REQUEST, command, null, 0), System.nanoTime());
+			return;
+		}
+		lock.lock();
+		try {
+			cancelBeforeStop(due);
+			cancelBeforeStop(later);
+			add(new Task(Priority.STOP, command, null, 0), System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Schedule some work to run once, in turn with the requests from the controller.
+	 */
+	void schedule(Runnable work) {
+		add(new Task(Priority.REQUEST, null, work, 0), System.nanoTime());
+	}
+
+	/**
+	 * @return true for the requests that stop the machine
+	 */
+	static boolean isStop(RequestType type) {
+		return type == RequestType.STOP_MOTION || type == RequestType.STOP_ALL;
+	}
+
+	/**
+	 * @return true for the requests that a stop makes pointless
+	 */
+	static boolean isCancelledByStop(RequestType type) {
+		switch (type) {
+		case SIMULATE:
+		case BUILD_DIRECT:
+		case BUILD_TO_FILE:
+		case BUILD_TO_REMOTE_FILE:
+		case BUILD_REMOTE:
+		case PAUSE:
+		case UNPAUSE:
+		case RUN_COMMAND:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// Drop the queued requests a stop makes pointless
+	private static void cancelBeforeStop(PriorityQueue<Task> tasks) {
+		for (Iterator<Task> i = tasks.iterator(); i.hasNext();) {
+			Task task = i.next();
+			if (task.command != null && isCancelledByStop(task.command.type)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Schedule some work to run every period, starting one period from now. The runs
+	 * stay on a fixed rate however long each run takes, but runs that were missed
+	 * altogether are dropped rather than made up.
+	 */
+	void scheduleEvery(Priority priority, long period, TimeUnit unit, Runnable work) {
+		long nanos = unit.toNanos(period);
+		add(new Task(priority, null, work, nanos), System.nanoTime() + nanos);
+	}
+
+	private void add(Task task, long deadline) {
+		lock.lock();
+		try {
+			task.deadline = deadline;
+			task.sequence = nextSequence++;
+			if (deadline - System.nanoTime() <= 0) {
+				due.add(task);
+			} else {
+				later.add(task);
+			}
+			scheduled.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for the next task that is due.
+	 * @param building true if there is a build that wants another step
+	 * @return the most urgent task that is due, or BUILD_STEP if nothing is due and we
+	 * are building.
+	 */
+	Task next(boolean building) throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				long now = System.nanoTime();
+
+				while (!later.isEmpty() && later.peek().deadline - now <= 0) {
+					due.add(later.poll());
+				}
+
+				Task task = due.poll();
+				if (task != null) {
+					task.latency = Math.max(0, now - task.deadline);
+					if (task.period > 0) {
+						// Keep to the rate, unless we have already missed the next run
+						long deadline = task.deadline + task.period;
+						if (deadline - now <= 0) {
+							deadline = now + task.period;
+						}
+						task.deadline = deadline;
+						task.sequence = nextSequence++;
+						later.add(task);
+					}
+					return task;
+				}
+
+				if (building) {
+					return BUILD_STEP;
+				}
+
+				if (later.isEmpty()) {
+					scheduled.await();
+				} else {
+					scheduled.awaitNanos(later.peek().deadline - now);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop everything that is scheduled.
+	 */
+	void clear() {
+		lock.lock();
+		try {
+			due.clear();
+			later.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package replicatorg.machine;
 
+import java.util.LinkedList;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -12,17 +14,19 @@ import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.DriverFactory;
 import replicatorg.drivers.OnboardParameters;
+import replicatorg.drivers.PacketCapture;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SDCardCapture;
 import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
 import replicatorg.drivers.UsesSerial;
 import replicatorg.drivers.commands.AssessState;
-import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.ReadTemperature;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.machine.Machine.RequestType;
 import replicatorg.machine.builder.Direct;
 import replicatorg.machine.builder.MachineBuilder;
+import replicatorg.machine.builder.Precompiled;
 import replicatorg.machine.builder.ToLocalFile;
 import replicatorg.machine.builder.ToRemoteFile;
 import replicatorg.machine.builder.UsingRemoteFile;
@@ -37,74 +41,13 @@ import replicatorg.model.StringListSource;
  */
 class MachineThread extends Thread {
 
-	AssessStatusThread statusThread;
-	
-	// TODO: Should this be here?
-	class AssessStatusThread extends Thread {
-		
-		MachineThread machineThread;
-		
-		public AssessStatusThread(MachineThread machineThread) {
-			super("Assess Status");
-			this.machineThread = machineThread;
-		}
-		
-		public void run() {
-			while (true) {
-				try {
-					synchronized(this) {
-						// Send out a request, then sleep for a bit, then start over.
-						DriverCommand assessCommand = new AssessState();
-						
-						machineThread.scheduleRequest(new MachineCommand(
-								RequestType.RUN_COMMAND, assessCommand));
-						
-						sleep(1000);
-					}
-				} catch(InterruptedException e) {
-					Base.logger.fine("taking assess status thread down");
-					break;
-				}
-			}
-		}
-	}
-	
-	// TODO: The timeout/elapse behaivor of this is 
-	// a little wonky. It could be converted to some standard timer someday
-	class MachineTimer {
-		private long lastEventTime = 0;
-		private boolean enabled = false;
-		private long intervalMs = 3000;
-		
-		public void start(long interval) {
-			enabled = true;
-			intervalMs = interval;
-			lastEventTime = System.currentTimeMillis();
-		}
-		
-		public void stop() {
-			enabled = false;
-		}
-		
-		// checks for timeout elapsing, and resets the time for a new interval
-		public boolean elapsed() {
-			if (!enabled) {
-				return false;
-			}
-			long curMillis = System.currentTimeMillis();
-			if (lastEventTime + intervalMs <= curMillis) {
-				lastEventTime = curMillis;
-				return true;
-			}
-			return false;
-		}
-	}
-	
-	private MachineTimer pollingTimer;
+	// Decides what to do next: requests, polls and build steps
+	private final MachineScheduler scheduler = new MachineScheduler();
 
-	// Link of machine commands to run
-	ConcurrentLinkedQueue<MachineCommand> pendingQueue;
-		
+	// The longest a stop or pause request has waited to be run, in nanoseconds.
+	// Only used on the machine thread.
+	private long worstStopLatency = 0;
+	
 	// this is the xml config for this machine.
 	private Node machineNode;
 	
@@ -136,15 +79,20 @@ class MachineThread extends Thread {
 	MachineModel cachedModel = null;
 	
 	private MachineBuilder machineBuilder;
+	// True while machineBuilder may still read the source it was given
+	private boolean holdingSource = false;
+	// What to run once the builder lets go of its source; only used on the machine thread
+	private final LinkedList<Runnable> afterRelease = new LinkedList<Runnable>();
+	
+	// How much of a precompiled build we last said had been compiled
+	private int compiledPercent = -1;
+	
+	// Commands that came in while the build was being compiled, to run once it has been
+	private final LinkedList<MachineCommand> heldCommands = new LinkedList<MachineCommand>();
 	
 	public MachineThread(Machine controller, Node machineNode) {
 		super("Machine Thread");
 		
-		pollingTimer = new MachineTimer();
-		pollingTimer.start(1000);
-		
-		pendingQueue = new ConcurrentLinkedQueue<MachineCommand>();
-		
 		// save our XML
 		this.machineNode = machineNode;
 		this.controller = controller;
@@ -154,10 +102,39 @@ class MachineThread extends Thread {
 		loadExtraPrefs();
 		parseName();
 		
-		statusThread = new AssessStatusThread(this);
-		statusThread.start();
+		schedulePolls();
+	}
+
+	/**
+	 * Sets up the periodic checks on the machine: its status, and the tool temperatures.
+	 */
+	private void schedulePolls() {
+		scheduler.scheduleEvery(MachineScheduler.Priority.POLL, 1000, TimeUnit.MILLISECONDS,
+				new Runnable() {
+			public void run() {
+				runCommand(new MachineCommand(RequestType.RUN_COMMAND, new AssessState()));
+			}
+		});
 
+		scheduler.scheduleEvery(MachineScheduler.Priority.POLL, 1000, TimeUnit.MILLISECONDS,
+				new Runnable() {
+			public void run() {
+				if (!state.isConnected()) {
+					return;
+				}
+				/// if we're not building, or if we are have 'moniter temp during build' enabled, 
+				//check for temp
+				boolean checkTempDuringBuild = Base.preferences.getBoolean("build.monitor_temp", true);
 
+				if ( false == state.isBuilding() || checkTempDuringBuild ) {
+					runCommand(new MachineCommand(RequestType.RUN_COMMAND, new ReadTemperature()));
+					Vector<ToolModel> tools = controller.getModel().getTools();
+					for (ToolModel t : tools) {
+						controller.emitToolStatus(t);
+					}
+				}
+			}
+		});
 	}
 
 	/**
@@ -214,9 +191,26 @@ class MachineThread extends Thread {
 	}
 	
 	private String buildingMessage() {
+		int compiled = compiledPercent();
+		if (compiled >= 0) {
+			return "Compiling build... " + compiled + "%";
+		}
 		return "Building...";
 	}
 	
+	// How much of a precompiled build has been compiled, or -1 if it isn't being compiled
+	private int compiledPercent() {
+		if (!(machineBuilder instanceof Precompiled)) {
+			return -1;
+		}
+		Precompiled builder = (Precompiled)machineBuilder;
+		if (builder.getState() != Precompiled.State.COMPILING) {
+			return -1;
+		}
+		int total = builder.getLinesTotal();
+		return (total > 0) ? (int)(100L * builder.getLinesCompiled() / total) : 0;
+	}
+	
 	// Respond to a command from the machine controller
 	void runCommand(MachineCommand command) {		
 		switch(command.type) {
@@ -276,6 +270,7 @@ class MachineThread extends Thread {
 		case DISCONNECT:
 
 			if (state.isConnected()) {
+				closeBuilder();
 				driver.uninitialize();
 				setState(new MachineState(MachineState.State.NOT_ATTACHED), notConnectedMessage());
 			
@@ -311,12 +306,19 @@ class MachineThread extends Thread {
 				// Pad the job with start and end code
 				GCodeSource combinedSource = buildGCodeJob(command.source);
 				
-				machineBuilder = new Direct(driver, simulator, combinedSource);
+				closeBuilder();
+				if (driver instanceof PacketCapture && Base.preferences.getBoolean("build.precompile", false)) {
+					machineBuilder = new Precompiled(driver, simulator, combinedSource);
+				} else {
+					machineBuilder = new Direct(driver, simulator, combinedSource);
+				}
+				holdingSource = true;
 				
 				// TODO: This shouldn't be done here?
 				driver.invalidatePosition();
 				
 				// TODO: Where should the build name be specified?
+				compiledPercent = compiledPercent();
 				setState(new MachineState(MachineState.State.BUILDING), buildingMessage());
 			}
 			break;
@@ -352,7 +354,9 @@ class MachineThread extends Thread {
 					break;
 				}
 				
+				closeBuilder();
 				machineBuilder = trf;
+				holdingSource = true;
 
 				// TODO: This shouldn't be done here?
 				driver.invalidatePosition();
@@ -391,7 +395,9 @@ class MachineThread extends Thread {
 					break;
 				}
 				
+				closeBuilder();
 				machineBuilder = lf;
+				holdingSource = true;
 				
 				if (state.canPrint()) {
 					setState(new MachineState(MachineState.State.BUILDING), buildingMessage());
@@ -408,6 +414,7 @@ class MachineThread extends Thread {
 				
 				startTimeMillis = System.currentTimeMillis();
 				
+				closeBuilder();
 				machineBuilder = new UsingRemoteFile(driver, command.remoteName);
 			
 //				// TODO: what about this?
@@ -432,6 +439,7 @@ class MachineThread extends Thread {
 			}
 			break;
 		case STOP_MOTION:
+			closeBuilder();
 			driver.stop(false);
 			
 			if (state.getState() == MachineState.State.BUILDING) {
@@ -448,6 +456,7 @@ class MachineThread extends Thread {
 			//driver.getMachine().currentTool().setTargetTemperature(0);
 			//driver.getMachine().currentTool().setPlatformTargetTemperature(0);
 			
+			closeBuilder();
 			driver.stop(true);
 			
 			if (state.getState() == MachineState.State.BUILDING) {
@@ -487,6 +496,7 @@ class MachineThread extends Thread {
 			break;
 		case SHUTDOWN:
 			//TODO: Dispose of everything here.
+			closeBuilder();
 			setState(new MachineState(MachineState.State.NOT_ATTACHED), notConnectedMessage());
 			interrupt();
 			break;
@@ -500,7 +510,6 @@ class MachineThread extends Thread {
 	 */
 	public void run() {
 		
-		
 		/// This is our main loop.
 		while (true) {
 			
@@ -510,6 +519,7 @@ class MachineThread extends Thread {
 
 				if(state.isConnected() && error.getDisconnected()) {
 					// If we were connected & the error is a disconnect, set disconnected state
+					closeBuilder();
 					setState(new MachineState(MachineState.State.NOT_ATTACHED),error.getMessage());
 				}
 				else {
@@ -519,66 +529,35 @@ class MachineThread extends Thread {
 				}
 			}
 			
-			// Check for and run any control requests that might be in the queue.
-			while (!pendingQueue.isEmpty()) {
-				runCommand(pendingQueue.remove());
+			// Wait for whatever is due next. Requests go before polls, and both go
+			// before the next build step; if nothing is due and we aren't building, we
+			// sleep until something is.
+			MachineScheduler.Task task;
+			try {
+				task = scheduler.next(state.isBuilding() && !state.isPaused());
+			} catch (InterruptedException e) {
+				break;
 			}
-
 			
-			if(state.isConnected())
-			{
-				/// Check the status poll machine.
-				if ( pollingTimer.elapsed() ) {
-					/// if we're not building, or if we are have 'moniter temp during build' enabled, 
-					//check for temp
-					boolean checkTempDuringBuild = Base.preferences.getBoolean("build.monitor_temp", true);
-
-					if ( false == state.isBuilding() || checkTempDuringBuild ) {
-						MachineCommand pollCmd = new MachineCommand( RequestType.RUN_COMMAND, new replicatorg.drivers.commands.ReadTemperature() );
-						this.scheduleRequest( pollCmd );
-						Vector<ToolModel> tools = controller.getModel().getTools();
-						for (ToolModel t : tools) {
-							controller.emitToolStatus(t);
-						}
-					}
+			if (task == MachineScheduler.BUILD_STEP) {
+				runBuildStep();
+			} else if (task.command != null) {
+				if (task.priority == MachineScheduler.Priority.STOP || task.command.type == RequestType.PAUSE) {
+					recordStopLatency(task);
 				}
-			}
-			
-			// If we are building
-			if ( state.isBuilding() && !state.isPaused() ) {
-				//run another instruction on the machine.
-				machineBuilder.runNext();
-				
-				// Send out a progress event
-				// TODO: Should these be rate limited?
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
-							estimatedBuildTime,
-							machineBuilder.getLinesProcessed(),
-							machineBuilder.getLinesTotal());
-				controller.emitProgress(progress);
-				
-				if (machineBuilder.finished()) {
-					// TODO: Exit correctly.
-					if (state.getState() == MachineState.State.BUILDING) {
-						setState(new MachineState(MachineState.State.READY),
-								readyMessage());
-					} else {
-						setState(new MachineState(MachineState.State.NOT_ATTACHED),
-								notConnectedMessage());
-					}
+				if (task.command.type == RequestType.RUN_COMMAND && isCompiling()) {
+					heldCommands.add(task.command);
+				} else {
+					runCommand(task.command);
 				}
+			} else if (task.period == 0 || !isCompiling()) {
+				// Polls would only get made-up answers while the build is compiling,
+				// so they skip a turn; work that runs once doesn't ask the machine
+				task.work.run();
 			}
 			
-			// If there is nothing to do, sleep.
-			if ( !state.isBuilding() ) {
-				try {
-					synchronized(this) {
-						wait();
-					}
-				} catch(InterruptedException e) {
-					break;
-				}
+			while (!heldCommands.isEmpty() && !isCompiling()) {
+				runCommand(heldCommands.removeFirst());
 			}
 			
 			// If we get interrupted, break out of the main loop.
@@ -588,12 +567,91 @@ class MachineThread extends Thread {
 		}
 		
 		Base.logger.fine("MachineThread interrupted, terminating.");
+		scheduler.clear();
 		dispose();
 	}
 	
+	// Run another instruction on the machine
+	private void runBuildStep() {
+		machineBuilder.runNext();
+		
+		// Say how far compiling has got, and that we're building once it's done
+		int compiled = compiledPercent();
+		if (compiled != compiledPercent && state.getState() == MachineState.State.BUILDING) {
+			compiledPercent = compiled;
+			controller.emitStateChange(state, buildingMessage());
+		}
+		
+		// Send out a progress event
+		// TODO: Should these be rate limited?
+		MachineProgressEvent progress = 
+			new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
+					estimatedBuildTime,
+					machineBuilder.getLinesProcessed(),
+					machineBuilder.getLinesTotal());
+		controller.emitProgress(progress);
+		
+		if (machineBuilder.finished()) {
+			// TODO: Exit correctly.
+			closeBuilder();
+			if (state.getState() == MachineState.State.BUILDING) {
+				setState(new MachineState(MachineState.State.READY),
+						readyMessage());
+			} else {
+				setState(new MachineState(MachineState.State.NOT_ATTACHED),
+						notConnectedMessage());
+			}
+		}
+	}
+	
+	// Log how long stop and pause requests waited behind build steps and other requests
+	private void recordStopLatency(MachineScheduler.Task task) {
+		long latency = task.getLatency();
+		worstStopLatency = Math.max(worstStopLatency, latency);
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.fine(task.command.type + " waited " +
+					TimeUnit.NANOSECONDS.toMillis(latency) + "ms to run (the longest so far was " +
+					TimeUnit.NANOSECONDS.toMillis(worstStopLatency) + "ms)");
+		}
+	}
+	
+	// True while the driver is capturing a build that is being compiled, when it
+	// can't be asked anything or told to do anything else
+	private boolean isCompiling() {
+		return machineBuilder instanceof Precompiled && ((Precompiled)machineBuilder).isCompiling();
+	}
+	
+	// Let go of anything the last build was still holding on to
+	private void closeBuilder() {
+		if (machineBuilder instanceof Direct) {
+			((Direct)machineBuilder).close();
+		} else if (machineBuilder instanceof Precompiled) {
+			((Precompiled)machineBuilder).close();
+		}
+		holdingSource = false;
+		while (!afterRelease.isEmpty()) {
+			afterRelease.removeFirst().run();
+		}
+	}
+	
+	/**
+	 * Run something once the builds asked for so far have let go of their sources: at
+	 * once if no build is reading one, otherwise when that build ends.
+	 */
+	public void whenSourcesReleased(final Runnable release) {
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				if (holdingSource) {
+					afterRelease.add(release);
+				} else {
+					release.run();
+				}
+			}
+		});
+	}
+	
 	public boolean scheduleRequest(MachineCommand request) {
-		pendingQueue.add(request);
-		synchronized(this) { notify(); }
+		scheduler.schedule(request);
 		
 		return true;
 	}
@@ -687,6 +745,7 @@ class MachineThread extends Thread {
 	}
 	
 	private void dispose() {
+		closeBuilder();
 		if (driver != null) {
 			driver.dispose();
 		}
@@ -694,14 +753,6 @@ class MachineThread extends Thread {
 			simulator.dispose();
 		}
 		
-		if (statusThread != null) {
-			try {
-				statusThread.interrupt();
-				statusThread.join(1000);
-			} catch (InterruptedException e) {
-			}
-		}
-		
 		setState(new MachineState(MachineState.State.NOT_ATTACHED));
 	}
 	
@@ -1,6 +1,5 @@
 package replicatorg.machine.builder;
 
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Level;
@@ -8,7 +7,9 @@ import java.util.logging.Level;
 import javax.swing.JOptionPane;
 
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeCommand;
 import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.ParsedGCodeSource;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.RetryException;
@@ -16,7 +17,9 @@ import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
+import replicatorg.machine.model.MachineModel;
 import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
 
 /**
  * Machine builder for building a GCodeSource on a Driver
@@ -33,7 +36,7 @@ public class Direct implements MachineBuilder{
 	}
 	
 	GCodeSource source;
-	Iterator<String> i;
+	ParsedGCodeSource.CommandIterator i;
 	
 	int linesProcessed;
 	int linesTotal;
@@ -50,6 +53,15 @@ public class Direct implements MachineBuilder{
 	
 	boolean retry = false;
 	
+	// If we're parsing ahead on another thread, the thread, and how many lines we've taken from it
+	boolean parsingAhead;
+	ParseAhead parseAhead = null;
+	int linesTaken = 0;
+	int mispredictions = 0;
+	boolean parsedAll = false;
+	// How far the driver may be from where the parse-ahead thread thought, on each axis
+	Point5d positionTolerance = null;
+	
 	State state;
 	
 	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source) {
@@ -59,8 +71,9 @@ public class Direct implements MachineBuilder{
 		linesProcessed = 0;
 		linesTotal = source.getLineCount();
 		
-		// Initialize our gcode provider
-		i = source.iterator();
+		// Initialize our gcode provider. If the source has already been parsed
+		// (for the estimate or the safety check) we just replay it.
+		i = ParsedGCodeSource.commandIterator(source);
 		
 		if (driver == null) {
 			building = false;
@@ -91,10 +104,22 @@ public class Direct implements MachineBuilder{
 		}
 		
 		simulating = false;
+		
+		parsingAhead = building && Base.preferences.getBoolean("build.parseAhead", false);
 	
 		state = State.RUNNING_GCODE;
 	}
 	
+	/**
+	 * Stop parsing ahead, if we are, and wait until nothing is reading the source any
+	 * more. Call this before the build's source is let go of, whether the build finished
+	 * or was abandoned.
+	 */
+	public void close() {
+		if (parseAhead != null)
+			parseAhead.close();
+	}
+	
 	
 	@Override
 	public boolean finished() {
@@ -104,6 +129,11 @@ public class Direct implements MachineBuilder{
 	// Run the next command on the driver
 	@Override
 	public void runNext() { 
+		if (parsingAhead) {
+			runNextParsedAhead();
+			return;
+		}
+		
 		if (!i.hasNext()) {
 			// TODO: This is clunky.
 			if (driver.isFinished()) {
@@ -123,17 +153,17 @@ public class Direct implements MachineBuilder{
 		
 		// Read and process next line
 		if (retry == false) {
-			String line = i.next();
 			linesProcessed++;
+			GCodeCommand gcode = i.next();
 
 			// Parse a line for the actual machine
 			if (building) {
-				parser.parse(line, driverQueue);
+				parser.parse(gcode, driverQueue);
 			}
 			
-			// If we're simulating, parse a line to feed to the simulator 
+			// If we're simulating, use the same line to feed to the simulator 
 			if (simulating) {
-				simulationParser.parse(line, simulatorQueue);
+				simulationParser.parse(gcode, simulatorQueue);
 			}
 		}
 		
@@ -151,6 +181,118 @@ public class Direct implements MachineBuilder{
 			simulatorQueue.clear();
 		}
 		
+		runDriverQueue();
+	}
+	
+	// Run the next line on the driver, taking it from the parse-ahead thread
+	private void runNextParsedAhead() {
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting build");
+			return;
+		}
+		
+		// Finish off the last line before starting another
+		if (driverQueue.isEmpty()) {
+			if (parsedAll) {
+				if (driver.isFinished()) {
+					state = State.FINISHED;
+				} else {
+					state = State.WAITING_FOR_MACHINE_FINISH;
+				}
+				return;
+			}
+			
+			if (parseAhead == null) {
+				positionTolerance = positionTolerance(driver.getMachine());
+				parseAhead = new ParseAhead(driver, new ParseAhead.Input() {
+					public boolean hasNext() { return i.hasNext(); }
+					public GCodeCommand next() { return i.next(); }
+				}, null, new LinkedList<ParseAhead.Entry>(), null, true);
+				parseAhead.start();
+			}
+			
+			// If the line isn't ready, let the machine thread get on with other things
+			ParseAhead.Entry entry = parseAhead.next(linesTaken, 50);
+			if (entry == null)
+				return;
+			if (entry == ParseAhead.END) {
+				parsedAll = true;
+				return;
+			}
+			linesTaken++;
+			linesProcessed++;
+			if (entry.failure != null)
+				throw entry.failure;
+			
+			if (entry.assumedPosition != null &&
+					!samePosition(entry.assumedPosition, driver.getCurrentPosition(false), positionTolerance)) {
+				// The driver didn't end up where we thought it would, so parse this line
+				// and everything after it again, from where it did end up
+				Base.logger.log(Level.FINE, "Parse-ahead guessed the wrong position, parsing again");
+				linesProcessed--;
+				mispredictions++;
+				
+				LinkedList<ParseAhead.Entry> replay = new LinkedList<ParseAhead.Entry>();
+				replay.add(entry);
+				replay.addAll(parseAhead.takeRemaining());
+				parseAhead = new ParseAhead(driver, parseAhead.getInput(), entry.before, replay,
+						driver.getCurrentPosition(false), mispredictions < ParseAhead.MAX_MISPREDICTIONS);
+				linesTaken = 0;
+				parseAhead.start();
+				return;
+			}
+			
+			driverQueue.addAll(entry.commands);
+			
+			// Simulate the command. Just run everything against the simulator, and ignore errors.
+			if (simulating) {
+				simulationParser.parse(entry.gcode, simulatorQueue);
+				for (DriverCommand command : simulatorQueue) {
+					try {
+						command.run(simulator);
+					} catch (RetryException r) {
+						// Ignore.
+					} catch (StopException e) {
+						// TODO: stop the simulator at this point?
+					}
+				}
+				simulatorQueue.clear();
+			}
+		}
+		
+		runDriverQueue();
+		if (state == State.FINISHED)
+			close();
+	}
+	
+	// Positions that differ by less than this are the same, on axes we don't know the steps of
+	static final double MIN_POSITION_TOLERANCE = 1e-6;
+	
+	/**
+	 * Work out how far apart two positions can be and still be the same: the driver may
+	 * have rounded where it was told to go to a whole step, or just lost a little in the
+	 * arithmetic. That is half a step on each axis.
+	 */
+	static Point5d positionTolerance(MachineModel machine) {
+		Point5d tolerance = new Point5d();
+		Point5d steps = (machine == null) ? null : machine.getStepsPerMM();
+		for (int axis = 0; axis < 5; axis++) {
+			double perMM = (steps == null) ? 0 : Math.abs(steps.get(axis));
+			tolerance.set(axis, Math.max(MIN_POSITION_TOLERANCE, (perMM > 0) ? 0.5 / perMM : 0));
+		}
+		return tolerance;
+	}
+	
+	static boolean samePosition(Point5d a, Point5d b, Point5d tolerance) {
+		for (int axis = 0; axis < 5; axis++) {
+			if (!(Math.abs(a.get(axis) - b.get(axis)) <= tolerance.get(axis)))
+				return false;
+		}
+		return true;
+	}
+	
+	// Run the commands we've parsed on the machine, until they've all gone or the driver asks us to retry
+	private void runDriverQueue() {
 		try {
 			if (building) {
 				// Run the command on the machine.
@@ -168,37 +310,49 @@ public class Direct implements MachineBuilder{
 			retry = true;
 		} catch (StopException e) {
 			// TODO: Just returning here seems dangerous, better to notify the state machine.
-			
-			switch (e.getType()) {
-			case UNCONDITIONAL_HALT:
-				JOptionPane.showMessageDialog(null, e.getMessage(), 
-						"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
-				state = State.FINISHED;
-				break;
-			case PROGRAM_END:
-				JOptionPane.showMessageDialog(null, e.getMessage(),
-						"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
-				state = State.FINISHED;
-				break;
-			case OPTIONAL_HALT:
-				int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
-						"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
-				
-				if (result == JOptionPane.YES_OPTION) {
-					driverQueue.remove();
-				} else {
-					state = State.FINISHED;
-				}
-				break;
-			case PROGRAM_REWIND:
-				JOptionPane.showMessageDialog(null, e.getMessage(),
-						"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+			if (halt(e)) {
+				driverQueue.remove();
+			} else {
 				state = State.FINISHED;
-				break;
 			}
 		}
 	}
 	
+	/**
+	 * The build has come to a halt: say so, and for an optional halt ask whether to go on.
+	 * @return true to carry on with the build past the halt
+	 */
+	boolean halt(StopException e) {
+		return askToContinue(e);
+	}
+	
+	/**
+	 * Tell the user the build has come to a halt, and for an optional halt ask them
+	 * whether to go on.
+	 * @return true if they want the build to carry on past the halt
+	 */
+	static boolean askToContinue(StopException e) {
+		switch (e.getType()) {
+		case UNCONDITIONAL_HALT:
+			JOptionPane.showMessageDialog(null, e.getMessage(), 
+					"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
+			break;
+		case PROGRAM_END:
+			JOptionPane.showMessageDialog(null, e.getMessage(),
+					"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
+			break;
+		case OPTIONAL_HALT:
+			int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
+					"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
+			return result == JOptionPane.YES_OPTION;
+		case PROGRAM_REWIND:
+			JOptionPane.showMessageDialog(null, e.getMessage(),
+					"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+			break;
+		}
+		return false;
+	}
+	
 	public int getLinesTotal() {
 		return linesTotal;
 	}
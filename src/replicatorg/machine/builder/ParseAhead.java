@@ -0,0 +1,542 @@
+package replicatorg.machine.builder;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MultiTool;
+import replicatorg.drivers.Version;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.HomeAxes;
+import replicatorg.drivers.commands.InvalidatePosition;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.RecallHomePositions;
+import replicatorg.drivers.commands.SetAxisOffset;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Parses gcode into driver commands on a thread of its own, a little ahead of the
+ * machine, so that the machine thread only has to send them. On dense gcode full of
+ * short moves, parsing each line between sends is enough to starve the firmware.
+ *
+ * The parser asks the driver where the machine is on almost every line, and the
+ * driver only knows that once the lines before have been sent. So we answer for it
+ * with the position the last move we parsed will leave the machine at. The things
+ * that don't change during a build (the machine's model, the firmware version) are
+ * read from the driver when we are made, on the machine thread. Anything else we
+ * can't predict (homing, offsets, temperatures) waits until the machine thread has
+ * caught up and is asked there, so the driver is only ever used from the machine
+ * thread.
+ *
+ * A driver may not end up exactly where it was told to go; some adjust the points
+ * they are given. Each parsed line carries the position it assumed, and the machine
+ * thread checks that before running it. If it's wrong, everything parsed from that
+ * line on is thrown away and parsed again from where the machine really is. A driver
+ * that is wrong more than a few times isn't predicted at all after that.
+ */
+class ParseAhead extends Thread {
+
+	// How many parsed lines can be waiting for the machine
+	private static final int READ_AHEAD = 256;
+
+	// How often the parse-ahead thread checks whether it has been closed while waiting
+	private static final long WAIT_MILLIS = 100;
+
+	// How long the machine thread waits for a line before checking for queries again
+	private static final long POLL_MILLIS = 2;
+
+	// Wrong guesses allowed before we stop guessing
+	static final int MAX_MISPREDICTIONS = 3;
+
+	/**
+	 * A line of gcode, and what it parsed into.
+	 */
+	static class Entry {
+		/// the line, or null if it couldn't be parsed
+		final GCodeCommand gcode;
+
+		/// what was thrown when the line couldn't be parsed
+		final RuntimeException failure;
+
+		/// the parser as it was before this line, so that we can start again from here.
+		/// Lines that don't change the parser share this, so it must never be changed.
+		final GCodeParser before;
+
+		/// the commands the line parsed into
+		Queue<DriverCommand> commands = null;
+
+		/// where the parse assumed the machine was when this line starts, or null if it
+		/// didn't need to know or had already asked the driver itself
+		Point5d assumedPosition = null;
+
+		Entry(GCodeCommand gcode, RuntimeException failure, GCodeParser before) {
+			this.gcode = gcode;
+			this.failure = failure;
+			this.before = before;
+		}
+	}
+
+	/**
+	 * Where the lines come from.
+	 */
+	interface Input {
+		/// @return false if there are no more lines
+		boolean hasNext();
+
+		/// @return the next line. Throws whatever the line's parse threw.
+		GCodeCommand next();
+	}
+
+	// Marks the end of the lines in the queue
+	static final Entry END = new Entry(null, null, null);
+
+	private final Driver driver;
+	private final DriverQueryInterface target;
+	private final Input input;
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(READ_AHEAD);
+
+	// Lines to parse again before going back to the input
+	private final LinkedList<Entry> replay;
+
+	// The parser we're using, which answers its queries from us rather than the driver
+	private GCodeParser parser;
+
+	// The last copy we made of the parser, which the lines after it share until it changes
+	private GCodeParser snapshot = null;
+
+	// Where the machine will be once everything parsed so far has run, or null if we don't know
+	private Point5d position;
+
+	// If false, we always ask the driver where the machine is
+	private final boolean predict;
+
+	// The line we're working on, which hasn't made it into the queue yet
+	private Entry current = null;
+
+	// The entry being parsed, so that the queries know which one assumed a position
+	private Entry parsing = null;
+
+	// True if the line just parsed changed something the parser reads from the driver,
+	// so the machine has to run it before we parse any further
+	private boolean mustCatchUp = false;
+
+	private volatile boolean closed = false;
+
+	// What the driver said when we were made, about things that don't change during a build
+	private final Point5d maximumFeedrates;
+	private final boolean passthroughDriver;
+	private final Version version;
+	private final Version preferredVersion;
+	private final MachineModel machine;
+	private final boolean toolsCanBeReindexed;
+	private final boolean supportsSimultaneousTools;
+
+	// Handshake with the machine thread, all guarded by this
+	private int handedOver = 0;		// entries put in the queue
+	private int completed = 0;		// entries the machine thread has finished running
+	private Callable<?> request = null;
+	private Object answer = null;
+	private RuntimeException answerFailure = null;
+
+	/**
+	 * Called on the machine thread.
+	 * @param parser the parser state to start from, or null to start a new parser
+	 * @param replay lines to parse before reading any more from input
+	 * @param position where the machine is, or null if we should ask
+	 */
+	ParseAhead(Driver driver, Input input, GCodeParser parser, LinkedList<Entry> replay,
+			Point5d position, boolean predict) {
+		super("GCode parse-ahead");
+		this.driver = driver;
+		this.target = (DriverQueryInterface)driver;
+		this.input = input;
+		this.parser = parser;
+		this.replay = replay;
+		this.position = position;
+		this.predict = predict;
+
+		maximumFeedrates = target.getMaximumFeedrates();
+		passthroughDriver = target.isPassthroughDriver();
+		version = target.getVersion();
+		preferredVersion = target.getPreferredVersion();
+		machine = target.getMachine();
+		if (driver instanceof MultiTool) {
+			toolsCanBeReindexed = ((MultiTool)driver).toolsCanBeReindexed();
+			supportsSimultaneousTools = ((MultiTool)driver).supportsSimultaneousTools();
+		} else {
+			toolsCanBeReindexed = false;
+			supportsSimultaneousTools = false;
+		}
+		setDaemon(true);
+	}
+
+	Input getInput() {
+		return input;
+	}
+
+	@Override
+	public void run() {
+		try {
+			parseAll();
+		} catch (Closed e) {
+			// We were closed while the parser was waiting on the machine
+		}
+	}
+
+	private void parseAll() {
+		// The parser checks for MultiTool drivers, so we have to look like one if the driver is
+		final DriverQueryInterface query = (driver instanceof MultiTool) ? new MultiToolQuery() : new Query();
+		if (parser == null) {
+			parser = new GCodeParser();
+			parser.init(query);
+		} else {
+			parser = parser.copy(query);
+		}
+
+		while (!closed) {
+			if (current == null) {
+				if (!replay.isEmpty()) {
+					Entry old = replay.removeFirst();
+					current = new Entry(old.gcode, old.failure, snapshot());
+				} else if (input.hasNext()) {
+					GCodeCommand gcode = null;
+					RuntimeException failure = null;
+					try {
+						gcode = input.next();
+					} catch (RuntimeException e) {
+						failure = e;
+					}
+					current = new Entry(gcode, failure, snapshot());
+				} else {
+					current = END;
+				}
+
+				if (current.gcode != null) {
+					try {
+						parse(current);
+					} catch (Closed e) {
+						throw e;
+					} catch (RuntimeException e) {
+						// The machine thread throws it when it gets to this line, as it
+						// would have if it had parsed the line itself
+						current = new Entry(null, e, current.before);
+					}
+				}
+			}
+
+			try {
+				if (!queue.offer(current, WAIT_MILLIS, TimeUnit.MILLISECONDS))
+					continue;
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this) {
+				handedOver++;
+			}
+			if (current == END)
+				return;
+			current = null;
+
+			if (mustCatchUp) {
+				mustCatchUp = false;
+				onMachineThread(null);
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the parser as it is now. Most lines don't change it, and dense
+	 * gcode has a lot of lines, so we only make a new copy when it has changed.
+	 */
+	private GCodeParser snapshot() {
+		if (snapshot == null || !parser.sameState(snapshot))
+			snapshot = parser.copy(null);
+		return snapshot;
+	}
+
+	private void parse(Entry entry) {
+		parsing = entry;
+		entry.commands = new LinkedList<DriverCommand>();
+		parser.parse(entry.gcode, entry.commands);
+		parsing = null;
+
+		for (DriverCommand command : entry.commands) {
+			if (command instanceof QueuePoint) {
+				if (position != null)
+					position = new Point5d(((QueuePoint)command).getDestination());
+			} else if (command instanceof SetCurrentPosition) {
+				position = new Point5d(((SetCurrentPosition)command).getPoint());
+			} else if (command instanceof HomeAxes || command instanceof RecallHomePositions ||
+					command instanceof InvalidatePosition) {
+				position = null;
+			} else if (command instanceof SetAxisOffset) {
+				// Offsets are shared with the driver, and the parser reads them as it goes
+				mustCatchUp = true;
+			}
+		}
+		if (!predict)
+			position = null;
+	}
+
+	/**
+	 * Ask the machine thread to answer a query, once everything handed over so far
+	 * has run. Waits for the answer.
+	 * @param q the query, or null just to wait for the machine to catch up
+	 */
+	private synchronized Object onMachineThread(Callable<?> q) {
+		request = (q == null) ? NOTHING : q;
+		answer = null;
+		answerFailure = null;
+		try {
+			while (request != null) {
+				if (closed)
+					throw new Closed();
+				wait(WAIT_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			throw new Closed();
+		}
+		if (answerFailure != null)
+			throw answerFailure;
+		return answer;
+	}
+
+	private static final Callable<Object> NOTHING = new Callable<Object>() {
+		public Object call() {
+			return null;
+		}
+	};
+
+	// Thrown out of the parser when we're closed in the middle of a line
+	private static class Closed extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Get the next parsed line, answering any queries the parse-ahead thread has
+	 * for the driver while we wait. Called on the machine thread, which must have
+	 * finished running every line taken so far.
+	 * @param taken the number of lines taken from this ParseAhead so far
+	 * @return the next line, or null if it isn't ready within maxMillis. END marks the end.
+	 * Lines that couldn't be parsed come with their failure, and no commands.
+	 */
+	Entry next(int taken, long maxMillis) {
+		final long deadline = System.currentTimeMillis() + maxMillis;
+		try {
+			do {
+				caughtUp(taken);
+				Entry entry = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (entry != null)
+					return entry;
+			} while (System.currentTimeMillis() < deadline);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	// Every line taken so far has run on the machine, so answer anything we've been
+	// waiting to ask the driver
+	private synchronized void caughtUp(int taken) {
+		completed = taken;
+		if (request != null && completed == handedOver) {
+			try {
+				answer = request.call();
+			} catch (RuntimeException e) {
+				answerFailure = e;
+			} catch (Exception e) {
+				answerFailure = new RuntimeException(e);
+			}
+			request = null;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Stop parsing, and wait for the thread to finish, so that nothing reads the
+	 * input once we return. Lines already parsed can still be taken.
+	 */
+	void close() {
+		closed = true;
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Stop parsing, then collect every line the thread had started on, in order,
+	 * so that another ParseAhead can parse them again.
+	 */
+	LinkedList<Entry> takeRemaining() {
+		close();
+
+		LinkedList<Entry> remaining = new LinkedList<Entry>();
+		queue.drainTo(remaining);
+		if (current != null && current != END)
+			remaining.add(current);
+		remaining.addAll(replay);
+		remaining.remove(END);
+		return remaining;
+	}
+
+	/**
+	 * Answers the parser's questions about the driver. The machine's model and other
+	 * things that don't change during a build were read when we were made; where
+	 * the machine is comes from what we've parsed if we know; anything else is asked
+	 * on the machine thread once it has caught up.
+	 */
+	private class Query implements DriverQueryInterface {
+		Object ask(Callable<?> q) {
+			return onMachineThread(q);
+		}
+
+		public Point5d getCurrentPosition(final boolean forceUpdate) {
+			if (position == null || forceUpdate) {
+				position = (Point5d)ask(new Callable<Point5d>() {
+					public Point5d call() {
+						return target.getCurrentPosition(forceUpdate);
+					}
+				});
+			} else if (parsing != null && parsing.assumedPosition == null) {
+				parsing.assumedPosition = new Point5d(position);
+			}
+			return new Point5d(position);
+		}
+
+		public Point3d getOffset(final int i) {
+			return (Point3d)ask(new Callable<Point3d>() {
+				public Point3d call() {
+					return target.getOffset(i);
+				}
+			});
+		}
+
+		public double getSpindleRPM() {
+			return (Double)ask(new Callable<Double>() {
+				public Double call() {
+					return target.getSpindleRPM();
+				}
+			});
+		}
+
+		public double getMotorRPM() {
+			return (Double)ask(new Callable<Double>() {
+				public Double call() {
+					return target.getMotorRPM();
+				}
+			});
+		}
+
+		public int getMotorSpeedPWM() {
+			return (Integer)ask(new Callable<Integer>() {
+				public Integer call() {
+					return target.getMotorSpeedPWM();
+				}
+			});
+		}
+
+		public double getTemperature(final int toolhead) {
+			return (Double)ask(new Callable<Double>() {
+				public Double call() {
+					return target.getTemperature(toolhead);
+				}
+			});
+		}
+
+		public double getTemperatureSetting() {
+			return (Double)ask(new Callable<Double>() {
+				public Double call() {
+					return target.getTemperatureSetting();
+				}
+			});
+		}
+
+		public boolean hasAutomatedBuildPlatform() {
+			return (Boolean)ask(new Callable<Boolean>() {
+				public Boolean call() {
+					return target.hasAutomatedBuildPlatform();
+				}
+			});
+		}
+
+		public double getPlatformTemperature(final int toolhead) {
+			return (Double)ask(new Callable<Double>() {
+				public Double call() {
+					return target.getPlatformTemperature(toolhead);
+				}
+			});
+		}
+
+		public double getPlatformTemperatureSetting() {
+			return (Double)ask(new Callable<Double>() {
+				public Double call() {
+					return target.getPlatformTemperatureSetting();
+				}
+			});
+		}
+
+		public String getConfigValue(final String value, final String baseline) {
+			return (String)ask(new Callable<String>() {
+				public String call() {
+					return target.getConfigValue(value, baseline);
+				}
+			});
+		}
+
+		public Point5d getMaximumFeedrates() {
+			return (maximumFeedrates == null) ? null : new Point5d(maximumFeedrates);
+		}
+
+		public boolean isPassthroughDriver() {
+			return passthroughDriver;
+		}
+
+		public Version getVersion() {
+			return version;
+		}
+
+		public Version getPreferredVersion() {
+			return preferredVersion;
+		}
+
+		public MachineModel getMachine() {
+			return machine;
+		}
+	}
+
+	private class MultiToolQuery extends Query implements MultiTool {
+		public boolean toolsCanBeReindexed() {
+			return toolsCanBeReindexed;
+		}
+
+		public boolean setConnectedToolIndex(final int index) {
+			return (Boolean)ask(new Callable<Boolean>() {
+				public Boolean call() {
+					return ((MultiTool)target).setConnectedToolIndex(index);
+				}
+			});
+		}
+
+		public boolean supportsSimultaneousTools() {
+			return supportsSimultaneousTools;
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package replicatorg.machine.builder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.PacketCapture;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.SimulationDriver;
+import replicatorg.drivers.StopException;
+import replicatorg.machine.Machine.JobTarget;
+import replicatorg.model.GCodeSource;
+
+/**
+ * Machine builder that compiles the whole build into the packets the driver would send
+ * before sending any of them, and then just streams those packets to the machine.
+ *
+ * The compiling is done by a Direct builder with the driver capturing packets, the same
+ * way a build to a file is, so the build sees the same position and answers to its
+ * queries as it would there. While that goes on the driver has no real answers to give,
+ * so nothing else may ask it anything; see isCompiling(). The packets go to a temporary
+ * file, which is read back a chunk at a time as they are sent. Sending then needs no
+ * parsing and no new objects per move, which keeps up with the machine however short
+ * the moves are.
+ *
+ * Halts (M0, M1, M2, M30) aren't packets. The compiler notes where in the file each one
+ * falls instead of stopping to ask about it, and the user is asked once everything
+ * before it has been sent, as they would be building directly. Compiling carries on
+ * past an optional halt, in case the user wants to go on; any other halt ends it.
+ */
+public class Precompiled implements MachineBuilder {
+
+	// How many lines we compile, and packets we send, before letting the machine
+	// thread see to anything else
+	private static final int LINES_PER_STEP = 500;
+	private static final int PACKETS_PER_STEP = 32;
+
+	// The packets are read back from the file this much at a time...
+	private static final int CHUNK_LENGTH = 65536;
+	// ...and no packet is anywhere near this long (an s3g packet is at most 258 bytes),
+	// so one is never split between chunks
+	private static final int MAX_PACKET_LENGTH = 1024;
+
+	public enum State {
+		COMPILING,
+		SENDING,
+		WAITING_FOR_MACHINE_FINISH,
+		FINISHED
+	}
+
+	// Counts the packets on their way to the file, and remembers the first failure; the
+	// driver only sees an error while it is capturing, the build needs to know too
+	private static class PacketFile extends OutputStream {
+		final OutputStream out;
+		long size = 0;
+		IOException failure = null;
+
+		PacketFile(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+				size += len;
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+				throw e;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	// A halt, and how much of the file comes before it
+	private static class Halt {
+		final long offset;
+		final StopException stop;
+
+		Halt(long offset, StopException stop) {
+			this.offset = offset;
+			this.stop = stop;
+		}
+	}
+
+	Driver driver;
+	PacketCapture capture;
+	Direct compiler;
+	LinkedList<Halt> halts = new LinkedList<Halt>();
+
+	File file = null;
+	PacketFile packets = null;
+	// Where the packets for each line end in the file
+	long[] lineEnds;
+	int linesCompiled = 0;
+	boolean capturing = false;
+
+	// The file being read back, and the part of it in the chunk that hasn't been sent
+	InputStream in = null;
+	byte[] chunk = null;
+	int chunkStart = 0;
+	int chunkEnd = 0;
+	boolean drained = false;
+
+	// How much of the file has been sent, and how many lines that covers
+	long sent = 0;
+	int linesSent = 0;
+
+	State state;
+
+	public Precompiled(Driver driver, SimulationDriver simulator, GCodeSource source) {
+		this.driver = driver;
+		this.capture = (PacketCapture)driver;
+		compiler = new Direct(driver, simulator, source) {
+			@Override
+			boolean halt(StopException e) {
+				// Ending the capture sends on any moves the planner is holding back, so
+				// that they come before the halt
+				capture.endPacketCapture();
+				capture.beginPacketCapture(packets);
+				halts.add(new Halt(packets.size, e));
+				return e.getType() == StopException.StopType.OPTIONAL_HALT;
+			}
+		};
+		lineEnds = new long[Math.max(16, compiler.getLinesTotal() + 1)];
+		state = State.COMPILING;
+	}
+
+	/**
+	 * Stop compiling or sending, if we are. Call this if the build is abandoned before
+	 * it finishes.
+	 */
+	public void close() {
+		compiler.close();
+		if (capturing) {
+			capture.endPacketCapture();
+			capturing = false;
+		}
+		closeFile();
+	}
+
+	/**
+	 * @return true while the build is being compiled. The driver is capturing packets
+	 * then, so it mustn't be given anything else to do: its answers would be made up,
+	 * and what it was told to do would end up in the build.
+	 */
+	public boolean isCompiling() {
+		return capturing;
+	}
+
+	@Override
+	public boolean finished() {
+		return (state == State.FINISHED);
+	}
+
+	@Override
+	public void runNext() {
+		switch (state) {
+		case COMPILING:
+			compileNext();
+			break;
+		case SENDING:
+			sendNext();
+			break;
+		case WAITING_FOR_MACHINE_FINISH:
+			if (driver.isFinished()) {
+				state = State.FINISHED;
+			}
+			break;
+		case FINISHED:
+			break;
+		}
+	}
+
+	private void compileNext() {
+		if (!capturing) {
+			try {
+				file = File.createTempFile("build", ".s3g");
+				file.deleteOnExit();
+				packets = new PacketFile(new BufferedOutputStream(new FileOutputStream(file)));
+			} catch (IOException e) {
+				Base.logger.log(Level.SEVERE, "Couldn't make a file to compile the build into", e);
+				closeFile();
+				state = State.FINISHED;
+				return;
+			}
+			// Find out where the machine is before we stop asking it anything
+			driver.getCurrentPosition(false);
+			capture.beginPacketCapture(packets);
+			capturing = true;
+		}
+
+		for (int n = 0; n < LINES_PER_STEP && !compiler.finished() && packets.failure == null; n++) {
+			compiler.runNext();
+
+			int lines = compiler.getLinesProcessed();
+			while (linesCompiled < lines) {
+				if (linesCompiled == lineEnds.length) {
+					long[] grown = new long[lineEnds.length * 2];
+					System.arraycopy(lineEnds, 0, grown, 0, linesCompiled);
+					lineEnds = grown;
+				}
+				lineEnds[linesCompiled++] = packets.size;
+			}
+		}
+
+		if (packets.failure != null) {
+			Base.logger.log(Level.SEVERE, "Couldn't write the compiled build to " + file, packets.failure);
+			close();
+			state = State.FINISHED;
+		} else if (compiler.finished()) {
+			capture.endPacketCapture();
+			capturing = false;
+			try {
+				packets.close();
+				in = new FileInputStream(file);
+			} catch (IOException e) {
+				Base.logger.log(Level.SEVERE, "Couldn't write the compiled build to " + file, e);
+				closeFile();
+				state = State.FINISHED;
+				return;
+			}
+			Base.logger.log(Level.FINE, "Compiled " + linesCompiled + " lines to " + packets.size + " bytes");
+			chunk = new byte[CHUNK_LENGTH];
+			state = State.SENDING;
+		}
+	}
+
+	private void sendNext() {
+		for (int n = 0; n < PACKETS_PER_STEP; n++) {
+			if (!halts.isEmpty() && halts.getFirst().offset <= sent) {
+				if (!askToContinue(halts.removeFirst().stop)) {
+					closeFile();
+					state = State.FINISHED;
+				}
+				return;
+			}
+			if (chunkEnd - chunkStart < MAX_PACKET_LENGTH && !drained) {
+				readChunk();
+			}
+			if (chunkStart == chunkEnd) {
+				closeFile();
+				state = State.WAITING_FOR_MACHINE_FINISH;
+				return;
+			}
+			try {
+				int length = capture.sendCapturedPacket(chunk, chunkStart);
+				chunkStart += length;
+				sent += length;
+			} catch (RetryException e) {
+				// The machine is full; the driver has already waited a while
+				return;
+			}
+			while (linesSent < linesCompiled && lineEnds[linesSent] <= sent) {
+				linesSent++;
+			}
+		}
+	}
+
+	/**
+	 * Tell the user the build has come to a halt, once everything before it has been
+	 * sent.
+	 * @return true if they want the build to carry on past the halt
+	 */
+	boolean askToContinue(StopException stop) {
+		return Direct.askToContinue(stop);
+	}
+
+	// Move what is left of the chunk to its start, and fill the rest from the file
+	private void readChunk() {
+		int left = chunkEnd - chunkStart;
+		System.arraycopy(chunk, chunkStart, chunk, 0, left);
+		chunkStart = 0;
+		chunkEnd = left;
+		try {
+			while (chunkEnd < chunk.length) {
+				int read = in.read(chunk, chunkEnd, chunk.length - chunkEnd);
+				if (read == -1) {
+					drained = true;
+					break;
+				}
+				chunkEnd += read;
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't read back the compiled build from " + file, e);
+			// Send what we have, and no more
+			drained = true;
+		}
+	}
+
+	private void closeFile() {
+		try {
+			if (packets != null) {
+				packets.close();
+			}
+			if (in != null) {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Nothing more to read or write
+		}
+		packets = null;
+		in = null;
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public int getLinesTotal() {
+		return compiler.getLinesTotal();
+	}
+
+	public int getLinesProcessed() {
+		return linesSent;
+	}
+
+	/**
+	 * @return how many lines have been compiled so far
+	 */
+	public int getLinesCompiled() {
+		return linesCompiled;
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+}
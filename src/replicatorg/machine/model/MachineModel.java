@@ -63,6 +63,7 @@ public class MachineModel
 	
 	//feedrate information
 	private Point5d maximumFeedrateSteps;
+	private Point5d maximumAccelerations;
 	private Point5d homingFeedrates;
 	private Point5d stepsPerMM;
     private Point5d timeOut;
@@ -109,6 +110,7 @@ public class MachineModel
 		minimum = new Point5d();
 		maximum = new Point5d();
 		maximumFeedrateSteps = new Point5d();
+		maximumAccelerations = new Point5d();
 		homingFeedrates = new Point5d();
 		timeOut = new Point5d();
 		stepsPerMM = new Point5d(1, 1, 1, 1, 1); //use ones, because we divide by this!
@@ -122,6 +124,28 @@ public class MachineModel
 	{
 		xml = node;
 		
+		parseMachine();
+		parseGCode();
+	}
+
+	/**
+	 * @return a model of the same machine, loaded from the same config, that can be
+	 * driven (tools selected, motors started and so on) without changing this one.
+	 * The bookend gcode isn't loaded into the copy.
+	 */
+	public MachineModel copy()
+	{
+		MachineModel copy = new MachineModel();
+		if (xml != null) {
+			copy.xml = xml;
+			copy.parseMachine();
+		}
+		return copy;
+	}
+
+	// everything but the bookend gcode
+	private void parseMachine()
+	{
 		parseType();
 		parseAxes();
 		parseClamps();
@@ -129,8 +153,7 @@ public class MachineModel
 		parseBuildVolume();
 		parseWipes();
 		parseExclusion();
-		parseGCode();
-                parseOffsets();
+		parseOffsets();
 	}
 	
 
@@ -254,6 +277,7 @@ public class MachineModel
 						//initialize values
 						double length = 0.0;
 						double maxFeedrate = 0.0;
+						double maxAcceleration = 0.0;
 						double homingFeedrate = 0.0;
 						double stepspermm = 1.0;
 						Endstops endstops = Endstops.NONE;
@@ -268,6 +292,9 @@ public class MachineModel
 						try {
 						 	maxFeedrate = Double.parseDouble(XML.getAttributeValue(axis, "maxfeedrate"));
 						} catch (Exception e) {}
+						try {
+							maxAcceleration = Double.parseDouble(XML.getAttributeValue(axis, "acceleration"));
+						} catch (Exception e) {}
 						try {
 							homingFeedrate = Double.parseDouble(XML.getAttributeValue(axis, "homingfeedrate"));
 						} catch (Exception e) {
@@ -295,6 +322,7 @@ public class MachineModel
 						}
 						maximum.setAxis(id,length);
 						maximumFeedrateSteps.setAxis(id,maxFeedrate);
+						maximumAccelerations.setAxis(id,maxAcceleration);
 						homingFeedrates.setAxis(id,homingFeedrate);
 						stepsPerMM.setAxis(id,stepspermm);
 						timeOut.setAxis(id,timeout);
@@ -614,6 +642,11 @@ public class MachineModel
 		return maximumFeedrateSteps;
 	}
 	
+	/// Maximum acceleration in mm/sec/sec, or 0 where the machine file doesn't give one
+	public Point5d getMaximumAccelerations() {
+		return maximumAccelerations;
+	}
+	
 	public Point5d getHomingFeedrates() {
 		return homingFeedrates;
 	}
@@ -63,6 +63,13 @@ public class GCodeSourceCollection implements GCodeSource {
 		this.lineCount = lineCount;
 	}
 	
+	/**
+	 * @return the sources that make up this collection, in order
+	 */
+	public List<GCodeSource> getSources() {
+		return sources;
+	}
+
 	@Override
 	public Iterator<String> iterator() {
 		return new GCodeSourceCollectionIterator(sources);
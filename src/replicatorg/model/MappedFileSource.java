@@ -0,0 +1,278 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+
+/**
+ * A GCodeSource that reads its lines straight out of a memory-mapped file.
+ *
+ * Opening the file makes one pass over it to record where each line starts;
+ * after that the only thing on the heap is that index. Lines are decoded
+ * when the iterator or asList() asks for them, so a big job streams from
+ * the page cache instead of sitting in memory as Strings.
+ *
+ * Lines are split the same way BufferedReader.readLine() splits them.
+ * The file must not be changed or truncated while this source is in use;
+ * don't let the user save over it until it is closed, and close() the source
+ * only once nothing is reading from it any more.
+ */
+public class MappedFileSource implements GCodeSource {
+
+	// Files are mapped in pieces of this size, so that we can handle files over 2GB
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	// Lines longer than this get a buffer of their own when they are decoded
+	private static final int SCRATCH_SIZE = 256;
+	private static final byte[] NO_SCRATCH = new byte[0];
+
+	private final File file;
+	private final long length;
+	private final MappedByteBuffer[] segments;
+	private final Charset charset = Charset.defaultCharset();
+
+	/// Where each line starts in the file, followed by the length of the file.
+	/// Kept as ints unless the file is too big for that.
+	private int[] lineStarts;
+	private long[] longLineStarts;
+	private int lineCount = 0;
+
+	public MappedFileSource(File file) throws IOException {
+		this.file = file;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			segments = new MappedByteBuffer[(int)((length + SEGMENT_MASK) >>> SEGMENT_BITS)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long)i << SEGMENT_BITS;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(length - start, SEGMENT_MASK + 1));
+			}
+		} finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+
+		buildIndex();
+	}
+
+	/// Walk the file once, recording the start of every line.
+	private void buildIndex() {
+		int capacity = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(16, length / 24));
+		if (length <= Integer.MAX_VALUE)
+			lineStarts = new int[capacity];
+		else
+			longLineStarts = new long[capacity];
+
+		// number of entries in the index
+		int starts = 0;
+		if (length > 0)
+			starts = setStart(starts, 0);
+
+		boolean afterCR = false;
+		for (int s = 0; s < segments.length; s++) {
+			final MappedByteBuffer segment = segments[s];
+			final long base = (long)s << SEGMENT_BITS;
+			final int limit = segment.limit();
+
+			for (int i = 0; i < limit; i++) {
+				byte b = segment.get(i);
+				if (b == '\r') {
+					starts = setStart(starts, base + i + 1);
+					afterCR = true;
+				} else if (b == '\n') {
+					if (afterCR)
+						// "\r\n" is one line break; move the start we recorded for the '\r'
+						setStart(starts - 1, base + i + 1);
+					else
+						starts = setStart(starts, base + i + 1);
+					afterCR = false;
+				} else {
+					afterCR = false;
+				}
+			}
+		}
+
+		// If the file ends with a line break, the last start we recorded is the end of the
+		// file rather than a new line. Either way, the index ends with the length of the file.
+		if (starts > 0 && getStart(starts - 1) == length) {
+			lineCount = starts - 1;
+		} else {
+			lineCount = starts;
+			setStart(starts, length);
+		}
+	}
+
+	// Store a line start at the given index, growing the index if needed.
+	// Returns the index after the one written.
+	private int setStart(int index, long start) {
+		if (lineStarts != null) {
+			if (index == lineStarts.length) {
+				int[] newStarts = new int[(int)Math.min(Integer.MAX_VALUE - 8, lineStarts.length * 2L)];
+				System.arraycopy(lineStarts, 0, newStarts, 0, lineStarts.length);
+				lineStarts = newStarts;
+			}
+			lineStarts[index] = (int)start;
+		} else {
+			if (index == longLineStarts.length) {
+				long[] newStarts = new long[(int)Math.min(Integer.MAX_VALUE - 8, longLineStarts.length * 2L)];
+				System.arraycopy(longLineStarts, 0, newStarts, 0, longLineStarts.length);
+				longLineStarts = newStarts;
+			}
+			longLineStarts[index] = start;
+		}
+		return index + 1;
+	}
+
+	private long getStart(int index) {
+		return (lineStarts != null) ? lineStarts[index] : longLineStarts[index];
+	}
+
+	private byte byteAt(long position) {
+		return segments[(int)(position >>> SEGMENT_BITS)].get((int)(position & SEGMENT_MASK));
+	}
+
+	/**
+	 * Decode a single line.
+	 * @param index which line to read, 0 indexed
+	 * @param scratch a buffer to read the bytes into. A bigger one is used if it is too small.
+	 */
+	private String readLine(int index, byte[] scratch) {
+		final long start = getStart(index);
+		long end = getStart(index + 1);
+
+		// Drop the line break, if there is one
+		if (end > start && byteAt(end - 1) == '\n') {
+			end--;
+			if (end > start && byteAt(end - 1) == '\r')
+				end--;
+		} else if (end > start && byteAt(end - 1) == '\r') {
+			end--;
+		}
+
+		final int lineLength = (int)(end - start);
+		byte[] bytes = (scratch.length >= lineLength) ? scratch : new byte[lineLength];
+
+		int done = 0;
+		while (done < lineLength) {
+			long position = start + done;
+			ByteBuffer segment = segments[(int)(position >>> SEGMENT_BITS)].duplicate();
+			segment.position((int)(position & SEGMENT_MASK));
+			int count = Math.min(lineLength - done, segment.remaining());
+			segment.get(bytes, done, count);
+			done += count;
+		}
+
+		return new String(bytes, 0, lineLength, charset);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Let go of the mapping, so the file can be saved over or deleted (Windows won't
+	 * write to or delete a mapped file). Nothing may read from this source after it is closed, or while it is being
+	 * closed.
+	 * @return false if this JDK wouldn't unmap the file at once. It is then unmapped
+	 * whenever the garbage collector gets to it, and until then Windows won't delete it.
+	 */
+	public boolean close() {
+		lineCount = 0;
+		boolean unmapped = true;
+		for (int i = 0; i < segments.length; i++) {
+			MappedByteBuffer segment = segments[i];
+			segments[i] = null;
+			if (segment != null)
+				unmapped &= unmap(segment);
+		}
+		return unmapped;
+	}
+
+	// Mappings are otherwise only let go of when they are garbage collected. The JDK can
+	// unmap one at once, but only through its own classes: Unsafe.invokeCleaner() from
+	// Java 9 on, and the buffer's cleaner before that.
+	private static boolean unmap(MappedByteBuffer buffer) {
+		try {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buffer);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// Before Java 9
+			}
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			return true;
+		} catch (Exception e) {
+			Base.logger.log(Level.FINE, "Could not unmap a mapped gcode file", e);
+			return false;
+		}
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			int index = 0;
+			final byte[] scratch = new byte[SCRATCH_SIZE];
+
+			public boolean hasNext() {
+				return index < lineCount;
+			}
+
+			public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return readLine(index++, scratch);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public List<String> asList() {
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				if (index < 0 || index >= lineCount)
+					throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+				return readLine(index, NO_SCRATCH);
+			}
+
+			@Override
+			public int size() {
+				return lineCount;
+			}
+		};
+	}
+
+	@Override
+	public int getLineCount() {
+		return lineCount;
+	}
+}
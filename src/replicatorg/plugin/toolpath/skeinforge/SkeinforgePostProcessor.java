@@ -3,13 +3,14 @@ package replicatorg.plugin.toolpath.skeinforge;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,6 +24,8 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeTransform;
+import replicatorg.app.gcode.GCodeTransformChain;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
@@ -129,7 +132,7 @@ public class SkeinforgePostProcessor {
 	
 	private final SkeinforgeGenerator generator;
 	
-	private MutableGCodeSource source;
+	private GCodeTransformChain transforms;
 	
 	// options:
 	private MutableGCodeSource startCode = null;
@@ -159,8 +162,8 @@ public class SkeinforgePostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		// Collect the steps, so that we can run them all in one pass over the file
+		transforms = new GCodeTransformChain();
 		
 		if( ! dualstruding )
 		{
@@ -180,7 +183,7 @@ public class SkeinforgePostProcessor {
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addProgressUpdates();
+			transforms.add(GCodeTransform.progressUpdates());
 		}
 		
 		if(prependMetaInfo)
@@ -199,8 +202,12 @@ public class SkeinforgePostProcessor {
 			runPrepend(metaInfo);
 		}
 		
-		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		//Run the steps over our file, writing the modified source back to it
+		try {
+			transforms.run(generator.output.file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not post-process " + generator.output.file.getAbsolutePath(), e);
+		}
 		
 		return generator.output;
 	}
@@ -220,7 +227,7 @@ public class SkeinforgePostProcessor {
 	private void runToolheadSwap(ToolheadAlias switchTo)
 	{
 		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
+		transforms.add(GCodeTransform.changeToolhead(switchTo));
 	}
 	
 	/**
@@ -228,7 +235,8 @@ public class SkeinforgePostProcessor {
 	 */
 	private void runPrependStartCode()
 	{
-		prependAndModifyStartCode(source, startCode);
+		if(startCode != null)
+			transforms.add(prependModifiedStartCode(startCode));
 	}
 
 	/**
@@ -237,17 +245,28 @@ public class SkeinforgePostProcessor {
 	 * @param startGCode code to hack/verify/modify and append to the start of sourceGCode
 	 */
 	static public void prependAndModifyStartCode(MutableGCodeSource sourceGCode, MutableGCodeSource startGCode)
+	{
+		sourceGCode.transform(prependModifiedStartCode(startGCode));
+	}
+
+	// matches start code lines that set the temperature of a toolhead
+	private static final Pattern startTempPattern = Pattern.compile("^M104\\s+S(\\d+)\\s+T(\\d)\\s+(.*)\\s*$");
+
+	/**
+	 * Makes a step that prepends start code, after modifying some start code data based on settings.
+	 * @param startGCode code to hack/verify/modify and put at the start of the gcode
+	 */
+	static public GCodeTransform prependModifiedStartCode(GCodeSource startGCode)
 	{
 		MutableGCodeSource newStart = new MutableGCodeSource();
+		int newTemp = Base.preferences.getInt("replicatorg.skeinforge.printOMatic5D.printTemp", 220);
 
 		///modify local copy of start code based on settings
 		int matched = 0;
 		for(String line : startGCode)
 		{
-			Pattern p = Pattern.compile("^M104\\s+S(\\d+)\\s+T(\\d)\\s+(.*)\\s*$");
-			Matcher m = p.matcher(line);
+			Matcher m = startTempPattern.matcher(line);
 			if(m.matches() ){
-				int newTemp = Base.preferences.getInt("replicatorg.skeinforge.printOMatic5D.printTemp", 220);
 				Base.logger.finer("new temp" + newTemp);
 				String newStr = "M104 S" + newTemp + " T"+ m.group(2);
 				if(m.groupCount() >= 3)
@@ -262,9 +281,8 @@ public class SkeinforgePostProcessor {
 				
 			}
 		}
-		sourceGCode.add(0, newStart);
 		Base.logger.finer("printTemp replace count : " + matched);
-		
+		return GCodeTransform.prepend(newStart);
 	}
 		
 	/**
@@ -274,7 +292,7 @@ public class SkeinforgePostProcessor {
 	private void runPrepend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(0, newCode);
+			transforms.add(GCodeTransform.prepend(newCode));
 	}
 	
 	/**
@@ -284,7 +302,7 @@ public class SkeinforgePostProcessor {
 	private void runAppend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(newCode);
+			transforms.add(GCodeTransform.append(newCode));
 	}
 	
 	/**
@@ -352,16 +370,25 @@ public class SkeinforgePostProcessor {
 	 * removes all lines that are skeinforge tag comments, but not layer tags.
 	 */
 	static public void stripNonLayerTagComments(MutableGCodeSource source) {
-		String line;
-		for(Iterator<String> i = source.iterator(); i.hasNext();)
-		{
-			line = i.next();
-			
-			if(line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer")))
-			{
-				i.remove();
+		source.transform(nonLayerTagCommentStripper());
+	}
+
+	/**
+	 * Makes a step that removes all lines that are skeinforge tag comments, but not layer tags.
+	 */
+	static public GCodeTransform nonLayerTagCommentStripper() {
+		return new GCodeTransform() {
+			@Override
+			public void line(String line, Output out) {
+				if(!(line.startsWith("(<") && !(line.startsWith("(<layer>") || line.startsWith("(</layer"))))
+					out.add(line);
 			}
-		}
+
+			@Override
+			public int getOutputLineCount(int inputLineCount) {
+				return -1;
+			}
+		};
 	}
 	
 	/**
@@ -3,12 +3,14 @@ package replicatorg.plugin.toolpath.slic3r;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultComboBoxModel;
@@ -20,6 +22,8 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeTransform;
+import replicatorg.app.gcode.GCodeTransformChain;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
@@ -126,7 +130,7 @@ public class Slic3rPostProcessor {
 	
 	private final Slic3rGenerator generator;
 	
-	private MutableGCodeSource source;
+	private GCodeTransformChain transforms;
 	
 	// options:
 	private MutableGCodeSource startCode = null;
@@ -156,8 +160,8 @@ public class Slic3rPostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		// Collect the steps, so that we can run them all in one pass over the file
+		transforms = new GCodeTransformChain();
 		
 		if(!dualstruding)
 		{
@@ -176,7 +180,7 @@ public class Slic3rPostProcessor {
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addSlic3rProgressUpdates();
+			transforms.add(GCodeTransform.progressUpdates());
 		}
 		
 		if(prependMetaInfo)
@@ -197,10 +201,14 @@ public class Slic3rPostProcessor {
 		
 		// scans to cool unused head if required
 //		if( multiHead )	
-//			source.coolUnusedToolhead();
+//			transforms.add(GCodeTransform.coolUnusedToolhead());
 		
-		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		//Run the steps over our file, writing the modified source back to it
+		try {
+			transforms.run(generator.output.file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not post-process " + generator.output.file.getAbsolutePath(), e);
+		}
 		
 		return generator.output;
 	}
@@ -219,7 +227,7 @@ public class Slic3rPostProcessor {
 	private void runToolheadSwap(ToolheadAlias switchTo)
 	{
 		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
+		transforms.add(GCodeTransform.changeToolhead(switchTo));
 	}
 	
 	/**
@@ -229,7 +237,7 @@ public class Slic3rPostProcessor {
 	private void runPrepend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(0, newCode);
+			transforms.add(GCodeTransform.prepend(newCode));
 	}
 	
 	/**
@@ -239,7 +247,7 @@ public class Slic3rPostProcessor {
 	private void runAppend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(newCode);
+			transforms.add(GCodeTransform.append(newCode));
 	}
 	
 	/**
@@ -0,0 +1,110 @@
+package replicatorg.app.gcode;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.util.Point5d;
+
+public class BuildEstimateTest {
+
+	static class TestMachine extends MachineModel {
+		@Override
+		public Point5d getMaximumFeedrates() {
+			return new Point5d(5000, 5000, 1000, 2000, 2000);
+		}
+
+		@Override
+		public MachineModel copy() {
+			TestMachine copy = new TestMachine();
+			for (int i = 0; i < getTools().size(); i++)
+				copy.addTool(new ToolModel());
+			return copy;
+		}
+	}
+
+	// A layered build in absolute mode, long enough to be estimated in chunks
+	static List<String> layers(int count) {
+		List<String> lines = new ArrayList<String>();
+		lines.add("G21");
+		lines.add("G90");
+		lines.add("G92 X0 Y0 Z0 A0");
+		double z = 0.3;
+		double a = 0;
+		while (lines.size() < count) {
+			lines.add("G1 Z" + z + " F1000");
+			for (int i = 0; i < 700; i++) {
+				a += 0.01;
+				lines.add("G1 X" + (i % 37) + " Y" + (i % 41) + " A" + a + ((i % 50 == 0) ? " F" + (1200 + i) : ""));
+			}
+			lines.add("G0 X0 Y0");
+			lines.add("G4 P500");
+			z += 0.3;
+		}
+		return lines;
+	}
+
+	// The whole build, estimated in one go and in chunks, should come out the same
+	static void assertSameEstimate(List<String> lines) {
+		MutableGCodeSource source = new MutableGCodeSource(lines);
+		assertTrue(GCodeChunks.worthSplitting(source.getLineCount()));
+		double sequential = BuildEstimate.estimate(source, new TestMachine());
+		double chunked = BuildEstimate.estimate(new ParsedGCodeSource(source), new TestMachine());
+		assertTrue(sequential > 0);
+		assertEquals(sequential, chunked, sequential * 1e-9);
+	}
+
+	@Test
+	public void testAbsolute() {
+		assertSameEstimate(layers(3 * GCodeChunks.CHUNK_LINES + 100));
+	}
+
+	@Test
+	public void testRelativeAcrossChunks() {
+		// Relative moves that run over a chunk boundary, so where the chunk after starts
+		// depends on every move before it
+		List<String> lines = layers(3 * GCodeChunks.CHUNK_LINES + 100);
+		List<String> relative = new ArrayList<String>();
+		relative.add("G91");
+		for (int i = 0; i < 200; i++)
+			relative.add("G1 X0.5 Y-0.25");
+		relative.add("G90");
+		lines.addAll(GCodeChunks.CHUNK_LINES - 100, relative);
+		assertSameEstimate(lines);
+	}
+
+	@Test
+	public void testModesAcrossChunks() {
+		// Units, offsets and tools that change just before a chunk boundary, which the
+		// chunks after can't settle on their own and have to be estimated again
+		List<String> lines = layers(3 * GCodeChunks.CHUNK_LINES + 100);
+		lines.add(GCodeChunks.CHUNK_LINES - 3, "G20");
+		lines.add(2 * GCodeChunks.CHUNK_LINES - 3, "G21");
+		lines.add(2 * GCodeChunks.CHUNK_LINES - 2, "G10 P1 X5 Y5 Z0");
+		lines.add(2 * GCodeChunks.CHUNK_LINES - 1, "G54");
+		lines.add(3 * GCodeChunks.CHUNK_LINES - 1, "T1");
+		assertSameEstimate(lines);
+	}
+
+	@Test
+	public void testLeavesMachineAlone() {
+		// Tool changes all through the build, estimated in chunks at the same time
+		List<String> lines = layers(3 * GCodeChunks.CHUNK_LINES + 100);
+		for (int chunk = 0; chunk < 4; chunk++)
+			lines.add(chunk * GCodeChunks.CHUNK_LINES + 10, "T1");
+		TestMachine machine = new TestMachine();
+		ToolModel first = new ToolModel();
+		machine.addTool(first);
+		machine.addTool(new ToolModel());
+		machine.selectTool(0);
+
+		BuildEstimate.estimate(new ParsedGCodeSource(new MutableGCodeSource(lines)), machine);
+		BuildEstimate.estimate(new MutableGCodeSource(lines), machine);
+		assertSame(first, machine.currentTool());
+	}
+}
@@ -0,0 +1,177 @@
+package replicatorg.app.gcode;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class GCodeCommandTest {
+	// The letter codes that GCodeCommand understands
+	static final char[] codes = {
+		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
+		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
+
+	// The regular expression parser that GCodeCommand used to use. The new parser
+	// has to agree with this one on every line we can find.
+	static class ReferenceCommand {
+		static Pattern parenPattern = Pattern.compile("\\((.*)\\)");
+		static Pattern semiPattern = Pattern.compile(";(.*)");
+
+		String command;
+		String comment = "";
+		boolean[] present = new boolean[codes.length];
+		double[] values = new double[codes.length];
+
+		ReferenceCommand(String line) {
+			Matcher parenMatcher = parenPattern.matcher(line);
+			Matcher semiMatcher = semiPattern.matcher(line);
+			if (parenMatcher.find())
+				comment = parenMatcher.group(1);
+			if (semiMatcher.find())
+				comment = semiMatcher.group(1);
+			comment = comment.trim().replace('|', '\n');
+			command = parenMatcher.replaceAll("");
+			command = semiPattern.matcher(command).replaceAll("");
+
+			for (int i = 0; i < codes.length; i++) {
+				Matcher myMatcher = Pattern.compile(codes[i] + "([0-9.+-]+)").matcher(command);
+				if (command.indexOf(codes[i]) >= 0) {
+					present[i] = true;
+					if (myMatcher.find())
+						values[i] = Double.parseDouble(myMatcher.group(1));
+				}
+			}
+		}
+	}
+
+	// Checks that both parsers agree on a line, including whether it can be parsed at all.
+	void assertConforms(String line) {
+		ReferenceCommand expected = null;
+		GCodeCommand actual = null;
+		NumberFormatException expectedError = null;
+		NumberFormatException actualError = null;
+
+		try {
+			expected = new ReferenceCommand(line);
+		} catch (NumberFormatException e) {
+			expectedError = e;
+		}
+		try {
+			actual = new GCodeCommand(line);
+		} catch (NumberFormatException e) {
+			actualError = e;
+		}
+
+		if (expectedError != null) {
+			assertNotNull("Should not parse: '" + line + "'", actualError);
+			assertEquals(line, expectedError.getMessage(), actualError.getMessage());
+			return;
+		}
+		assertNull("Should parse: '" + line + "'", actualError);
+
+		assertEquals(line, expected.command, actual.getCommand());
+		assertEquals(line, expected.comment, actual.getComment());
+		for (int i = 0; i < codes.length; i++) {
+			assertEquals(line + " has " + codes[i], expected.present[i], actual.hasCode(codes[i]));
+			if (expected.present[i]) {
+				// Compare bit patterns, so that -0.0 and 0.0 count as different
+				assertEquals(line + " value of " + codes[i],
+						Double.doubleToRawLongBits(expected.values[i]),
+						Double.doubleToRawLongBits(actual.getCodeValue(codes[i])));
+			}
+		}
+	}
+
+	static void collectGCodeFiles(File dir, List<File> result) {
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+		for (File f : children) {
+			if (f.isDirectory())
+				collectGCodeFiles(f, result);
+			else if (f.getName().endsWith(".gcode"))
+				result.add(f);
+		}
+	}
+
+	@Test
+	public void testExamples() throws IOException {
+		List<File> files = new ArrayList<File>();
+		collectGCodeFiles(new File("examples"), files);
+		collectGCodeFiles(new File("machines"), files);
+		assertFalse("No example gcode found", files.isEmpty());
+
+		for (File f : files) {
+			BufferedReader reader = new BufferedReader(new FileReader(f));
+			try {
+				for (String line = reader.readLine(); line != null; line = reader.readLine())
+					assertConforms(line);
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	@Test
+	public void testComments() {
+		assertConforms("");
+		assertConforms("(<layer> 0.35 )");
+		assertConforms("M70 P5 (Hello|World)");
+		assertConforms("G1 X1 (first) Y2 (second) Z3");
+		assertConforms("G1 X(comment)5 Y2");
+		assertConforms("G1 X1 ; semicolon comment (with parens)");
+		assertConforms("G1 (paren; with semi) X2 ; Y3");
+		assertConforms("G1 X1 ( unclosed");
+		assertConforms("G1 X1 ) backwards (");
+		assertConforms("G1 X1 ;; two; semis");
+		assertConforms("G1 X1 (two\rlines) Y2");
+		assertConforms(";only a comment");
+		assertConforms("()");
+	}
+
+	@Test
+	public void testValues() {
+		assertConforms("G1 X-0 Y+0 Z-0.0");
+		assertConforms("G1 X.5 Y5. Z0005.2500");
+		assertConforms("G1 X X5 X6");
+		assertConforms("M117 Hello there");
+		assertConforms("g1 x5 y6");
+		assertConforms("G1 X123456789012345678901234567890 Y0.1234567890123456789");
+		assertConforms("G1 X9007199254740993 Y0.30000000000000004441");
+		assertConforms("G1 X1.000000000000000000000000001");
+		assertConforms("G1 C5 N10 U1 V2 W3 X4");
+		assertConforms("N12 G1 X1.5*45");
+	}
+
+	@Test
+	public void testBadValues() {
+		assertConforms("G1 X-");
+		assertConforms("G1 X1.2.3");
+		assertConforms("G1 X1-2");
+		assertConforms("G1 Z. X--1");
+		assertConforms("G1 X. Y. Z.");
+		assertConforms("G1 X1 X.");
+	}
+
+	@Test
+	public void testAbsentCodes() {
+		GCodeCommand gcode = new GCodeCommand("G1 X-1 (Y2) F1500");
+		assertTrue(gcode.hasCode('X'));
+		assertFalse(gcode.hasCode('Y'));
+		assertFalse(gcode.hasCode('N'));
+		assertFalse(gcode.hasCode('x'));
+		assertEquals(-1, gcode.getCodeValue('X', Double.NaN), 0);
+		assertTrue(Double.isNaN(gcode.getCodeValue('Y', Double.NaN)));
+		assertTrue(Double.isNaN(gcode.getCodeValue('%', Double.NaN)));
+		assertEquals(1500, gcode.getCodeValue('F', 0), 0);
+		assertEquals(-1, gcode.getCodeValue('Z'), 0);
+	}
+}
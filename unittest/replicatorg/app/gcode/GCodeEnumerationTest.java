@@ -0,0 +1,44 @@
+package replicatorg.app.gcode;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class GCodeEnumerationTest {
+
+	@Test
+	public void testEveryCode() {
+		for (GCodeEnumeration e : GCodeEnumeration.values()) {
+			char letter = e.letter.charAt(0);
+			assertSame(e, GCodeEnumeration.getGCode(letter, e.number));
+			assertSame(e, GCodeEnumeration.getGCode(e.letter, e.number));
+			assertSame(e, GCodeEnumeration.getGCode(e.letter + e.number));
+			// and out of the middle of a longer line
+			String line = "  " + e.letter + e.number + " X1";
+			assertSame(e, GCodeEnumeration.getGCode(line, 2, line.indexOf(" X1")));
+		}
+	}
+
+	@Test
+	public void testUnknownCodes() {
+		assertNull(GCodeEnumeration.getGCode('G', 5000));
+		assertNull(GCodeEnumeration.getGCode('G', -1));
+		assertNull(GCodeEnumeration.getGCode('Q', 1));
+		assertNull(GCodeEnumeration.getGCode('g', 1));
+		assertNull(GCodeEnumeration.getGCode("G"));
+		assertNull(GCodeEnumeration.getGCode("G1X10"));
+		assertNull(GCodeEnumeration.getGCode("G1.5"));
+		assertNull(GCodeEnumeration.getGCode("G-"));
+		assertNull(GCodeEnumeration.getGCode("G99999999999999"));
+		assertNull(GCodeEnumeration.getGCode("(G1"));
+	}
+
+	// Names are read with Integer.parseInt(), as they always have been
+	@Test
+	public void testNumberFormats() {
+		assertSame(GCodeEnumeration.G1, GCodeEnumeration.getGCode("G01"));
+		assertSame(GCodeEnumeration.G1, GCodeEnumeration.getGCode("G+1"));
+		assertSame(GCodeEnumeration.G0, GCodeEnumeration.getGCode("G-0"));
+		assertSame(GCodeEnumeration.M104, GCodeEnumeration.getGCode("M0104"));
+	}
+}
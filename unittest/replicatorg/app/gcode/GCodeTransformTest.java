@@ -0,0 +1,174 @@
+package replicatorg.app.gcode;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import replicatorg.machine.model.ToolheadAlias;
+
+public class GCodeTransformTest {
+
+	static final List<String> gcode = Arrays.asList(
+			"(<setting> extrusion 1 )",
+			"M104 S220 T0",
+			"G54",
+			"M6 T0",
+			"(<layer> 0.35 )",
+			"G1 X1 Y1 Z0.35 F1500",
+			"(</layer>)",
+			"(<layer> 0.7 )",
+			"G55 (second offset)",
+			"G1 X2 Y2 Z0.7",
+			"(</layer>)",
+			"M18");
+
+	static MutableGCodeSource source(List<String> lines) {
+		return new MutableGCodeSource(lines);
+	}
+
+	// The toolhead swap that MutableGCodeSource.changeToolhead() used to do
+	static List<String> referenceChangeToolhead(List<String> source, ToolheadAlias tool) {
+		List<String> result = new ArrayList<String>();
+		for (String line : source) {
+			GCodeCommand gcode = new GCodeCommand(line);
+			if (gcode.hasCode('T')) {
+				int value = (int)gcode.getCodeValue('T');
+				if (value != tool.number) {
+					if (value == 0)
+						line = line.replace("T0", "T1");
+					else if (value == 1)
+						line = line.replace("T1", "T0");
+				}
+			}
+			if (gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
+				line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
+			if (gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
+				line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
+			result.add(line);
+		}
+		return result;
+	}
+
+	@Test
+	public void testChangeToolhead() {
+		for (ToolheadAlias tool : ToolheadAlias.values()) {
+			MutableGCodeSource source = source(gcode);
+			source.changeToolhead(tool);
+			assertEquals(referenceChangeToolhead(gcode, tool), source.asList());
+		}
+	}
+
+	@Test
+	public void testCoolUnusedToolhead() {
+		MutableGCodeSource source = source(gcode);
+		source.coolUnusedToolhead();
+		List<String> expected = new ArrayList<String>(gcode);
+		expected.add(2, "M104 T1 S0");
+		assertEquals(expected, source.asList());
+
+		// Both toolheads used, nothing to do
+		List<String> dual = new ArrayList<String>(gcode);
+		dual.add("M6 T1");
+		source = source(dual);
+		source.coolUnusedToolhead();
+		assertEquals(dual, source.asList());
+
+		// No M104, so the cool command goes at the end
+		source = source(Arrays.asList("M6 T1", "G1 X1"));
+		source.coolUnusedToolhead();
+		assertEquals(Arrays.asList("M6 T1", "G1 X1", "M104 T0 S0"), source.asList());
+	}
+
+	// The whole chain gives the same answer as running each step over the whole file in turn
+	@Test
+	public void testChainOrder() {
+		MutableGCodeSource start = source(Arrays.asList("(start)", "M6 T0"));
+		MutableGCodeSource end = source(Arrays.asList("(end)", "M6 T0"));
+		MutableGCodeSource meta = source(Arrays.asList("(meta)"));
+
+		MutableGCodeSource expected = source(gcode);
+		expected.add(0, start);
+		expected.add(end);
+		expected.changeToolhead(ToolheadAlias.RIGHT);
+		expected.addProgressUpdates();
+		expected.add(0, meta);
+
+		GCodeTransformChain chain = new GCodeTransformChain();
+		chain.add(GCodeTransform.prepend(start));
+		chain.add(GCodeTransform.append(end));
+		chain.add(GCodeTransform.changeToolhead(ToolheadAlias.RIGHT));
+		chain.add(GCodeTransform.progressUpdates());
+		chain.add(GCodeTransform.prepend(meta));
+		MutableGCodeSource actual = source(gcode);
+		actual.transform(chain);
+
+		assertEquals(expected.asList(), actual.asList());
+	}
+
+	// Progress updates after a step that changes the line count still count the right lines
+	@Test
+	public void testProgressAfterFilter() {
+		GCodeTransformChain chain = new GCodeTransformChain();
+		chain.add(new GCodeTransform() {
+			@Override
+			public void line(String line, Output out) {
+				if (!line.startsWith("(<setting>"))
+					out.add(line);
+			}
+
+			@Override
+			public int getOutputLineCount(int inputLineCount) {
+				return -1;
+			}
+		});
+		chain.add(GCodeTransform.progressUpdates());
+		MutableGCodeSource actual = source(gcode);
+		actual.transform(chain);
+
+		MutableGCodeSource expected = source(gcode.subList(1, gcode.size()));
+		expected.addProgressUpdates();
+		assertEquals(expected.asList(), actual.asList());
+	}
+
+	static List<String> readLines(File f) throws IOException {
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(f));
+		for (String line = reader.readLine(); line != null; line = reader.readLine())
+			result.add(line);
+		reader.close();
+		return result;
+	}
+
+	@Test
+	public void testFile() throws IOException {
+		File f = File.createTempFile("transform", ".gcode");
+		try {
+			FileWriter writer = new FileWriter(f);
+			for (String line : gcode)
+				writer.write(line + "\r\n");
+			writer.close();
+
+			MutableGCodeSource expected = source(gcode);
+			expected.changeToolhead(ToolheadAlias.RIGHT);
+			expected.addProgressUpdates();
+
+			GCodeTransformChain chain = new GCodeTransformChain();
+			chain.add(GCodeTransform.changeToolhead(ToolheadAlias.RIGHT));
+			chain.add(GCodeTransform.progressUpdates());
+			chain.run(f);
+
+			assertEquals(expected.asList(), readLines(f));
+		} finally {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package replicatorg.app.gcode;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LayerIndexTest {
+
+	static MutableGCodeSource source(String... lines) {
+		return new MutableGCodeSource(Arrays.asList(lines));
+	}
+
+	// The line scan that addProgressUpdates() used to do
+	static List<String> referenceProgressUpdates(List<String> source) {
+		List<String> result = new ArrayList<String>();
+		int index = 0;
+		for (String line : source) {
+			if (line.startsWith("(<layer>")) {
+				int percentDone = (index * 100) / source.size();
+				if (percentDone == 0) percentDone = 1;
+				if (percentDone == 100) percentDone = 99;
+				result.add("M73 P" + percentDone + " (display progress)");
+			}
+			result.add(line);
+			index++;
+		}
+		return result;
+	}
+
+	void assertProgressUpdates(MutableGCodeSource source) {
+		List<String> expected = referenceProgressUpdates(source.asList());
+		source.addProgressUpdates();
+		assertEquals(expected, source.asList());
+	}
+
+	@Test
+	public void testTaggedLayers() {
+		MutableGCodeSource source = source(
+				"M104 S220 T0",
+				"(<layer> 0.35 )",
+				"G1 X1 Y1 Z0.35",
+				"(</layer>)",
+				"T1",
+				"(<layer> 0.7 )",
+				"G1 X1 Y1 Z0.7",
+				"(<layer> bad )",
+				"G1 Z1",
+				"(</layer>)",
+				"M2");
+		LayerIndex index = LayerIndex.of(source);
+
+		assertTrue(index.isTagged());
+		assertEquals(3, index.getLayerCount());
+		assertEquals(11, index.getLineCount());
+
+		assertEquals(1, index.getStartLine(0));
+		assertEquals(3, index.getEndLine(0));
+		assertEquals(0.35f, index.getHeight(0), 0);
+		assertEquals(0, index.getTool(0));
+
+		// never closed, so it ends at the next layer
+		assertEquals(5, index.getStartLine(1));
+		assertEquals(7, index.getEndLine(1));
+		assertEquals(1, index.getTool(1));
+
+		assertTrue(Double.isNaN(index.getHeight(2)));
+		assertEquals(9, index.getEndLine(2));
+
+		assertEquals(-1, index.getLayerForLine(0));
+		assertEquals(0, index.getLayerForLine(2));
+		assertEquals(-1, index.getLayerForLine(4));
+		assertEquals(1, index.getLayerForLine(6));
+		assertEquals(2, index.getLayerForLine(8));
+		assertEquals(-1, index.getLayerForLine(10));
+
+		assertEquals(0, index.getLayerAtHeight(0.1));
+		assertEquals(1, index.getLayerAtHeight(0.5));
+		assertEquals(-1, index.getLayerAtHeight(2));
+	}
+
+	// The Z walk that DualStrusionConstruction.testParseLayers() used to do, as line ranges
+	static List<int[]> referenceZLayers(List<String> source) {
+		List<int[]> result = new ArrayList<int[]>();
+		int queued = 0;
+		int lastM103 = -1;
+		Double lastZHeight = null;
+		for (int i = 0; i < source.size(); i++) {
+			GCodeCommand gcode = new GCodeCommand(source.get(i));
+			if (gcode.getCodeValue('M') == 103)
+				lastM103 = i;
+			if (gcode.hasCode('Z')) {
+				double newZ = gcode.getCodeValue('Z');
+				if (lastZHeight == null) {
+					lastZHeight = newZ;
+				} else if (newZ > lastZHeight) {
+					int end = (lastM103 >= queued && lastM103 < i) ? lastM103 + 1 : i;
+					result.add(new int[] { queued, end });
+					queued = end;
+					lastZHeight = newZ;
+				}
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void testZLayers() {
+		MutableGCodeSource source = source(
+				"G1 Z0.3",
+				"M101",
+				"G1 X1 Y1",
+				"M103",
+				"G1 X0",
+				"G1 Z0.6",
+				"G1 X2 Y2",
+				"G1 Z0.5",
+				"M103 T1",
+				"G1 Z0.9",
+				"M103",
+				"G1 Z1.2 M103",
+				"G1 X3");
+		LayerIndex index = LayerIndex.of(source);
+
+		assertFalse(index.isTagged());
+		List<int[]> expected = referenceZLayers(source.asList());
+		assertEquals(expected.size(), index.getLayerCount());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i)[0], index.getStartLine(i));
+			assertEquals(expected.get(i)[1], index.getEndLine(i));
+		}
+		assertEquals(0.3, index.getHeight(0), 0);
+		assertEquals(0.6, index.getHeight(1), 0);
+		assertEquals(-1, index.getTool(0));
+		assertEquals(1, index.getTool(2));
+
+		// Untagged code never got progress updates
+		assertProgressUpdates(source);
+	}
+
+	@Test
+	public void testProgressUpdates() {
+		assertProgressUpdates(source());
+		assertProgressUpdates(source("(<layer> 0.1 )"));
+		assertProgressUpdates(source("G1 Z1", "(<layer> 0.1 )", "G1 X1", "(</layer>)",
+				"(<layer> 0.2 )", "(<layer> 0.3 )", "G1 X2"));
+		assertProgressUpdates(new MutableGCodeSource(new File("examples/dual/replicator_calibration_check.gcode")));
+	}
+
+	@Test
+	public void testCarriedIndex() {
+		MutableGCodeSource source = source("(<layer> 0.1 )", "G1 X1", "(</layer>)");
+		LayerIndex index = LayerIndex.of(source);
+		assertSame(index, LayerIndex.of(source));
+
+		// Changing the lines, even behind the source's back, means building a new index
+		Iterator<String> it = source.iterator();
+		it.next();
+		it.remove();
+		LayerIndex changed = LayerIndex.of(source);
+		assertNotSame(index, changed);
+		assertEquals(0, changed.getLayerCount());
+
+		source.add(0, "(<layer> 0.2 )");
+		assertEquals(1, LayerIndex.of(source).getLayerCount());
+	}
+
+	static void assertSameLayers(LayerIndex expected, LayerIndex actual) {
+		assertEquals(expected.isTagged(), actual.isTagged());
+		assertEquals(expected.getLineCount(), actual.getLineCount());
+		assertEquals(expected.getLayerCount(), actual.getLayerCount());
+		for (int i = 0; i < expected.getLayerCount(); i++) {
+			assertEquals("layer " + i, expected.getStartLine(i), actual.getStartLine(i));
+			assertEquals("layer " + i, expected.getEndLine(i), actual.getEndLine(i));
+			assertEquals("layer " + i, expected.getHeight(i), actual.getHeight(i), 0);
+			assertEquals("layer " + i, expected.getTool(i), actual.getTool(i));
+		}
+	}
+
+	@Test
+	public void testChunkedLayers() {
+		// Layers that run across the chunk boundaries, found by Z and then by tags
+		List<String> lines = new ArrayList<String>();
+		double z = 0.3;
+		while (lines.size() < 2 * GCodeChunks.CHUNK_LINES) {
+			lines.add("G1 Z" + z);
+			lines.add("M101");
+			for (int i = 0; i < 1500; i++)
+				lines.add("G1 X" + (i % 37) + " Y" + (i % 41));
+			lines.add((lines.size() % 3 == 0) ? "M103 T1" : "M103");
+			lines.add("T" + (lines.size() % 2));
+			z += 0.3;
+		}
+		MutableGCodeSource byZ = new MutableGCodeSource(lines);
+		assertTrue(GCodeChunks.worthSplitting(byZ.getLineCount()));
+		LayerIndex sequential = new LayerIndex(byZ);
+		assertTrue(sequential.getLayerCount() > 10);
+		assertSameLayers(sequential, new LayerIndex(new ParsedGCodeSource(byZ)));
+
+		lines.add(GCodeChunks.CHUNK_LINES + 5, "(<layer> 7.5 )");
+		lines.add(GCodeChunks.CHUNK_LINES + 9000, "(</layer>)");
+		lines.add(GCodeChunks.CHUNK_LINES + 9001, "(<layer> 7.8 )");
+		MutableGCodeSource tagged = new MutableGCodeSource(lines);
+		sequential = new LayerIndex(tagged);
+		assertTrue(sequential.isTagged());
+		assertEquals(2, sequential.getLayerCount());
+		assertSameLayers(sequential, new LayerIndex(new ParsedGCodeSource(tagged)));
+	}
+}
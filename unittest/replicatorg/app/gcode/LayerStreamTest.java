@@ -0,0 +1,146 @@
+package replicatorg.app.gcode;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class LayerStreamTest {
+
+	private final List<File> files = new ArrayList<File>();
+
+	@After
+	public void deleteFiles() {
+		for (File file : files)
+			file.delete();
+	}
+
+	LayerStream stream(String... lines) throws IOException {
+		File file = File.createTempFile("layers", ".gcode");
+		files.add(file);
+		FileOutputStream out = new FileOutputStream(file);
+		for (String line : lines)
+			out.write((line + "\n").getBytes());
+		out.close();
+		LayerStream stream = new LayerStream(file);
+		stream.start();
+		return stream;
+	}
+
+	void assertLayer(LayerStream stream, double height, String... commands) throws IOException {
+		assertFalse(stream.isEmpty());
+		Layer layer = stream.pop();
+		assertEquals(height, layer.getHeight(), 1e-6);
+		assertEquals(Arrays.asList(commands), layer.getCommands());
+	}
+
+	@Test
+	public void testLayers() throws IOException {
+		LayerStream stream = stream(
+				"(<setting> whatever )",
+				"G21",
+				"(<layer> 0.3 )",
+				"(<surroundingLoop>)",
+				"G1 Z0.3",
+				"(</surroundingLoop>)",
+				"(</layer>)",
+				"G1 X1",
+				"(<layer> 0.6 )",
+				"(</layer>)",
+				"(<layer> 0.9 )",
+				"G1 Z0.9",
+				"(<layer> x )",
+				"G1 Z1.2",
+				"(</layer>)");
+
+		// tags other than layer tags are gone, and so is anything outside a layer
+		assertLayer(stream, 0.3, "(<layer> 0.3 )", "G1 Z0.3");
+		// the empty layer at 0.6 is skipped, and the unclosed one ends at the next tag
+		assertLayer(stream, 0.9, "(<layer> 0.9 )", "G1 Z0.9");
+		// an unreadable height is taken as 0
+		assertLayer(stream, 0, "(<layer> x )", "G1 Z1.2");
+		assertTrue(stream.isEmpty());
+	}
+
+	@Test
+	public void testEnd() throws IOException, InterruptedException {
+		LayerStream stream = stream("(<layer> 0.3 )", "G1 Z0.3");
+		assertLayer(stream, 0.3, "(<layer> 0.3 )", "G1 Z0.3");
+
+		// once the layers are gone, that is all anyone hears, however often they ask
+		for (int i = 0; i < 3; i++) {
+			assertTrue(stream.isEmpty());
+			assertNull(stream.peek());
+			assertNull(stream.pop());
+		}
+		stream.join(1000);
+		assertFalse(stream.isAlive());
+	}
+
+	@Test
+	public void testNoLayers() throws IOException {
+		assertTrue(stream("G21", "G1 Z0.3").isEmpty());
+		assertTrue(stream().isEmpty());
+	}
+
+	@Test
+	public void testClose() throws IOException, InterruptedException {
+		// more layers than are read ahead, so the reader is left waiting for us
+		String[] lines = new String[100];
+		for (int i = 0; i < lines.length; i += 2) {
+			lines[i] = "(<layer> " + i + " )";
+			lines[i + 1] = "G1 Z" + i;
+		}
+		LayerStream stream = stream(lines);
+		assertLayer(stream, 0, "(<layer> 0 )", "G1 Z0");
+
+		stream.close();
+		stream.join(1000);
+		assertFalse(stream.isAlive());
+	}
+
+	@Test
+	public void testMissingFile() throws InterruptedException {
+		LayerStream stream = new LayerStream(new File("no/such/file.gcode"));
+		stream.start();
+		try {
+			stream.peek();
+			fail("expected an IOException");
+		} catch (IOException e) {
+			// expected
+		}
+		stream.join(1000);
+		assertFalse(stream.isAlive());
+	}
+
+	@Test
+	public void testFailure() throws InterruptedException {
+		// A File that blows up when the reader opens it, standing in for anything that
+		// goes wrong on the reader's thread
+		final RuntimeException failure = new IllegalStateException("broken");
+		File broken = new File("broken.gcode") {
+			@Override
+			public String getPath() {
+				throw failure;
+			}
+		};
+		LayerStream stream = new LayerStream(broken);
+		stream.start();
+		try {
+			stream.isEmpty();
+			fail("expected an IOException");
+		} catch (IOException e) {
+			// the consumer hears about it rather than waiting forever
+			assertSame(failure, e.getCause());
+		}
+		stream.join(1000);
+		assertFalse(stream.isAlive());
+	}
+}
@@ -0,0 +1,125 @@
+package replicatorg.app.gcode;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MutableGCodeSourceTest {
+
+	static void assertSameLines(List<String> expected, MutableGCodeSource actual) {
+		assertEquals(expected.size(), actual.getLineCount());
+		assertEquals(expected, actual.asList());
+
+		// and again through the iterator
+		List<String> iterated = new ArrayList<String>();
+		for (String line : actual)
+			iterated.add(line);
+		assertEquals(expected, iterated);
+	}
+
+	// Make the same random edits to a source and an ArrayList, checking they agree all the way
+	@Test
+	public void testRandomEdits() {
+		Random random = new Random(1234);
+		List<String> expected = new ArrayList<String>();
+		MutableGCodeSource source = new MutableGCodeSource();
+		MutableGCodeSource copy = null;
+		List<String> copyExpected = null;
+
+		for (int step = 0; step < 5000; step++) {
+			String line = "G1 X" + step;
+			int size = expected.size();
+			switch (random.nextInt(8)) {
+			case 0:
+				source.add(line);
+				expected.add(line);
+				break;
+			case 1: {
+				int index = random.nextInt(size + 1);
+				source.add(index, line);
+				expected.add(index, line);
+				break;
+			}
+			case 2: {
+				int index = random.nextInt(size + 1);
+				List<String> block = Arrays.asList(line, line + " Y1", line + " Y2");
+				source.add(index, block);
+				expected.addAll(index, block);
+				break;
+			}
+			case 3:
+				if (size > 0) {
+					int index = random.nextInt(size);
+					assertEquals(expected.remove(index), source.asList().remove(index));
+				}
+				break;
+			case 4:
+				if (size > 0) {
+					int index = random.nextInt(size);
+					assertEquals(expected.set(index, line), source.asList().set(index, line));
+				}
+				break;
+			case 5:
+				if (size > 0) {
+					int index = random.nextInt(size);
+					assertEquals(expected.get(index), source.asList().get(index));
+				}
+				break;
+			case 6: {
+				// Insert a source into itself, sharing its lines
+				int index = random.nextInt(size + 1);
+				if (size < 2000) {
+					source.add(index, source.copy());
+					expected.addAll(index, new ArrayList<String>(expected));
+				}
+				break;
+			}
+			case 7:
+				copy = source.copy();
+				copyExpected = new ArrayList<String>(expected);
+				break;
+			}
+		}
+
+		assertSameLines(expected, source);
+		// the copy didn't see any of the changes made after it was taken
+		assertSameLines(copyExpected, copy);
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		// Lots of small pieces
+		MutableGCodeSource source = new MutableGCodeSource();
+		for (int i = 0; i < 1000; i++)
+			source.add(i / 2, "G1 X" + i);
+		List<String> expected = new ArrayList<String>(source.asList());
+
+		for (Iterator<String> it = source.iterator(); it.hasNext();) {
+			if (it.next().endsWith("3"))
+				it.remove();
+		}
+		for (Iterator<String> it = expected.iterator(); it.hasNext();) {
+			if (it.next().endsWith("3"))
+				it.remove();
+		}
+		assertSameLines(expected, source);
+	}
+
+	@Test
+	public void testCopy() {
+		MutableGCodeSource source = new MutableGCodeSource(Arrays.asList("G1 X1", "G1 X2"));
+		MutableGCodeSource copy = source.copy();
+		copy.add("G1 X3");
+		source.add("G1 X4");
+		copy.add(0, "G1 X0");
+
+		assertSameLines(Arrays.asList("G1 X1", "G1 X2", "G1 X4"), source);
+		assertSameLines(Arrays.asList("G1 X0", "G1 X1", "G1 X2", "G1 X3"), copy);
+	}
+}
@@ -0,0 +1,202 @@
+package replicatorg.app.gcode;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.StringListSource;
+
+public class ParsedGCodeSourceTest {
+	static final String codes = "ABDEFGHIJKLMPQRSTXYZ";
+
+	// Checks that replaying a source gives the same commands as parsing it line by line
+	void assertReplays(GCodeSource source) {
+		ParsedGCodeSource.CommandIterator replay = ParsedGCodeSource.commandIterator(source);
+		int lines = 0;
+		for (String line : source) {
+			assertTrue(replay.hasNext());
+			GCodeCommand expected = null;
+			try {
+				expected = new GCodeCommand(line);
+			} catch (NumberFormatException e) {
+			}
+			try {
+				GCodeCommand actual = replay.next();
+				assertNotNull("Should not parse: " + line, expected);
+				assertEquals(line, replay.getLine());
+				assertEquals(expected.getCommand(), actual.getCommand());
+				assertEquals(expected.getComment(), actual.getComment());
+				for (char c : codes.toCharArray()) {
+					assertEquals(line, expected.hasCode(c), actual.hasCode(c));
+					assertEquals(line, expected.getCodeValue(c), actual.getCodeValue(c), 0);
+				}
+			} catch (NumberFormatException e) {
+				assertNull("Should parse: " + line, expected);
+				assertEquals(line, replay.getLine());
+			}
+			lines++;
+		}
+		assertFalse(replay.hasNext());
+		assertEquals(source.getLineCount(), lines);
+	}
+
+	@Test
+	public void testReplay() {
+		MutableGCodeSource source = new MutableGCodeSource(new File("examples/dual/replicator_calibration_check.gcode"));
+		source.add("G1 X1.2.3 (can't parse this)");
+		source.add("M70 (two\rlines)");
+		assertReplays(new ParsedGCodeSource(source));
+	}
+
+	@Test
+	public void testCollection() {
+		Vector<String> warmup = new Vector<String>();
+		warmup.add("M104 S220 T0");
+		Vector<String> cooldown = new Vector<String>();
+		cooldown.add("M104 S0 T0 (cool down)");
+
+		MutableGCodeSource body = new MutableGCodeSource();
+		body.add("G1 X5 Y-5 F1200");
+		body.add("G1 X- Y2");
+
+		Vector<GCodeSource> sources = new Vector<GCodeSource>();
+		sources.add(new StringListSource(warmup));
+		sources.add(ParsedGCodeSource.parse(body));
+		sources.add(new StringListSource(cooldown));
+		assertReplays(new GCodeSourceCollection(sources));
+	}
+
+	@Test
+	public void testParseOnce() {
+		MutableGCodeSource body = new MutableGCodeSource();
+		body.add("G1 X5");
+		ParsedGCodeSource parsed = ParsedGCodeSource.parse(body);
+		assertSame(parsed, ParsedGCodeSource.parse(parsed));
+		assertEquals(1, parsed.getLineCount());
+	}
+
+	// Lots of lines, with a modal change now and then
+	static List<String> randomLines(int count) {
+		Random random = new Random(99);
+		String[] modal = { "G90", "G91", "G20", "G21", "G70", "G71", "M6 T0", "M6 T1", "T1", "M104 S220 T0" };
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			switch (random.nextInt(40)) {
+			case 0:
+				lines.add(modal[random.nextInt(modal.length)]);
+				break;
+			case 1:
+				lines.add("G1 X1.2.3 T5 (can't parse this)");
+				break;
+			case 2:
+				lines.add("(<layer> " + i + " )");
+				break;
+			default:
+				lines.add("G1 X" + random.nextInt(100) + "." + random.nextInt(100) + " Y" + i + " E" + random.nextDouble());
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	public void testChunkedParse() {
+		int count = 3 * GCodeChunks.CHUNK_LINES + 1234;
+		assertTrue(GCodeChunks.worthSplitting(count));
+		MutableGCodeSource source = new MutableGCodeSource(randomLines(count));
+		ParsedGCodeSource parsed = new ParsedGCodeSource(source);
+		assertEquals(count, parsed.getLineCount());
+		assertReplays(parsed);
+
+		// Replaying a piece gives the same commands as replaying the whole
+		List<String> lines = parsed.asList();
+		int from = GCodeChunks.CHUNK_LINES - 10;
+		ParsedGCodeSource.CommandIterator piece = parsed.commandIterator(lines, from, from + 100);
+		ParsedGCodeSource.CommandIterator whole = parsed.commandIterator();
+		for (int i = 0; i < from; i++) {
+			try {
+				whole.next();
+			} catch (NumberFormatException e) {
+			}
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(piece.hasNext());
+			GCodeCommand expected = null;
+			try {
+				expected = whole.next();
+			} catch (NumberFormatException e) {
+			}
+			try {
+				GCodeCommand actual = piece.next();
+				assertEquals(expected.getCommand(), actual.getCommand());
+				assertEquals(expected.getCodeValue('X'), actual.getCodeValue('X'), 0);
+			} catch (NumberFormatException e) {
+				assertNull(expected);
+			}
+			assertEquals(whole.getLine(), piece.getLine());
+		}
+		assertFalse(piece.hasNext());
+	}
+
+	@Test
+	public void testModalState() {
+		for (int count : new int[] { 500, 3 * GCodeChunks.CHUNK_LINES + 77 }) {
+			List<String> lines = randomLines(count);
+			ParsedGCodeSource parsed = new ParsedGCodeSource(new MutableGCodeSource(lines));
+
+			ModalState state = ModalState.INITIAL;
+			assertEquals(-1, state.getTool());
+			assertFalse(state.isAbsolute());
+			for (int i = 0; i < count; i++) {
+				if (i % 97 == 0 || i % GCodeChunks.CHUNK_LINES == 0)
+					assertEquals("line " + i, state, parsed.getModalState(i));
+				try {
+					state = state.then(new GCodeCommand(lines.get(i)));
+				} catch (NumberFormatException e) {
+					// the parser never sees this line
+				}
+			}
+			assertEquals(state, parsed.getModalState(count));
+		}
+	}
+
+	@Test
+	public void testModalTool() {
+		// Only a tool change selects a tool; a T code on an M code just says which tool it is for
+		ModalState state = ModalState.INITIAL.then(new GCodeCommand("T1"));
+		assertEquals(1, state.getTool());
+		assertEquals(1, state.then(new GCodeCommand("M104 S220 T0")).getTool());
+		assertEquals(1, state.then(new GCodeCommand("M6 T0")).getTool());
+		assertEquals(0, state.then(new GCodeCommand("T0 (switch back)")).getTool());
+	}
+
+	@Test
+	public void testSettlingLine() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("G21");
+		lines.add("G90");
+		lines.add("G1 Z0.3 F1200");
+		lines.add("G1 X1 Y1");
+		for (int i = 0; i < 10; i++)
+			lines.add("G1 X" + i + " Y" + i);
+		lines.add("G1 X2 Y2 A1");
+		lines.add("G1 X3 Y3");
+		ParsedGCodeSource parsed = new ParsedGCodeSource(new MutableGCodeSource(lines));
+
+		// Nothing has moved yet, so there is nothing to settle
+		assertEquals(1, parsed.getSettlingLine(1));
+		// Z and the feedrate were last given on line 2
+		assertEquals(2, parsed.getSettlingLine(lines.size()));
+		lines.add(14, "G1 Z0.6 F600");
+		parsed = new ParsedGCodeSource(new MutableGCodeSource(lines));
+		// and now on the line before the last X, Y and A
+		assertEquals(14, parsed.getSettlingLine(lines.size()));
+	}
+}
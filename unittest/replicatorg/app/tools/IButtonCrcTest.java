@@ -0,0 +1,70 @@
+package replicatorg.app.tools;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IButtonCrcTest {
+
+	// The CRC as it used to be worked out, a bit at a time
+	static int bitwise(int crc, byte data) {
+		crc = (crc ^ data) & 0xff;
+		for (int i = 0; i < 8; i++) {
+			if ((crc & 0x01) != 0) {
+				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+			} else {
+				crc = (crc >>> 1) & 0xff;
+			}
+		}
+		return crc;
+	}
+
+	@Test
+	public void testEveryStep() {
+		// every crc and every byte, so every entry of the table
+		for (int crc = 0; crc < 256; crc++) {
+			for (int data = -128; data < 128; data++) {
+				assertEquals(bitwise(crc, (byte)data), IButtonCrc.update(crc, (byte)data));
+			}
+		}
+	}
+
+	@Test
+	public void testCheckValue() {
+		// the usual check value for the Dallas/Maxim CRC-8
+		byte[] check = "123456789".getBytes();
+		assertEquals((byte)0xa1, IButtonCrc.compute(check, 0, check.length));
+	}
+
+	@Test
+	public void testRandomRuns() {
+		Random random = new Random(17);
+		byte[] buffer = new byte[300];
+		for (int run = 0; run < 1000; run++) {
+			random.nextBytes(buffer);
+			int offset = random.nextInt(40);
+			int length = random.nextInt(buffer.length - offset);
+
+			int expected = 0;
+			IButtonCrc crc = new IButtonCrc();
+			for (int i = offset; i < offset + length; i++) {
+				expected = bitwise(expected, buffer[i]);
+				crc.update(buffer[i]);
+			}
+			assertEquals((byte)expected, crc.getCrc());
+			assertEquals((byte)expected, IButtonCrc.compute(buffer, offset, length));
+		}
+	}
+
+	@Test
+	public void testReset() {
+		IButtonCrc crc = new IButtonCrc();
+		crc.update((byte)0x42);
+		assertFalse(crc.getCrc() == 0);
+		crc.reset();
+		assertEquals(0, crc.getCrc());
+		assertEquals(0, IButtonCrc.compute(new byte[4], 2, 0));
+	}
+}
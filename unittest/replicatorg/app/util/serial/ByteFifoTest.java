@@ -0,0 +1,202 @@
+package replicatorg.app.util.serial;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ByteFifoTest {
+
+	static byte[] bytes(int start, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte)(start + i);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testCapacity() {
+		assertEquals(16, new ByteFifo(16).capacity());
+		assertEquals(32, new ByteFifo(17).capacity());
+		assertEquals(2, new ByteFifo(0).capacity());
+		assertEquals(ByteFifo.DEFAULT_CAPACITY, new ByteFifo().capacity());
+	}
+
+	@Test
+	public void testWraparound() {
+		ByteFifo fifo = new ByteFifo(16);
+		byte[] out = new byte[16];
+		int next = 0;
+		// odd lengths, so the bytes wrap around the end of the buffer at every offset
+		for (int round = 0; round < 100; round++) {
+			int length = 1 + round % 13;
+			assertEquals(length, fifo.enqueue(bytes(next, length), 0, length));
+			assertEquals(length, fifo.size());
+			assertEquals(length, fifo.dequeue(out, 3, length));
+			for (int i = 0; i < length; i++) {
+				assertEquals((byte)(next + i), out[3 + i]);
+			}
+			next += length;
+			assertEquals(0, fifo.size());
+		}
+	}
+
+	@Test
+	public void testSingleBytes() {
+		ByteFifo fifo = new ByteFifo(4);
+		for (int i = 0; i < 50; i++) {
+			assertTrue(fifo.enqueue((byte)i));
+			assertTrue(fifo.enqueue((byte)(i + 100)));
+			assertEquals((byte)i, fifo.dequeue());
+			assertEquals((byte)(i + 100), fifo.dequeue());
+		}
+		assertEquals(0, fifo.size());
+	}
+
+	@Test
+	public void testFullDrops() {
+		ByteFifo fifo = new ByteFifo(8);
+		fifo.setOverflowPolicy(ByteFifo.OverflowPolicy.DROP);
+		// fills up, then drops the rest
+		assertEquals(8, fifo.enqueue(bytes(0, 10), 0, 10));
+		assertEquals(8, fifo.size());
+		assertEquals(2, fifo.getOverflowCount());
+		assertFalse(fifo.enqueue((byte)99));
+		assertEquals(3, fifo.getOverflowCount());
+
+		// what did fit is all there, in order
+		byte[] out = new byte[8];
+		assertEquals(8, fifo.dequeue(out, 0, 8));
+		assertArrayEquals(bytes(0, 8), out);
+	}
+
+	@Test
+	public void testEmpty() {
+		ByteFifo fifo = new ByteFifo(8);
+		byte[] out = new byte[4];
+		assertEquals(0, fifo.dequeue(out, 0, 4));
+		fifo.enqueue(bytes(0, 2), 0, 2);
+		// asking for more than there is only takes what there is
+		assertEquals(2, fifo.dequeue(out, 0, 4));
+		assertEquals(0, fifo.size());
+	}
+
+	@Test
+	public void testBlockTimesOut() {
+		ByteFifo fifo = new ByteFifo(4);
+		fifo.setBlockTimeout(20);
+		fifo.enqueue(bytes(0, 4), 0, 4);
+		long start = System.nanoTime();
+		assertFalse(fifo.enqueue((byte)4));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(15));
+		assertEquals(1, fifo.getOverflowCount());
+	}
+
+	@Test
+	public void testBlockWaitsForRoom() throws Exception {
+		final ByteFifo fifo = new ByteFifo(4);
+		fifo.setBlockTimeout(10000);
+		fifo.enqueue(bytes(0, 4), 0, 4);
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				fifo.dequeue(new byte[2], 0, 2);
+			}
+		};
+		consumer.start();
+		// waits for the consumer rather than dropping anything
+		assertEquals(2, fifo.enqueue(bytes(4, 2), 0, 2));
+		consumer.join();
+		assertEquals(0, fifo.getOverflowCount());
+		byte[] out = new byte[4];
+		fifo.dequeue(out, 0, 4);
+		assertArrayEquals(bytes(2, 4), out);
+	}
+
+	@Test
+	public void testLines() {
+		ByteFifo fifo = new ByteFifo(8);
+		byte[] out = new byte[8];
+		// move the head along so the lines wrap around the end of the buffer
+		fifo.enqueue(bytes(0, 6), 0, 6);
+		fifo.dequeue(out, 0, 6);
+
+		fifo.enqueue("ok".getBytes(), 0, 2);
+		assertEquals(0, fifo.lineLength());
+		assertEquals(0, fifo.dequeueLine().length);
+		fifo.enqueue(" 1\nT".getBytes(), 0, 4);
+		assertEquals(5, fifo.lineLength());
+		assertArrayEquals("ok 1\n".getBytes(), fifo.dequeueLine());
+		assertEquals(1, fifo.size());
+		assertEquals(0, fifo.lineLength());
+		fifo.enqueue("\n".getBytes(), 0, 1);
+		assertArrayEquals("T\n".getBytes(), fifo.dequeueLine());
+	}
+
+	@Test
+	public void testClear() {
+		ByteFifo fifo = new ByteFifo(8);
+		fifo.enqueue("abc".getBytes(), 0, 3);
+		fifo.lineLength();
+		fifo.clear();
+		assertEquals(0, fifo.size());
+		fifo.enqueue("d\n".getBytes(), 0, 2);
+		assertArrayEquals("d\n".getBytes(), fifo.dequeueLine());
+	}
+
+	@Test
+	public void testWaitForBytes() throws Exception {
+		final ByteFifo fifo = new ByteFifo(8);
+		assertFalse(fifo.waitForBytes(1, 10, TimeUnit.MILLISECONDS));
+
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				fifo.enqueue(bytes(0, 3), 0, 3);
+			}
+		};
+		producer.start();
+		assertTrue(fifo.waitForBytes(3, 10, TimeUnit.SECONDS));
+		producer.join();
+	}
+
+	@Test
+	public void testTwoThreads() throws Exception {
+		// a small fifo, so that both sides keep filling and emptying it and wrapping around
+		final ByteFifo fifo = new ByteFifo(16);
+		fifo.setBlockTimeout(10000);
+		final int total = 200000;
+		Thread producer = new Thread() {
+			public void run() {
+				byte[] chunk = new byte[7];
+				for (int sent = 0; sent < total; sent += chunk.length) {
+					for (int i = 0; i < chunk.length; i++) {
+						chunk[i] = (byte)(sent + i);
+					}
+					fifo.enqueue(chunk, 0, Math.min(chunk.length, total - sent));
+				}
+			}
+		};
+		producer.start();
+		byte[] out = new byte[5];
+		int received = 0;
+		while (received < total) {
+			assertTrue(fifo.waitForBytes(1, 10, TimeUnit.SECONDS));
+			int count = fifo.dequeue(out, 0, out.length);
+			for (int i = 0; i < count; i++) {
+				assertEquals((byte)(received + i), out[i]);
+			}
+			received += count;
+		}
+		producer.join();
+		assertEquals(0, fifo.getOverflowCount());
+	}
+}
@@ -0,0 +1,54 @@
+package replicatorg.drivers;
+
+import java.io.File;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.tools.XML;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Connects drivers to emulated firmware, for the tests that make round trips through
+ * a driver and an emulator.
+ */
+public class EmulatedMachines {
+
+	/**
+	 * Set a driver up for one of the machines in machines/, and connect it to the emulated
+	 * firmware it talks to. The driver is not initialized.
+	 * @param machineFile the machine's file in machines/, such as "thingomatic.xml"
+	 * @return the driver's model of the machine
+	 */
+	public static MachineModel connect(SerialDriver driver, String machineFile) throws Exception {
+		Node machine = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new File("machines", machineFile)).getElementsByTagName("machine").item(0);
+		MachineModel model = new MachineModel();
+		model.loadXML(machine);
+
+		driver.setMachine(model);
+		driver.loadXML(XML.getChildNodeByName(machine, "driver"));
+		driver.openSerial(SerialDriver.EMULATED_PORT);
+		return model;
+	}
+
+	/**
+	 * Find out what firmware a connected s3g driver is talking to, and call it initialized.
+	 * initialize() would look for newer firmware as well, and say so in a dialog.
+	 */
+	public static void handshake(Sanguino3GDriver driver) {
+		driver.version = driver.getVersionInternal();
+		driver.setInitialized(true);
+	}
+
+	/**
+	 * Let go of a driver that connect() may have been given, and so of its emulator.
+	 */
+	public static void disconnect(SerialDriver driver) {
+		if (driver != null) {
+			driver.dispose();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package replicatorg.drivers.gen3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CommandBufferTrackerTest {
+
+	@Test
+	public void testUnknownUntilAsked() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		// nothing is sure to fit until the firmware has said how much is free
+		assertFalse(tracker.hasRoomFor(1));
+		tracker.setFree(100);
+		assertTrue(tracker.hasRoomFor(100));
+		assertFalse(tracker.hasRoomFor(101));
+		tracker.setFree(CommandBufferTracker.UNKNOWN);
+		assertFalse(tracker.hasRoomFor(1));
+	}
+
+	@Test
+	public void testSent() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		tracker.setFree(100);
+		tracker.sent(30);
+		assertTrue(tracker.hasRoomFor(70));
+		assertFalse(tracker.hasRoomFor(71));
+		// the estimate never goes below empty
+		tracker.sent(500);
+		assertFalse(tracker.hasRoomFor(1));
+		assertTrue(tracker.hasRoomFor(0));
+	}
+
+	@Test
+	public void testOverflow() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		tracker.setFree(100);
+		tracker.overflowed();
+		assertFalse(tracker.hasRoomFor(1));
+		// the buffer was smaller than we thought, so its size is learnt again
+		tracker.setFree(10);
+		assertTrue(tracker.hasRoomFor(10));
+	}
+
+	@Test
+	public void testHoldUntilHalfEmpty() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		tracker.setFree(100);
+		tracker.sent(95);
+		assertFalse(tracker.hasRoomFor(10));
+		// a nearly full buffer counts as full, so commands aren't sent one answer at a time...
+		tracker.setFree(20);
+		assertFalse(tracker.hasRoomFor(10));
+		tracker.setFree(49);
+		assertFalse(tracker.hasRoomFor(10));
+		// ...but once it is half empty, they all go out on one answer
+		tracker.setFree(50);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(tracker.hasRoomFor(10));
+			tracker.sent(10);
+		}
+		assertFalse(tracker.hasRoomFor(10));
+	}
+
+	@Test
+	public void testCannotQuery() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		tracker.setFree(10);
+		tracker.cannotQuery();
+		// without a way to ask, everything is sent and only overflows hold it back
+		assertTrue(tracker.hasRoomFor(1000));
+		tracker.overflowed();
+		assertTrue(tracker.hasRoomFor(1000));
+	}
+
+	@Test
+	public void testQueryFailed() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		tracker.queryFailed();
+		// commands go out without asking for a while...
+		for (int i = 0; i < CommandBufferTracker.QUERY_RETRY_COMMANDS; i++) {
+			assertTrue(tracker.hasRoomFor(1000));
+			tracker.sent(1000);
+		}
+		// ...and then it's time to ask again
+		assertFalse(tracker.hasRoomFor(1));
+		tracker.setFree(100);
+		assertTrue(tracker.hasRoomFor(100));
+
+		// a reset means the firmware can be asked straight away
+		tracker.queryFailed();
+		tracker.reset();
+		assertFalse(tracker.hasRoomFor(1));
+	}
+
+	@Test
+	public void testReset() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		tracker.setFree(100);
+		tracker.reset();
+		assertFalse(tracker.hasRoomFor(1));
+	}
+
+	@Test
+	public void testBackoff() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		assertEquals(CommandBufferTracker.MIN_BACKOFF_MILLIS, tracker.getBackoffMillis());
+
+		// doubles each time the buffer is still full, up to the limit
+		int expected = CommandBufferTracker.MIN_BACKOFF_MILLIS;
+		for (int i = 0; i < 8; i++) {
+			long start = System.nanoTime();
+			tracker.backOff();
+			assertTrue((System.nanoTime() - start) / 1000000 >= expected - 1);
+			expected = Math.min(expected * 2, CommandBufferTracker.MAX_BACKOFF_MILLIS);
+			assertEquals(expected, tracker.getBackoffMillis());
+		}
+		assertEquals(CommandBufferTracker.MAX_BACKOFF_MILLIS, tracker.getBackoffMillis());
+
+		// and starts again once a command gets through, or the buffer is reset
+		tracker.sent(1);
+		assertEquals(CommandBufferTracker.MIN_BACKOFF_MILLIS, tracker.getBackoffMillis());
+		tracker.backOff();
+		tracker.reset();
+		assertEquals(CommandBufferTracker.MIN_BACKOFF_MILLIS, tracker.getBackoffMillis());
+	}
+
+	@Test
+	public void testInterruptedBackoff() {
+		CommandBufferTracker tracker = new CommandBufferTracker();
+		Thread.currentThread().interrupt();
+		tracker.backOff();
+		// the interrupt is kept for whoever comes next
+		assertTrue(Thread.interrupted());
+	}
+}
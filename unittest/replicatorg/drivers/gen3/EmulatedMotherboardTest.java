@@ -0,0 +1,150 @@
+package replicatorg.drivers.gen3;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import replicatorg.drivers.EmulatedMachines;
+import replicatorg.drivers.RetryException;
+import replicatorg.util.Point5d;
+
+// Round trips between the s3g driver and the emulated motherboard
+public class EmulatedMotherboardTest {
+
+	Sanguino3GDriver driver;
+	EmulatedMotherboard emulator;
+
+	@Before
+	public void connect() throws Exception {
+		driver = new Sanguino3GDriver();
+		EmulatedMachines.connect(driver, "thingomatic.xml");
+		emulator = driver.getEmulator();
+		EmulatedMachines.handshake(driver);
+		assertTrue(driver.isInitialized());
+	}
+
+	@After
+	public void disconnect() {
+		EmulatedMachines.disconnect(driver);
+	}
+
+	// Queue a move, trying again for as long as the machine is full
+	void move(double x, double y) {
+		driver.setFeedrateMM(6000);
+		Point5d p = new Point5d(x, y, 0);
+		for (int tries = 0; ; tries++) {
+			try {
+				driver.queuePoint(p);
+				return;
+			} catch (RetryException e) {
+				assertTrue("the machine never made room", tries < 10000);
+			}
+		}
+	}
+
+	void waitUntilFinished() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!driver.isFinished()) {
+			assertTrue("the machine never finished", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	void assertPosition(double x, double y) {
+		Point5d position = driver.getCurrentPosition(true);
+		assertEquals(x, position.x(), 0.01);
+		assertEquals(y, position.y(), 0.01);
+	}
+
+	// Overflows over every command code
+	long totalOverflows() {
+		long total = 0;
+		for (int code = 0; code < 256; code++) {
+			total += driver.getPacketStatistics().getOverflows(code);
+		}
+		return total;
+	}
+
+	// Commands held back over every command code
+	long totalHolds() {
+		long total = 0;
+		for (int code = 0; code < 256; code++) {
+			total += driver.getPacketStatistics().getHolds(code);
+		}
+		return total;
+	}
+
+	// Bad CRCs over every command code
+	long totalBadCrcs() {
+		long total = 0;
+		for (int code = 0; code < 256; code++) {
+			total += driver.getPacketStatistics().getCrcErrors(code);
+		}
+		return total;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		assertEquals(driver.getPreferredVersion(), driver.getVersion());
+		driver.setCurrentPosition(new Point5d());
+		move(1, 0);
+		move(1, 2);
+		waitUntilFinished();
+		assertPosition(1, 2);
+		assertEquals(0, emulator.getOverflowCount());
+	}
+
+	@Test
+	public void testOverflowThenRetry() throws Exception {
+		driver.setCurrentPosition(new Point5d());
+		move(0.1, 0);
+		// The driver knows how much room there was; take most of it away, so the next
+		// moves it thinks will fit are turned away
+		emulator.setBufferSize(60);
+		for (int i = 1; i <= 100; i++) {
+			move(0.1 * (i % 10), 0.1 * i);
+		}
+		waitUntilFinished();
+
+		assertTrue(emulator.getOverflowCount() > 0);
+		assertEquals(emulator.getOverflowCount(), totalOverflows());
+		// after which the driver asks how much room there is, rather than overflowing again
+		assertTrue(totalHolds() > 0);
+		// every move was sent again until it got through
+		assertPosition(0, 10);
+	}
+
+	@Test
+	public void testStreamingAsksNowAndThen() throws Exception {
+		driver.setCurrentPosition(new Point5d());
+		final int moves = 200;
+		for (int i = 1; i <= moves; i++) {
+			move(0.1 * (i % 10), 0.1 * i);
+		}
+		waitUntilFinished();
+
+		// with the buffer full the whole way, the driver still only asks how much
+		// room there is once for a batch of moves, not before every one
+		long queries = driver.getPacketStatistics().getSent(
+				MotherboardCommandCode.GET_BUFFER_SIZE.getCode());
+		assertTrue("asked " + queries + " times for " + moves + " moves", queries < moves / 2);
+		assertPosition(0, 20);
+	}
+
+	@Test
+	public void testBadCrcThenRetry() throws Exception {
+		driver.setCurrentPosition(new Point5d());
+		emulator.setCrcErrorRate(0.2);
+		for (int i = 1; i <= 50; i++) {
+			move(0.1 * (i % 10), 0.1 * i);
+		}
+		waitUntilFinished();
+		emulator.setCrcErrorRate(0);
+
+		assertTrue(emulator.getCrcErrorCount() > 0);
+		assertEquals(emulator.getCrcErrorCount(), totalBadCrcs());
+		assertPosition(0, 5);
+	}
+}
@@ -0,0 +1,226 @@
+package replicatorg.drivers.gen3;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import replicatorg.util.Point5d;
+
+public class LookaheadPlannerTest {
+
+	// mm/sec
+	static final double JERK = 5;
+	// mm/sec/sec; fast enough that every ramp here is shorter than a piece
+	static final double ACCELERATION = 1000;
+	// mm/min, 10 mm/sec
+	static final double FEEDRATE = 600;
+
+	static final Point5d ACCELERATIONS = new Point5d(ACCELERATION, ACCELERATION, ACCELERATION, 0, 0);
+
+	static Point5d p(double x, double y) {
+		return new Point5d(x, y, 0);
+	}
+
+	static LookaheadPlanner planner(int window) {
+		return new LookaheadPlanner(window, JERK, ACCELERATIONS);
+	}
+
+	static void assertPiece(LookaheadPlanner.Piece piece, Point5d from, Point5d to, double feedrate) {
+		for (int i = 0; i < 5; i++) {
+			assertEquals(from.get(i), piece.from.get(i), 1e-9);
+			assertEquals(to.get(i), piece.to.get(i), 1e-9);
+		}
+		assertEquals(feedrate, piece.feedrate, 1e-6);
+	}
+
+	// How long a ramp between two speeds is, in mm
+	static double ramp(double v0, double v1) {
+		return Math.abs(v1 * v1 - v0 * v0) / (2 * ACCELERATION);
+	}
+
+	@Test
+	public void testSingleMove() {
+		LookaheadPlanner planner = planner(4);
+		planner.add(p(0, 0), p(10, 0), FEEDRATE);
+		assertTrue(planner.isPlanning());
+		assertTrue(planner.getPieces().isEmpty());
+		planner.flush();
+		assertFalse(planner.isPlanning());
+
+		// starts and stops at the jerk, and cruises in between; the ramps are a piece each,
+		// going at their average speed
+		List<LookaheadPlanner.Piece> pieces = planner.getPieces();
+		assertEquals(3, pieces.size());
+		double ramp = ramp(JERK, 10);
+		assertPiece(pieces.get(0), p(0, 0), p(ramp, 0), (JERK + 10) / 2 * 60);
+		assertPiece(pieces.get(1), p(ramp, 0), p(10 - ramp, 0), FEEDRATE);
+		assertPiece(pieces.get(2), p(10 - ramp, 0), p(10, 0), (10 + JERK) / 2 * 60);
+	}
+
+	@Test
+	public void testNoAcceleration() {
+		LookaheadPlanner planner = new LookaheadPlanner(4, JERK, new Point5d());
+		planner.add(p(0, 0), p(10, 0), FEEDRATE);
+		planner.flush();
+		// an axis without an acceleration changes speed at once
+		assertEquals(1, planner.getPieces().size());
+		assertPiece(planner.getPieces().get(0), p(0, 0), p(10, 0), FEEDRATE);
+	}
+
+	@Test
+	public void testStraightJunction() {
+		LookaheadPlanner planner = planner(4);
+		planner.add(p(0, 0), p(10, 0), FEEDRATE);
+		planner.add(p(10, 0), p(20, 0), FEEDRATE);
+		planner.flush();
+
+		// going straight on, nothing slows down at the joint
+		List<LookaheadPlanner.Piece> pieces = planner.getPieces();
+		assertEquals(4, pieces.size());
+		double ramp = ramp(JERK, 10);
+		assertPiece(pieces.get(1), p(ramp, 0), p(10, 0), FEEDRATE);
+		assertPiece(pieces.get(2), p(10, 0), p(20 - ramp, 0), FEEDRATE);
+	}
+
+	@Test
+	public void testCorner() {
+		LookaheadPlanner planner = planner(4);
+		planner.add(p(0, 0), p(10, 0), FEEDRATE);
+		planner.add(p(10, 0), p(10, 10), FEEDRATE);
+		planner.flush();
+
+		// turning from X to Y changes each axis's speed by all of it, so the corner is
+		// taken at the jerk
+		List<LookaheadPlanner.Piece> pieces = planner.getPieces();
+		assertEquals(6, pieces.size());
+		double ramp = ramp(JERK, 10);
+		assertPiece(pieces.get(2), p(10 - ramp, 0), p(10, 0), (10 + JERK) / 2 * 60);
+		assertPiece(pieces.get(3), p(10, 0), p(10, ramp), (JERK + 10) / 2 * 60);
+	}
+
+	@Test
+	public void testReversal() {
+		LookaheadPlanner planner = planner(4);
+		planner.add(p(0, 0), p(10, 0), FEEDRATE);
+		planner.add(p(10, 0), p(0, 0), FEEDRATE);
+		planner.flush();
+
+		// turning right round changes X's speed by twice as much, so half the speed
+		List<LookaheadPlanner.Piece> pieces = planner.getPieces();
+		assertEquals(6, pieces.size());
+		double corner = JERK / 2;
+		double ramp = ramp(corner, 10);
+		assertPiece(pieces.get(2), p(10 - ramp, 0), p(10, 0), (10 + corner) / 2 * 60);
+		assertPiece(pieces.get(3), p(10, 0), p(10 - ramp, 0), (corner + 10) / 2 * 60);
+	}
+
+	@Test
+	public void testShortMove() {
+		LookaheadPlanner planner = planner(4);
+		double length = 0.05;
+		planner.add(p(0, 0), p(length, 0), FEEDRATE);
+		planner.flush();
+
+		// too short to get up to speed: it peaks where speeding up from the jerk meets
+		// slowing down to it
+		double top = Math.sqrt(ACCELERATION * length + JERK * JERK);
+		assertTrue(top < 10);
+		List<LookaheadPlanner.Piece> pieces = planner.getPieces();
+		assertEquals(2, pieces.size());
+		assertPiece(pieces.get(0), p(0, 0), p(length / 2, 0), (JERK + top) / 2 * 60);
+		assertPiece(pieces.get(1), p(length / 2, 0), p(length, 0), (top + JERK) / 2 * 60);
+	}
+
+	@Test
+	public void testLongRamp() {
+		LookaheadPlanner planner = new LookaheadPlanner(4, JERK, new Point5d(10, 10, 10, 0, 0));
+		planner.add(p(0, 0), p(100, 0), FEEDRATE);
+		planner.flush();
+
+		// a long ramp is broken up, but into no more than MAX_RAMP_PIECES pieces, which
+		// speed up and then slow down again, and join end to end
+		List<LookaheadPlanner.Piece> pieces = planner.getPieces();
+		assertEquals(2 * LookaheadPlanner.MAX_RAMP_PIECES + 1, pieces.size());
+		for (int i = 1; i < pieces.size(); i++) {
+			assertPiece(pieces.get(i), pieces.get(i - 1).to, pieces.get(i).to, pieces.get(i).feedrate);
+			if (i <= LookaheadPlanner.MAX_RAMP_PIECES) {
+				assertTrue(pieces.get(i).feedrate > pieces.get(i - 1).feedrate);
+			} else {
+				assertTrue(pieces.get(i).feedrate < pieces.get(i - 1).feedrate);
+			}
+		}
+		assertEquals(FEEDRATE, pieces.get(LookaheadPlanner.MAX_RAMP_PIECES).feedrate, 1e-9);
+		assertPiece(pieces.get(pieces.size() - 1), pieces.get(pieces.size() - 1).from, p(100, 0),
+				pieces.get(pieces.size() - 1).feedrate);
+	}
+
+	// The fastest any piece goes, when 1mm moves are planned through a window
+	static double fastest(int window) {
+		// slow enough that getting up to speed and back takes a few moves
+		LookaheadPlanner planner = new LookaheadPlanner(window, JERK, new Point5d(20, 20, 20, 0, 0));
+		for (int i = 0; i < 10; i++) {
+			planner.add(p(i, 0), p(i + 1, 0), FEEDRATE);
+		}
+		planner.flush();
+		double fastest = 0;
+		for (LookaheadPlanner.Piece piece : planner.getPieces()) {
+			fastest = Math.max(fastest, piece.feedrate);
+		}
+		return fastest;
+	}
+
+	@Test
+	public void testWindowLimitsSpeed() {
+		// looking far enough ahead, there is room to get up to speed and stop again...
+		assertEquals(FEEDRATE, fastest(8), 1e-9);
+		// ...but every move must be able to stop by the end of a short window
+		assertTrue(fastest(1) < FEEDRATE);
+	}
+
+	@Test
+	public void testWindow() {
+		LookaheadPlanner planner = planner(2);
+		planner.add(p(0, 0), p(10, 0), FEEDRATE);
+		planner.add(p(10, 0), p(20, 0), FEEDRATE);
+		// nothing is planned for good until the window is full
+		assertTrue(planner.getPieces().isEmpty());
+		planner.add(p(20, 0), p(30, 0), FEEDRATE);
+		assertFalse(planner.getPieces().isEmpty());
+		assertEquals(10, planner.getPieces().getLast().to.x(), 1e-9);
+	}
+
+	@Test
+	public void testGap() {
+		LookaheadPlanner planner = planner(4);
+		planner.add(p(0, 0), p(10, 0), FEEDRATE);
+		// something else moved us to 20 in between, so the first move has to stop
+		planner.add(p(20, 0), p(30, 0), FEEDRATE);
+		List<LookaheadPlanner.Piece> pieces = planner.getPieces();
+		assertEquals(3, pieces.size());
+		assertEquals((10 + JERK) / 2 * 60, pieces.get(2).feedrate, 1e-6);
+	}
+
+	@Test
+	public void testZeroLength() {
+		LookaheadPlanner planner = planner(4);
+		planner.add(p(1, 1), p(1, 1), FEEDRATE);
+		assertFalse(planner.isPlanning());
+	}
+
+	@Test
+	public void testClear() {
+		LookaheadPlanner planner = planner(1);
+		planner.add(p(0, 0), p(10, 0), FEEDRATE);
+		planner.add(p(10, 0), p(20, 0), FEEDRATE);
+		planner.clear();
+		assertFalse(planner.isPlanning());
+		assertTrue(planner.getPieces().isEmpty());
+
+		// and starts again from a standstill
+		planner.add(p(20, 0), p(30, 0), FEEDRATE);
+		planner.flush();
+		assertEquals((JERK + 10) / 2 * 60, planner.getPieces().getFirst().feedrate, 1e-6);
+	}
+}
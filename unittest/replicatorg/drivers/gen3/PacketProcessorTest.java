@@ -0,0 +1,171 @@
+package replicatorg.drivers.gen3;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import replicatorg.app.tools.IButtonCrc;
+
+public class PacketProcessorTest {
+
+	// Frame a payload the way the machine does: start byte, length, payload, crc
+	static byte[] frame(byte... payload) {
+		byte[] packet = new byte[payload.length + 3];
+		packet[0] = PacketConstants.START_BYTE;
+		packet[1] = (byte)payload.length;
+		System.arraycopy(payload, 0, packet, 2, payload.length);
+		packet[packet.length - 1] = IButtonCrc.compute(payload, 0, payload.length);
+		return packet;
+	}
+
+	static byte[] concat(byte[] a, byte[] b) {
+		byte[] both = new byte[a.length + b.length];
+		System.arraycopy(a, 0, both, 0, a.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+		return both;
+	}
+
+	static byte[] payload(int length, long seed) {
+		byte[] payload = new byte[length];
+		new Random(seed).nextBytes(payload);
+		return payload;
+	}
+
+	@Test
+	public void testProcessByte() throws Exception {
+		byte[] payload = { (byte)0x81, 1, 2, 3 };
+		byte[] packet = frame(payload);
+		PacketProcessor pp = new PacketProcessor();
+		for (int i = 0; i < packet.length - 1; i++) {
+			assertFalse(pp.processByte(packet[i]));
+		}
+		assertTrue(pp.processByte(packet[packet.length - 1]));
+		assertArrayEquals(payload, pp.getResponse().getPayload());
+	}
+
+	@Test
+	public void testBytesNeeded() throws Exception {
+		// reading bytesNeeded() at a time never reads past the end of a packet, whatever
+		// its length, and finishes it exactly
+		for (int length = 0; length <= 255; length++) {
+			byte[] payload = payload(length, length);
+			byte[] packet = frame(payload);
+			PacketProcessor pp = new PacketProcessor();
+			int offset = 0;
+			int used = -1;
+			while (used == -1) {
+				int needed = pp.bytesNeeded();
+				assertTrue(needed > 0);
+				assertTrue("read past a " + length + " byte payload", offset + needed <= packet.length);
+				used = pp.processBytes(packet, offset, needed);
+				offset += needed;
+			}
+			assertEquals(packet.length, offset);
+			assertArrayEquals(payload, pp.getResponse().getPayload());
+		}
+	}
+
+	@Test
+	public void testBytesNeededStates() throws Exception {
+		PacketProcessor pp = new PacketProcessor();
+		// start, length and crc at the least
+		assertEquals(3, pp.bytesNeeded());
+		pp.processByte(PacketConstants.START_BYTE);
+		assertEquals(2, pp.bytesNeeded());
+		pp.processByte((byte)4);
+		assertEquals(5, pp.bytesNeeded());
+		pp.processByte((byte)0);
+		assertEquals(4, pp.bytesNeeded());
+		pp.reset();
+		assertEquals(3, pp.bytesNeeded());
+	}
+
+	@Test
+	public void testBackToBack() throws Exception {
+		byte[] first = payload(10, 1);
+		byte[] second = payload(3, 2);
+		byte[] bytes = concat(frame(first), frame(second));
+
+		// only the first packet's bytes are used...
+		PacketProcessor pp = new PacketProcessor();
+		int used = pp.processBytes(bytes, 0, bytes.length);
+		assertEquals(first.length + 3, used);
+		assertArrayEquals(first, pp.getResponse().getPayload());
+
+		// ...and the rest make the next one
+		assertEquals(bytes.length - used, pp.processBytes(bytes, used, bytes.length - used));
+		assertArrayEquals(second, pp.getResponse().getPayload());
+	}
+
+	@Test
+	public void testSplit() throws Exception {
+		byte[] payload = payload(20, 3);
+		byte[] packet = frame(payload);
+		PacketProcessor pp = new PacketProcessor();
+		assertEquals(-1, pp.processBytes(packet, 0, 7));
+		assertEquals(-1, pp.processBytes(packet, 7, 0));
+		assertEquals(packet.length - 7, pp.processBytes(packet, 7, packet.length - 7));
+		assertArrayEquals(payload, pp.getResponse().getPayload());
+	}
+
+	@Test
+	public void testNoise() throws Exception {
+		// anything before a start byte is skipped
+		byte[] payload = { (byte)0x81, 42 };
+		byte[] bytes = concat(new byte[] { 0, 17, (byte)0xff }, frame(payload));
+		PacketProcessor pp = new PacketProcessor();
+		assertEquals(bytes.length, pp.processBytes(bytes, 0, bytes.length));
+		assertArrayEquals(payload, pp.getResponse().getPayload());
+	}
+
+	@Test
+	public void testEmptyPayload() throws Exception {
+		byte[] packet = frame();
+		PacketProcessor pp = new PacketProcessor();
+		assertEquals(packet.length, pp.processBytes(packet, 0, packet.length));
+		assertEquals(0, pp.getResponse().getPayload().length);
+	}
+
+	@Test
+	public void testBadCrc() throws Exception {
+		byte[] payload = { (byte)0x81, 1, 2 };
+		byte[] packet = frame(payload);
+		byte good = packet[packet.length - 1];
+		packet[packet.length - 1] ^= 0x55;
+		PacketProcessor pp = new PacketProcessor();
+		try {
+			pp.processBytes(packet, 0, packet.length);
+			fail("expected a CRCException");
+		} catch (PacketProcessor.CRCException e) {
+			assertEquals(good, e.getExpected());
+			assertEquals(packet[packet.length - 1], e.getActual());
+		}
+
+		// and is ready for the next packet
+		packet[packet.length - 1] = good;
+		assertEquals(packet.length, pp.processBytes(packet, 0, packet.length));
+		assertArrayEquals(payload, pp.getResponse().getPayload());
+	}
+
+	@Test
+	public void testReusedResponse() throws Exception {
+		PacketProcessor pp = new PacketProcessor();
+		PacketResponse pr = new PacketResponse();
+		byte[] longer = payload(30, 4);
+		byte[] shorter = { (byte)0x81, 7 };
+
+		byte[] packet = frame(longer);
+		pp.processBytes(packet, 0, packet.length);
+		assertSame(pr, pp.getResponse(pr));
+		assertArrayEquals(longer, pr.getPayload());
+
+		packet = frame(shorter);
+		pp.processBytes(packet, 0, packet.length);
+		pp.getResponse(pr);
+		assertArrayEquals(shorter, pr.getPayload());
+		assertTrue(pr.isOK());
+		assertEquals(7, pr.get8());
+	}
+}
@@ -0,0 +1,147 @@
+package replicatorg.drivers.gen3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PacketStatisticsTest {
+
+	static final int MOVE = MotherboardCommandCode.QUEUE_POINT_EXT.getCode();
+	static final int VERSION = MotherboardCommandCode.VERSION.getCode();
+
+	static long micros(long micros) {
+		return micros * 1000;
+	}
+
+	@Test
+	public void testCounts() {
+		PacketStatistics stats = new PacketStatistics();
+		stats.sent(MOVE);
+		stats.sent(MOVE);
+		stats.retried(MOVE);
+		stats.timedOut(MOVE);
+		stats.badCrc(MOVE);
+		stats.overflowed(MOVE);
+		stats.overflowed(MOVE);
+		stats.sent(VERSION);
+
+		assertEquals(2, stats.getSent(MOVE));
+		assertEquals(1, stats.getRetries(MOVE));
+		assertEquals(1, stats.getTimeouts(MOVE));
+		assertEquals(1, stats.getCrcErrors(MOVE));
+		assertEquals(2, stats.getOverflows(MOVE));
+		// each code is counted on its own
+		assertEquals(1, stats.getSent(VERSION));
+		assertEquals(0, stats.getRetries(VERSION));
+	}
+
+	@Test
+	public void testCodesAreBytes() {
+		PacketStatistics stats = new PacketStatistics();
+		// codes are often read out of packets as signed bytes
+		stats.sent((byte)MOVE);
+		assertEquals(1, stats.getSent(MOVE));
+		assertEquals(1, stats.getSent((byte)MOVE));
+	}
+
+	@Test
+	public void testBuckets() {
+		PacketStatistics stats = new PacketStatistics();
+		stats.answered(MOVE, micros(0));
+		stats.answered(MOVE, micros(1));
+		stats.answered(MOVE, micros(2));
+		stats.answered(MOVE, micros(3));
+		stats.answered(MOVE, micros(4));
+		stats.answered(MOVE, micros(1000));
+		// far too long for any bucket but the last
+		stats.answered(MOVE, micros(1L << 40));
+
+		long[] histogram = stats.getLatencyHistogram(MOVE);
+		assertEquals(PacketStatistics.BUCKETS, histogram.length);
+		assertEquals(1, histogram[0]);	// under 1us
+		assertEquals(1, histogram[1]);	// under 2us
+		assertEquals(2, histogram[2]);	// under 4us
+		assertEquals(1, histogram[3]);	// under 8us
+		assertEquals(1, histogram[10]);	// under 1024us
+		assertEquals(1, histogram[PacketStatistics.BUCKETS - 1]);
+		long total = 0;
+		for (long n : histogram) {
+			total += n;
+		}
+		assertEquals(7, total);
+	}
+
+	@Test
+	public void testPercentiles() {
+		PacketStatistics stats = new PacketStatistics();
+		assertEquals(0, stats.getLatencyPercentile(MOVE, 0.5));
+
+		// 90 quick answers and 10 slow ones
+		for (int i = 0; i < 90; i++) {
+			stats.answered(MOVE, micros(100));
+		}
+		for (int i = 0; i < 10; i++) {
+			stats.answered(MOVE, micros(5000));
+		}
+		// reported as the top of their buckets, never more than twice the real time
+		assertEquals(128, stats.getLatencyPercentile(MOVE, 0.5));
+		assertEquals(128, stats.getLatencyPercentile(MOVE, 0.9));
+		assertEquals(8192, stats.getLatencyPercentile(MOVE, 0.91));
+		assertEquals(8192, stats.getLatencyPercentile(MOVE, 1.0));
+		assertEquals(128, stats.getLatencyPercentile(MOVE, 0.0));
+		assertEquals(0, stats.getLatencyPercentile(VERSION, 0.5));
+	}
+
+	@Test
+	public void testReset() {
+		PacketStatistics stats = new PacketStatistics();
+		stats.sent(MOVE);
+		stats.overflowed(MOVE);
+		stats.answered(MOVE, micros(50));
+		stats.reset();
+		assertEquals(0, stats.getSent(MOVE));
+		assertEquals(0, stats.getOverflows(MOVE));
+		assertEquals(0, stats.getLatencyPercentile(MOVE, 1.0));
+		assertEquals("", stats.report());
+	}
+
+	@Test
+	public void testReport() {
+		PacketStatistics stats = new PacketStatistics();
+		stats.sent(MOVE);
+		stats.answered(MOVE, micros(100));
+		stats.sent(0xfe);
+		String report = stats.report();
+		// a line for each code sent, by name where there is one
+		assertEquals(2, report.split("\n").length);
+		assertTrue(report.contains("QUEUE_POINT_EXT: sent 1, retries 0"));
+		assertTrue(report.contains("p50 < 128us"));
+		assertTrue(report.contains("254: sent 1"));
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		final PacketStatistics stats = new PacketStatistics();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						stats.sent(MOVE);
+						stats.answered(MOVE, micros(i));
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, stats.getSent(MOVE));
+		long total = 0;
+		for (long n : stats.getLatencyHistogram(MOVE)) {
+			total += n;
+		}
+		assertEquals(40000, total);
+	}
+}
@@ -0,0 +1,148 @@
+package replicatorg.drivers.reprap;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import replicatorg.drivers.EmulatedMachines;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+// Round trips between the RepRap driver and the emulated Marlin firmware
+public class EmulatedMarlinTest {
+
+	RepRap5DDriver driver;
+	EmulatedMarlin emulator;
+	MachineModel model;
+
+	@Before
+	public void connect() throws Exception {
+		driver = new RepRap5DDriver();
+		model = EmulatedMachines.connect(driver, "ultimaker.xml");
+		emulator = driver.getEmulator();
+		driver.initialize();
+		assertTrue(driver.isInitialized());
+	}
+
+	@After
+	public void disconnect() {
+		EmulatedMachines.disconnect(driver);
+	}
+
+	// Wait for the firmware to have taken on this many lines
+	void waitForLines(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (emulator.getLineCount() < count) {
+			assertTrue("the firmware only took " + emulator.getLineCount() + " of " + count + " lines",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	void assertPosition(double x, double y) {
+		driver.sendCommand("M114", true);
+		Point5d position = driver.getCurrentPosition(false);
+		assertEquals(x, position.x(), 0.01);
+		assertEquals(y, position.y(), 0.01);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		assertTrue(driver.getFirmwareInfo().startsWith("Marlin"));
+
+		// the emulated heaters get where they are told at once
+		driver.sendCommand("M104 S185", true);
+		driver.sendCommand("M105", true);
+		assertEquals(185, model.currentTool().getCurrentTemperature(), 0.5);
+
+		driver.sendCommand("G1 X1 Y2 F6000", true);
+		assertPosition(1, 2);
+		assertEquals(0, emulator.getResendCount());
+	}
+
+	@Test
+	public void testResendThenOk() throws Exception {
+		long before = emulator.getLineCount();
+		emulator.setChecksumErrorRate(0.2);
+		int count = 100;
+		for (int i = 1; i <= count; i++) {
+			driver.sendCommand("G1 X" + (i % 10) + " Y" + i + " F60000", true);
+		}
+		waitForLines(before + count);
+		emulator.setChecksumErrorRate(0);
+
+		// every garbled line was asked for again, and taken the second time round,
+		// in order and only once
+		assertTrue(emulator.getChecksumErrorCount() > 0);
+		assertTrue(emulator.getResendCount() >= emulator.getChecksumErrorCount());
+		assertEquals(before + count, emulator.getLineCount());
+		assertPosition(0, count);
+	}
+
+	@Test
+	public void testResendWhileStreaming() throws Exception {
+		long before = emulator.getLineCount();
+		emulator.setChecksumErrorRate(0.1);
+		int count = 200;
+		for (int i = 1; i <= count; i++) {
+			driver.sendCommand("G1 X" + (i % 10) + " Y" + i + " F60000", false);
+		}
+		waitForLines(before + count);
+		emulator.setChecksumErrorRate(0);
+
+		assertTrue(emulator.getResendCount() > 0);
+		assertEquals(before + count, emulator.getLineCount());
+		assertPosition(0, count);
+	}
+
+	@Test
+	public void testBuildLinesDontWait() throws Exception {
+		// answers take a while to come back, so lines that don't wait pile up
+		emulator.setLatency(50000);
+		for (int i = 1; i <= 3; i++) {
+			driver.executeGCodeLine("G1 X" + i + " F6000");
+		}
+		assertTrue(driver.queueSize() > 1);
+
+		// but a line whose answer is read waits for it, and so for those before it
+		driver.executeGCodeLine("M105");
+		assertTrue(driver.isBufferEmpty());
+		emulator.setLatency(0);
+		assertPosition(3, 0);
+	}
+
+	@Test
+	public void testLostOk() throws Exception {
+		driver.answerTimeout = 100;
+		emulator.loseAnswers(1);
+		driver.sendCommand("G1 X1 Y2 F6000", true);
+
+		// the line was sent again when the firmware went quiet, and the firmware, which
+		// had it, asked for the next one instead of carrying it out twice
+		assertEquals(1, emulator.getResendCount());
+		assertTrue(driver.isBufferEmpty());
+		assertPosition(1, 2);
+	}
+
+	@Test
+	public void testSlowMove() throws Exception {
+		driver.answerTimeout = 100;
+		long before = emulator.getLineCount();
+		// the firmware says nothing for a good many timeouts while it dwells, and the
+		// lines after it wait in its receive buffer
+		driver.sendCommand("G4 P2000", false);
+		int count = 20;
+		for (int i = 1; i <= count; i++) {
+			driver.sendCommand("G1 X" + (i % 10) + " Y" + i + " F60000", false);
+		}
+		waitForLines(before + 1 + count);
+
+		// the dwell was sent again, but never more than the buffer had room for
+		assertTrue(emulator.getResendCount() > 0);
+		assertEquals(0, emulator.getRxOverflowCount());
+		assertEquals(before + 1 + count, emulator.getLineCount());
+		assertPosition(0, count);
+	}
+}
@@ -0,0 +1,113 @@
+package replicatorg.drivers.reprap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LineEncoderTest {
+
+	// The checksum RepRap firmwares check: every byte before the '*' XORed together
+	static String framed(String numbered) {
+		int checksum = 0;
+		for (int i = 0; i < numbered.length(); i++) {
+			checksum ^= numbered.charAt(i);
+		}
+		return numbered + "*" + (checksum & 0xff) + "\n";
+	}
+
+	static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < s.length(); i++) {
+			bytes[i] = (byte)s.charAt(i);
+		}
+		return bytes;
+	}
+
+	static void assertEncoded(String expected, LineEncoder encoder, int length) {
+		assertEquals(expected.length(), length);
+		assertEquals(length, encoder.getLength());
+		byte[] bytes = new byte[length];
+		System.arraycopy(encoder.getBuffer(), 0, bytes, 0, length);
+		assertArrayEquals(ascii(expected), bytes);
+	}
+
+	@Test
+	public void testChecksum() {
+		LineEncoder encoder = new LineEncoder();
+		// worked by hand: the bytes of "N1 G28 " XOR to 50
+		assertEncoded("N1 G28 *50\n", encoder, encoder.encode("G28", 1));
+		assertEquals("N1 G28 *50", encoder.toString());
+	}
+
+	@Test
+	public void testNumbered() {
+		LineEncoder encoder = new LineEncoder();
+		assertEncoded(framed("N5 G1 X1.5 Y-2 F3000 "), encoder,
+				encoder.encode("G1 X1.5 Y-2 F3000", 5));
+		assertEncoded(framed("N123456 M105 "), encoder, encoder.encode("M105", 123456));
+		assertEncoded(framed("N0 M104 S200 "), encoder, encoder.encode("M104 S200", 0));
+	}
+
+	@Test
+	public void testRenumber() {
+		LineEncoder encoder = new LineEncoder();
+		// M110 is sent with the line number before the one it sets
+		assertEncoded(framed("N-1 M110 "), encoder, encoder.encode("M110", -1));
+		assertEncoded(framed("N41 M110 "), encoder, encoder.encode("M110", 41));
+	}
+
+	@Test
+	public void testComments() {
+		LineEncoder encoder = new LineEncoder();
+		// a trailing comment goes, and so does the whitespace before it
+		assertEncoded(framed("N5 G1 X1 "), encoder, encoder.encode("G1 X1  ; move", 5));
+		assertEncoded(framed("N6 G1 X1  Y2 "), encoder, encoder.encode("  G1 X1 (over) Y2\t", 6));
+		assertEncoded(framed("N7 G1 X1 "), encoder, encoder.encode("G1 X1 (over)", 7));
+		// a '(' with no ')' isn't a comment
+		assertEncoded(framed("N8 G1 X1 (open "), encoder, encoder.encode("G1 X1 (open", 8));
+		// nothing but a comment leaves an empty command
+		assertEncoded(framed("N9  "), encoder, encoder.encode("; just a comment", 9));
+	}
+
+	@Test
+	public void testUnnumbered() {
+		LineEncoder encoder = new LineEncoder();
+		assertEncoded("G28\n", encoder, encoder.encode("G28"));
+		assertEncoded("G1 X1\n", encoder, encoder.encode(" G1 X1 ; move "));
+		assertEncoded("\n", encoder, encoder.encode("(all comment)"));
+		assertEquals("", encoder.toString());
+	}
+
+	@Test
+	public void testNonAscii() {
+		LineEncoder encoder = new LineEncoder();
+		assertEncoded(framed("N1 M117 ?C "), encoder, encoder.encode("M117 \u00b0C", 1));
+		assertEncoded("M117 ?\n", encoder, encoder.encode("M117 \u2603"));
+	}
+
+	@Test
+	public void testLongLine() {
+		LineEncoder encoder = new LineEncoder();
+		encoder.encode("G28", 1);
+		StringBuilder command = new StringBuilder("M117 ");
+		for (int i = 0; i < 1000; i++) {
+			command.append((char)('a' + i % 26));
+		}
+		// the buffer grows to fit, and what was in it before doesn't leak in
+		assertEncoded(framed("N2147483647 " + command + " "), encoder,
+				encoder.encode(command, Integer.MAX_VALUE));
+		assertEncoded(framed("N3 G28 "), encoder, encoder.encode("G28", 3));
+	}
+
+	@Test
+	public void testStripComments() {
+		String line = "G1 X1";
+		assertSame(line, LineEncoder.stripComments(line));
+		assertEquals("G1 X1", LineEncoder.stripComments("  G1 X1\t"));
+		assertEquals("G1 X1", LineEncoder.stripComments("G1 X1  ; move"));
+		assertEquals("G1 X1  Y2", LineEncoder.stripComments("G1 X1 (over) Y2"));
+		assertEquals("G1 X1 (open", LineEncoder.stripComments("G1 X1 (open"));
+		assertEquals("", LineEncoder.stripComments("; just a comment"));
+		assertEquals("", LineEncoder.stripComments(""));
+	}
+}
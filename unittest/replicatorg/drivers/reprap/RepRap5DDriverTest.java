@@ -0,0 +1,106 @@
+package replicatorg.drivers.reprap;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class RepRap5DDriverTest {
+
+	@Test
+	public void testNeedsAnswer() {
+		assertTrue(RepRap5DDriver.needsAnswer("M105"));
+		assertTrue(RepRap5DDriver.needsAnswer("M114 ; where are we"));
+		assertTrue(RepRap5DDriver.needsAnswer("T0 M115"));
+		// only the whole code counts
+		assertFalse(RepRap5DDriver.needsAnswer("M1050"));
+		assertFalse(RepRap5DDriver.needsAnswer("M10"));
+		assertFalse(RepRap5DDriver.needsAnswer("XM105"));
+		assertFalse(RepRap5DDriver.needsAnswer("M104 S220"));
+		assertFalse(RepRap5DDriver.needsAnswer("G1 X10 M"));
+		assertFalse(RepRap5DDriver.needsAnswer(""));
+	}
+
+	// What the driver used to rewrite outgoing lines with
+	static final Pattern FEEDRATE = Pattern.compile("F(-[0-9\\.]+)");
+	static final Pattern EXTRUSION = Pattern.compile("E([-0-9\\.]+)");
+	static final Pattern M01 = Pattern.compile("M01[^0-9]");
+	static final Pattern M10X = Pattern.compile("M10[123](.*)");
+	static final Pattern FEEDRATE_BEFORE_EXTRUSION = Pattern.compile("^(.*)(F[0-9\\.]*)\\s?E([0-9\\.]*)$");
+
+	static double regexValue(Pattern pattern, String line) {
+		Matcher m = pattern.matcher(line);
+		return m.find() ? Double.parseDouble(m.group(1)) : Double.NaN;
+	}
+
+	static String regexReordered(String line) {
+		Matcher m = FEEDRATE_BEFORE_EXTRUSION.matcher(line);
+		return m.find() ? m.group(1)+" E"+m.group(3)+" "+m.group(2) : line;
+	}
+
+	static void assertSameAsPatterns(String line) {
+		assertEquals(line, regexValue(FEEDRATE, line), RepRap5DDriver.valueAfter(line, 'F', '-'), 0);
+		assertEquals(line, regexValue(EXTRUSION, line), RepRap5DDriver.valueAfter(line, 'E', (char)0), 0);
+		assertEquals(line, M01.matcher(line).find() || M10X.matcher(line).find(), RepRap5DDriver.isDropped(line));
+		assertEquals(line, regexReordered(line), RepRap5DDriver.feedrateAfterExtrusion(line));
+	}
+
+	@Test
+	public void testRewriting() {
+		assertEquals("G1 X5  E2.5 F300", RepRap5DDriver.feedrateAfterExtrusion("G1 X5 F300 E2.5"));
+		assertEquals("G1 X5 E2.5 F300", RepRap5DDriver.feedrateAfterExtrusion("G1 X5F300E2.5"));
+		String unchanged = "G1 X5 E2.5 F300";
+		assertSame(unchanged, RepRap5DDriver.feedrateAfterExtrusion(unchanged));
+		assertTrue(RepRap5DDriver.isDropped("M101"));
+		assertTrue(RepRap5DDriver.isDropped("M01 "));
+		assertFalse(RepRap5DDriver.isDropped("M01"));
+		assertFalse(RepRap5DDriver.isDropped("M104 S200"));
+		assertEquals(12.25, RepRap5DDriver.valueAfter("G1 X1 E12.25", 'E', (char)0), 0);
+		assertEquals(-1500, RepRap5DDriver.valueAfter("G1 F-1500", 'F', '-'), 0);
+		assertTrue(Double.isNaN(RepRap5DDriver.valueAfter("G1 F1500", 'F', '-')));
+
+		String[] lines = { "", "E", "F", "G1 X10 Y20 F3000 E1.5", "G1 F300\tE0.25", "G1 F E",
+				"G1 X1 E-2.5", "G92 E0", "M103", "M1013", "M01", "M01 ; stop", "M010",
+				"G1 F-20 E5 F-30", "T0 M101", "G1 X.5 E.25", "G1 E1 E2", "EFE1F2E3" };
+		for (String line : lines)
+			assertSameAsPatterns(line);
+
+		// and lines made up of the pieces that matter to them
+		String[] pieces = { "G1", " ", "\t", "X1.5", "F", "F300", "F-12.5", "E", "E2", "E-0.5",
+				"E.25", "M01", "M10", "1", "2", "3", "-", ".", "0", "Y" };
+		Random random = new Random(23);
+		for (int n = 0; n < 20000; n++) {
+			StringBuilder line = new StringBuilder();
+			for (int k = random.nextInt(6); k >= 0; k--)
+				line.append(pieces[random.nextInt(pieces.length)]);
+			String text = line.toString();
+			// the patterns could only throw at these; see below
+			if (throwsOnPatterns(text))
+				continue;
+			assertSameAsPatterns(text);
+		}
+	}
+
+	// The values the patterns found and couldn't parse, which the scans skip instead
+	static boolean throwsOnPatterns(String line) {
+		try {
+			regexValue(FEEDRATE, line);
+			regexValue(EXTRUSION, line);
+			return false;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	@Test
+	public void testUnparseableValues() {
+		// the patterns found these and then threw; the scans see no value
+		assertTrue(Double.isNaN(RepRap5DDriver.valueAfter("G1 E-", 'E', (char)0)));
+		assertTrue(Double.isNaN(RepRap5DDriver.valueAfter("G1 E1-2", 'E', (char)0)));
+		assertTrue(Double.isNaN(RepRap5DDriver.valueAfter("G1 E1.2.3", 'E', (char)0)));
+		assertTrue(Double.isNaN(RepRap5DDriver.valueAfter("G1 F-.", 'F', '-')));
+	}
+}
@@ -0,0 +1,240 @@
+package replicatorg.drivers.reprap;
+
+import static org.junit.Assert.*;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import replicatorg.app.util.serial.ByteFifo;
+
+// The parser is checked against the Strings and Patterns the driver used to pick
+// replies apart with, on the kinds of line firmwares send.
+public class ResponseParserTest {
+
+	static final String[] LINES = {
+		"ok",
+		"ok 12",
+		"ok T:185.3 /185.0 B:60.2 /60.0 @:0 B@:0",
+		"T:201.0 E:0 W:?",
+		"ok T:23.4",
+		"ok C: X:10.00 Y:-20.50 Z:0.30 E:0.00",
+		"C: X10.00 Y20.00 Z0.30",
+		"X:10.00 Y:20.00 Z:0.30 E:0.00 Count X: 1000.00 Y:2000.00 Z:120.00",
+		"Resend: 42",
+		"Resend:7",
+		"rs 17",
+		"Error:checksum mismatch, Last Line: 41",
+		"Error:Line Number is not Last Line Number+1, Last Line: 5",
+		"Error:No Checksum with line number, Last Line: 9",
+		"echo:Unknown command: \"X10\"",
+		"echo:SD card ok",
+		"echo:SD init fail",
+		"start",
+		"Marlin 1.0.0",
+		"FIRMWARE_NAME:Marlin V1; Sprinter/grbl mashup for gen6 FIRMWARE_URL:http://www.mendel-parts.com PROTOCOL_VERSION:1.0 MACHINE_TYPE:Mendel EXTRUDER_COUNT:1",
+		"extruder fail",
+		"  ok   ",
+		"",
+	};
+
+	// the prefixes and keys the driver looks for
+	static final String[] KEYS = {
+		"ok", "ok t:", "t:", "ok c:", "c:", "x:", "echo:", "echo", "sd", "fail", "marlin",
+		"firmware_name", "start", "extruder fail", "resend", "rs ", "error:", "b:", "e:",
+	};
+
+	static ResponseParser parse(String line) {
+		ByteFifo fifo = new ByteFifo();
+		byte[] bytes = (line + "\r\n").getBytes();
+		fifo.enqueue(bytes, 0, bytes.length);
+		ResponseParser parser = new ResponseParser();
+		assertTrue(parser.read(fifo));
+		return parser;
+	}
+
+	// What the driver used to make of a line before looking at it
+	static String old(String line) {
+		return line.trim().toLowerCase();
+	}
+
+	@Test
+	public void testText() {
+		for (String line : LINES) {
+			ResponseParser parser = parse(line);
+			assertEquals(old(line), parser.toString());
+			assertEquals(old(line).length() == 0, parser.isEmpty());
+		}
+	}
+
+	@Test
+	public void testKeys() {
+		for (String line : LINES) {
+			ResponseParser parser = parse(line);
+			for (String key : KEYS) {
+				assertEquals(line + " starts with " + key, old(line).startsWith(key), parser.startsWith(key));
+				assertEquals(line + " contains " + key, old(line).contains(key), parser.contains(key));
+			}
+		}
+	}
+
+	@Test
+	public void testTemperatures() {
+		Pattern tool = Pattern.compile("t:([0-9\\.]+)");
+		Pattern bed = Pattern.compile("^ok.*b:([0-9\\.]+)");
+		int checked = 0;
+		for (String line : LINES) {
+			String text = old(line);
+			if (!text.startsWith("ok t:") && !text.startsWith("t:"))
+				continue;
+			ResponseParser parser = parse(line);
+			Matcher m = tool.matcher(text);
+			assertEquals(m.find() ? Double.parseDouble(m.group(1)) : Double.NaN, parser.valueAfter("t:"), 0);
+			m = bed.matcher(text);
+			double expected = m.find() ? Double.parseDouble(m.group(1)) : Double.NaN;
+			double actual = parser.startsWith("ok") ? parser.valueAfter("b:") : Double.NaN;
+			assertEquals(expected, actual, 0);
+			checked++;
+		}
+		assertEquals(3, checked);
+	}
+
+	@Test
+	public void testPositions() {
+		Pattern position = Pattern.compile("c: *x:?([-0-9\\.]+) *y:?([-0-9\\.]+) *z:?([-0-9\\.]+)");
+		int checked = 0;
+		for (String line : LINES) {
+			String text = old(line);
+			ResponseParser parser = parse(line);
+			if (text.startsWith("ok c:") || text.startsWith("c:")) {
+				// as the driver finds them
+				Matcher m = position.matcher(text);
+				assertTrue(m.find());
+				int xAt = parser.indexOfValue('x', parser.indexAfter("c:"));
+				int yAt = parser.indexOfValue('y', xAt);
+				int zAt = parser.indexOfValue('z', yAt);
+				assertEquals(Double.parseDouble(m.group(1)), parser.number(xAt), 0);
+				assertEquals(Double.parseDouble(m.group(2)), parser.number(yAt), 0);
+				assertEquals(Double.parseDouble(m.group(3)), parser.number(zAt), 0);
+				checked++;
+			} else if (text.startsWith("x:")) {
+				String[] location = text.split("[a-z]:");
+				assertEquals(Double.parseDouble(location[1]), parser.valueAfter("x:"), 0);
+				assertEquals(Double.parseDouble(location[2]), parser.valueAfter("y:"), 0);
+				assertEquals(Double.parseDouble(location[3]), parser.valueAfter("z:"), 0);
+				// E was only logged, as whatever followed it
+				assertEquals(0, parser.valueAfter("e:"), 0);
+				checked++;
+			}
+		}
+		assertEquals(3, checked);
+	}
+
+	@Test
+	public void testResends() {
+		Pattern resendLine = Pattern.compile("([0-9]+)");
+		int checked = 0;
+		for (String line : LINES) {
+			String text = old(line);
+			ResponseParser parser = parse(line);
+			if (text.startsWith("resend") || text.startsWith("rs ")) {
+				Matcher m = resendLine.matcher(text);
+				assertTrue(m.find());
+				assertEquals(Integer.parseInt(m.group(1)), parser.firstInteger());
+				checked++;
+			}
+		}
+		assertEquals(3, checked);
+		assertEquals(-1, parse("Resend:").firstInteger());
+	}
+
+	@Test
+	public void testErrors() {
+		// Marlin explains each resend request in an Error: line first. It is neither
+		// an ok nor a resend, and the explanation is what follows the colon.
+		int checked = 0;
+		for (String line : LINES) {
+			String text = old(line);
+			ResponseParser parser = parse(line);
+			assertEquals(text.startsWith("error:"), parser.startsWith("error:"));
+			if (parser.startsWith("error:")) {
+				assertFalse(parser.startsWith("ok"));
+				assertFalse(parser.startsWith("resend"));
+				assertFalse(parser.startsWith("rs "));
+				assertFalse(parser.isGarbled());
+				assertEquals(text.substring(6), parser.toString().substring(6));
+				checked++;
+			}
+		}
+		assertEquals(3, checked);
+		assertEquals(41, parse("Error:checksum mismatch, Last Line: 41").firstInteger());
+	}
+
+	@Test
+	public void testNumbers() {
+		String[] numbers = { "0", "7", "-3", "+5", "12.5", "-0.25", ".5", "5.", "185.00",
+				"123456789012345678", "1234567890123456789012", "0.000000000000000001",
+				"000000000000000000000012.5", "0.00000000000000000000000125", "3.14159265358979323846" };
+		for (String number : numbers) {
+			ResponseParser parser = parse("t:" + number + " x");
+			assertEquals(number, Double.parseDouble(number), parser.valueAfter("t:"),
+					Math.abs(Double.parseDouble(number)) * 1e-15);
+		}
+		assertTrue(Double.isNaN(parse("t: x").valueAfter("t:")));
+		assertTrue(Double.isNaN(parse("t:-").valueAfter("t:")));
+		assertTrue(Double.isNaN(parse("ok").valueAfter("t:")));
+		assertTrue(Double.isNaN(parse("ok").number(-1)));
+	}
+
+	@Test
+	public void testCharAt() {
+		ResponseParser parser = parse("  Resend: 3 Dud M code");
+		int letterAt = parser.indexAfter("dud ");
+		assertEquals('m', parser.charAt(letterAt));
+		assertEquals(letterAt + 1 + " code".length(), parser.indexAfter(" code", letterAt));
+		// outside the line
+		assertEquals(0, parser.charAt(-1));
+		assertEquals(0, parser.charAt(1000));
+	}
+
+	@Test
+	public void testGarbled() {
+		ByteFifo fifo = new ByteFifo();
+		byte[] bytes = { 'o', (byte)0xfe, 0x03, 'k', '\n' };
+		fifo.enqueue(bytes, 0, bytes.length);
+		ResponseParser parser = new ResponseParser();
+		assertTrue(parser.read(fifo));
+		assertTrue(parser.isGarbled());
+		assertFalse(parse("ok T:20.0").isGarbled());
+	}
+
+	@Test
+	public void testReadLines() {
+		ByteFifo fifo = new ByteFifo();
+		byte[] bytes = "ok\nok T:20\nRes".getBytes();
+		fifo.enqueue(bytes, 0, bytes.length);
+		ResponseParser parser = new ResponseParser();
+		assertTrue(parser.read(fifo));
+		assertEquals("ok", parser.toString());
+		assertTrue(parser.read(fifo));
+		assertEquals("ok t:20", parser.toString());
+		// not a whole line yet
+		assertFalse(parser.read(fifo));
+		bytes = "end: 4\n".getBytes();
+		fifo.enqueue(bytes, 0, bytes.length);
+		assertTrue(parser.read(fifo));
+		assertEquals(4, parser.firstInteger());
+	}
+
+	@Test
+	public void testLongLine() {
+		// longer than the parser's buffer to start with
+		StringBuilder line = new StringBuilder("echo:");
+		while (line.length() < 1000) {
+			line.append("abcdefghij");
+		}
+		ResponseParser parser = parse(line.toString());
+		assertEquals(old(line.toString()), parser.toString());
+	}
+}
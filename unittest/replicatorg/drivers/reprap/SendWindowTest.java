@@ -0,0 +1,352 @@
+package replicatorg.drivers.reprap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SendWindowTest {
+
+	static byte[] line(int lineNumber, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte)(lineNumber + i);
+		}
+		return bytes;
+	}
+
+	static long add(SendWindow window, int lineNumber, int length) {
+		return window.add(line(lineNumber, length), length, lineNumber);
+	}
+
+	// Longer than any of the tests should have to wait for the firmware
+	static final long FOREVER = 60000;
+
+	// Wait on another thread, to see whether it has to wait
+	static abstract class Waiter extends Thread {
+		volatile boolean done = false;
+		abstract boolean await() throws InterruptedException;
+		public void run() {
+			try {
+				done = await();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	static void assertWaits(Waiter waiter) throws InterruptedException {
+		waiter.start();
+		waiter.join(50);
+		assertFalse(waiter.done);
+	}
+
+	static void assertWakes(Waiter waiter) throws InterruptedException {
+		waiter.join(5000);
+		assertTrue(waiter.done);
+	}
+
+	@Test
+	public void testOrder() {
+		SendWindow window = new SendWindow(8, 1000);
+		assertTrue(window.isEmpty());
+		assertFalse(window.acknowledge());
+		assertEquals(-1, window.getOldestLineNumber());
+
+		assertEquals(0, add(window, 1, 10));
+		assertEquals(1, add(window, 2, 10));
+		assertEquals(2, window.size());
+		assertEquals(2, window.getNewestLineNumber());
+		// oks answer the oldest line first
+		assertEquals(1, window.getOldestLineNumber());
+		assertTrue(window.acknowledge());
+		assertEquals(2, window.getOldestLineNumber());
+		assertTrue(window.acknowledge());
+		assertTrue(window.isEmpty());
+		assertFalse(window.acknowledge());
+		// the newest line number is kept, for numbering the next one
+		assertEquals(2, window.getNewestLineNumber());
+	}
+
+	@Test
+	public void testExtraOk() {
+		SendWindow window = new SendWindow(8, 1000);
+		add(window, 1, 10);
+		window.expectExtraOk();
+		// the extra ok answers nothing
+		assertTrue(window.acknowledge());
+		assertEquals(1, window.size());
+		assertTrue(window.acknowledge());
+		assertTrue(window.isEmpty());
+	}
+
+	@Test
+	public void testRing() {
+		SendWindow window = new SendWindow(5, 100000);
+		// rounded up to eight lines, so going round the ring many times
+		for (int n = 1; n <= 100; n++) {
+			long seq = add(window, n, 1 + n % 70);
+			assertEquals(n - 1, seq);
+			if (window.size() == 8) {
+				assertTrue(window.acknowledge());
+			}
+			// the copy kept is the line as it was sent
+			assertEquals(1 + n % 70, window.getLength(seq));
+			byte[] bytes = window.getBytes(seq);
+			for (int i = 0; i < window.getLength(seq); i++) {
+				assertEquals((byte)(n + i), bytes[i]);
+			}
+		}
+		assertEquals(7, window.size());
+		assertEquals(94, window.getOldestLineNumber());
+		assertEquals(93, window.getAcknowledged());
+		assertEquals(100, window.getSent());
+		// every line waiting can be found, and no others
+		for (int n = 94; n <= 100; n++) {
+			assertTrue(window.contains(n));
+		}
+		assertFalse(window.contains(93));
+		assertFalse(window.contains(101));
+	}
+
+	@Test
+	public void testRenumbered() {
+		SendWindow window = new SendWindow(8, 1000);
+		add(window, 98, 10);
+		add(window, 99, 10);
+		// an M110 started the numbering again
+		add(window, -1, 10);
+		add(window, 0, 10);
+		add(window, 1, 10);
+		assertTrue(window.contains(98));
+		assertTrue(window.contains(99));
+		assertTrue(window.contains(0));
+		assertEquals(1, window.getNewestLineNumber());
+		assertEquals(1, window.resend(99));
+		assertEquals(3, window.resend(0));
+	}
+
+	@Test
+	public void testResendShrinks() {
+		SendWindow window = new SendWindow(16, 100);
+		assertEquals(100, window.getLimit());
+		add(window, 1, 10);
+		add(window, 2, 10);
+		add(window, 3, 10);
+
+		// asking again for a line we don't have changes nothing
+		assertEquals(-1, window.resend(7));
+		assertEquals(100, window.getLimit());
+		assertEquals(0, window.getResendCount());
+
+		// halves, each time, but never to nothing
+		assertEquals(1, window.resend(2));
+		assertEquals(50, window.getLimit());
+		assertEquals(1, window.getResendCount());
+		for (int i = 0; i < 10; i++) {
+			window.resend(2);
+		}
+		assertEquals(1, window.getLimit());
+	}
+
+	@Test
+	public void testGrowth() throws Exception {
+		SendWindow window = new SendWindow(16, 100);
+		// a round trip of 100ms or so
+		add(window, 1, 10);
+		Thread.sleep(100);
+		window.acknowledge();
+		long roundTrip = window.getRoundTripTime();
+		assertTrue(roundTrip >= 90000);
+
+		for (int n = 2; n <= 6; n++) {
+			add(window, n, 10);
+		}
+		window.resend(2);
+		assertEquals(50, window.getLimit());
+		// lines sent again don't count as round trips
+		window.acknowledge();
+		assertEquals(roundTrip, window.getRoundTripTime());
+
+		// grows by a line for the first ok...
+		assertEquals(60, window.getLimit());
+		// ...but no more until a round trip has gone by
+		window.acknowledge();
+		assertEquals(60, window.getLimit());
+		Thread.sleep(roundTrip / 1000 + 20);
+		window.acknowledge();
+		assertEquals(70, window.getLimit());
+
+		// and never past the firmware's buffer
+		for (int i = 0; i < 5; i++) {
+			add(window, 10 + i, 10);
+			Thread.sleep(roundTrip / 1000 + 20);
+			window.acknowledge();
+		}
+		assertEquals(100, window.getLimit());
+	}
+
+	@Test
+	public void testAwaitRoom() throws Exception {
+		final SendWindow window = new SendWindow(16, 30);
+		// a line too long for the buffer still goes, when nothing else is waiting
+		assertTrue(window.awaitRoom(100, FOREVER));
+		add(window, 1, 10);
+		add(window, 2, 10);
+		assertTrue(window.awaitRoom(10, FOREVER));
+
+		Waiter waiter = new Waiter() {
+			boolean await() throws InterruptedException {
+				return window.awaitRoom(11, FOREVER);
+			}
+		};
+		assertWaits(waiter);
+		window.acknowledge();
+		assertWakes(waiter);
+	}
+
+	@Test
+	public void testAwaitRoomInRing() throws Exception {
+		final SendWindow window = new SendWindow(2, 1000);
+		add(window, 1, 1);
+		add(window, 2, 1);
+		// the ring is full, however much room the buffer has
+		Waiter waiter = new Waiter() {
+			boolean await() throws InterruptedException {
+				return window.awaitRoom(1, FOREVER);
+			}
+		};
+		assertWaits(waiter);
+		window.acknowledge();
+		assertWakes(waiter);
+	}
+
+	@Test
+	public void testDrop() {
+		SendWindow window = new SendWindow(8, 1000);
+		add(window, 1, 10);
+		add(window, 2, 10);
+		add(window, 3, 10);
+		add(window, 4, 10);
+		assertFalse(window.drop(9));
+
+		// a dropped line in the middle goes with the ok for the line before it
+		assertTrue(window.drop(2));
+		assertTrue(window.acknowledge());
+		assertEquals(3, window.getOldestLineNumber());
+
+		// and the oldest line goes at once
+		assertTrue(window.drop(3));
+		assertEquals(4, window.getOldestLineNumber());
+		assertEquals(1, window.size());
+	}
+
+	@Test
+	public void testAwaitAcknowledgement() throws Exception {
+		final SendWindow window = new SendWindow(8, 1000);
+		add(window, 1, 10);
+		final long seq = add(window, 2, 10);
+		Waiter waiter = new Waiter() {
+			boolean await() throws InterruptedException {
+				return window.awaitAcknowledgement(seq, FOREVER);
+			}
+		};
+		assertWaits(waiter);
+		window.acknowledge();
+		assertWaits(waiterFor(window, seq));
+		window.acknowledge();
+		assertWakes(waiter);
+	}
+
+	static Waiter waiterFor(SendWindow window, long seq) {
+		return waiterFor(window, seq, FOREVER);
+	}
+
+	static Waiter waiterFor(final SendWindow window, final long seq, final long timeout) {
+		return new Waiter() {
+			boolean await() throws InterruptedException {
+				return window.awaitAcknowledgement(seq, timeout);
+			}
+		};
+	}
+
+	@Test
+	public void testQuietFirmware() throws Exception {
+		SendWindow window = new SendWindow(8, 20);
+		add(window, 1, 10);
+		long seq = add(window, 2, 10);
+		long start = System.nanoTime();
+		assertFalse(window.awaitRoom(10, 100));
+		assertFalse(window.awaitAcknowledgement(seq, 100));
+		assertTrue(System.nanoTime() - start >= 100 * 1000000L);
+
+		// hearing from the firmware starts the wait again
+		window.heardFrom();
+		Waiter waiter = waiterFor(window, seq, 2000);
+		assertWaits(waiter);
+		window.acknowledge();
+		window.acknowledge();
+		assertWakes(waiter);
+	}
+
+	@Test
+	public void testLostOk() throws Exception {
+		SendWindow window = new SendWindow(8, 1000);
+		assertEquals(-1, window.resendOldest());
+		add(window, 1, 10);
+		long seq = add(window, 2, 10);
+
+		// the firmware has all the lines, but not because one was sent again
+		assertFalse(window.answeredResend());
+		assertEquals(2, window.size());
+
+		// it went quiet, so line 1 was sent again, and it said it has every line: the
+		// ok for line 1 never came
+		assertEquals(seq - 1, window.resendOldest());
+		assertEquals(1, window.getResendCount());
+		assertTrue(window.answeredResend());
+		assertEquals(2, window.getOldestLineNumber());
+		assertFalse(window.answeredResend());
+
+		// the ok for a line sent again came after all
+		assertEquals(seq, window.resendOldest());
+		assertTrue(window.acknowledge());
+		assertFalse(window.answeredResend());
+		assertTrue(window.isEmpty());
+	}
+
+	@Test
+	public void testResendOldestRoom() throws Exception {
+		SendWindow window = new SendWindow(8, 100);
+		add(window, 1, 40);
+		add(window, 2, 40);
+
+		// the oldest line has left the firmware's buffer, so one copy fits
+		long seq = window.resendOldest();
+		assertEquals(window.getAcknowledged(), seq);
+		// and while it is there it takes room, so a second would overflow
+		assertFalse(window.awaitRoom(1, 50));
+		assertEquals(-1, window.resendOldest());
+		assertEquals(1, window.getResendCount());
+
+		// once the lines before it are answered, the copy has been read
+		assertTrue(window.acknowledge());
+		assertTrue(window.acknowledge());
+		assertTrue(window.awaitRoom(100, FOREVER));
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		SendWindow window = new SendWindow(8, 1000);
+		add(window, 1, 10);
+		long seq = add(window, 2, 10);
+		window.expectExtraOk();
+		Waiter waiter = waiterFor(window, seq);
+		assertWaits(waiter);
+
+		// the firmware was reset: nothing waiting will be answered
+		window.clear();
+		assertWakes(waiter);
+		assertTrue(window.isEmpty());
+		assertFalse(window.acknowledge());
+		assertEquals(2, window.getNewestLineNumber());
+	}
+}
@@ -0,0 +1,62 @@
+package replicatorg.machine;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import replicatorg.drivers.commands.AssessState;
+import replicatorg.machine.Machine.RequestType;
+
+public class MachineSchedulerTest {
+
+	static MachineCommand command(RequestType type) {
+		return new MachineCommand(type, new AssessState());
+	}
+
+	@Test
+	public void testStopOvertakesCommands() throws InterruptedException {
+		MachineScheduler scheduler = new MachineScheduler();
+		scheduler.schedule(command(RequestType.CONNECT));
+		for (int i = 0; i < 10; i++)
+			scheduler.schedule(command(RequestType.RUN_COMMAND));
+		scheduler.schedule(command(RequestType.STOP_ALL));
+		scheduler.schedule(command(RequestType.RUN_COMMAND));
+
+		// The stop comes first, and drops the commands queued before it
+		MachineScheduler.Task task = scheduler.next(true);
+		assertEquals(MachineScheduler.Priority.STOP, task.priority);
+		assertEquals(RequestType.STOP_ALL, task.command.type);
+		assertEquals(RequestType.CONNECT, scheduler.next(true).command.type);
+
+		// the command asked for after it still runs, and only then the build
+		assertEquals(RequestType.RUN_COMMAND, scheduler.next(true).command.type);
+		assertSame(MachineScheduler.BUILD_STEP, scheduler.next(true));
+	}
+
+	@Test
+	public void testStopAfterBuild() throws InterruptedException {
+		MachineScheduler scheduler = new MachineScheduler();
+		scheduler.schedule(command(RequestType.BUILD_DIRECT));
+		scheduler.schedule(command(RequestType.STOP_MOTION));
+		// the build never starts after the stop
+		assertEquals(RequestType.STOP_MOTION, scheduler.next(false).command.type);
+		assertSame(MachineScheduler.BUILD_STEP, scheduler.next(true));
+	}
+
+	@Test
+	public void testPausesInOrder() throws InterruptedException {
+		MachineScheduler scheduler = new MachineScheduler();
+		scheduler.schedule(command(RequestType.RUN_COMMAND));
+		scheduler.schedule(command(RequestType.PAUSE));
+		scheduler.schedule(command(RequestType.UNPAUSE));
+		scheduler.schedule(command(RequestType.PAUSE));
+
+		// they run as they were asked for, so the machine ends up paused, but all
+		// before the next build step
+		assertEquals(RequestType.RUN_COMMAND, scheduler.next(true).command.type);
+		assertEquals(RequestType.PAUSE, scheduler.next(true).command.type);
+		assertEquals(RequestType.UNPAUSE, scheduler.next(true).command.type);
+		assertEquals(RequestType.PAUSE, scheduler.next(true).command.type);
+		assertSame(MachineScheduler.BUILD_STEP, scheduler.next(true));
+	}
+}
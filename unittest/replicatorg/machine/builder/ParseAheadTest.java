@@ -0,0 +1,229 @@
+package replicatorg.machine.builder;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.drivers.NullDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.Version;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+public class ParseAheadTest {
+
+	// A machine with 100 steps per mm on every axis, so half a step is 0.005mm
+	static class FineMachine extends MachineModel {
+		@Override
+		public Point5d getStepsPerMM() {
+			return new Point5d(100, 100, 100, 100, 100);
+		}
+	}
+
+	/**
+	 * A driver that doesn't go exactly where it is told on X, and remembers where it
+	 * went and which threads asked it anything.
+	 */
+	static class AdjustingDriver extends NullDriver {
+		final double adjustment;
+		final List<Point5d> points = new ArrayList<Point5d>();
+		final Set<Thread> askedFrom = new HashSet<Thread>();
+
+		AdjustingDriver(double adjustment) {
+			this.adjustment = adjustment;
+			machine = new FineMachine();
+		}
+
+		@Override
+		public void queuePoint(Point5d p) throws RetryException {
+			Point5d adjusted = new Point5d(p);
+			adjusted.setX(p.x() + adjustment);
+			points.add(adjusted);
+			super.queuePoint(adjusted);
+		}
+
+		@Override
+		protected Point5d reconcilePosition() {
+			// the machine starts at the origin
+			return new Point5d();
+		}
+
+		@Override
+		public Point5d getCurrentPosition(boolean forceUpdate) {
+			askedFrom.add(Thread.currentThread());
+			return super.getCurrentPosition(forceUpdate);
+		}
+
+		@Override
+		public Point5d getMaximumFeedrates() {
+			askedFrom.add(Thread.currentThread());
+			return super.getMaximumFeedrates();
+		}
+
+		@Override
+		public Version getVersion() {
+			askedFrom.add(Thread.currentThread());
+			return super.getVersion();
+		}
+
+		@Override
+		public MachineModel getMachine() {
+			askedFrom.add(Thread.currentThread());
+			return super.getMachine();
+		}
+	}
+
+	// Relative moves, so that every move depends on where the one before really ended
+	static final List<String> RELATIVE_MOVES = new ArrayList<String>();
+	static {
+		RELATIVE_MOVES.add("G21");
+		RELATIVE_MOVES.add("G92 X0 Y0 Z0");
+		RELATIVE_MOVES.add("G91");
+		for (int i = 0; i < 40; i++) {
+			RELATIVE_MOVES.add("G1 X1 Y0.5 F1200");
+			// rapid moves, which ask the driver how fast it can go
+			if (i % 4 == 0)
+				RELATIVE_MOVES.add("G0 X2 Y1");
+		}
+	}
+
+	static Direct build(AdjustingDriver driver, List<String> lines, boolean parseAhead) {
+		Direct direct = new Direct(driver, null, new MutableGCodeSource(lines));
+		direct.parsingAhead = parseAhead;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!direct.finished()) {
+			assertTrue("build took too long", System.currentTimeMillis() < deadline);
+			direct.runNext();
+		}
+		direct.close();
+		return direct;
+	}
+
+	static void assertSamePoints(List<Point5d> expected, List<Point5d> actual, double tolerance) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			for (int axis = 0; axis < 5; axis++)
+				assertEquals("point " + i + " axis " + axis, expected.get(i).get(axis), actual.get(i).get(axis), tolerance);
+	}
+
+	@Test
+	public void testPredicted() {
+		AdjustingDriver sequential = new AdjustingDriver(0);
+		build(sequential, RELATIVE_MOVES, false);
+		AdjustingDriver ahead = new AdjustingDriver(0);
+		Direct direct = build(ahead, RELATIVE_MOVES, true);
+
+		assertSamePoints(sequential.points, ahead.points, 1e-12);
+		assertEquals(0, direct.mispredictions);
+		assertEquals(RELATIVE_MOVES.size(), direct.getLinesProcessed());
+	}
+
+	@Test
+	public void testRoundOff() {
+		// A driver that loses a little in its arithmetic isn't taken to be somewhere else
+		AdjustingDriver sequential = new AdjustingDriver(1e-9);
+		build(sequential, RELATIVE_MOVES, false);
+		AdjustingDriver ahead = new AdjustingDriver(1e-9);
+		Direct direct = build(ahead, RELATIVE_MOVES, true);
+
+		// the moves are parsed from where the driver was said to be, which is a hair off
+		assertSamePoints(sequential.points, ahead.points, 1e-6);
+		assertEquals(0, direct.mispredictions);
+	}
+
+	@Test
+	public void testMisprediction() {
+		// Every move ends up 0.1mm further along X than it was told, so every guess
+		// is wrong, and the lines have to be parsed again from where the driver really is
+		AdjustingDriver sequential = new AdjustingDriver(0.1);
+		build(sequential, RELATIVE_MOVES, false);
+		AdjustingDriver ahead = new AdjustingDriver(0.1);
+		Direct direct = build(ahead, RELATIVE_MOVES, true);
+
+		assertSamePoints(sequential.points, ahead.points, 1e-12);
+		// after enough wrong guesses, we stop guessing
+		assertEquals(ParseAhead.MAX_MISPREDICTIONS, direct.mispredictions);
+		assertEquals(RELATIVE_MOVES.size(), direct.getLinesProcessed());
+	}
+
+	@Test
+	public void testDriverOnlyUsedOnMachineThread() {
+		AdjustingDriver driver = new AdjustingDriver(0.1);
+		build(driver, RELATIVE_MOVES, true);
+		assertEquals(new HashSet<Thread>(Arrays.asList(Thread.currentThread())), driver.askedFrom);
+	}
+
+	@Test
+	public void testCloseWaitsForParser() {
+		// Abandon a build part of the way through: once close() returns, nothing may
+		// read the source, since it is about to be let go of
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 20; i++)
+			lines.addAll(RELATIVE_MOVES);
+		Direct direct = new Direct(new AdjustingDriver(0), null, new MutableGCodeSource(lines));
+		direct.parsingAhead = true;
+		for (int i = 0; i < 10; i++)
+			direct.runNext();
+		assertNotNull(direct.parseAhead);
+		direct.close();
+		assertFalse(direct.parseAhead.isAlive());
+	}
+
+	@Test
+	public void testSharedSnapshots() {
+		// Lines that leave the parser as it was share one copy of it
+		final Iterator<String> lines = Arrays.asList(
+				"G21", "G90", "G1 X1 F1200", "G1 X2", "G1 X3", "G1 X4 F600", "G1 X5").iterator();
+		ParseAhead ahead = new ParseAhead(new AdjustingDriver(0), new ParseAhead.Input() {
+			public boolean hasNext() { return lines.hasNext(); }
+			public GCodeCommand next() { return new GCodeCommand(lines.next()); }
+		}, null, new LinkedList<ParseAhead.Entry>(), new Point5d(), true);
+		ahead.start();
+
+		List<ParseAhead.Entry> entries = new ArrayList<ParseAhead.Entry>();
+		for (ParseAhead.Entry entry = null; entry != ParseAhead.END; ) {
+			entry = ahead.next(entries.size(), 1000);
+			assertNotNull(entry);
+			if (entry != ParseAhead.END)
+				entries.add(entry);
+		}
+		ahead.close();
+
+		assertEquals(7, entries.size());
+		assertSame(entries.get(0).before, entries.get(1).before);
+		assertNotSame(entries.get(1).before, entries.get(2).before);
+		assertNotSame(entries.get(2).before, entries.get(3).before);
+		assertSame(entries.get(3).before, entries.get(4).before);
+		assertSame(entries.get(4).before, entries.get(5).before);
+		assertNotSame(entries.get(5).before, entries.get(6).before);
+	}
+
+	@Test
+	public void testSamePosition() {
+		Point5d tolerance = Direct.positionTolerance(new FineMachine());
+		assertEquals(0.005, tolerance.x(), 1e-12);
+
+		Point5d a = new Point5d(1, 2, 3, 4, 5);
+		Point5d b = new Point5d(1.004, 2, 3, 4, 5);
+		assertTrue(Direct.samePosition(a, b, tolerance));
+		b.setB(5.006);
+		assertFalse(Direct.samePosition(a, b, tolerance));
+		b.setB(Double.NaN);
+		assertFalse(Direct.samePosition(a, b, tolerance));
+
+		// without a machine, only round-off is forgiven
+		tolerance = Direct.positionTolerance(null);
+		assertTrue(Direct.samePosition(a, new Point5d(1 + 1e-9, 2, 3, 4, 5), tolerance));
+		assertFalse(Direct.samePosition(a, new Point5d(1.001, 2, 3, 4, 5), tolerance));
+	}
+}
@@ -0,0 +1,112 @@
+package replicatorg.machine.builder;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.drivers.EmulatedMachines;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+
+// Builds compiled for, and sent to, the emulated motherboard
+public class PrecompiledTest {
+
+	/**
+	 * A build that answers halts itself, and remembers how far the build had got each
+	 * time it was asked.
+	 */
+	static class AnsweringBuild extends Precompiled {
+		final boolean answer;
+		final List<StopException.StopType> asked = new ArrayList<StopException.StopType>();
+		final List<State> askedWhile = new ArrayList<State>();
+		final List<Integer> linesSentWhenAsked = new ArrayList<Integer>();
+
+		AnsweringBuild(Sanguino3GDriver driver, boolean answer, String... lines) {
+			super(driver, null, new MutableGCodeSource(Arrays.asList(lines)));
+			this.answer = answer;
+		}
+
+		@Override
+		boolean askToContinue(StopException stop) {
+			asked.add(stop.getType());
+			askedWhile.add(getState());
+			linesSentWhenAsked.add(getLinesProcessed());
+			return answer;
+		}
+	}
+
+	Sanguino3GDriver driver;
+
+	@Before
+	public void connect() throws Exception {
+		driver = new Sanguino3GDriver();
+		EmulatedMachines.connect(driver, "thingomatic.xml");
+		EmulatedMachines.handshake(driver);
+		driver.getCurrentPosition(true);
+	}
+
+	@After
+	public void disconnect() {
+		EmulatedMachines.disconnect(driver);
+	}
+
+	void build(Precompiled build) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!build.finished()) {
+			assertTrue("the build never finished", System.currentTimeMillis() < deadline);
+			build.runNext();
+		}
+		while (!driver.isFinished()) {
+			assertTrue("the machine never finished", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	double x() {
+		return driver.getCurrentPosition(true).x();
+	}
+
+	@Test
+	public void testHaltsAreAskedAboutOnceSent() throws Exception {
+		AnsweringBuild build = new AnsweringBuild(driver, true,
+				"G90", "G1 X10 F6000", "M1", "G1 X20", "M0", "G1 X30");
+		build(build);
+
+		assertEquals(Arrays.asList(StopException.StopType.OPTIONAL_HALT,
+				StopException.StopType.UNCONDITIONAL_HALT), build.asked);
+		assertEquals(Arrays.asList(Precompiled.State.SENDING, Precompiled.State.SENDING),
+				build.askedWhile);
+		// Everything before each halt had gone, and nothing after it
+		assertEquals(Arrays.asList(3, 5), build.linesSentWhenAsked);
+		// The build ended at the M0
+		assertEquals(20, x(), 0.01);
+	}
+
+	@Test
+	public void testStoppingAtAnOptionalHalt() throws Exception {
+		AnsweringBuild build = new AnsweringBuild(driver, false,
+				"G90", "G1 X10 F6000", "M1", "G1 X20");
+		build(build);
+
+		assertEquals(Arrays.asList(StopException.StopType.OPTIONAL_HALT), build.asked);
+		assertEquals(10, x(), 0.01);
+	}
+
+	@Test
+	public void testCompileProgress() throws Exception {
+		AnsweringBuild build = new AnsweringBuild(driver, true, "G90", "G1 X10 F6000", "G1 X20");
+		assertEquals(0, build.getLinesCompiled());
+		assertEquals(3, build.getLinesTotal());
+		build(build);
+		assertEquals(3, build.getLinesCompiled());
+		assertTrue(build.asked.isEmpty());
+		assertEquals(20, x(), 0.01);
+	}
+}
@@ -0,0 +1,96 @@
+package replicatorg.model;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MappedFileSourceTest {
+
+	static List<String> readLines(File f) throws IOException {
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(f));
+		for (String line = reader.readLine(); line != null; line = reader.readLine())
+			result.add(line);
+		reader.close();
+		return result;
+	}
+
+	// Checks that the mapped source splits a file into the same lines as BufferedReader
+	void assertSameLines(File f) throws IOException {
+		List<String> expected = readLines(f);
+		MappedFileSource source = new MappedFileSource(f);
+
+		assertEquals(expected.size(), source.getLineCount());
+		assertEquals(expected, source.asList());
+
+		Iterator<String> it = source.iterator();
+		for (String line : expected)
+			assertEquals(line, it.next());
+		assertFalse(it.hasNext());
+	}
+
+	void assertSameLines(String contents) throws IOException {
+		File f = File.createTempFile("mapped", ".gcode");
+		try {
+			FileOutputStream out = new FileOutputStream(f);
+			out.write(contents.getBytes());
+			out.close();
+			assertSameLines(f);
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testExample() throws IOException {
+		assertSameLines(new File("examples/dual/replicator_calibration_check.gcode"));
+	}
+
+	@Test
+	public void testLineBreaks() throws IOException {
+		assertSameLines("");
+		assertSameLines("\n");
+		assertSameLines("\r\n");
+		assertSameLines("\n\r");
+		assertSameLines("G1 X1");
+		assertSameLines("G1 X1\nG1 X2\n");
+		assertSameLines("G1 X1\r\nG1 X2\r\n\r\n");
+		assertSameLines("G1 X1\rG1 X2\r\rM2");
+		assertSameLines("\n\n\nG1\n\n");
+	}
+
+	@Test
+	public void testLongLines() throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			line.append("G1 X" + i + " ");
+		assertSameLines(line + "\n" + line + "\r\nG1 X1\n" + line);
+	}
+
+	@Test
+	public void testClose() throws IOException {
+		File f = File.createTempFile("mapped", ".gcode");
+		FileOutputStream out = new FileOutputStream(f);
+		out.write("G1 X1\nG1 X2\n".getBytes());
+		out.close();
+
+		MappedFileSource source = new MappedFileSource(f);
+		assertEquals(2, source.getLineCount());
+		// This JDK unmaps at once
+		assertTrue(source.close());
+
+		// Nothing is left to read, and the file can go
+		assertEquals(0, source.getLineCount());
+		assertFalse(source.iterator().hasNext());
+		assertTrue(f.delete());
+	}
+}